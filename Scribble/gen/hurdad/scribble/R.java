@@ -30,20 +30,48 @@ public final class R {
         public static final int clearAll=0x7f08000e;
         public static final int connectImageView=0x7f080002;
         public static final int connectTextView=0x7f080003;
+        public static final int deleteSelection=0x7f080015;
+        public static final int drawTool=0x7f080012;
+        public static final int eraseTool=0x7f080013;
+        public static final int fillTool=0x7f08001d;
+        public static final int exportTimelapse=0x7f08001f;
+        public static final int gallery=0x7f080027;
+        public static final int galleryEmpty=0x7f080025;
+        public static final int galleryGrid=0x7f080022;
+        public static final int galleryName=0x7f080024;
+        public static final int galleryThumbnail=0x7f080023;
         public static final int greenSeekBar=0x7f080007;
+        public static final int history=0x7f08001e;
+        public static final int historySeekBar=0x7f080020;
+        public static final int pressureWidth=0x7f080021;
+        public static final int reconnect=0x7f08001a;
         public static final int redSeekBar=0x7f080006;
+        public static final int saveDrawing=0x7f080026;
         public static final int scan=0x7f08000f;
         public static final int scanButton=0x7f08000a;
         public static final int scribbleView=0x7f080000;
+        public static final int selectTool=0x7f080014;
+        public static final int sendAuto=0x7f080017;
+        public static final int sendBulk=0x7f080019;
+        public static final int sendLive=0x7f080018;
+        public static final int sendMode=0x7f080016;
         public static final int serverInfoTextView=0x7f08000b;
+        public static final int showRemoteLayer=0x7f08001b;
+        public static final int snapShapes=0x7f08001c;
         public static final int title=0x7f080009;
         public static final int titleLeft=0x7f08000c;
         public static final int titleRight=0x7f08000d;
         public static final int undoButton=0x7f080001;
+        public static final int undoHorizon=0x7f080028;
+        public static final int undoHorizonDefault=0x7f08002a;
+        public static final int undoHorizonLong=0x7f08002b;
+        public static final int undoHorizonShort=0x7f080029;
     }
     public static final class layout {
         public static final int activity_scribble=0x7f030000;
         public static final int brush_menu=0x7f030001;
+        public static final int gallery=0x7f030005;
+        public static final int gallery_item=0x7f030006;
         public static final int select_server_dialog=0x7f030002;
         public static final int select_server_list_item=0x7f030003;
         public static final int title=0x7f030004;
@@ -61,17 +89,44 @@ public final class R {
         public static final int connected=0x7f050006;
         public static final int connecting=0x7f050007;
         public static final int connectionWasLost=0x7f050008;
+        public static final int deleteSelection=0x7f050014;
         public static final int done=0x7f050009;
+        public static final int drawingNotSaved=0x7f050028;
+        public static final int drawingSaved=0x7f050027;
+        public static final int drawTool=0x7f050015;
+        public static final int eraseTool=0x7f050016;
+        public static final int exportTimelapse=0x7f050020;
+        public static final int fillTool=0x7f05001f;
+        public static final int gallery=0x7f050025;
+        public static final int history=0x7f050021;
         public static final int local=0x7f05000b;
         public static final int menu_settings=0x7f05000c;
+        public static final int noDrawings=0x7f050029;
         public static final int ok=0x7f05000e;
         public static final int prompt_select_server=0x7f05000d;
+        public static final int pressureWidth=0x7f050024;
+        public static final int reconnect=0x7f05001c;
+        public static final int saveDrawing=0x7f050026;
         public static final int scan=0x7f05000f;
+        public static final int selectTool=0x7f050017;
+        public static final int sendAuto=0x7f050018;
+        public static final int sendBulk=0x7f050019;
+        public static final int sendLive=0x7f05001a;
+        public static final int sendMode=0x7f05001b;
         public static final int server_info=0x7f050010;
+        public static final int showRemoteLayer=0x7f05001d;
+        public static final int snapShapes=0x7f05001e;
+        public static final int timelapseFailed=0x7f050022;
+        public static final int timelapseSaved=0x7f050023;
         public static final int title=0x7f05000a;
         public static final int title_activity_scribble=0x7f050011;
         public static final int unableToConnect=0x7f050012;
         public static final int undo=0x7f050013;
+        public static final int undoHorizon=0x7f05002a;
+        public static final int undoHorizonDefault=0x7f05002c;
+        public static final int undoHorizonLong=0x7f05002d;
+        public static final int disconnectToOpen=0x7f05002e;
+        public static final int undoHorizonShort=0x7f05002b;
     }
     public static final class style {
         public static final int AppTheme=0x7f060000;
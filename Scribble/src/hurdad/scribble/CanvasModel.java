@@ -0,0 +1,101 @@
+package hurdad.scribble;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.SparseArray;
+
+/**
+ * the drawing itself: committed strokes and their index, each layer's raster cache, the
+ * history, ids and brushes, kept for the life of the activity rather than of its view
+ *
+ * a recreated ScribbleView takes the model over from the one before it, and as its layers'
+ * bitmaps cover the view in either orientation it shows the drawing on its first frame,
+ * rotated or not, without drawing a stroke again. what belongs to one view, strokes in progress, the selection,
+ * fills not yet done, is ended when that view is detached
+ *
+ * one instance per process, dropped when the activity finishes. used from the UI thread only
+ */
+public class CanvasModel {
+	private static CanvasModel instance;
+
+	// random tag telling this canvas's strokes apart from another's after a reconnect
+	final int author;
+	int peerAuthor;
+
+	// committed strokes in the order they finished, plus lookup by the id the author assigned
+	final ArrayList<Stroke> strokes;
+	final SparseArray<Stroke> localStrokes;
+	final SparseArray<Stroke> remoteStrokes;
+	final StrokeIndex strokeIndex;
+
+	// packed points and shared brushes of committed strokes
+	final StrokeArena arena;
+
+	// each author's strokes, rasterized per layer
+	final StrokeLayer[] layers;
+	int undoHorizon = ScribbleView.DEFAULT_UNDO_HORIZON;
+	long reclaimedVectorBytes;
+
+	final StrokeSync sync;
+	final StrokeHistory history;
+
+	final Paint localPaint;
+	final Paint remotePaint;
+
+	int nextLocalId;
+
+	// ids given to the strokes of a peer too old to send its own, never reused
+	int nextLegacyRemoteId;
+
+	// commit order across both layers, a layer redraws part of its cache in this order
+	long nextSequence;
+
+	/**
+	 * the model of the running activity, made empty the first time
+	 */
+	public static synchronized CanvasModel get(Context context) {
+		if (instance == null) {
+			instance = new CanvasModel(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/**
+	 * drop the drawing, the next view starts from an empty canvas
+	 */
+	public static synchronized void release() {
+		if (instance != null) {
+			instance.history.close();
+			instance = null;
+		}
+	}
+
+	private CanvasModel(Context context) {
+		author = 1 + new Random().nextInt(0xfffffe);
+		strokes = new ArrayList<Stroke>();
+		localStrokes = new SparseArray<Stroke>();
+		remoteStrokes = new SparseArray<Stroke>();
+		strokeIndex = new StrokeIndex();
+		arena = new StrokeArena();
+		layers = new StrokeLayer[ScribbleView.LAYER_COUNT];
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = new StrokeLayer(strokeIndex, i == ScribbleView.LAYER_LOCAL);
+		}
+		sync = new StrokeSync(author);
+		history = new StrokeHistory(new File(context.getCacheDir(), "history"));
+
+		localPaint = new Paint();
+		localPaint.setColor(Color.BLACK);
+		localPaint.setStyle(Paint.Style.STROKE);
+		localPaint.setStrokeWidth(8.0f);
+		localPaint.setAntiAlias(true);
+		localPaint.setStrokeJoin(Paint.Join.ROUND);
+
+		remotePaint = new Paint(localPaint);
+	}
+}
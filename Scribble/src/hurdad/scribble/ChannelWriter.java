@@ -0,0 +1,226 @@
+package hurdad.scribble;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * writes frames to the peer from its own thread, by channel priority: control, then
+ * live ink, then bulk
+ *
+ * callers hand over whole frames and return straight away, only waiting when a channel
+ * already holds more than its limit, as a blocking write would have. each write takes all
+ * waiting frames of the most urgent channel but only a chunk of bulk ones, so a background
+ * transfer holds a stroke up by one chunk at most instead of by everything queued
+ */
+public class ChannelWriter implements Runnable {
+
+	// bytes a channel can hold before callers wait for the link
+	private static final int LIVE_LIMIT_BYTES = 256 * 1024;
+	private static final int BULK_LIMIT_BYTES = 1024 * 1024;
+
+	// largest write of control or live frames, bulk frames are written a chunk at a time
+	private static final int WRITE_BYTES = 16 * 1024;
+
+	private final OutputStream outStream;
+	private final ScribbleSession session;
+	private final Channel[] channels;
+	private byte[] writeBuffer;
+	private boolean closed;
+	private volatile String failure;
+
+	// per channel, read by stats only
+	private final long[] framesWritten;
+	private final long[] bytesWritten;
+	private long writes;
+	private long callerWaitNanos;
+
+	/**
+	 * @param outStream	The connection, only written from run()
+	 * @param session	Told how long each write took, which is how it judges the link
+	 */
+	public ChannelWriter(OutputStream outStream, ScribbleSession session) {
+		this.outStream = outStream;
+		this.session = session;
+		channels = new Channel[ScribbleProtocol.CHANNEL_COUNT];
+		for (int i = 0; i < channels.length; i++) {
+			channels[i] = new Channel(i == ScribbleProtocol.CHANNEL_BULK ? BULK_LIMIT_BYTES : LIVE_LIMIT_BYTES);
+		}
+		writeBuffer = new byte[WRITE_BYTES];
+		framesWritten = new long[ScribbleProtocol.CHANNEL_COUNT];
+		bytesWritten = new long[ScribbleProtocol.CHANNEL_COUNT];
+	}
+
+	/**
+	 * queue whole frames for writing, the bytes can be reused once this returns
+	 * @param channel	One of ScribbleProtocol's CHANNEL_ constants
+	 * @param bytes		The buffer holding the frames
+	 * @param offset	Start of the frames
+	 * @param length	Number of bytes of frames
+	 * @return			False if the writer has been closed and the frames were dropped
+	 */
+	public synchronized boolean write(int channel, byte[] bytes, int offset, int length) {
+		Channel queue = channels[channel];
+		long waitStart = 0;
+		while (!closed && queue.size > 0 && queue.size + length > queue.limit) {
+			if (waitStart == 0) {
+				waitStart = System.nanoTime();
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		if (waitStart != 0) {
+			callerWaitNanos += System.nanoTime() - waitStart;
+		}
+		if (closed) {
+			return false;
+		}
+		queue.append(bytes, offset, length);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * stop writing, frames still queued are dropped
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				int length = take();
+				if (length < 0) {
+					return;
+				}
+
+				// a write blocks while the link is backed up, which is how the session judges it
+				long writeStart = System.nanoTime();
+				outStream.write(writeBuffer, 0, length);
+				session.recordWrite(length, System.nanoTime() - writeStart);
+			}
+		} catch (InterruptedException e) {
+			// closing
+		} catch (IOException e) {
+			// the reading side finds out the connection is gone and reports it
+			failure = e.getMessage();
+			close();
+		}
+	}
+
+	/**
+	 * wait for frames and move the next write's worth into writeBuffer
+	 * @return			Number of bytes to write, -1 once closed
+	 */
+	private synchronized int take() throws InterruptedException {
+		while (true) {
+			if (closed) {
+				return -1;
+			}
+			for (int i = 0; i < channels.length; i++) {
+				if (channels[i].size > 0) {
+					int limit = i == ScribbleProtocol.CHANNEL_BULK ? FrameEncoder.BULK_CHUNK_BYTES : WRITE_BYTES;
+					int length = takeFrames(i, limit);
+					notifyAll();
+					return length;
+				}
+			}
+			wait();
+		}
+	}
+
+	/**
+	 * move whole frames of a channel into writeBuffer, at least one however large
+	 */
+	private int takeFrames(int channel, int limit) {
+		Channel queue = channels[channel];
+		int length = 0;
+		int frames = 0;
+		while (length < queue.size) {
+			int frameLength = queue.frameLength(length);
+			if (frames > 0 && length + frameLength > limit) {
+				break;
+			}
+			length += frameLength;
+			frames++;
+		}
+		length = Math.min(length, queue.size);
+		if (writeBuffer.length < length) {
+			writeBuffer = new byte[length];
+		}
+		queue.remove(writeBuffer, length);
+		framesWritten[channel] += frames;
+		bytesWritten[channel] += length;
+		writes++;
+		return length;
+	}
+
+	public String getFailure() {
+		return failure;
+	}
+
+	public synchronized String getStats() {
+		return "writes=" + writes
+				+ " control=" + framesWritten[ScribbleProtocol.CHANNEL_CONTROL] + "/" + bytesWritten[ScribbleProtocol.CHANNEL_CONTROL]
+				+ " live=" + framesWritten[ScribbleProtocol.CHANNEL_LIVE] + "/" + bytesWritten[ScribbleProtocol.CHANNEL_LIVE]
+				+ " bulk=" + framesWritten[ScribbleProtocol.CHANNEL_BULK] + "/" + bytesWritten[ScribbleProtocol.CHANNEL_BULK]
+				+ " frames/bytes, callerWaitMs=" + callerWaitNanos / 1000000;
+	}
+
+	/**
+	 * frames waiting on one channel, consumed from the front
+	 */
+	private static class Channel {
+		private final int limit;
+		private byte[] data;
+		private int start;
+		private int size;
+
+		Channel(int limit) {
+			this.limit = limit;
+			data = new byte[4096];
+		}
+
+		void append(byte[] bytes, int offset, int length) {
+			if (start + size + length > data.length) {
+				if (size + length <= data.length) {
+					System.arraycopy(data, start, data, 0, size);
+				} else {
+					byte[] grown = new byte[Math.max(data.length * 2, size + length)];
+					System.arraycopy(data, start, grown, 0, size);
+					data = grown;
+				}
+				start = 0;
+			}
+			System.arraycopy(bytes, offset, data, start + size, length);
+			size += length;
+		}
+
+		/**
+		 * length of the frame at an offset from the front, read from its count word
+		 */
+		int frameLength(int offset) {
+			if (size - offset < ScribbleProtocol.HEADER_BYTES) {
+				return size - offset;
+			}
+			int at = start + offset + 4;
+			int count = ((data[at] & 0xff) << 24) | ((data[at + 1] & 0xff) << 16) | ((data[at + 2] & 0xff) << 8)
+					| (data[at + 3] & 0xff);
+			return ScribbleProtocol.HEADER_BYTES + count * 4;
+		}
+
+		void remove(byte[] out, int length) {
+			System.arraycopy(data, start, out, 0, length);
+			start += length;
+			size -= length;
+			if (size == 0) {
+				start = 0;
+			}
+		}
+	}
+}
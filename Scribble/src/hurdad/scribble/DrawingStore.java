@@ -0,0 +1,365 @@
+package hurdad.scribble;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * drawings saved to the app's files, one file each
+ *
+ * a file starts with its thumbnail, then the raster of everything already flattened, then
+ * the strokes still held as vectors. the gallery only ever reads the start, and normally not
+ * even that, as the thumbnail is also put in ThumbnailCache when the drawing is saved.
+ * encoding and writing, and reading a drawing back, are done on one worker thread and
+ * reported on the UI thread
+ */
+public class DrawingStore {
+	private static final String LOG_TAG = "DrawingStore";
+
+	public static final String EXTENSION = ".scribble";
+
+	// "SCRB", then the format version
+	private static final int MAGIC = 0x53435242;
+	private static final int VERSION = 1;
+
+	// a stroke file longer than this isn't one of ours
+	private static final int MAX_STROKES = 1 << 20;
+	private static final int MAX_POINT_FLOATS = 1 << 22;
+
+	public interface Listener {
+
+		/**
+		 * a drawing has been written, or couldn't be
+		 */
+		void onSaved(String name, boolean succeeded);
+
+		/**
+		 * a drawing has been read back
+		 * @param drawing	Null if the file couldn't be read
+		 */
+		void onOpened(String name, Drawing drawing);
+	}
+
+	/**
+	 * a drawing as stored, plain arrays so it can be made and read on any thread
+	 */
+	public static class Drawing {
+		public final int width;
+		public final int height;
+
+		// what was flattened, transparent where nothing was, null if nothing was
+		public Bitmap base;
+
+		// per stroke: brush width and color, shape kind or 0, the points as x-y pairs
+		// (a shape's two), and each point's width or null
+		public final int count;
+		public final float[] brushWidths;
+		public final int[] colors;
+		public final int[] shapes;
+		public final float[][] points;
+		public final byte[][] widths;
+
+		public Drawing(int width, int height, int count) {
+			this.width = width;
+			this.height = height;
+			this.count = count;
+			brushWidths = new float[count];
+			colors = new int[count];
+			shapes = new int[count];
+			points = new float[count][];
+			widths = new byte[count][];
+		}
+	}
+
+	private final File directory;
+	private final ThumbnailCache thumbnails;
+	private final ExecutorService worker;
+	private final Handler handler;
+
+	public DrawingStore(Context context) {
+		directory = new File(context.getFilesDir(), "drawings");
+		directory.mkdirs();
+		thumbnails = ThumbnailCache.get(context);
+		worker = Executors.newSingleThreadExecutor();
+		handler = new Handler();
+	}
+
+	/**
+	 * saved drawings, newest first, found from their names alone
+	 */
+	public File[] list() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		final long[] modified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			modified[i] = files[i].lastModified();
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return modified[b.intValue()] < modified[a.intValue()] ? -1
+						: modified[b.intValue()] > modified[a.intValue()] ? 1 : 0;
+			}
+		});
+		int kept = 0;
+		File[] sorted = new File[files.length];
+		for (int i = 0; i < order.length; i++) {
+			File file = files[order[i].intValue()];
+			if (file.getName().endsWith(EXTENSION)) {
+				sorted[kept++] = file;
+			}
+		}
+		File[] drawings = new File[kept];
+		System.arraycopy(sorted, 0, drawings, 0, kept);
+		return drawings;
+	}
+
+	public File getFile(String name) {
+		return new File(directory, name + EXTENSION);
+	}
+
+	public static String nameOf(File file) {
+		String name = file.getName();
+		return name.endsWith(EXTENSION) ? name.substring(0, name.length() - EXTENSION.length()) : name;
+	}
+
+	/**
+	 * write a drawing in the background, its thumbnail is cached straight away
+	 * @param thumbnail	Already downsampled, owned by the cache from now on
+	 */
+	public void save(final String name, final Drawing drawing, final Bitmap thumbnail, final Listener listener) {
+		thumbnails.put(name, thumbnail);
+		worker.execute(new Runnable() {
+			public void run() {
+				final boolean succeeded = write(getFile(name), drawing, thumbnail);
+				if (succeeded) {
+					thumbnails.writeToDisk(name, thumbnail);
+				}
+				if (drawing.base != null) {
+					drawing.base.recycle();
+				}
+				handler.post(new Runnable() {
+					public void run() {
+
+						// no drawing to show the thumbnail for
+						if (!succeeded) {
+							thumbnails.remove(name);
+						}
+						listener.onSaved(name, succeeded);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * read a drawing back in the background, strokes and all
+	 */
+	public void open(final String name, final Listener listener) {
+		worker.execute(new Runnable() {
+			public void run() {
+				final Drawing drawing = read(getFile(name));
+				handler.post(new Runnable() {
+					public void run() {
+						listener.onOpened(name, drawing);
+					}
+				});
+			}
+		});
+	}
+
+	public void close() {
+		worker.shutdown();
+	}
+
+	// *************************************************************************
+	// FORMAT
+	//
+	// *************************************************************************
+
+	/**
+	 * written to a temporary file first, so a drawing is never left half written
+	 */
+	private static boolean write(File file, Drawing drawing, Bitmap thumbnail) {
+		File temporary = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(drawing.width);
+			out.writeInt(drawing.height);
+			writePng(out, thumbnail);
+			writePng(out, drawing.base);
+
+			out.writeInt(drawing.count);
+			for (int i = 0; i < drawing.count; i++) {
+				out.writeFloat(drawing.brushWidths[i]);
+				out.writeInt(drawing.colors[i]);
+				out.writeInt(drawing.shapes[i]);
+				float[] points = drawing.points[i];
+				out.writeInt(points.length);
+				for (int j = 0; j < points.length; j++) {
+					out.writeFloat(points[j]);
+				}
+				byte[] widths = drawing.widths[i];
+				out.writeBoolean(widths != null);
+				if (widths != null) {
+					out.write(widths, 0, points.length / 2);
+				}
+			}
+			out.close();
+			out = null;
+			return temporary.renameTo(file);
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "couldn't write " + file + ": " + e.getMessage());
+			return false;
+		} finally {
+			close(out);
+			temporary.delete();
+		}
+	}
+
+	private static void writePng(DataOutputStream out, Bitmap bitmap) throws IOException {
+		if (bitmap == null) {
+			out.writeInt(0);
+			return;
+		}
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+		out.writeInt(png.size());
+		png.writeTo(out);
+	}
+
+	private static Drawing read(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			int width = readHeader(in);
+			int height = in.readInt();
+			skipPng(in);
+			Bitmap base = readPng(in);
+
+			int count = in.readInt();
+			if (count < 0 || count > MAX_STROKES) {
+				throw new IOException("bad stroke count " + count);
+			}
+			Drawing drawing = new Drawing(width, height, count);
+			drawing.base = base;
+			for (int i = 0; i < count; i++) {
+				drawing.brushWidths[i] = in.readFloat();
+				drawing.colors[i] = in.readInt();
+				drawing.shapes[i] = in.readInt();
+				int pointFloats = in.readInt();
+				if (pointFloats < 2 || pointFloats > MAX_POINT_FLOATS || (pointFloats & 1) != 0) {
+					throw new IOException("bad point count " + pointFloats);
+				}
+				float[] points = new float[pointFloats];
+				for (int j = 0; j < pointFloats; j++) {
+					points[j] = in.readFloat();
+				}
+				drawing.points[i] = points;
+				if (in.readBoolean()) {
+					drawing.widths[i] = new byte[pointFloats / 2];
+					in.readFully(drawing.widths[i]);
+				}
+			}
+			return drawing;
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "couldn't read " + file + ": " + e.getMessage());
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * a drawing's thumbnail, reading no further into the file, for when the cached one is gone
+	 * @return			Null if the file couldn't be read
+	 */
+	public static Bitmap readThumbnail(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			readHeader(in);
+			in.readInt();
+			return readPng(in);
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "couldn't read the thumbnail of " + file + ": " + e.getMessage());
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * @return			The drawing's width
+	 */
+	private static int readHeader(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a drawing");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unknown version " + version);
+		}
+		return in.readInt();
+	}
+
+	private static Bitmap readPng(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("bad image length " + length);
+		}
+		if (length == 0) {
+			return null;
+		}
+		byte[] png = new byte[length];
+		in.readFully(png);
+		return BitmapFactory.decodeByteArray(png, 0, length);
+	}
+
+	private static void skipPng(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("bad image length " + length);
+		}
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0) {
+				throw new IOException("end of file in an image");
+			}
+			length -= skipped;
+		}
+	}
+
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// already written or already failed
+			}
+		}
+	}
+}
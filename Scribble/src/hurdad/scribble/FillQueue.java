@@ -0,0 +1,287 @@
+package hurdad.scribble;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * bucket fills, run one at a time on a worker thread in the order they were asked for
+ *
+ * each fill starts from a snapshot of every layer taken on the UI thread, so it sees the
+ * same strokes whenever it runs, and the fills before it. the worker fills the snapshot a
+ * few milliseconds at a time, and what it has reached so far is shown as it goes. a fill
+ * that reads and writes more than FILL_WORK_PER_PIXEL times the canvas's pixels is dropped,
+ * counted in pixels rather than time so a slow device drops the same fills as a fast one
+ */
+public class FillQueue {
+	private static final String LOG_TAG = "FillQueue";
+
+	// pixels a fill may fill and scan per pixel of canvas, filling all of it takes about three
+	private static final int FILL_WORK_PER_PIXEL = 4;
+
+	// time between showing progress, about a frame
+	private static final long STEP_NANOS = 12000000L;
+
+	public interface Listener {
+
+		/**
+		 * draw every layer, shown or not, so a fill finds the same edges on both devices
+		 */
+		void drawLayers(Canvas canvas);
+
+		/**
+		 * a fill has finished, rasterize it into its author's layer
+		 * @param fill		Holds the fill's pixels inside area and nothing outside
+		 */
+		void onFillDone(boolean local, Bitmap fill, Rect area);
+	}
+
+	private final View view;
+	private final Listener listener;
+
+	// fills waiting for the one running to finish
+	private final ArrayList<Fill> pending;
+	private Fill running;
+
+	// fill whose worker hasn't reported back, a cancelled one still holds the flood fill
+	private Fill working;
+
+	// the canvas as the running fill found it, and what the fill has reached, about 16
+	// bytes a pixel so only made once there's a fill
+	private int width;
+	private int height;
+	private Bitmap snapshot;
+	private Canvas snapshotCanvas;
+	private int[] pixels;
+	private int[] result;
+	private Bitmap preview;
+	private final FloodFill floodFill;
+
+	// area reached since progress was last shown, written by the worker
+	private final int[] dirty;
+	private final Rect dirtyRect;
+
+	private int completed;
+	private int dropped;
+	private long worstMillis;
+
+	public FillQueue(View view, Listener listener) {
+		this.view = view;
+		this.listener = listener;
+		pending = new ArrayList<Fill>();
+		floodFill = new FloodFill();
+		dirty = new int[4];
+		dirtyRect = new Rect();
+	}
+
+	/**
+	 * size to the view, fills running or waiting are dropped
+	 */
+	public void setSize(int width, int height) {
+		clear();
+		this.width = width;
+		this.height = height;
+		if (snapshot != null) {
+			snapshot.recycle();
+			preview.recycle();
+			snapshot = null;
+			snapshotCanvas = null;
+			preview = null;
+			pixels = null;
+			result = null;
+		}
+	}
+
+	/**
+	 * make the buffers for the view's size, the first time a fill runs after it's sized
+	 */
+	private void allocate() {
+		snapshot = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		snapshotCanvas = new Canvas(snapshot);
+		preview = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		pixels = new int[width * height];
+		result = new int[width * height];
+	}
+
+	/**
+	 * fill from a seed once the fills before it are done
+	 * @param local		Whether the fill was asked for on this device
+	 * @param x			Seed, in view coordinates
+	 * @param y			Seed, in view coordinates
+	 * @param color		Color to fill with
+	 * @param tolerance	Largest difference on any channel from the seed's color, 0 to 255
+	 */
+	public void add(boolean local, float x, float y, int color, int tolerance) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		pending.add(new Fill(local, (int) Math.floor(x), (int) Math.floor(y), color, tolerance));
+		startNext();
+	}
+
+	/**
+	 * drop the fill running and those waiting
+	 */
+	public void clear() {
+		pending.clear();
+		if (running != null) {
+			running.cancelled = true;
+			running = null;
+			preview.eraseColor(Color.TRANSPARENT);
+		}
+	}
+
+	/**
+	 * show what the running fill has reached so far
+	 */
+	public void draw(Canvas canvas) {
+		if (running != null) {
+			canvas.drawBitmap(preview, 0, 0, null);
+		}
+	}
+
+	private void startNext() {
+		if (pending.isEmpty() || working != null) {
+			return;
+		}
+		if (snapshot == null) {
+			allocate();
+		}
+		running = pending.remove(0);
+		working = running;
+
+		// fills see the canvas as it is now, with every earlier fill already in its layer
+		snapshotCanvas.drawColor(Color.WHITE);
+		listener.drawLayers(snapshotCanvas);
+		snapshot.getPixels(pixels, 0, width, 0, 0, width, height);
+		running.setCanvas(pixels, result, width, height);
+
+		Thread worker = new Thread(running, "FloodFill");
+		worker.setPriority(Thread.MIN_PRIORITY);
+		worker.start();
+	}
+
+	/**
+	 * copy what the worker has filled since last time into the preview
+	 * @return			Area copied, or null if there was none
+	 */
+	private Rect copyProgress() {
+		if (!floodFill.takeDirty(dirty)) {
+			return null;
+		}
+		dirtyRect.set(dirty[0], dirty[1], dirty[2] + 1, dirty[3] + 1);
+		preview.setPixels(result, dirtyRect.top * width + dirtyRect.left, width, dirtyRect.left, dirtyRect.top,
+				dirtyRect.width(), dirtyRect.height());
+		return dirtyRect;
+	}
+
+	private void onProgress(Fill fill) {
+		if (fill != running) {
+			return;
+		}
+		Rect area = copyProgress();
+		if (area != null) {
+			view.invalidate(area);
+		}
+	}
+
+	private void onDone(Fill fill, boolean finished, long millis) {
+		working = null;
+		if (fill != running) {
+			startNext();
+			return;
+		}
+		copyProgress();
+		worstMillis = Math.max(worstMillis, millis);
+		if (finished && floodFill.getBounds(dirty)) {
+			Rect area = new Rect(dirty[0], dirty[1], dirty[2] + 1, dirty[3] + 1);
+			listener.onFillDone(fill.local, preview, area);
+			view.invalidate(area);
+			completed++;
+		} else if (!finished) {
+			Log.w(LOG_TAG, "fill at " + fill.x + "," + fill.y + " dropped after " + floodFill.getWork() + " pixels, "
+					+ millis + "ms");
+			view.invalidate();
+			dropped++;
+		}
+		preview.eraseColor(Color.TRANSPARENT);
+		running = null;
+		startNext();
+	}
+
+	public String getStats() {
+		return "completed=" + completed + " dropped=" + dropped + " waiting=" + pending.size() + " worstMs="
+				+ worstMillis;
+	}
+
+	/**
+	 * one fill, run on the worker thread
+	 */
+	private class Fill implements Runnable {
+		private final boolean local;
+		private final int x;
+		private final int y;
+		private final int color;
+		private final int tolerance;
+		private volatile boolean cancelled;
+
+		// the arrays at the time the fill started, kept if the view is resized while it runs
+		private int[] pixels;
+		private int[] result;
+		private int width;
+		private int height;
+
+		// a progress update is waiting to run on the UI thread
+		private volatile boolean progressPosted;
+
+		private final Runnable progress = new Runnable() {
+			public void run() {
+				progressPosted = false;
+				onProgress(Fill.this);
+			}
+		};
+
+		Fill(boolean local, int x, int y, int color, int tolerance) {
+			this.local = local;
+			this.x = x;
+			this.y = y;
+			this.color = color;
+			this.tolerance = tolerance;
+		}
+
+		void setCanvas(int[] pixels, int[] result, int width, int height) {
+			this.pixels = pixels;
+			this.result = result;
+			this.width = width;
+			this.height = height;
+		}
+
+		public void run() {
+			long start = System.nanoTime();
+			floodFill.start(pixels, result, width, height, x, y, color, tolerance,
+					(long) width * height * FILL_WORK_PER_PIXEL);
+
+			boolean more = true;
+			while (more && !cancelled) {
+				more = floodFill.step(System.nanoTime() + STEP_NANOS);
+				if (more && !progressPosted) {
+					progressPosted = true;
+					view.post(progress);
+				}
+			}
+
+			final boolean finished = !more && !floodFill.isOverBudget();
+			final long millis = (System.nanoTime() - start) / 1000000L;
+			view.post(new Runnable() {
+				public void run() {
+					onDone(Fill.this, finished, millis);
+				}
+			});
+		}
+	}
+}
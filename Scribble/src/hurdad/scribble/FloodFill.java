@@ -0,0 +1,260 @@
+package hurdad.scribble;
+
+/**
+ * span based flood fill over a snapshot of the canvas
+ *
+ * each span is a run of matching pixels along a row, found by scanning left and right
+ * from a seed. it's filled in one go, and the rows above and below are scanned once along
+ * it for the next seeds, so every pixel is read a few times at most. the result is the
+ * same however the work is split into steps, which is what lets the peer repeat a fill
+ * from just its seed. a fill can be given a budget of pixels to read and write, and
+ * gives up past it at the same span however it's split
+ *
+ * kept free of android classes so it can be tried on a plain JVM
+ */
+public class FloodFill {
+	private static final int INITIAL_SEEDS = 1024;
+
+	// spans filled between looks at the clock
+	private static final int SPANS_PER_CHECK = 64;
+
+	private int[] pixels;
+	private int[] result;
+	private int width;
+	private int height;
+
+	// pixels within tolerance of the seed's color on every channel are filled
+	private int seedColor;
+	private int tolerance;
+	private int color;
+
+	// seeds waiting to be scanned from, as x-y pairs
+	private int[] seeds;
+	private int seedCount;
+
+	// area filled since the last takeDirty(), and in all
+	private int dirtyLeft;
+	private int dirtyTop;
+	private int dirtyRight;
+	private int dirtyBottom;
+	private int left;
+	private int top;
+	private int right;
+	private int bottom;
+
+	private int filledPixels;
+
+	// pixels filled and scanned so far, and the most allowed
+	private long work;
+	private long maxWork;
+
+	public FloodFill() {
+		seeds = new int[INITIAL_SEEDS];
+	}
+
+	/**
+	 * begin a fill, the pixels of the last one are cleared from result first
+	 * @param pixels	Snapshot of the canvas, opaque, read only
+	 * @param result	Receives color where the fill reaches, must be 0 elsewhere
+	 * @param x			Seed column
+	 * @param y			Seed row
+	 * @param color		Color to fill with, made opaque
+	 * @param tolerance	Largest difference on any channel from the seed's color, 0 to 255
+	 * @param maxWork	Pixels the fill may fill and scan before it gives up
+	 */
+	public void start(int[] pixels, int[] result, int width, int height, int x, int y, int color, int tolerance,
+			long maxWork) {
+		if (this.result == result && filledPixels > 0) {
+			for (int row = top; row <= bottom; row++) {
+				for (int i = row * width + left; i <= row * width + right; i++) {
+					result[i] = 0;
+				}
+			}
+		}
+		this.pixels = pixels;
+		this.result = result;
+		this.width = width;
+		this.height = height;
+		this.color = color | 0xff000000;
+		this.tolerance = tolerance;
+		this.maxWork = maxWork;
+
+		seedCount = 0;
+		filledPixels = 0;
+		work = 0;
+		left = width;
+		top = height;
+		right = -1;
+		bottom = -1;
+		resetDirty();
+		if (x >= 0 && y >= 0 && x < width && y < height) {
+			seedColor = pixels[y * width + x];
+			push(x, y);
+		}
+	}
+
+	/**
+	 * fill spans until the seeds run out, the work budget is spent, or the clock passes a
+	 * deadline. only the budget changes the result, the deadline just splits the work
+	 * @param deadline	System.nanoTime() to stop at
+	 * @return			True if there's more to fill within the budget
+	 */
+	public boolean step(long deadline) {
+		int spans = 0;
+		int stepLeft = width;
+		int stepTop = height;
+		int stepRight = -1;
+		int stepBottom = -1;
+		while (seedCount > 0 && work < maxWork) {
+			int y = seeds[--seedCount];
+			int x = seeds[--seedCount];
+			int row = y * width;
+			work++;
+			if (!fillable(row + x)) {
+				continue;
+			}
+
+			int x1 = x;
+			while (x1 > 0 && fillable(row + x1 - 1)) {
+				x1--;
+			}
+			int x2 = x;
+			while (x2 < width - 1 && fillable(row + x2 + 1)) {
+				x2++;
+			}
+			for (int i = row + x1; i <= row + x2; i++) {
+				result[i] = color;
+			}
+			filledPixels += x2 - x1 + 1;
+			stepLeft = Math.min(stepLeft, x1);
+			stepRight = Math.max(stepRight, x2);
+			stepTop = Math.min(stepTop, y);
+			stepBottom = Math.max(stepBottom, y);
+
+			work += x2 - x1 + 1;
+			if (y > 0) {
+				scan(x1, x2, y - 1);
+				work += x2 - x1 + 1;
+			}
+			if (y < height - 1) {
+				scan(x1, x2, y + 1);
+				work += x2 - x1 + 1;
+			}
+
+			if (++spans % SPANS_PER_CHECK == 0 && System.nanoTime() > deadline) {
+				break;
+			}
+		}
+		if (stepRight >= 0) {
+			addDirty(stepLeft, stepTop, stepRight, stepBottom);
+		}
+		return seedCount > 0 && work < maxWork;
+	}
+
+	/**
+	 * whether the fill gave up with seeds left, the same on any device given the same pixels
+	 */
+	public boolean isOverBudget() {
+		return seedCount > 0 && work >= maxWork;
+	}
+
+	/**
+	 * seed each run of fillable pixels along a row beside a filled span
+	 */
+	private void scan(int x1, int x2, int y) {
+		int row = y * width;
+		boolean inRun = false;
+		for (int x = x1; x <= x2; x++) {
+			if (fillable(row + x)) {
+				if (!inRun) {
+					push(x, y);
+					inRun = true;
+				}
+			} else {
+				inRun = false;
+			}
+		}
+	}
+
+	private boolean fillable(int index) {
+		if (result[index] != 0) {
+			return false;
+		}
+		int pixel = pixels[index];
+		return Math.abs(((pixel >> 16) & 0xff) - ((seedColor >> 16) & 0xff)) <= tolerance
+				&& Math.abs(((pixel >> 8) & 0xff) - ((seedColor >> 8) & 0xff)) <= tolerance
+				&& Math.abs((pixel & 0xff) - (seedColor & 0xff)) <= tolerance;
+	}
+
+	private void push(int x, int y) {
+		if (seedCount + 2 > seeds.length) {
+			int[] grown = new int[seeds.length * 2];
+			System.arraycopy(seeds, 0, grown, 0, seedCount);
+			seeds = grown;
+		}
+		seeds[seedCount++] = x;
+		seeds[seedCount++] = y;
+	}
+
+	/**
+	 * grow the dirty area and the bounds, once per step so the lock is rarely taken
+	 */
+	private synchronized void addDirty(int x1, int y1, int x2, int y2) {
+		dirtyLeft = Math.min(dirtyLeft, x1);
+		dirtyTop = Math.min(dirtyTop, y1);
+		dirtyRight = Math.max(dirtyRight, x2);
+		dirtyBottom = Math.max(dirtyBottom, y2);
+		left = Math.min(left, x1);
+		top = Math.min(top, y1);
+		right = Math.max(right, x2);
+		bottom = Math.max(bottom, y2);
+	}
+
+	private synchronized void resetDirty() {
+		dirtyLeft = width;
+		dirtyTop = height;
+		dirtyRight = -1;
+		dirtyBottom = -1;
+	}
+
+	/**
+	 * hand over the area filled since the last call, safe from another thread
+	 * @param out		Receives left, top, right, bottom, inclusive
+	 * @return			False if nothing has been filled since
+	 */
+	public synchronized boolean takeDirty(int[] out) {
+		if (dirtyRight < 0) {
+			return false;
+		}
+		out[0] = dirtyLeft;
+		out[1] = dirtyTop;
+		out[2] = dirtyRight;
+		out[3] = dirtyBottom;
+		resetDirty();
+		return true;
+	}
+
+	/**
+	 * everything the fill has reached
+	 * @param out		Receives left, top, right, bottom, inclusive
+	 * @return			False if nothing was filled
+	 */
+	public synchronized boolean getBounds(int[] out) {
+		if (right < 0) {
+			return false;
+		}
+		out[0] = left;
+		out[1] = top;
+		out[2] = right;
+		out[3] = bottom;
+		return true;
+	}
+
+	public int getFilledPixels() {
+		return filledPixels;
+	}
+
+	public long getWork() {
+		return work;
+	}
+}
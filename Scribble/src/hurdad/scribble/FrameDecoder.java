@@ -0,0 +1,421 @@
+package hurdad.scribble;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * reassembles messages from the raw byte stream, a read can end mid-message
+ * or hold several, and writes each complete message into a StrokeOpQueue slot
+ *
+ * HELLO, PING and PONG are handled here, a HELLO is passed on empty once the session
+ * has it. PATH_MOVE_DELTA is expanded back to PATH_MOVE, PATH_WIDTHS to a float per
+ * width, and a bulk stroke becomes a PATH_START carrying its brush, PATH_MOVEs and a
+ * PATH_END, so the canvas only ever sees absolute points already scaled to its own size
+ */
+public class FrameDecoder {
+	private static final int MAX_FRAME_BYTES = ScribbleProtocol.HEADER_BYTES
+			+ ScribbleProtocol.maxFrameFloats(ScribbleProtocol.STROKE_BULK) * 4;
+
+	// PATH_START floats when the brush is included: x, y, id, size, red, green, blue
+	public static final int BRUSH_START_FLOATS = 7;
+
+	private final StrokeOpQueue queue;
+	private final ScribbleSession session;
+
+	// body of a control message, which never goes to the queue
+	private final float[] control;
+
+	// last point of each peer stream in the peer's coordinates, the base for deltas
+	private final float[] lastX;
+	private final float[] lastY;
+
+	// PINGs waiting to be answered: id, their send time and when they arrived
+	private static final int MAX_PENDING_PONGS = 4;
+	private final int[] pongIds;
+	private final long[] pongPingSent;
+	private final long[] pongPingReceived;
+	private int pendingPongs;
+	private final ByteBuffer replies;
+
+	// points of a bulk stroke, and its deltas while inflating
+	private final float[] bulkPoints;
+	private final byte[] deltaBytes;
+	private final Inflater inflater;
+
+	// bytes of a message not yet complete
+	private final byte[] pending;
+	private final ByteBuffer pendingBuffer;
+	private int pendingSize;
+
+	private volatile boolean cancelled;
+	private long framesDecoded;
+	private long bytesDiscarded;
+
+	// time spent waiting for the consumer to free a slot
+	private long backpressureNanos;
+
+	public FrameDecoder(StrokeOpQueue queue, ScribbleSession session) {
+		this.queue = queue;
+		this.session = session;
+		lastX = new float[ScribbleProtocol.STREAM_LIMIT];
+		lastY = new float[ScribbleProtocol.STREAM_LIMIT];
+		control = new float[ScribbleProtocol.MAX_FRAME_FLOATS];
+		bulkPoints = new float[ScribbleProtocol.MAX_BULK_FLOATS];
+		deltaBytes = new byte[ScribbleProtocol.MAX_BULK_FLOATS * 2];
+		inflater = new Inflater();
+		pongIds = new int[MAX_PENDING_PONGS];
+		pongPingSent = new long[MAX_PENDING_PONGS];
+		pongPingReceived = new long[MAX_PENDING_PONGS];
+		replies = ByteBuffer.allocate(MAX_PENDING_PONGS
+				* (ScribbleProtocol.HEADER_BYTES + ScribbleProtocol.PONG_WORDS * 4));
+		pending = new byte[MAX_FRAME_BYTES];
+		pendingBuffer = ByteBuffer.wrap(pending);
+	}
+
+	/**
+	 * decode as many messages as the bytes complete, blocking while the queue is full
+	 * @param bytes		Bytes read from the peer
+	 * @param offset	Start of the read bytes
+	 * @param length	Number of bytes read
+	 * @return			Whether the consumer needs to be woken to drain the queue
+	 */
+	public boolean decode(byte[] bytes, int offset, int length) throws InterruptedException {
+		if (cancelled) {
+			throw new InterruptedException("decoder cancelled");
+		}
+		boolean wakeup = false;
+		while (length > 0) {
+			int copied = Math.min(length, pending.length - pendingSize);
+			System.arraycopy(bytes, offset, pending, pendingSize, copied);
+			pendingSize += copied;
+			offset += copied;
+			length -= copied;
+
+			wakeup |= decodePending();
+		}
+		return wakeup;
+	}
+
+	private boolean decodePending() throws InterruptedException {
+		boolean wakeup = false;
+		int start = 0;
+		while (pendingSize - start >= ScribbleProtocol.HEADER_BYTES) {
+			int header = pendingBuffer.getInt(start);
+			int count = pendingBuffer.getInt(start + 4);
+			int status = ScribbleProtocol.status(header);
+
+			// to bound to valid data, a bad header means the stream is out of step so drop what's buffered
+			if (status >= ScribbleProtocol.STATUS_LIMIT
+					|| ScribbleProtocol.stream(header) >= ScribbleProtocol.STREAM_LIMIT
+					|| count < 0 || count > ScribbleProtocol.maxFrameFloats(status)) {
+				bytesDiscarded += pendingSize - start;
+				start = pendingSize;
+				break;
+			}
+
+			int frameBytes = ScribbleProtocol.HEADER_BYTES + count * 4;
+			if (pendingSize - start < frameBytes) {
+				break;
+			}
+
+			int body = start + ScribbleProtocol.HEADER_BYTES;
+			if (status == ScribbleProtocol.HELLO) {
+				readFloats(body, Math.min(count, control.length), control);
+				if (session.onPeerHello(control, count)) {
+
+					// let the canvas know who it's talking to, in order with the peer's strokes
+					StrokeOp op = claim();
+					op.header = ScribbleProtocol.header(ScribbleProtocol.HELLO, 0);
+					op.count = 0;
+					wakeup |= queue.publish();
+				}
+			} else if (status == ScribbleProtocol.PING && count == ScribbleProtocol.PING_WORDS) {
+				// answered after this read, the peer takes out the time it waited here
+				if (pendingPongs < MAX_PENDING_PONGS) {
+					pongIds[pendingPongs] = pendingBuffer.getInt(body);
+					pongPingSent[pendingPongs] = pendingBuffer.getLong(body + 4);
+					pongPingReceived[pendingPongs] = LatencyMonitor.clockMicros();
+					pendingPongs++;
+				}
+			} else if (status == ScribbleProtocol.PONG && count == ScribbleProtocol.PONG_WORDS) {
+				session.getLatency().onPong(pendingBuffer.getInt(body), pendingBuffer.getLong(body + 4),
+						pendingBuffer.getLong(body + 12), pendingBuffer.getLong(body + 20), LatencyMonitor.clockMicros());
+			} else if (status == ScribbleProtocol.PING || status == ScribbleProtocol.PONG) {
+				bytesDiscarded += frameBytes;
+			} else if (status == ScribbleProtocol.STROKE_BULK || status == ScribbleProtocol.STROKE_BULK_DEFLATE) {
+				int pointFloats = readBulk(status, body, count);
+				if (pointFloats > 0) {
+					wakeup |= publishBulk(ScribbleProtocol.stream(header), pointFloats);
+				} else {
+					bytesDiscarded += frameBytes;
+				}
+			} else {
+				StrokeOp op = claim();
+				decodeFrame(header, body, count, op);
+				wakeup |= queue.publish();
+			}
+			framesDecoded++;
+			start += frameBytes;
+		}
+
+		// keep the incomplete tail at the front for the next read
+		if (start > 0) {
+			System.arraycopy(pending, start, pending, 0, pendingSize - start);
+			pendingSize -= start;
+		}
+		return wakeup;
+	}
+
+	/**
+	 * answers to the PINGs decoded since the last call, stamped with the time now so the
+	 * peer can take out how long they waited here
+	 * @return			Buffer holding the PONGs from 0 to its position, null if there are none
+	 */
+	public ByteBuffer takeReplies() {
+		if (pendingPongs == 0) {
+			return null;
+		}
+		replies.clear();
+		long now = LatencyMonitor.clockMicros();
+		for (int i = 0; i < pendingPongs; i++) {
+			ScribbleProtocol.putPong(replies, pongIds[i], pongPingSent[i], pongPingReceived[i], now);
+		}
+		pendingPongs = 0;
+		return replies;
+	}
+
+	private void readFloats(int offset, int count, float[] out) {
+		for (int i = 0; i < count; i++) {
+			out[i] = pendingBuffer.getFloat(offset + i * 4);
+		}
+	}
+
+	/**
+	 * fill a slot with absolute points in our coordinates
+	 */
+	private void decodeFrame(int header, int body, int count, StrokeOp op) {
+		int status = ScribbleProtocol.status(header);
+		int stream = ScribbleProtocol.stream(header);
+		float[] points = op.points;
+
+		if (status == ScribbleProtocol.PATH_MOVE_DELTA) {
+			float x = lastX[stream];
+			float y = lastY[stream];
+			for (int i = 0; i < count; i++) {
+				int word = pendingBuffer.getInt(body + i * 4);
+				x += (short) (word >> 16) / ScribbleProtocol.DELTA_QUANTUM;
+				y += (short) word / ScribbleProtocol.DELTA_QUANTUM;
+				points[i * 2] = x;
+				points[i * 2 + 1] = y;
+			}
+			header = (header & ~ScribbleProtocol.STATUS_MASK) | ScribbleProtocol.PATH_MOVE;
+			status = ScribbleProtocol.PATH_MOVE;
+			count *= 2;
+		} else if (status == ScribbleProtocol.PATH_WIDTHS) {
+			int widths = count > 0 ? pendingBuffer.getInt(body) : 0;
+			if (widths < 0 || widths > (count - 1) * 4 || widths > points.length) {
+				widths = 0;
+			}
+			for (int i = 0; i < widths; i++) {
+				points[i] = pending[body + 4 + i] & 0xff;
+			}
+			count = widths;
+		} else {
+			readFloats(body, count, points);
+		}
+
+		// remember where the stream ended, before scaling, as the base for the next delta
+		if ((status == ScribbleProtocol.PATH_START || status == ScribbleProtocol.PATH_MOVE) && count >= 2) {
+			int last = status == ScribbleProtocol.PATH_START ? 0 : (count & ~1) - 2;
+			lastX[stream] = points[last];
+			lastY[stream] = points[last + 1];
+		}
+
+		float scale = session.getCoordinateScale();
+		if (scale != 1f) {
+			scale(status, points, count, scale);
+		}
+
+		op.header = header;
+		op.count = count;
+	}
+
+	/**
+	 * read a bulk stroke's brush into control and its points into bulkPoints
+	 * @return			Number of point floats, 0 if the message was malformed
+	 */
+	private int readBulk(int status, int body, int count) {
+		if (status == ScribbleProtocol.STROKE_BULK) {
+			int pointFloats = (count - ScribbleProtocol.BULK_HEADER_FLOATS) & ~1;
+			if (pointFloats < 2 || pointFloats > ScribbleProtocol.MAX_BULK_FLOATS) {
+				return 0;
+			}
+			readFloats(body, ScribbleProtocol.BULK_HEADER_FLOATS, control);
+			readFloats(body + ScribbleProtocol.BULK_HEADER_FLOATS * 4, pointFloats, bulkPoints);
+			return pointFloats;
+		}
+
+		if (count < ScribbleProtocol.BULK_DEFLATE_HEADER_FLOATS) {
+			return 0;
+		}
+		readFloats(body, ScribbleProtocol.BULK_DEFLATE_HEADER_FLOATS, control);
+		int pointFloats = (int) control[7];
+		int deflatedLength = (int) control[8];
+		if (pointFloats < 2 || pointFloats > ScribbleProtocol.MAX_BULK_FLOATS || (pointFloats & 1) != 0
+				|| deflatedLength < 0 || deflatedLength > (count - ScribbleProtocol.BULK_DEFLATE_HEADER_FLOATS) * 4) {
+			return 0;
+		}
+
+		int deltaLength = (pointFloats - 2) * 2;
+		int inflated = 0;
+		inflater.reset();
+		inflater.setInput(pending, body + ScribbleProtocol.BULK_DEFLATE_HEADER_FLOATS * 4, deflatedLength);
+		try {
+			while (inflated < deltaLength) {
+				int n = inflater.inflate(deltaBytes, inflated, deltaLength - inflated);
+				if (n == 0) {
+					break;
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			return 0;
+		}
+		if (inflated < deltaLength) {
+			return 0;
+		}
+
+		float x = control[5];
+		float y = control[6];
+		bulkPoints[0] = x;
+		bulkPoints[1] = y;
+		for (int i = 2, j = 0; i < pointFloats; i += 2, j += 4) {
+			x += (short) ((deltaBytes[j] << 8) | (deltaBytes[j + 1] & 0xff)) / ScribbleProtocol.DELTA_QUANTUM;
+			y += (short) ((deltaBytes[j + 2] << 8) | (deltaBytes[j + 3] & 0xff)) / ScribbleProtocol.DELTA_QUANTUM;
+			bulkPoints[i] = x;
+			bulkPoints[i + 1] = y;
+		}
+		return pointFloats;
+	}
+
+	/**
+	 * queue a bulk stroke as the messages the canvas already understands, the start
+	 * carrying the stroke's own brush
+	 */
+	private boolean publishBulk(int stream, int pointFloats) throws InterruptedException {
+		float scale = session.getCoordinateScale();
+		boolean wakeup = false;
+
+		StrokeOp op = claim();
+		op.points[0] = bulkPoints[0] * scale;
+		op.points[1] = bulkPoints[1] * scale;
+		op.points[2] = control[0];
+		op.points[3] = control[1] * scale;
+		op.points[4] = control[2];
+		op.points[5] = control[3];
+		op.points[6] = control[4];
+		op.header = ScribbleProtocol.header(ScribbleProtocol.PATH_START, stream);
+		op.count = BRUSH_START_FLOATS;
+		wakeup |= queue.publish();
+
+		for (int start = 2; start < pointFloats; start += op.points.length) {
+			op = claim();
+			int chunk = Math.min(pointFloats - start, op.points.length);
+			for (int i = 0; i < chunk; i++) {
+				op.points[i] = bulkPoints[start + i] * scale;
+			}
+			op.header = ScribbleProtocol.header(ScribbleProtocol.PATH_MOVE, stream);
+			op.count = chunk;
+			wakeup |= queue.publish();
+		}
+
+		op = claim();
+		op.header = ScribbleProtocol.header(ScribbleProtocol.PATH_END, stream);
+		op.count = 0;
+		wakeup |= queue.publish();
+		return wakeup;
+	}
+
+	/**
+	 * map the peer's coordinates and sizes onto our canvas
+	 */
+	private static void scale(int status, float[] points, int count, float scale) {
+		if (status == ScribbleProtocol.PATH_START) {
+			points[0] *= scale;
+			points[1] *= scale;
+			if (count >= BRUSH_START_FLOATS) {
+				points[3] *= scale;
+			}
+		} else if (status == ScribbleProtocol.PATH_MOVE) {
+			for (int i = 0; i < count; i++) {
+				points[i] *= scale;
+			}
+		} else if (status == ScribbleProtocol.BRUSH_CHANGE && count >= 1) {
+			points[0] *= scale;
+		} else if (status == ScribbleProtocol.SHAPE && count >= ScribbleProtocol.SHAPE_FLOATS) {
+			points[1] *= scale;
+			for (int i = 6; i < ScribbleProtocol.SHAPE_FLOATS; i++) {
+				points[i] *= scale;
+			}
+		} else if (status == ScribbleProtocol.FILL && count >= ScribbleProtocol.FILL_FLOATS) {
+			points[0] *= scale;
+			points[1] *= scale;
+		} else if (status == ScribbleProtocol.TRANSFORM && count >= 6) {
+			// only the translation of a scale/move matrix changes between coordinate spaces
+			points[2] *= scale;
+			points[5] *= scale;
+		}
+	}
+
+	/**
+	 * wait for the consumer to free a slot, holding back the connection rather than dropping strokes
+	 */
+	private StrokeOp claim() throws InterruptedException {
+		StrokeOp op = queue.claim();
+		if (op != null) {
+			return op;
+		}
+		long waitStart = System.nanoTime();
+		try {
+			while (op == null) {
+				if (cancelled) {
+					throw new InterruptedException("decoder cancelled");
+				}
+				Thread.sleep(1);
+				op = queue.claim();
+			}
+		} finally {
+			backpressureNanos += System.nanoTime() - waitStart;
+		}
+		return op;
+	}
+
+	/**
+	 * stop waiting on a full queue and decoding anything more, used when the connection is closed
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public long getFramesDecoded() {
+		return framesDecoded;
+	}
+
+	public long getBytesDiscarded() {
+		return bytesDiscarded;
+	}
+
+	public long getBackpressureNanos() {
+		return backpressureNanos;
+	}
+
+	public String getStats() {
+		return "frames=" + framesDecoded
+				+ " discardedBytes=" + bytesDiscarded
+				+ " slotClaims=" + queue.getClaims()
+				+ " slotExhaustions=" + queue.getExhaustions()
+				+ " backpressureMs=" + backpressureNanos / 1000000
+				+ " highWater=" + queue.getHighWaterMark() + "/" + queue.getCapacity();
+	}
+}
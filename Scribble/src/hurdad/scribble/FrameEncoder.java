@@ -0,0 +1,327 @@
+package hurdad.scribble;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * turns outgoing messages into bytes using the format agreed in the session,
+ * splitting PATH_MOVE bodies to the peer's frame size
+ *
+ * a STROKE_BULK is deflated if the peer accepts it, and streamed as ordinary
+ * path messages if it's too long or the peer doesn't understand bulk strokes.
+ * one on BULK_STREAM that would make a frame over BULK_CHUNK_BYTES is streamed
+ * too, so the writer can slip live frames in between its chunks
+ */
+public class FrameEncoder {
+	// largest frame a background stroke is sent in, a few milliseconds over bluetooth
+	public static final int BULK_CHUNK_BYTES = 1024;
+
+	private final ScribbleSession session;
+	private ByteBuffer out;
+
+	// last point of each stream as the peer will have reconstructed it
+	private final float[] lastX;
+	private final float[] lastY;
+
+	// bulk stroke deltas before and after deflating
+	private final Deflater deflater;
+	private byte[] deltaBytes;
+	private byte[] deflated;
+
+	// brush and start of a bulk stroke that has to be streamed
+	private final float[] control;
+
+	public FrameEncoder(ScribbleSession session) {
+		this.session = session;
+		out = ByteBuffer.allocate(ScribbleProtocol.HEADER_BYTES + ScribbleProtocol.MAX_FRAME_FLOATS * 4);
+		lastX = new float[ScribbleProtocol.STREAM_LIMIT];
+		lastY = new float[ScribbleProtocol.STREAM_LIMIT];
+		deflater = new Deflater(Deflater.BEST_SPEED);
+		deltaBytes = new byte[1024];
+		deflated = new byte[1024];
+		control = new float[FrameDecoder.BRUSH_START_FLOATS];
+	}
+
+	/**
+	 * encode one message, which may become several frames
+	 * @param header	Path status and stream
+	 * @param points	Message body
+	 * @param count		Number of floats of points to send
+	 * @return			Buffer holding the frames from 0 to its position, reused by the next call
+	 */
+	public ByteBuffer encode(int header, float[] points, int count) {
+		out.clear();
+		if (ScribbleProtocol.status(header) == ScribbleProtocol.STROKE_BULK) {
+			encodeBulk(header, points, count);
+		} else {
+			encodeMessage(header, points, 0, count);
+		}
+
+		// a due latency probe rides along in the same write, unless it would wait behind other bulk
+		if (ScribbleProtocol.channel(header) != ScribbleProtocol.CHANNEL_BULK) {
+			putProbe();
+		}
+		return out;
+	}
+
+	/**
+	 * a latency probe on its own, for when nothing has been drawn for a while
+	 * @return			Buffer holding the PING from 0 to its position, null if none is due
+	 */
+	public ByteBuffer encodeProbe() {
+		out.clear();
+		putProbe();
+		return out.position() > 0 ? out : null;
+	}
+
+	private void putProbe() {
+		// a peer without the handshake wouldn't know to skip it
+		if (!session.isNegotiated()) {
+			return;
+		}
+		long now = LatencyMonitor.clockMicros();
+		int id = session.getLatency().startProbe(now);
+		if (id >= 0) {
+			ensureCapacity(ScribbleProtocol.HEADER_BYTES + ScribbleProtocol.PING_WORDS * 4);
+			ScribbleProtocol.putPing(out, id, now);
+		}
+	}
+
+	private void encodeMessage(int header, float[] points, int offset, int count) {
+		int status = ScribbleProtocol.status(header);
+		int stream = ScribbleProtocol.stream(header);
+		boolean tracked = stream < ScribbleProtocol.STREAM_LIMIT;
+
+		if (status == ScribbleProtocol.PATH_MOVE) {
+			int max = session.getMaxFrameFloats();
+			boolean delta = tracked && session.getCodec() == ScribbleProtocol.CODEC_DELTA;
+			for (int start = offset; start < offset + count; start += max) {
+				int chunk = Math.min(offset + count - start, max);
+				if (!delta || !putDelta(header, stream, points, start, chunk)) {
+					putRaw(header, points, start, chunk);
+					if (tracked) {
+						lastX[stream] = points[start + chunk - 2];
+						lastY[stream] = points[start + chunk - 1];
+					}
+				}
+			}
+		} else if (status == ScribbleProtocol.PATH_WIDTHS) {
+			int max = Math.min(ScribbleProtocol.MAX_WIDTHS_PER_FRAME, (session.getMaxFrameFloats() - 1) * 4);
+			for (int start = offset; start < offset + count; start += max) {
+				putWidths(header, points, start, Math.min(offset + count - start, max));
+			}
+		} else {
+			putRaw(header, points, offset, count);
+			if (status == ScribbleProtocol.PATH_START && tracked && count >= 2) {
+				lastX[stream] = points[offset];
+				lastY[stream] = points[offset + 1];
+			}
+		}
+	}
+
+	/**
+	 * send a finished stroke as one message where possible
+	 * @param body		Stroke id, size, red, green, blue, then the points
+	 */
+	private void encodeBulk(int header, float[] body, int count) {
+		int pointFloats = (count - ScribbleProtocol.BULK_HEADER_FLOATS) & ~1;
+		if (pointFloats < 2) {
+			return;
+		}
+		if (ScribbleProtocol.stream(header) == ScribbleProtocol.BULK_STREAM) {
+			encodeBackground(header, body, pointFloats);
+		} else if (!session.isNegotiated() || pointFloats > ScribbleProtocol.MAX_BULK_FLOATS) {
+			streamBulk(header, body, pointFloats);
+		} else if (!session.isDeflateEnabled() || !putDeflated(header, body, pointFloats)) {
+			putRaw(header, body, 0, ScribbleProtocol.BULK_HEADER_FLOATS + pointFloats);
+		}
+	}
+
+	/**
+	 * send a background stroke whole if it fits in a chunk, raw or deflated, otherwise as a
+	 * start carrying its brush followed by moves of the peer's frame size
+	 */
+	private void encodeBackground(int header, float[] body, int pointFloats) {
+		int first = ScribbleProtocol.BULK_HEADER_FLOATS;
+		if (ScribbleProtocol.HEADER_BYTES + (first + pointFloats) * 4 <= BULK_CHUNK_BYTES) {
+			putRaw(header, body, 0, first + pointFloats);
+			return;
+		}
+		int mark = out.position();
+		if (pointFloats <= ScribbleProtocol.MAX_BULK_FLOATS && session.isDeflateEnabled()
+				&& putDeflated(header, body, pointFloats)) {
+			if (out.position() - mark <= BULK_CHUNK_BYTES) {
+				return;
+			}
+			out.position(mark);
+		}
+
+		int streamBits = header & ~ScribbleProtocol.STATUS_MASK;
+		control[0] = body[first];
+		control[1] = body[first + 1];
+		System.arraycopy(body, 0, control, 2, first);
+		encodeMessage(streamBits | ScribbleProtocol.PATH_START, control, 0, FrameDecoder.BRUSH_START_FLOATS);
+		if (pointFloats > 2) {
+			encodeMessage(streamBits | ScribbleProtocol.PATH_MOVE, body, first + 2, pointFloats - 2);
+		}
+		encodeMessage(streamBits | ScribbleProtocol.PATH_END, control, 0, 0);
+	}
+
+	/**
+	 * send a bulk stroke as the brush followed by an ordinary start, moves and end
+	 */
+	private void streamBulk(int header, float[] body, int pointFloats) {
+		int streamBits = header & ~ScribbleProtocol.STATUS_MASK;
+		int first = ScribbleProtocol.BULK_HEADER_FLOATS;
+
+		System.arraycopy(body, 1, control, 0, 4);
+		encodeMessage(ScribbleProtocol.BRUSH_CHANGE, control, 0, 4);
+
+		control[0] = body[first];
+		control[1] = body[first + 1];
+		control[2] = body[0];
+		encodeMessage(streamBits | ScribbleProtocol.PATH_START, control, 0, 3);
+
+		if (pointFloats > 2) {
+			encodeMessage(streamBits | ScribbleProtocol.PATH_MOVE, body, first + 2, pointFloats - 2);
+		}
+		encodeMessage(streamBits | ScribbleProtocol.PATH_END, control, 0, 0);
+	}
+
+	/**
+	 * write a bulk stroke as STROKE_BULK_DEFLATE, deltas from the first point in quarter pixels
+	 * @return			False if a delta is too large for 16 bits or deflating doesn't save anything
+	 */
+	private boolean putDeflated(int header, float[] body, int pointFloats) {
+		int first = ScribbleProtocol.BULK_HEADER_FLOATS;
+		int deltaLength = (pointFloats - 2) * 2;
+		if (deltaBytes.length < deltaLength) {
+			deltaBytes = new byte[deltaLength];
+		}
+
+		// accumulate the same rounded values the peer will, so errors don't drift
+		float x = body[first];
+		float y = body[first + 1];
+		int length = 0;
+		for (int i = first + 2; i + 1 < first + pointFloats; i += 2) {
+			int dx = Math.round((body[i] - x) * ScribbleProtocol.DELTA_QUANTUM);
+			int dy = Math.round((body[i + 1] - y) * ScribbleProtocol.DELTA_QUANTUM);
+			if (dx < Short.MIN_VALUE || dx > Short.MAX_VALUE || dy < Short.MIN_VALUE || dy > Short.MAX_VALUE) {
+				return false;
+			}
+			deltaBytes[length++] = (byte) (dx >> 8);
+			deltaBytes[length++] = (byte) dx;
+			deltaBytes[length++] = (byte) (dy >> 8);
+			deltaBytes[length++] = (byte) dy;
+			x += dx / ScribbleProtocol.DELTA_QUANTUM;
+			y += dy / ScribbleProtocol.DELTA_QUANTUM;
+		}
+
+		deflater.reset();
+		deflater.setInput(deltaBytes, 0, length);
+		deflater.finish();
+		int deflatedLength = 0;
+		while (!deflater.finished()) {
+			if (deflatedLength == deflated.length) {
+				byte[] grown = new byte[deflated.length * 2];
+				System.arraycopy(deflated, 0, grown, 0, deflatedLength);
+				deflated = grown;
+			}
+			deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+		}
+
+		int words = (deflatedLength + 3) / 4;
+		if (words >= pointFloats || ScribbleProtocol.BULK_DEFLATE_HEADER_FLOATS + words
+				> ScribbleProtocol.maxFrameFloats(ScribbleProtocol.STROKE_BULK_DEFLATE)) {
+			return false;
+		}
+
+		ensureCapacity(ScribbleProtocol.HEADER_BYTES + (ScribbleProtocol.BULK_DEFLATE_HEADER_FLOATS + words) * 4);
+		out.putInt((header & ~ScribbleProtocol.STATUS_MASK) | ScribbleProtocol.STROKE_BULK_DEFLATE);
+		out.putInt(ScribbleProtocol.BULK_DEFLATE_HEADER_FLOATS + words);
+		for (int i = 0; i < ScribbleProtocol.BULK_HEADER_FLOATS; i++) {
+			out.putFloat(body[i]);
+		}
+		out.putFloat(body[first]);
+		out.putFloat(body[first + 1]);
+		out.putFloat(pointFloats);
+		out.putFloat(deflatedLength);
+		out.put(deflated, 0, deflatedLength);
+		for (int i = deflatedLength; i < words * 4; i++) {
+			out.put((byte) 0);
+		}
+		return true;
+	}
+
+	private void putRaw(int header, float[] points, int start, int count) {
+		ensureCapacity(ScribbleProtocol.HEADER_BYTES + count * 4);
+		out.putInt(header);
+		out.putInt(count);
+		for (int i = start; i < start + count; i++) {
+			out.putFloat(points[i]);
+		}
+	}
+
+	/**
+	 * write point widths a byte each, after a word holding how many there are
+	 */
+	private void putWidths(int header, float[] widths, int start, int count) {
+		int words = 1 + (count + 3) / 4;
+		ensureCapacity(ScribbleProtocol.HEADER_BYTES + words * 4);
+		out.putInt(header);
+		out.putInt(words);
+		out.putInt(count);
+		for (int i = start; i < start + count; i++) {
+			out.put((byte) Math.max(0, Math.min(ScribbleProtocol.MAX_WIDTH, Math.round(widths[i]))));
+		}
+		for (int i = count; i < (words - 1) * 4; i++) {
+			out.put((byte) 0);
+		}
+	}
+
+	/**
+	 * write the points as quantized deltas from the last point sent
+	 * @return			False if a delta is too large for 16 bits, nothing is written
+	 */
+	private boolean putDelta(int header, int stream, float[] points, int start, int count) {
+		float x = lastX[stream];
+		float y = lastY[stream];
+		for (int i = start; i + 1 < start + count; i += 2) {
+			int dx = Math.round((points[i] - x) * ScribbleProtocol.DELTA_QUANTUM);
+			int dy = Math.round((points[i + 1] - y) * ScribbleProtocol.DELTA_QUANTUM);
+			if (dx < Short.MIN_VALUE || dx > Short.MAX_VALUE || dy < Short.MIN_VALUE || dy > Short.MAX_VALUE) {
+				return false;
+			}
+			x += dx / ScribbleProtocol.DELTA_QUANTUM;
+			y += dy / ScribbleProtocol.DELTA_QUANTUM;
+		}
+
+		int words = count / 2;
+		ensureCapacity(ScribbleProtocol.HEADER_BYTES + words * 4);
+		out.putInt((header & ~ScribbleProtocol.STATUS_MASK) | ScribbleProtocol.PATH_MOVE_DELTA);
+		out.putInt(words);
+
+		// accumulate the same rounded values the peer will, so errors don't drift
+		x = lastX[stream];
+		y = lastY[stream];
+		for (int i = start; i + 1 < start + count; i += 2) {
+			int dx = Math.round((points[i] - x) * ScribbleProtocol.DELTA_QUANTUM);
+			int dy = Math.round((points[i + 1] - y) * ScribbleProtocol.DELTA_QUANTUM);
+			out.putInt((dx << 16) | (dy & 0xffff));
+			x += dx / ScribbleProtocol.DELTA_QUANTUM;
+			y += dy / ScribbleProtocol.DELTA_QUANTUM;
+		}
+		lastX[stream] = x;
+		lastY[stream] = y;
+		return true;
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (out.remaining() < bytes) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+			out.flip();
+			grown.put(out);
+			out = grown;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package hurdad.scribble;
+
+import java.io.File;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView.RecyclerListener;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * saved drawings as a grid of thumbnails, returning the one picked
+ *
+ * the list comes from file names alone and each thumbnail from ThumbnailCache, so no
+ * drawing is read however many there are. a cell scrolled off cancels its thumbnail
+ */
+public class GalleryActivity extends Activity {
+	private static final String LOG_TAG = "GalleryActivity";
+
+	// Return Intent extra, the name of the drawing picked
+	public static final String EXTRA_DRAWING = "drawing";
+
+	private DrawingStore store;
+	private ThumbnailCache thumbnails;
+	private GridView grid;
+	private File[] drawings;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.gallery);
+
+		// Set result CANCELED in case the user backs out
+		setResult(Activity.RESULT_CANCELED);
+
+		thumbnails = ThumbnailCache.get(this);
+		store = new DrawingStore(this);
+		drawings = store.list();
+
+		grid = (GridView) findViewById(R.id.galleryGrid);
+		if (drawings.length == 0) {
+			grid.setVisibility(View.GONE);
+			findViewById(R.id.galleryEmpty).setVisibility(View.VISIBLE);
+			return;
+		}
+		grid.setAdapter(new DrawingAdapter());
+		grid.setRecyclerListener(new RecyclerListener() {
+			public void onMovedToScrapHeap(View view) {
+				thumbnails.cancel((ImageView) view.findViewById(R.id.galleryThumbnail));
+			}
+		});
+		grid.setOnItemClickListener(new OnItemClickListener() {
+			public void onItemClick(AdapterView<?> adapterView, View itemView, int position, long id) {
+				Intent intent = new Intent();
+				intent.putExtra(EXTRA_DRAWING, DrawingStore.nameOf(drawings[position]));
+				setResult(Activity.RESULT_OK, intent);
+				finish();
+			}
+		});
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+
+		// nothing left to show them in
+		for (int i = 0; i < grid.getChildCount(); i++) {
+			thumbnails.cancel((ImageView) grid.getChildAt(i).findViewById(R.id.galleryThumbnail));
+		}
+		store.close();
+		Log.d(LOG_TAG, "thumbnails: " + thumbnails.getStats());
+	}
+
+	private class DrawingAdapter extends BaseAdapter {
+		private final LayoutInflater inflater = getLayoutInflater();
+
+		public int getCount() {
+			return drawings.length;
+		}
+
+		public Object getItem(int position) {
+			return drawings[position];
+		}
+
+		public long getItemId(int position) {
+			return position;
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = convertView != null ? convertView : inflater.inflate(R.layout.gallery_item, parent, false);
+			String name = DrawingStore.nameOf(drawings[position]);
+			((TextView) view.findViewById(R.id.galleryName)).setText(name);
+			thumbnails.load(name, (ImageView) view.findViewById(R.id.galleryThumbnail));
+			return view;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package hurdad.scribble;
+
+/**
+ * round trip time and clock offset to the peer, estimated NTP style from PING/PONG pairs
+ *
+ * each PONG carries four times: t1 the PING left us, t2 it reached the peer, t3 the
+ * PONG left the peer, t4 it reached us, giving
+ *   rtt    = (t4 - t1) - (t3 - t2)
+ *   offset = ((t2 - t1) + (t3 - t4)) / 2
+ * the offset is taken from the lowest rtt of the recent samples, the one least skewed
+ * by queueing on either side
+ *
+ * probes are written by the main thread and answered on the connection thread
+ */
+public class LatencyMonitor {
+
+	// at most one probe in flight, and no more than one a second
+	private static final long PROBE_INTERVAL_MICROS = 1000000L;
+
+	// a probe unanswered this long is given up on
+	private static final long PROBE_TIMEOUT_MICROS = 5000000L;
+
+	// samples the offset filter picks from
+	private static final int FILTER_SAMPLES = 8;
+
+	// samples kept in the histogram, older ones roll out
+	private static final int WINDOW_SAMPLES = 128;
+
+	// histogram bucket i counts rtts below 2^i ms, the last bucket everything above
+	public static final int BUCKETS = 14;
+
+	// median rtt that makes the link count as slow, and that it has to drop below to recover
+	private static final float SLOW_RTT_MILLIS = 300f;
+	private static final float RECOVERED_RTT_MILLIS = 150f;
+
+	private static final float SMOOTHING = 0.125f;
+
+	// monotonic clock anchored to the wall clock, so the peer's times are comparable
+	private static final long ANCHOR_WALL_MICROS = System.currentTimeMillis() * 1000;
+	private static final long ANCHOR_NANOS = System.nanoTime();
+
+	private int nextProbeId;
+	private int inFlightId = -1;
+	private long inFlightSent;
+	private long lastProbe;
+
+	private final long[] filterRtt;
+	private final long[] filterOffset;
+	private int filterCount;
+
+	private final int[] window;
+	private int windowStart;
+	private int windowCount;
+	private final int[] histogram;
+
+	private float smoothedRttMillis = -1f;
+	private float offsetMillis;
+	private boolean slow;
+	private long samples;
+	private long timeouts;
+
+	public LatencyMonitor() {
+		filterRtt = new long[FILTER_SAMPLES];
+		filterOffset = new long[FILTER_SAMPLES];
+		window = new int[WINDOW_SAMPLES];
+		histogram = new int[BUCKETS];
+	}
+
+	public static long clockMicros() {
+		return ANCHOR_WALL_MICROS + (System.nanoTime() - ANCHOR_NANOS) / 1000;
+	}
+
+	/**
+	 * forget the previous peer
+	 */
+	public synchronized void reset() {
+		inFlightId = -1;
+		lastProbe = 0;
+		filterCount = 0;
+		windowStart = 0;
+		windowCount = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			histogram[i] = 0;
+		}
+		smoothedRttMillis = -1f;
+		offsetMillis = 0f;
+		slow = false;
+		samples = 0;
+		timeouts = 0;
+	}
+
+	/**
+	 * claim the next probe if one is due
+	 * @param now		clockMicros() at the time of sending
+	 * @return			Id to send in the PING, -1 if no probe should be sent yet
+	 */
+	public synchronized int startProbe(long now) {
+		if (inFlightId != -1) {
+			if (now - inFlightSent < PROBE_TIMEOUT_MICROS) {
+				return -1;
+			}
+			inFlightId = -1;
+			timeouts++;
+		}
+		if (now - lastProbe < PROBE_INTERVAL_MICROS) {
+			return -1;
+		}
+		inFlightId = nextProbeId++ & 0x7fffffff;
+		inFlightSent = now;
+		lastProbe = now;
+		return inFlightId;
+	}
+
+	/**
+	 * take in the peer's answer to a probe
+	 */
+	public synchronized void onPong(int id, long t1, long t2, long t3, long t4) {
+		if (id != inFlightId) {
+			return;
+		}
+		inFlightId = -1;
+
+		long rtt = Math.max(0, (t4 - t1) - (t3 - t2));
+		long offset = ((t2 - t1) + (t3 - t4)) / 2;
+		samples++;
+
+		// clock filter: keep the last few samples, trust the offset of the quickest
+		int slot = filterCount < FILTER_SAMPLES ? filterCount++ : (int) (samples % FILTER_SAMPLES);
+		filterRtt[slot] = rtt;
+		filterOffset[slot] = offset;
+		int best = 0;
+		for (int i = 1; i < filterCount; i++) {
+			if (filterRtt[i] < filterRtt[best]) {
+				best = i;
+			}
+		}
+		offsetMillis = filterOffset[best] / 1000f;
+
+		float rttMillis = rtt / 1000f;
+		smoothedRttMillis = smoothedRttMillis < 0 ? rttMillis
+				: smoothedRttMillis + SMOOTHING * (rttMillis - smoothedRttMillis);
+		addToWindow(rttMillis);
+
+		float median = getPercentileMillis(50);
+		if (!slow && median > SLOW_RTT_MILLIS) {
+			slow = true;
+		} else if (slow && median < RECOVERED_RTT_MILLIS) {
+			slow = false;
+		}
+	}
+
+	private void addToWindow(float rttMillis) {
+		int bucket = bucketOf(rttMillis);
+		if (windowCount == WINDOW_SAMPLES) {
+			histogram[window[windowStart]]--;
+			window[windowStart] = bucket;
+			windowStart = (windowStart + 1) % WINDOW_SAMPLES;
+		} else {
+			window[(windowStart + windowCount) % WINDOW_SAMPLES] = bucket;
+			windowCount++;
+		}
+		histogram[bucket]++;
+	}
+
+	private static int bucketOf(float millis) {
+		int bucket = 0;
+		float bound = 1f;
+		while (millis >= bound && bucket < BUCKETS - 1) {
+			bound *= 2;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * upper bound of a histogram bucket in ms, the last one has none
+	 */
+	public static int getBucketBoundMillis(int bucket) {
+		return bucket < BUCKETS - 1 ? 1 << bucket : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * copy the rtt histogram of the recent probes
+	 * @param out		Filled with BUCKETS counts
+	 * @return			Number of samples in the histogram
+	 */
+	public synchronized int getHistogram(int[] out) {
+		System.arraycopy(histogram, 0, out, 0, BUCKETS);
+		return windowCount;
+	}
+
+	/**
+	 * rtt below which the given share of recent probes came back, to bucket resolution
+	 * @param percent	0 to 100
+	 * @return			Upper bound of the bucket in ms, -1 with no samples
+	 */
+	public synchronized float getPercentileMillis(int percent) {
+		if (windowCount == 0) {
+			return -1f;
+		}
+		int target = Math.max(1, (windowCount * percent + 99) / 100);
+		int seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram[i];
+			if (seen >= target) {
+				return getBucketBoundMillis(i);
+			}
+		}
+		return getBucketBoundMillis(BUCKETS - 1);
+	}
+
+	/**
+	 * smoothed round trip in ms, -1 before the first answer
+	 */
+	public synchronized float getRttMillis() {
+		return smoothedRttMillis;
+	}
+
+	/**
+	 * how far the peer's clock is ahead of ours in ms, its canvas time is our time plus this
+	 */
+	public synchronized float getOffsetMillis() {
+		return offsetMillis;
+	}
+
+	/**
+	 * whether recent round trips are long enough that strokes should go whole
+	 */
+	public synchronized boolean isSlow() {
+		return slow;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "rtt=" + smoothedRttMillis + "ms p50=" + getPercentileMillis(50) + "ms p95=" + getPercentileMillis(95)
+				+ "ms offset=" + offsetMillis + "ms samples=" + samples + " timeouts=" + timeouts;
+	}
+}
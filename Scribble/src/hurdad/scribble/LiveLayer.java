@@ -0,0 +1,131 @@
+package hurdad.scribble;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Path;
+
+/**
+ * the strokes still being drawn, rasterized as they grow
+ *
+ * each frame only the points added since the last one are stroked into the raster, so a
+ * long stroke costs no more to show than a short one. a piece starts one point back, so
+ * the join at the seam is drawn whole with the stroke's own paint. a variable width
+ * stroke's piece is a StrokeMesh overlapping the last one the same way. when a stroke
+ * leaves, finished or undone, the raster is cleared and the rest are stroked again once
+ */
+public class LiveLayer {
+	private Bitmap bitmap;
+	private Canvas bitmapCanvas;
+	private final Path piece;
+	private final StrokeMesh pieceMesh;
+
+	// strokes the raster shows
+	private final ArrayList<Stroke> shown;
+	private int redraws;
+
+	public LiveLayer() {
+		piece = new Path();
+		pieceMesh = new StrokeMesh();
+		shown = new ArrayList<Stroke>();
+	}
+
+	public void setSize(int width, int height) {
+		if (bitmap != null) {
+			bitmap.recycle();
+		}
+		bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		bitmapCanvas = new Canvas(bitmap);
+		shown.clear();
+	}
+
+	/**
+	 * bring the raster up to date and draw it
+	 * @param canvas	The view's canvas
+	 * @param streams	In-progress streams to show, their drawnPoints are updated
+	 */
+	public void draw(Canvas canvas, ArrayList<StrokeStream> streams) {
+
+		// not sized yet, draw the paths whole
+		if (bitmap == null) {
+			for (int i = 0; i < streams.size(); i++) {
+				StrokeLayer.drawStroke(canvas, streams.get(i).stroke);
+			}
+			return;
+		}
+
+		if (hasLeft(streams)) {
+			bitmap.eraseColor(Color.TRANSPARENT);
+			shown.clear();
+			for (int i = 0; i < streams.size(); i++) {
+				streams.get(i).drawnPoints = 0;
+			}
+			redraws++;
+		}
+
+		for (int i = 0; i < streams.size(); i++) {
+			StrokeStream stream = streams.get(i);
+			if (!shown.contains(stream.stroke)) {
+				shown.add(stream.stroke);
+			}
+			stream.drawnPoints = extend(stream.stroke, stream.drawnPoints);
+		}
+
+		if (!shown.isEmpty()) {
+			canvas.drawBitmap(bitmap, 0, 0, null);
+		}
+	}
+
+	/**
+	 * whether a stroke the raster shows has finished, or been reset since it was drawn,
+	 * a stream marks a reset with drawnPoints of -1
+	 */
+	private boolean hasLeft(ArrayList<StrokeStream> streams) {
+		for (int i = 0; i < shown.size(); i++) {
+			Stroke stroke = shown.get(i);
+			StrokeStream owner = null;
+			for (int j = 0; j < streams.size() && owner == null; j++) {
+				if (streams.get(j).stroke == stroke) {
+					owner = streams.get(j);
+				}
+			}
+			if (owner == null || owner.drawnPoints < 0 || stroke.getPointCount() < owner.drawnPoints) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * stroke the points added after the first drawn ones
+	 * @return			Number of points now drawn
+	 */
+	private int extend(Stroke stroke, int drawn) {
+		int count = stroke.getPointCount();
+		if (count < 2 || count == drawn) {
+			return drawn;
+		}
+		int from = Math.max(0, drawn - 2);
+		if (stroke.hasWidths()) {
+			pieceMesh.build(stroke.points, stroke.widths, from, count, count, stroke.paint.getStrokeWidth());
+			pieceMesh.draw(bitmapCanvas, stroke.paint);
+			return count;
+		}
+		piece.rewind();
+		piece.moveTo(stroke.points[from * 2], stroke.points[from * 2 + 1]);
+		for (int i = from + 1; i < count; i++) {
+			piece.lineTo(stroke.points[i * 2], stroke.points[i * 2 + 1]);
+		}
+		bitmapCanvas.drawPath(piece, stroke.paint);
+		return count;
+	}
+
+	/**
+	 * number of times the raster has been cleared and stroked again
+	 */
+	public int getRedraws() {
+		return redraws;
+	}
+}
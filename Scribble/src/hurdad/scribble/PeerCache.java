@@ -0,0 +1,272 @@
+package hurdad.scribble;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * devices this one has seen or connected to, kept across runs so a known peer can be
+ * offered first, or reconnected to, without a discovery scan
+ *
+ * one instance per process, shared by the server list and the connection manager. changes
+ * are written on a thread of its own, scans report from the UI thread
+ */
+public class PeerCache {
+	private static final String LOG_TAG = "PeerCache";
+	private static final String PREFERENCES = "peers";
+	private static final String KEY_PEERS = "peers";
+
+	private static final int MAX_PEERS = 16;
+
+	// a peer's chance of answering halves for every week it hasn't been seen
+	private static final double HALF_LIFE_MILLIS = 7 * 24 * 60 * 60 * 1000.0;
+
+	// weight of the newest connect time in the smoothed average
+	private static final float SMOOTHING = 0.25f;
+
+	private static PeerCache instance;
+
+	private final SharedPreferences preferences;
+	private final HashMap<String, Peer> peers;
+
+	// peers as last serialized and not yet written, guarded by this. the writer takes the
+	// latest, so changes made while a commit() runs are written together by the next
+	private String unwritten;
+	private final ExecutorService writer;
+	private final Runnable write = new Runnable() {
+		public void run() {
+			write();
+		}
+	};
+
+	public static class Peer {
+		public final String address;
+		public String name;
+
+		// last time the device was found by a scan or connected, in ms since the epoch
+		public long lastSeen;
+
+		// last successful connection in either direction, 0 if never
+		public long lastConnected;
+
+		public int attempts;
+		public int successes;
+
+		// smoothed time an outgoing connect took, -1 until one succeeds
+		public float connectMillis = -1f;
+
+		Peer(String address, String name) {
+			this.address = address;
+			this.name = name;
+		}
+
+		/**
+		 * the name to show, the address for a device that never gave one
+		 */
+		public String getDisplayName() {
+			return name != null ? name : address;
+		}
+
+		/**
+		 * estimated chance a connect attempt succeeds now, from past attempts and how long ago
+		 * the device was last around
+		 */
+		public double getScore(long now) {
+			double successRate = (successes + 1.0) / (attempts + 2.0);
+			return successRate * Math.pow(0.5, Math.max(0, now - lastSeen) / HALF_LIFE_MILLIS);
+		}
+	}
+
+	public static synchronized PeerCache get(Context context) {
+		if (instance == null) {
+			instance = new PeerCache(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private PeerCache(Context context) {
+		preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+		peers = new HashMap<String, Peer>();
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "PeerCache");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		load();
+	}
+
+	/**
+	 * note a device turned up in a scan
+	 */
+	public void recordSeen(String address, String name) {
+		synchronized (this) {
+			Peer peer = getOrAdd(address, name);
+			peer.lastSeen = System.currentTimeMillis();
+			serialize();
+		}
+		writer.execute(write);
+	}
+
+	/**
+	 * note the result of connecting to a device
+	 * @param address		The device's bluetooth address
+	 * @param name			The device's name, may be null
+	 * @param outgoing		Whether this device started the connection, only those count as attempts
+	 * @param success		Whether a socket was established
+	 * @param millis		Time the connect took, ignored for incoming connections
+	 */
+	public void recordConnect(String address, String name, boolean outgoing, boolean success, long millis) {
+		synchronized (this) {
+			Peer peer = getOrAdd(address, name);
+			long now = System.currentTimeMillis();
+			if (outgoing) {
+				peer.attempts++;
+			}
+			if (success) {
+				peer.successes++;
+				peer.lastSeen = now;
+				peer.lastConnected = now;
+				if (outgoing) {
+					peer.connectMillis = peer.connectMillis < 0 ? millis
+							: peer.connectMillis + SMOOTHING * (millis - peer.connectMillis);
+				}
+			}
+			serialize();
+		}
+		writer.execute(write);
+	}
+
+	/**
+	 * known peers, the likeliest to answer first
+	 */
+	public synchronized ArrayList<Peer> getPeers() {
+		ArrayList<Peer> sorted = new ArrayList<Peer>(peers.values());
+		final long now = System.currentTimeMillis();
+		Collections.sort(sorted, new Comparator<Peer>() {
+			public int compare(Peer a, Peer b) {
+				return Double.compare(b.getScore(now), a.getScore(now));
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * the peer connected to most recently, null if there hasn't been one
+	 */
+	public synchronized Peer getLastPeer() {
+		Peer last = null;
+		for (Peer peer : peers.values()) {
+			if (peer.lastConnected > 0 && (last == null || peer.lastConnected > last.lastConnected)) {
+				last = peer;
+			}
+		}
+		return last;
+	}
+
+	private Peer getOrAdd(String address, String name) {
+		Peer peer = peers.get(address);
+		if (peer == null) {
+			peer = new Peer(address, name);
+			peers.put(address, peer);
+			trim();
+		} else if (name != null) {
+			peer.name = name;
+		}
+		return peer;
+	}
+
+	/**
+	 * drop the least likely peers beyond MAX_PEERS
+	 */
+	private void trim() {
+		if (peers.size() <= MAX_PEERS) {
+			return;
+		}
+		ArrayList<Peer> sorted = getPeers();
+		for (int i = MAX_PEERS; i < sorted.size(); i++) {
+			peers.remove(sorted.get(i).address);
+		}
+	}
+
+	// *************************************************************************
+	// PERSISTENCE
+	//
+	// *************************************************************************
+
+	private void load() {
+		String json = preferences.getString(KEY_PEERS, null);
+		if (json == null) {
+			return;
+		}
+		try {
+			JSONArray array = new JSONArray(json);
+			for (int i = 0; i < array.length(); i++) {
+				JSONObject object = array.getJSONObject(i);
+				Peer peer = new Peer(object.getString("address"), object.optString("name", null));
+				peer.lastSeen = object.optLong("lastSeen");
+				peer.lastConnected = object.optLong("lastConnected");
+				peer.attempts = object.optInt("attempts");
+				peer.successes = object.optInt("successes");
+				peer.connectMillis = (float) object.optDouble("connectMillis", -1);
+				peers.put(peer.address, peer);
+			}
+		} catch (JSONException e) {
+			Log.e(LOG_TAG, "load(): discarding unreadable peers", e);
+			peers.clear();
+		}
+	}
+
+	/**
+	 * keep the peers as JSON for the next write, called holding the lock
+	 */
+	private void serialize() {
+		JSONArray array = new JSONArray();
+		try {
+			for (Peer peer : peers.values()) {
+				JSONObject object = new JSONObject();
+				object.put("address", peer.address);
+				object.put("name", peer.name);
+				object.put("lastSeen", peer.lastSeen);
+				object.put("lastConnected", peer.lastConnected);
+				object.put("attempts", peer.attempts);
+				object.put("successes", peer.successes);
+				object.put("connectMillis", peer.connectMillis);
+				array.put(object);
+			}
+		} catch (JSONException e) {
+			Log.e(LOG_TAG, "serialize() failed", e);
+			return;
+		}
+		unwritten = array.toString();
+	}
+
+	/**
+	 * write the latest peers, if an earlier write hasn't already, on the writer. commit()
+	 * rather than apply(), which needs API 9
+	 */
+	private void write() {
+		String json;
+		synchronized (this) {
+			json = unwritten;
+			unwritten = null;
+		}
+		if (json != null) {
+			preferences.edit().putString(KEY_PEERS, json).commit();
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package hurdad.scribble;
 
+import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -18,36 +22,53 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ImageView;
+import android.widget.SeekBar;
+import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
 import android.widget.Toast;
 
 public class Scribble extends Activity {
+	private static final String LOG_TAG = "Scribble";
 	
     // message types send from connection manager
     protected static final int MESSAGE_STATE_CHANGE = 1;
 	protected static final int MESSAGE_READ = 2;
 	protected static final int MESSAGE_WRITE = 3;
 	protected static final int MESSAGE_TOAST = 4;
+	protected static final int MESSAGE_SIZE_CHANGED = 5;
     
 	// intent request codes
 	private final int REQUEST_CONNECT_DEVICE = 0;
 	private final int REQUEST_ENABLE_BLUETOOTH = 1;
 	private final int REQUEST_BRUSH_MODIFY = 2;
+	private final int REQUEST_GALLERY = 3;
+	
+	// strokes kept as vectors for each undo steps item, older ones are flattened
+	private static final int UNDO_HORIZON_SHORT = 50;
+	private static final int UNDO_HORIZON_LONG = 1000;
+	
+	// how often to check whether an idle connection needs a latency probe
+	private static final long PROBE_CHECK_MILLIS = 1000;
 	
 	protected static final String DEVICE_NAME = "device_name";
 	protected static final String TOAST = "toast";
 
-	private ByteBuffer outStreamBuffer;
+	private ScribbleSession session;
+	private FrameEncoder frameEncoder;
 	private static BluetoothAdapter bluetoothAdapter;
 	private ScribbleConnectionManager connectionManager;
 	
-	// dialog layout and backing data
-	private static ScribbleView scribbleView;
+	// the canvas, its drawing is kept in CanvasModel when the activity is recreated
+	private ScribbleView scribbleView;
+	
+	// saved drawings, written and read back off the UI thread
+	private DrawingStore drawingStore;
 	
 	// main activity layout elements
 	private TextView connectTextView;
 	private ImageView connectImageView;
 	private Button undoButton;
+	private SeekBar historySeekBar;
 	
     // *************************************************************************
     // LIFE CYCLE FUNCTIONS
@@ -63,6 +84,10 @@ public class Scribble extends Activity {
         scribbleView = (ScribbleView) findViewById(R.id.scribbleView);
         scribbleView.setHandler(handler);
 
+        // the session holds what the peer agreed to and how strokes are sent, chosen before connecting
+        session = new ScribbleSession();
+        scribbleView.setSession(session);
+
         // get handle for connect widgets on the bottom of the screen
         connectTextView = (TextView) findViewById(R.id.connectTextView);
         connectImageView = (ImageView) findViewById(R.id.connectImageView);
@@ -77,6 +102,21 @@ public class Scribble extends Activity {
 			}
         });
         
+        // scrubs through the drawing's history while the history item is ticked
+        historySeekBar = (SeekBar) findViewById(R.id.historySeekBar);
+        historySeekBar.setOnSeekBarChangeListener(new OnSeekBarChangeListener() {
+        	public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+        		if (fromUser) {
+        			scribbleView.showHistory(progress);
+        		}
+        	}
+
+        	public void onStartTrackingTouch(SeekBar seekBar) {}
+        	public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+        
+        drawingStore = new DrawingStore(this);
+        
         // get the bluetoothAdapter
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
     }
@@ -99,9 +139,22 @@ public class Scribble extends Activity {
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		handler.removeCallbacks(probeRunnable);
 		// stop all connection threads on exit
 		if (connectionManager != null) {
-			connectionManager.stop();
+			connectionManager.close();
+		}
+		drawingStore.close();
+		
+		Log.d(LOG_TAG, "onDestroy(): undoHorizon=" + scribbleView.getUndoHorizon() + " reclaimedVectorBytes="
+				+ scribbleView.getReclaimedVectorBytes() + " historyBytes=" + scribbleView.getHistoryBytes()
+				+ " arena " + scribbleView.getArenaStats());
+		Log.d(LOG_TAG, "onDestroy(): shapes " + scribbleView.getShapeStats() + ", fills " + scribbleView.getFillStats()
+				+ ", history " + scribbleView.getHistoryStats());
+		
+		// the drawing outlives a recreated activity, not one that's gone
+		if (isFinishing()) {
+			CanvasModel.release();
 		}
 	}
 	
@@ -118,10 +171,11 @@ public class Scribble extends Activity {
 	private void setupConnection() {
 
         // Initialize the BluetoothChatService to perform bluetooth connections
-        connectionManager = new ScribbleConnectionManager(handler);
+        connectionManager = new ScribbleConnectionManager(handler, scribbleView.getInboundQueue(), session,
+        		PeerCache.get(this));
 
-        // initialize the buffer for outgoing messages
-        outStreamBuffer = ByteBuffer.allocate(128);
+        // initialize the encoder for outgoing messages
+        frameEncoder = new FrameEncoder(session);
     }
 	
 	private void allowDiscoverable() {
@@ -164,6 +218,10 @@ public class Scribble extends Activity {
 				int blue = data.getIntExtra("blue", 0);
 				scribbleView.setLocalPaint(size, red, green, blue);
 			}
+		} else if (requestCode == REQUEST_GALLERY) {
+			if (resultCode == Activity.RESULT_OK) {
+				drawingStore.open(data.getStringExtra(GalleryActivity.EXTRA_DRAWING), drawingListener);
+			}
 		} else {
 			super.onActivityResult(requestCode, resultCode, data);
 		}
@@ -178,12 +236,18 @@ public class Scribble extends Activity {
         		if (message.arg1 == ScribbleConnectionManager.STATE_CONNECTED) {
         			connectTextView.setText(R.string.connected);
         			connectImageView.setImageResource(R.drawable.check);
-        			scribbleView.clear();
+        			scribbleView.onConnected();
         			scribbleView.sendPaint();
         			
+        			// keep the latency estimate fresh while nothing is drawn
+        			handler.removeCallbacks(probeRunnable);
+        			handler.postDelayed(probeRunnable, PROBE_CHECK_MILLIS);
+        			
         		} else if (message.arg1 == ScribbleConnectionManager.STATE_CONNECTING) {
+        			handler.removeCallbacks(probeRunnable);
         			connectTextView.setText(R.string.connecting);
         		} else {
+        			handler.removeCallbacks(probeRunnable);
         			connectTextView.setText(R.string.local);
         			connectImageView.setImageResource(R.drawable.cross);
         		}
@@ -195,56 +259,29 @@ public class Scribble extends Activity {
                     return;
                 }
                 
-        		// get the path status (whether this data is a PATH_START, PATH_MOVE, PATH_END, or PATH_CLEAR event)
-        		int pathStatus = message.arg1;
-        		
-        		// get points to send
-        		Float[] points = (Float[]) message.obj;
-        		
-        		// build float array
-        		float[] floats = new float[points.length];
-        		for (int i = 0; i < points.length; i++) {
-        			floats[i] = points[i];
-        		}
-        		
-        		// wrap floats in a float buffer for easy creation of byte buffer
-        		FloatBuffer floatBuffer = FloatBuffer.wrap(floats);
+        		// message header (path status and stream) and the number of floats to send
+        		int header = message.arg1;
+        		int count = message.arg2;
         		
-        		// allocated enough space for the floats, plus the two int flags (pathStatus, capacity)
-        		outStreamBuffer = ByteBuffer.allocate(8 + floatBuffer.capacity() * 4);
+        		// points to send, only valid for the duration of this call
+        		float[] points = (float[]) message.obj;
         		
-        		// write the flags and data to the out Buffer
-        		outStreamBuffer.putInt(pathStatus);
-        		outStreamBuffer.putInt(floats.length);
-        		outStreamBuffer.asFloatBuffer().put(floatBuffer);
+        		// encode in the negotiated format into the encoder's reused buffer
+        		ByteBuffer frames = frameEncoder.encode(header, points, count);
         		
-        		// obtain byte[] from buffer and write to socket
-        		byte[] bytes = outStreamBuffer.array();
-        		connectionManager.write(bytes);
-        		outStreamBuffer.clear();
+        		// queue the used part of the buffer, live ink and edits go ahead of background strokes
+        		connectionManager.write(ScribbleProtocol.channel(header), frames.array(), 0, frames.position());
         		
         	} else if (message.what == MESSAGE_READ) {		// the other device has drawn, need to update locally
         		
-        		// cast the message read in the connectionManager to a byte[], then wrap in ByteBuffer
-        		byte[] readBuf = (byte[]) message.obj;
-        		ByteBuffer byteBuffer = ByteBuffer.wrap(readBuf);
+        		// messages were decoded on the connection thread, apply them with the next frame
+        		scribbleView.scheduleRemoteDrain();
         		
-        		// determine the pathStatus (all reads have path data, either PATH_START, PATH_MOVE, PATH_CLEAR)
-        		int pathStatus = byteBuffer.getInt();
+        	} else if (message.what == MESSAGE_SIZE_CHANGED) {		// the canvas was resized, the session has its new size
         		
-        		// determine the number of floats to receive (sent in x-y pairs, {x1, y1, x2, y2, x3, ..})
-        		int capacity = byteBuffer.getInt();
-        		
-        		if (pathStatus < 6 && capacity < 40) { // to bound to valid data
-	        		
-	        		// use the capacity found to initialize points array and write points to it
-	        		float[] points = new float[capacity];
-	        		for (int i = 0; i < capacity; i++) {
-	        			points[i] = byteBuffer.getFloat();
-	        		}
-	        		
-	        		// tell the scribble view canvas to draw the received path
-	        		scribbleView.drawRemote(pathStatus, points);
+        		// a peer already connected rescales our strokes from our next HELLO
+        		if (connectionManager != null && connectionManager.getState() == ScribbleConnectionManager.STATE_CONNECTED) {
+        			connectionManager.sendHello();
         		}
         		
         	} else if (message.what == MESSAGE_TOAST) {
@@ -259,6 +296,48 @@ public class Scribble extends Activity {
         }
     };
 
+    /**
+     * reports saved and opened drawings, an opened one replaces the canvas
+     */
+    private final DrawingStore.Listener drawingListener = new DrawingStore.Listener() {
+    	public void onSaved(String name, boolean succeeded) {
+    		String text = succeeded ? getString(R.string.drawingSaved, name) : getString(R.string.drawingNotSaved);
+    		Toast.makeText(Scribble.this, text, Toast.LENGTH_SHORT).show();
+    	}
+
+    	public void onOpened(String name, DrawingStore.Drawing drawing) {
+    		if (drawing == null) {
+    			return;
+    		}
+
+    		// connected while it was being read, the peer would keep its canvas
+    		if (connectionManager != null && connectionManager.getState() == ScribbleConnectionManager.STATE_CONNECTED) {
+    			if (drawing.base != null) {
+    				drawing.base.recycle();
+    			}
+    			Toast.makeText(Scribble.this, getString(R.string.disconnectToOpen), Toast.LENGTH_SHORT).show();
+    			return;
+    		}
+    		scribbleView.openDrawing(drawing);
+    	}
+    };
+
+    /**
+     * send a latency probe if none has ridden along with a drawing message lately
+     */
+    private final Runnable probeRunnable = new Runnable() {
+    	public void run() {
+    		if (connectionManager == null || connectionManager.getState() != ScribbleConnectionManager.STATE_CONNECTED) {
+    			return;
+    		}
+    		ByteBuffer probe = frameEncoder.encodeProbe();
+    		if (probe != null) {
+    			connectionManager.write(ScribbleProtocol.CHANNEL_CONTROL, probe.array(), 0, probe.position());
+    		}
+    		handler.postDelayed(this, PROBE_CHECK_MILLIS);
+    	}
+    };
+
     // *************************************************************************
     //
     // MENU FUNCTIONS
@@ -271,6 +350,45 @@ public class Scribble extends Activity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+    	
+    	// tick the current send mode
+    	int mode = session.getMode();
+    	int checkedId = mode == ScribbleSession.MODE_STREAMING ? R.id.sendLive
+    			: mode == ScribbleSession.MODE_BULK ? R.id.sendBulk : R.id.sendAuto;
+    	MenuItem checked = menu.findItem(checkedId);
+    	if (checked != null) {
+    		checked.setChecked(true);
+    	}
+    	
+    	// tick the undo steps kept, a horizon set some other way ticks none
+    	int undoHorizon = scribbleView.getUndoHorizon();
+    	int undoId = undoHorizon == UNDO_HORIZON_SHORT ? R.id.undoHorizonShort
+    			: undoHorizon == UNDO_HORIZON_LONG ? R.id.undoHorizonLong
+    			: undoHorizon == ScribbleView.DEFAULT_UNDO_HORIZON ? R.id.undoHorizonDefault : 0;
+    	if (undoId != 0) {
+    		menu.findItem(undoId).setChecked(true);
+    	}
+    	
+    	menu.findItem(R.id.showRemoteLayer).setChecked(scribbleView.isLayerVisible(ScribbleView.LAYER_REMOTE));
+    	menu.findItem(R.id.snapShapes).setChecked(scribbleView.isSnapShapes());
+    	menu.findItem(R.id.pressureWidth).setChecked(scribbleView.isVariableWidth());
+    	menu.findItem(R.id.history).setChecked(scribbleView.isShowingHistory());
+    	menu.findItem(R.id.exportTimelapse).setEnabled(!scribbleView.isExportingTimelapse());
+    	
+    	// offer the last peer by name, if there's been one
+    	MenuItem reconnect = menu.findItem(R.id.reconnect);
+    	PeerCache.Peer lastPeer = PeerCache.get(this).getLastPeer();
+    	if (bluetoothAdapter != null && lastPeer != null) {
+    		reconnect.setTitle(getString(R.string.reconnect, lastPeer.getDisplayName()));
+    		reconnect.setVisible(true);
+    	} else {
+    		reconnect.setVisible(false);
+    	}
+    	return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
     	int itemId = item.getItemId();
@@ -280,6 +398,132 @@ public class Scribble extends Activity {
     		((ScribbleView) findViewById(R.id.scribbleView)).clearAll();
     		return true;
     		
+    	} else if (itemId == R.id.drawTool) {
+    		scribbleView.setTool(ScribbleView.TOOL_DRAW);
+    		return true;
+    		
+    	} else if (itemId == R.id.eraseTool) {
+    		scribbleView.setTool(ScribbleView.TOOL_ERASE);
+    		return true;
+    		
+    	} else if (itemId == R.id.selectTool) {
+    		scribbleView.setTool(ScribbleView.TOOL_SELECT);
+    		return true;
+    		
+    	} else if (itemId == R.id.fillTool) {
+    		scribbleView.setTool(ScribbleView.TOOL_FILL);
+    		return true;
+    		
+    	} else if (itemId == R.id.deleteSelection) {
+    		
+    		// erase the lasso-selected strokes on both devices
+    		scribbleView.deleteSelection();
+    		return true;
+    		
+    	} else if (itemId == R.id.showRemoteLayer) {
+    		
+    		// hiding the partner's layer just stops compositing it, nothing is redrawn
+    		boolean visible = !item.isChecked();
+    		scribbleView.setLayerVisible(ScribbleView.LAYER_REMOTE, visible);
+    		item.setChecked(visible);
+    		return true;
+    		
+    	} else if (itemId == R.id.snapShapes) {
+    		
+    		// only strokes finished from now on are snapped
+    		boolean snap = !item.isChecked();
+    		scribbleView.setSnapShapes(snap);
+    		item.setChecked(snap);
+    		return true;
+    		
+    	} else if (itemId == R.id.pressureWidth) {
+    		
+    		// strokes already drawn keep their widths
+    		boolean variable = !item.isChecked();
+    		scribbleView.setVariableWidth(variable);
+    		item.setChecked(variable);
+    		return true;
+    		
+    	} else if (itemId == R.id.history) {
+    		
+    		// open at the latest step, the canvas goes back to live when unticked
+    		boolean show = !item.isChecked();
+    		if (show) {
+    			int steps = scribbleView.getHistorySteps();
+    			historySeekBar.setMax(steps);
+    			historySeekBar.setProgress(steps);
+    			historySeekBar.setVisibility(View.VISIBLE);
+    			scribbleView.showHistory(steps);
+    		} else {
+    			historySeekBar.setVisibility(View.GONE);
+    			scribbleView.hideHistory();
+    		}
+    		item.setChecked(show);
+    		return true;
+    		
+    	} else if (itemId == R.id.exportTimelapse) {
+    		
+    		// frames are written in the background, a folder per export
+    		File storage = getExternalFilesDir(null);
+    		if (storage == null) {
+    			Toast.makeText(this, getString(R.string.timelapseFailed), Toast.LENGTH_LONG).show();
+    			return true;
+    		}
+    		File directory = new File(storage, "timelapse-" + System.currentTimeMillis());
+    		scribbleView.exportTimelapse(directory, new StrokeHistory.ExportListener() {
+    			public void onExportDone(File directory, int frames, boolean succeeded) {
+    				String text = succeeded ? getString(R.string.timelapseSaved, directory.getPath())
+    						: getString(R.string.timelapseFailed);
+    				Toast.makeText(Scribble.this, text, Toast.LENGTH_LONG).show();
+    			}
+    		});
+    		return true;
+    		
+    	} else if (itemId == R.id.saveDrawing) {
+    		
+    		// the thumbnail is cached at once, the file is written in the background
+    		String name = "drawing-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+    		scribbleView.saveDrawing(drawingStore, name, drawingListener);
+    		return true;
+    		
+    	} else if (itemId == R.id.gallery) {
+
+    		// an opened drawing replaces only this canvas, the peer has no way to be sent its flattened
+    		// pixels or told to drop its own strokes
+    		if (connectionManager != null && connectionManager.getState() == ScribbleConnectionManager.STATE_CONNECTED) {
+    			Toast.makeText(this, getString(R.string.disconnectToOpen), Toast.LENGTH_LONG).show();
+    			return true;
+    		}
+    		startActivityForResult(new Intent(this, GalleryActivity.class), REQUEST_GALLERY);
+    		return true;
+    		
+    	} else if (itemId == R.id.undoHorizonShort || itemId == R.id.undoHorizonDefault
+    			|| itemId == R.id.undoHorizonLong) {
+    		
+    		// a shorter horizon flattens the strokes past it straight away, they can't come back
+    		int undoHorizon = itemId == R.id.undoHorizonShort ? UNDO_HORIZON_SHORT
+    				: itemId == R.id.undoHorizonLong ? UNDO_HORIZON_LONG : ScribbleView.DEFAULT_UNDO_HORIZON;
+    		scribbleView.setUndoHorizon(undoHorizon);
+    		item.setChecked(true);
+    		return true;
+    		
+    	} else if (itemId == R.id.sendAuto) {
+    		
+    		// stream strokes while the link keeps up, send them whole when it doesn't
+    		session.setMode(ScribbleSession.MODE_AUTO);
+    		item.setChecked(true);
+    		return true;
+    		
+    	} else if (itemId == R.id.sendLive) {
+    		session.setMode(ScribbleSession.MODE_STREAMING);
+    		item.setChecked(true);
+    		return true;
+    		
+    	} else if (itemId == R.id.sendBulk) {
+    		session.setMode(ScribbleSession.MODE_BULK);
+    		item.setChecked(true);
+    		return true;
+    		
     	} else if (itemId == R.id.brush) {
     		
     		// get params to send to BrushModifyActivity
@@ -319,6 +563,33 @@ public class Scribble extends Activity {
     		
             return true;
             
+    	} else if (itemId == R.id.reconnect) {
+    		
+    		// if bluetooth is available, but not enabled, prompt the user to enable
+    		if (bluetoothAdapter != null && !bluetoothAdapter.isEnabled()) {
+        		Intent intentEnableBluetooth = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+        		startActivityForResult(intentEnableBluetooth, REQUEST_ENABLE_BLUETOOTH);
+        		return true;
+    		}
+    		
+    		// connect straight to the last peer by address, no scan or server list, and only if
+    		// it can't be reached to the likeliest of the others that have connected before
+    		PeerCache peerCache = PeerCache.get(this);
+    		PeerCache.Peer lastPeer = peerCache.getLastPeer();
+    		if (bluetoothAdapter != null && lastPeer != null) {
+    			if (connectionManager == null) {
+    				setupConnection();
+    			}
+    			ArrayList<BluetoothDevice> others = new ArrayList<BluetoothDevice>();
+    			for (PeerCache.Peer peer : peerCache.getPeers()) {
+    				if (peer != lastPeer && peer.lastConnected > 0) {
+    					others.add(bluetoothAdapter.getRemoteDevice(peer.address));
+    				}
+    			}
+    			connectionManager.connect(bluetoothAdapter.getRemoteDevice(lastPeer.address), others);
+    		}
+    		return true;
+    		
     	} else if (itemId == R.id.allowConnections) {
     		
     		// if bluetooth is available, but not enabled, prompt the user to enable
@@ -3,7 +3,19 @@ package hurdad.scribble;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -12,430 +24,719 @@ import android.bluetooth.BluetoothSocket;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+/**
+ * the bluetooth connection as a state machine: none, listening, connecting to one or more
+ * candidates, or connected
+ *
+ * every transition runs on one event loop thread, so the state needs no locks. accepting,
+ * connecting and reading block, they run on I/O threads that only report back to the loop,
+ * and a report that's no longer wanted, from an attempt already timed out or a connection
+ * already replaced, is ignored there. while connecting, incoming connections are still
+ * accepted, and whichever socket comes up first wins
+ */
 public class ScribbleConnectionManager {
 	private final UUID SCRIBBLE_UUID = UUID.fromString("67520b31-28b2-4b26-8218-ae82a517807e");
     private static final String APP_NAME = "Scribble";
     private static final String LOG_TAG = "ScribbleConnectionManager";
     private static final int BUFFER_SIZE = 128;
-	
+
+    // an attempt still connecting after this is given up, a device in range answers in a few seconds
+    private static final long CONNECT_TIMEOUT_MILLIS = 12000;
+
+    // a cancelled connection's reader ends as soon as its socket is closed, this is only a backstop
+    private static final long CLOSE_TIMEOUT_MILLIS = 2000;
+
+    // candidates tried at once, the radio slows down with every page it has going
+    public static final int MAX_PARALLEL_ATTEMPTS = 3;
+
     private final BluetoothAdapter bluetoothAdapter;
     private final Handler handler;
-	private AcceptThread acceptThread;
-	private ConnectThread connectThread;
-	private ConnectedThread connectedThread;
-	private int state;
+    private final StrokeOpQueue inboundQueue;
+    private final ScribbleSession session;
+    private final PeerCache peerCache;
+
+    // runs every transition and timeout, and the blocking calls that report back to it
+    private final ScheduledExecutorService loop;
+    private final ExecutorService io;
+
+    // only changed on the loop, read anywhere
+    private volatile int state;
+    private volatile Connection connection;
+
+    // only used on the loop
+    private Acceptor acceptor;
+    private final ArrayList<Attempt> attempts;
+    private long connectRequested;
+
+    // tried together once every attempt running has failed or timed out, null if none
+    private ArrayList<BluetoothDevice> fallbacks;
+
+    // connection setup, from connect() to a socket and from the socket to the peer's HELLO
+    private int attemptsStarted;
+    private int attemptsFailed;
+    private int attemptsTimedOut;
+    private int connectsFailed;
+    private int connected;
+    private int lost;
+    private long lastSetupMillis = -1;
+    private long worstSetupMillis;
+    private long totalSetupMillis;
+    private int setups;
+    private long lastNegotiateMillis = -1;
 
     // constants for indicating current connection state
     public static final int STATE_NONE = 0;       // doing nothing
     public static final int STATE_LISTEN = 1;     // listening for connections
     public static final int STATE_CONNECTING = 2; // initiating connection
     public static final int STATE_CONNECTED = 3;  // connected
-    
+
     // constants for indicating message to display
     public static final int UNABLE_TO_CONNECT = 0;
     public static final int CONNECTION_WAS_LOST = 1;
-    
+
     // *************************************************************************
     // CONSTRUCTOR
 	//
     // *************************************************************************
-	
-    public ScribbleConnectionManager(Handler handler) {
+
+    /**
+     * @param handler		Receives state changes, toasts and a MESSAGE_READ whenever inboundQueue needs draining
+     * @param inboundQueue	Receives the messages decoded from the peer
+     * @param session		Negotiated with each peer as it connects
+     * @param peerCache		Told how each connection went
+     */
+    public ScribbleConnectionManager(Handler handler, StrokeOpQueue inboundQueue, ScribbleSession session,
+    		PeerCache peerCache) {
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         state = STATE_NONE;
         this.handler = handler;
+        this.inboundQueue = inboundQueue;
+        this.session = session;
+        this.peerCache = peerCache;
+        loop = Executors.newSingleThreadScheduledExecutor();
+        io = Executors.newCachedThreadPool();
+        attempts = new ArrayList<Attempt>();
     }
 
     // *************************************************************************
     // STATE TRANSITION FUNCTIONS
 	//
     // *************************************************************************
-	
+
     /**
-     * start listening for connections
+     * start listening for connections, dropping any attempt or connection
      */
-    public synchronized void listen() {
+    public void listen() {
+    	post(new Runnable() {
+    		public void run() {
+    			enterListen();
+    		}
+    	});
+    }
 
-        // cancel connecting thread
-        if (connectThread != null) {
-        	connectThread.cancel();
-        	connectThread = null;
-        }
+    /**
+     * establish a connection with a given BluetoothDevice
+     * @param server	The BluetoothDevice to connect to
+     */
+    public void connect(BluetoothDevice server) {
+    	ArrayList<BluetoothDevice> servers = new ArrayList<BluetoothDevice>();
+    	servers.add(server);
+    	connect(servers);
+    }
 
-        // cancel connected thread
-        if (connectedThread != null) {
-        	connectedThread.cancel();
-        	connectedThread = null;
-        }
+    /**
+     * try several devices at once, the first to answer is connected to and the others dropped
+     * @param servers	Devices to try, likeliest first, only the first MAX_PARALLEL_ATTEMPTS are
+     */
+    public void connect(List<BluetoothDevice> servers) {
+    	final ArrayList<BluetoothDevice> candidates = new ArrayList<BluetoothDevice>(
+    			servers.subList(0, Math.min(servers.size(), MAX_PARALLEL_ATTEMPTS)));
+    	post(new Runnable() {
+    		public void run() {
+    			enterConnecting(candidates, null);
+    		}
+    	});
+    }
 
-        // start listening on socket
-        if (acceptThread == null) {
-            acceptThread = new AcceptThread();
-            acceptThread.start();
-        }
-        
-        // update state to listening
-        setState(STATE_LISTEN);
+    /**
+     * try one device on its own, and only if it can't be reached try others at once, so a
+     * device that answers sooner can't win over the one wanted
+     * @param server	The BluetoothDevice to try first
+     * @param others	Devices to try after, likeliest first, only the first MAX_PARALLEL_ATTEMPTS are
+     */
+    public void connect(BluetoothDevice server, List<BluetoothDevice> others) {
+    	final ArrayList<BluetoothDevice> candidates = new ArrayList<BluetoothDevice>();
+    	candidates.add(server);
+    	final ArrayList<BluetoothDevice> later = others.isEmpty() ? null : new ArrayList<BluetoothDevice>(
+    			others.subList(0, Math.min(others.size(), MAX_PARALLEL_ATTEMPTS)));
+    	post(new Runnable() {
+    		public void run() {
+    			enterConnecting(candidates, later);
+    		}
+    	});
     }
-    
+
     /**
-     * establish a connection with a given BluetoothDevice
-     * @param server	The BluetoothDevice to connect to
+     * stop all threads -- revert to doing nothing
      */
-    public synchronized void connect(BluetoothDevice server) {
-
-        // if already trying to connect, override that attempt
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {
-            	connectThread.cancel();
-            	connectThread = null;
-            }
-        }
+    public void stop() {
+    	post(new Runnable() {
+    		public void run() {
+    			cancelAttempts();
+    			cancelConnection();
+    			cancelAcceptor();
+    			setState(STATE_NONE);
+    		}
+    	});
+    }
 
-        // if already connected, drop that connection and focus on this connect attempt
-        if (connectedThread != null) {
-        	connectedThread.cancel();
-        	connectedThread = null;
-        }
+    /**
+     * stop, then let the event loop and I/O threads end, the manager can't be used afterwards
+     */
+    public void close() {
+    	stop();
+    	loop.shutdown();
+    	io.shutdown();
+    }
 
-        // start thread to connect to the server device
-        connectThread = new ConnectThread(server);
-        connectThread.start();
-        
-        // update state to connecting
-        setState(STATE_CONNECTING);
+    private void enterListen() {
+    	cancelAttempts();
+    	cancelConnection();
+    	startAcceptor();
+    	setState(STATE_LISTEN);
     }
 
     /**
-     * start the connected thread for dealing with transmissions
-     * @param socket	The BluetoothSocket for this connection
+     * drop the current attempts or connection and start one attempt per candidate, still
+     * accepting connections meanwhile
+     * @param later		Candidates tried if none of these connect, or null
      */
-    public synchronized void communicate(BluetoothSocket socket) {
+    private void enterConnecting(ArrayList<BluetoothDevice> candidates, ArrayList<BluetoothDevice> later) {
+    	cancelAttempts();
+    	cancelConnection();
+    	if (candidates.isEmpty()) {
+    		enterListen();
+    		return;
+    	}
+    	fallbacks = later;
 
-        // stop connecting thread
-        if (connectThread != null) {
-        	connectThread.cancel();
-        	connectThread = null;
-        }
+    	// discovery slows connecting down
+    	bluetoothAdapter.cancelDiscovery();
+    	connectRequested = SystemClock.elapsedRealtime();
+    	setState(STATE_CONNECTING);
 
-        // stop any current connection
-        if (connectedThread != null) {
-        	connectedThread.cancel();
-        	connectedThread = null;
-        }
+    	for (BluetoothDevice server : candidates) {
+    		BluetoothSocket socket;
+    		try {
+    			// use SCRIBBLE_UUID common to server
+    			socket = server.createRfcommSocketToServiceRecord(SCRIBBLE_UUID);
+    		} catch (IOException e) {
+    			Log.e(LOG_TAG, "enterConnecting(): socket() failed for " + server.getAddress(), e);
+    			continue;
+    		}
+    		Attempt attempt = new Attempt(server, socket);
+    		attempts.add(attempt);
+    		attemptsStarted++;
+    		io.execute(attempt);
+    		attempt.timeout = loop.schedule(attempt.timeoutRunnable, CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    	}
+    	if (attempts.isEmpty()) {
+    		connectionFailed();
+    	}
+    }
 
-        // stop accepting connections
-        if (acceptThread != null) {
-        	acceptThread.cancel();
-        	acceptThread = null;
-        }
+    /**
+     * start the connection for dealing with transmissions, dropping everything else
+     * @param socket	The BluetoothSocket for this connection
+     */
+    private void enterConnected(BluetoothSocket socket) {
+    	cancelAttempts();
+    	cancelConnection();
+    	cancelAcceptor();
 
-        // start the new connected thread
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
+        // the last reader has stopped, nothing it decoded is for this peer
+        inboundQueue.discardPublished();
 
-        // update state to connected
+        // a new peer starts from the legacy format until its HELLO arrives
+        session.reset();
+
+        connection = new Connection(socket);
+        connection.reader = io.submit(connection);
+        connected++;
         setState(STATE_CONNECTED);
     }
-    
+
+    // *************************************************************************
+    // EVENTS - reported to the loop by the I/O threads
+	//
+    // *************************************************************************
+
+    private void onAccepted(Acceptor from, BluetoothSocket socket) {
+    	if (from != acceptor || (state != STATE_LISTEN && state != STATE_CONNECTING)) {
+    		// either skipped a state, or already connected, don't use this socket
+    		close(socket);
+    		return;
+    	}
+    	BluetoothDevice client = socket.getRemoteDevice();
+    	peerCache.recordConnect(client.getAddress(), client.getName(), false, true, 0);
+    	Log.d(LOG_TAG, "onAccepted(): " + client.getAddress());
+    	enterConnected(socket);
+    }
+
+    private void onAttemptDone(Attempt attempt, boolean success, long millis) {
+    	if (!attempts.contains(attempt)) {
+    		// timed out or beaten by another socket, this one's already been closed
+    		if (success) {
+    			attempt.cancel();
+    		}
+    		return;
+    	}
+    	attempts.remove(attempt);
+    	attempt.timeout.cancel(false);
+    	peerCache.recordConnect(attempt.server.getAddress(), attempt.server.getName(), true, success, millis);
+
+    	if (success) {
+    		long setup = SystemClock.elapsedRealtime() - connectRequested;
+    		recordSetup(setup);
+    		Log.d(LOG_TAG, "onAttemptDone(): connected to " + attempt.server.getAddress() + " in " + setup + "ms");
+    		enterConnected(attempt.socket);
+    		return;
+    	}
+    	attemptsFailed++;
+    	attempt.cancel();
+    	if (attempts.isEmpty()) {
+    		connectionFailed();
+    	}
+    }
+
+    private void onAttemptTimedOut(Attempt attempt) {
+    	if (!attempts.contains(attempt)) {
+    		return;
+    	}
+    	Log.w(LOG_TAG, "onAttemptTimedOut(): " + attempt.server.getAddress());
+    	attempts.remove(attempt);
+    	attemptsTimedOut++;
+    	peerCache.recordConnect(attempt.server.getAddress(), attempt.server.getName(), true, false,
+    			CONNECT_TIMEOUT_MILLIS);
+
+    	// closing the socket ends the blocked connect(), its report is then ignored
+    	attempt.cancel();
+    	if (attempts.isEmpty()) {
+    		connectionFailed();
+    	}
+    }
+
+    private void onConnectionLost(Connection from) {
+    	if (from != connection) {
+    		return;
+    	}
+    	lost++;
+
+    	// closes its socket and stops its decoder, the read that failed may not have
+    	cancelConnection();
+
+    	// inform user and revert to listening
+    	toast(CONNECTION_WAS_LOST);
+    	enterListen();
+    }
+
+    private void connectionFailed() {
+    	if (fallbacks != null) {
+    		Log.d(LOG_TAG, "connectionFailed(): trying " + fallbacks.size() + " others");
+    		enterConnecting(fallbacks, null);
+    		return;
+    	}
+    	connectsFailed++;
+
+    	// inform user and revert to listening
+    	toast(UNABLE_TO_CONNECT);
+    	enterListen();
+    }
+
     // *************************************************************************
-    // STOP - remove all threads
+    // CANCELLATION
 	//
     // *************************************************************************
-	
+
+    private void cancelAttempts() {
+    	for (int i = 0; i < attempts.size(); i++) {
+    		Attempt attempt = attempts.get(i);
+    		attempt.timeout.cancel(false);
+    		attempt.cancel();
+    	}
+    	attempts.clear();
+    	fallbacks = null;
+    }
+
     /**
-     * stop all threads -- revert to doing nothing
+     * close the connection and wait for its reader to stop, so it can't publish or touch the
+     * session once the next one starts
      */
-    public synchronized void stop() {
-    	// stop any connecting thread
-        if (connectThread != null) {
-        	connectThread.cancel();
-        	connectThread = null;
-        }
-        
-        // stop any connected thread
-        if (connectedThread != null) {
-        	connectedThread.cancel();
-        	connectedThread = null;
-        }
-        // stop any accepting thread
-        if (acceptThread != null) {
-        	acceptThread.cancel();
-        	acceptThread = null;
-        }
-        
-        // revert state to doing nothing
-        setState(STATE_NONE);
+    private void cancelConnection() {
+    	if (connection != null) {
+    		connection.cancel();
+    		connection.await();
+    		connection = null;
+    	}
+    }
+
+    private void startAcceptor() {
+    	if (acceptor != null) {
+    		return;
+    	}
+    	try {
+    		// use app UUID, will also be used by client
+    		acceptor = new Acceptor(bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME, SCRIBBLE_UUID));
+    		io.execute(acceptor);
+    	} catch (IOException e) {
+    		Log.e(LOG_TAG, "startAcceptor(): listen() failed", e);
+    	}
+    }
+
+    private void cancelAcceptor() {
+    	if (acceptor != null) {
+    		acceptor.cancel();
+    		acceptor = null;
+    	}
     }
-    
+
+    private static void close(BluetoothSocket socket) {
+    	try {
+    		socket.close();
+    	} catch (IOException e) {
+    		Log.e(LOG_TAG, "close(): socket close() failed", e);
+    	}
+    }
+
     // *************************************************************************
     // WRITE - outgoing data
 	//
     // *************************************************************************
-	
+
     /**
      * write to the connected thread
      * @param out		The bytes to write
      */
     public void write(byte[] out) {
-        ConnectedThread tempThread;
+    	write(ScribbleProtocol.CHANNEL_LIVE, out, 0, out.length);
+    }
+
+    /**
+     * queue whole frames for the connected thread to write, the buffer can be reused once this returns
+     * @param channel	Priority of the frames, one of ScribbleProtocol's CHANNEL_ constants
+     * @param out		The buffer holding the frames
+     * @param offset	Start of the frames in out
+     * @param length	Number of bytes to write
+     */
+    public void write(int channel, byte[] out, int offset, int length) {
 
-        // synchronize on a copy of the connected thread
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            tempThread = connectedThread;
+        // a copy, the loop may replace the connection meanwhile
+        Connection current = connection;
+        if (current != null) {
+        	current.write(channel, out, offset, length);
         }
-        
-        // write unsynchronized
-        tempThread.write(out);
     }
-    
+
+    /**
+     * announce the canvas again once it's been resized, the peer rescales what we send to it
+     */
+    public void sendHello() {
+    	ByteBuffer hello = encodeHello();
+    	write(ScribbleProtocol.CHANNEL_CONTROL, hello.array(), 0, hello.position());
+    }
+
+    private ByteBuffer encodeHello() {
+    	float[] hello = new float[ScribbleProtocol.HELLO_FLOATS];
+    	int helloCount = session.writeHello(hello);
+    	return ScribbleProtocol.encode(null, ScribbleProtocol.HELLO, hello, helloCount);
+    }
+
     // *************************************************************************
     // CONNECTION STATE
 	//
     // *************************************************************************
-    
+
     /**
-     * update the connection state
+     * update the connection state, on the loop
      * @param state
      */
-    private synchronized void setState(int state) {
+    private void setState(int state) {
     	this.state = state;
-		
+
         // allow the UI to update to reflect state change
-        handler.obtainMessage(Scribble.MESSAGE_STATE_CHANGE, this.state, -1).sendToTarget();
+        handler.obtainMessage(Scribble.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
     }
-    
+
     /**
      * get the current state of the connection
      * @return
      */
-    public synchronized int getState() {
+    public int getState() {
         return state;
     }
 
+    /**
+     * run a transition on the loop, dropped once the manager is closed
+     */
+    private void post(Runnable transition) {
+    	try {
+    		loop.execute(transition);
+    	} catch (RejectedExecutionException e) {
+    		Log.w(LOG_TAG, "post(): manager closed");
+    	}
+    }
+
+    private synchronized void recordSetup(long millis) {
+    	lastSetupMillis = millis;
+    	worstSetupMillis = Math.max(worstSetupMillis, millis);
+    	totalSetupMillis += millis;
+    	setups++;
+    }
+
+    private synchronized void recordNegotiated(long millis) {
+    	lastNegotiateMillis = millis;
+    }
+
+    /**
+     * connect attempts and how long setting up a connection took, in milliseconds
+     */
+    public synchronized String getStats() {
+    	return "attempts=" + attemptsStarted + " failed=" + attemptsFailed + " timedOut=" + attemptsTimedOut
+    			+ " unableToConnect=" + connectsFailed + " connected=" + connected + " lost=" + lost
+    			+ " lastSetupMs=" + lastSetupMillis + " meanSetupMs=" + (setups > 0 ? totalSetupMillis / setups : -1)
+    			+ " worstSetupMs=" + worstSetupMillis + " lastNegotiateMs=" + lastNegotiateMillis;
+    }
+
     // *************************************************************************
-    // ACCEPT THREAD
+    // ACCEPTOR
 	//
     // *************************************************************************
-	
-	private class AcceptThread extends Thread {
+
+	private class Acceptor implements Runnable {
 		private final BluetoothServerSocket listenSocket;
-		
-		public AcceptThread() {
-			// since listenSocket is final, use a temp variable then assign
-			BluetoothServerSocket tempSocket = null;
-			try {
-				// use app UUID, will also be used by client
-				tempSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME, SCRIBBLE_UUID);
-			} catch (IOException e) {
-				Log.e(LOG_TAG, "acceptThread: constructor: listen() failed", e);
-			}
-			listenSocket = tempSocket;
+
+		public Acceptor(BluetoothServerSocket listenSocket) {
+			this.listenSocket = listenSocket;
 		}
-		
-		@Override
+
 		public void run() {
-			BluetoothSocket socket = null;
-			
-			// listen until exception or have a socket
-			while (state != STATE_CONNECTED) {
+
+			// hand every socket to the loop until the listening socket is closed
+			while (true) {
+				final BluetoothSocket socket;
 				try {
 					socket = listenSocket.accept();
 				} catch (IOException e) {
-					Log.e(LOG_TAG, "acceptThread: run(): accept() failed", e);
-					break;
+					Log.d(LOG_TAG, "acceptor: run(): accept() ended", e);
+					return;
 				}
-				
-				// if a connection is accepted
 				if (socket != null) {
-					synchronized(ScribbleConnectionManager.this) {
-						if (state == STATE_LISTEN || state == STATE_CONNECTING) {
-							// should be the condition when attempting to establish connection
-							communicate(socket);
-						} else {
-							// either skipped a state, or already connected, don't use this socket
-							try {
-								socket.close();
-							} catch (IOException e) {
-								Log.e(LOG_TAG, "acceptThread: run(): unwanted socket close() failed", e);
-							}
+					post(new Runnable() {
+						public void run() {
+							onAccepted(Acceptor.this, socket);
 						}
-					}
+					});
 				}
 			}
 		}
-		
+
 		public void cancel() {
 			try {
 				listenSocket.close();
 			} catch (IOException e) {
-				Log.e(LOG_TAG, "acceptThread: cancel(): listening socket close() failed", e);
+				Log.e(LOG_TAG, "acceptor: cancel(): listening socket close() failed", e);
 			}
 		}
 	}
 
     // *************************************************************************
-    // CONNECT THREAD
+    // ATTEMPT
 	//
     // *************************************************************************
-	
-	private class ConnectThread extends Thread {
+
+	/**
+	 * one candidate's blocking connect, on an I/O thread
+	 */
+	private class Attempt implements Runnable {
+		private final BluetoothDevice server;
 		private final BluetoothSocket socket;
-		
-		public ConnectThread(BluetoothDevice server) {
-			// use temp BluetoothSocket then assign to final socket
-			BluetoothSocket tempSocket = null;
-			
-			// get a socket to connect to server
-			try {
-				// use SCRIBBLE_UUID common to server
-				tempSocket = server.createRfcommSocketToServiceRecord(SCRIBBLE_UUID);
-			} catch (IOException e) {
-				Log.e(LOG_TAG, "connectThread: constructor: socket() failed", e);
+		private ScheduledFuture<?> timeout;
+
+		private final Runnable timeoutRunnable = new Runnable() {
+			public void run() {
+				onAttemptTimedOut(Attempt.this);
 			}
-			socket = tempSocket;
+		};
+
+		public Attempt(BluetoothDevice server, BluetoothSocket socket) {
+			this.server = server;
+			this.socket = socket;
 		}
-		
+
 		public void run() {
-			// remove discovery
-			bluetoothAdapter.cancelDiscovery();
-			
+			long connectStart = SystemClock.elapsedRealtime();
+			boolean connected;
 			try {
 				// blocking connect to the socket
 				socket.connect();
-				
-			} catch (IOException connectException) {
-				connectionFailed();
+				connected = true;
+			} catch (IOException e) {
+				connected = false;
+			}
 
-				// unable to connect, close the socket
-				try {
-					socket.close();
-				} catch (IOException closeException) {
-					Log.e(LOG_TAG, "connectThread: run(): close() failed", closeException);
+			final boolean success = connected;
+			final long millis = SystemClock.elapsedRealtime() - connectStart;
+			post(new Runnable() {
+				public void run() {
+					onAttemptDone(Attempt.this, success, millis);
 				}
-				
-				// restart connection process
-				listen();
-				return;
-			}
-			
-			// remove access to this connectThread
-			synchronized(ScribbleConnectionManager.this) {
-				connectThread = null;
-			}
-			
-			// execute connected app thread
-			communicate(socket);
+			});
 		}
-		
+
 		public void cancel() {
-			try {
-				socket.close();
-			} catch (IOException e) {
-				Log.e(LOG_TAG, "connectThread: cancel(): close() failed", e);
-			}
+			close(socket);
 		}
 	}
 
     // *************************************************************************
-    // CONNECTED THREAD
+    // CONNECTION
 	//
     // *************************************************************************
-	
-	private class ConnectedThread extends Thread {
+
+	private class Connection implements Runnable {
 		private final BluetoothSocket socket;
 		private final InputStream inStream;
 		private final OutputStream outStream;
-		
-		public ConnectedThread(BluetoothSocket socket) {
+		private final FrameDecoder decoder;
+		private final ChannelWriter writer;
+		private Future<?> reader;
+
+		public Connection(BluetoothSocket socket) {
 			this.socket = socket;
-			
+			this.decoder = new FrameDecoder(inboundQueue, session);
+
 			// attempt to obtain in/out streams to temp var first
 			InputStream tempIn = null;
 			OutputStream tempOut = null;
-			
+
 			// get the socket input and output streams
 			try {
 				tempIn = socket.getInputStream();
 				tempOut = socket.getOutputStream();
 			} catch (IOException e) {
-				Log.e("LOG_TAG", "connectedThread: constructor: retrieve in/outStream failed", e);
+				Log.e(LOG_TAG, "connection: constructor: retrieve in/outStream failed", e);
 			}
-			
+
 			// update final local vars
 			inStream = tempIn;
 			outStream = tempOut;
+
+			// frames are written from their own thread so bulk transfers can't hold up live ones
+			writer = new ChannelWriter(outStream, session);
 		}
-		
-		@Override
+
 		public void run() {
-			// buffer to read in from
+			// buffer to read in from, never leaves this thread, messages are copied into queue slots
 			byte[] buffer = new byte[BUFFER_SIZE];
-			
+
 			// number of bytes returned from read()
 			int bytes;
-			
+
+			io.execute(writer);
+			long connectedAt = SystemClock.elapsedRealtime();
+
+			// announce what this device supports, a peer without the handshake ignores it
+			ByteBuffer helloBuffer = encodeHello();
+			write(ScribbleProtocol.CHANNEL_CONTROL, helloBuffer.array(), 0, helloBuffer.position());
+
+			boolean negotiated = false;
+
 			while (true) {
 				try {
 					// read from the input stream
 					bytes = inStream.read(buffer);
-					
-					// send obtained bytes to the main thread
-                    handler.obtainMessage(Scribble.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
-                    
+					if (bytes < 0) {
+						throw new IOException("end of stream");
+					}
+
+					// decode here, the main thread is only told once per batch that messages are waiting
+					if (decoder.decode(buffer, 0, bytes)) {
+						handler.obtainMessage(Scribble.MESSAGE_READ).sendToTarget();
+					}
+
+					// answer latency probes straight away, from this thread
+					ByteBuffer replies = decoder.takeReplies();
+					if (replies != null) {
+						write(ScribbleProtocol.CHANNEL_CONTROL, replies.array(), 0, replies.position());
+					}
+
+					if (!negotiated && session.isNegotiated()) {
+						negotiated = true;
+						recordNegotiated(SystemClock.elapsedRealtime() - connectedAt);
+						Log.d(LOG_TAG, "connection: run(): negotiated " + session);
+						Log.d(LOG_TAG, "connection: run(): setup " + getStats());
+					}
+
+				} catch (InterruptedException e) {
+
+					// cancelled while waiting for the main thread to catch up
+					Log.d(LOG_TAG, "connection: run(): " + decoder.getStats());
+					Log.d(LOG_TAG, "connection: run(): written " + writer.getStats());
+					Log.d(LOG_TAG, "connection: run(): latency " + session.getLatency());
+					break;
+
 				} catch (IOException e) {
-					
-					// if failed, inform user and revert to listening
-					Log.e(LOG_TAG, "connectedThread: run(): connection lost", e);
-					connectionLost();
+
+					// if failed, let the loop inform the user and revert to listening
+					Log.e(LOG_TAG, "connection: run(): connection lost", e);
+					Log.d(LOG_TAG, "connection: run(): " + decoder.getStats());
+					Log.d(LOG_TAG, "connection: run(): written " + writer.getStats());
+					writer.close();
+					Log.d(LOG_TAG, "connection: run(): latency " + session.getLatency());
+					post(new Runnable() {
+						public void run() {
+							onConnectionLost(Connection.this);
+						}
+					});
 					break;
 				}
 			}
 		}
-		
-		// sends data to peer
-		public void write(byte[] bytes) {
-			try {
-				outStream.write(bytes);
-			} catch (IOException e) {
-				Log.e(LOG_TAG, "connectedThread: write() failed", e);
-			}
+
+		// queues data for the peer, the writer keeps the HELLO and main thread frames whole
+		public void write(int channel, byte[] bytes, int offset, int length) {
+			writer.write(channel, bytes, offset, length);
 		}
-		
-		// cancel the communicating thread by closing its socket
+
+		// cancel the connection by closing its socket
 		public void cancel() {
+			decoder.cancel();
+			writer.close();
+			close(socket);
+		}
+
+		// wait for run() to return, called on the loop after cancel()
+		public void await() {
 			try {
-				socket.close();
-			} catch (IOException e) {
-				Log.e(LOG_TAG, "connectedThread: cancel(): close() failed", e);
+				reader.get(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				Log.w(LOG_TAG, "connection: await(): reader still running after " + CLOSE_TIMEOUT_MILLIS + "ms");
+			} catch (ExecutionException e) {
+				Log.e(LOG_TAG, "connection: await(): reader failed", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
 
     // *************************************************************************
-    // CONNECTION FAILURE HANDLERS
+    // TOAST
 	//
     // *************************************************************************
 
-    private void connectionFailed() {
-    	// revert to listening state
-        setState(STATE_LISTEN);
-
-        // inform user
-        toast(UNABLE_TO_CONNECT);
-    }
-
-    private void connectionLost() {
-    	// revert to listening state
-        setState(STATE_LISTEN);
-
-        // inform user
-        toast(CONNECTION_WAS_LOST);
-    }
-    
     private void toast(int toast_id) {
         Message message = handler.obtainMessage(Scribble.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -0,0 +1,238 @@
+package hurdad.scribble;
+
+import java.nio.ByteBuffer;
+
+/**
+ * wire format shared by both peers: every message is an int header, an int
+ * float count, then that many floats, all big endian
+ *
+ * kept free of android classes so tools running on a plain JVM can speak it
+ */
+public final class ScribbleProtocol {
+
+	// path status, the low byte of the header
+	public static final int PATH_START = 0;
+	public static final int PATH_MOVE = 1;
+	public static final int PATH_END = 2;
+	public static final int PATH_CLEAR = 3;
+	public static final int FULL_CLEAR = 4;
+	public static final int BRUSH_CHANGE = 5;
+	public static final int STROKE_DELETE = 6;
+	public static final int TRANSFORM = 7;
+
+	// connection control, never reaches the canvas
+	public static final int HELLO = 8;
+
+	// PATH_MOVE with each point packed as two 16 bit deltas from the previous point
+	public static final int PATH_MOVE_DELTA = 9;
+
+	// a whole finished stroke in one message, brush included
+	// body: id, size, red, green, blue, then the points
+	public static final int STROKE_BULK = 10;
+
+	// STROKE_BULK with the points deflated as 16 bit deltas from the first point
+	// body: id, size, red, green, blue, x, y, point floats, deflated bytes, then the bytes in words
+	public static final int STROKE_BULK_DEFLATE = 11;
+
+	// latency probe and its answer, connection control like HELLO
+	// PING body: id, send time; PONG body: id, PING send time, PING receive time, PONG send time
+	// times are microsecond longs, each written as two ints, high first
+	public static final int PING = 12;
+	public static final int PONG = 13;
+	public static final int PING_WORDS = 3;
+	public static final int PONG_WORDS = 7;
+
+	// canvas reconciliation after a reconnect, see StrokeSync, node keys and ids have the
+	// low bit set for the sender's own strokes
+	// SYNC_HASHES body: level, parent node or -1 for the roots, then node, hash high, hash low per child
+	// SYNC_IDS body: leaf bucket, then the ids in it, deleted ones as -(id + 1)
+	// SYNC_REQUEST body: ids of the receiver's strokes to send whole
+	public static final int SYNC_HASHES = 14;
+	public static final int SYNC_IDS = 15;
+	public static final int SYNC_REQUEST = 16;
+
+	// a finished stroke snapped to a shape, sent instead of its points
+	// body: id, size, red, green, blue, kind, then the shape's two points
+	// lines and arrows run from the first point to the second, an arrow's head at the second,
+	// rectangles and ellipses fill the box with the two points at opposite corners
+	public static final int SHAPE = 17;
+	public static final int SHAPE_FLOATS = 10;
+	public static final int SHAPE_LINE = 1;
+	public static final int SHAPE_RECTANGLE = 2;
+	public static final int SHAPE_ELLIPSE = 3;
+	public static final int SHAPE_ARROW = 4;
+	public static final int SHAPE_LIMIT = 5;
+
+	// a bucket fill, repeated by the receiver from its seed against its own canvas
+	// body: x, y, red, green, blue, tolerance
+	public static final int FILL = 18;
+	public static final int FILL_FLOATS = 6;
+
+	// widths of the next points on the same stream, in its PATH_START and PATH_MOVEs or its
+	// STROKE_BULK, one per point in WIDTH_UNITs of the brush width
+	// body: the widths, sent as the number of them followed by a byte each
+	public static final int PATH_WIDTHS = 19;
+	public static final int WIDTH_UNIT = 64;
+	public static final int MAX_WIDTH = 255;
+
+	// path statuses below this are understood
+	public static final int STATUS_LIMIT = 20;
+
+	// peers sending no HELLO are treated as version 1, raw floats only
+	public static final int LEGACY_VERSION = 1;
+	public static final int PROTOCOL_VERSION = 7;
+	public static final int HELLO_MAGIC = 0x5C5C;
+
+	// first version that reconciles canvases on connecting
+	public static final int SYNC_VERSION = 3;
+
+	// first version taking strokes on BULK_STREAM, and a PATH_START carrying its brush
+	public static final int CHANNEL_VERSION = 4;
+
+	// first version taking SHAPE
+	public static final int SHAPE_VERSION = 5;
+
+	// first version taking FILL
+	public static final int FILL_VERSION = 6;
+
+	// first version taking PATH_WIDTHS
+	public static final int WIDTH_VERSION = 7;
+
+	// HELLO body: magic, version, codecs, compression, width, height, max frame floats, author
+	// the author tag was added in version 3, a HELLO without it is still accepted
+	public static final int HELLO_FLOATS = 8;
+	public static final int HELLO_MIN_FLOATS = 7;
+	public static final int HELLO_AUTHOR = 7;
+
+	// point encodings, advertised as a bit set in HELLO
+	public static final int CODEC_RAW = 1;
+	public static final int CODEC_DELTA = 2;
+	public static final int CODEC_CURVE = 4;
+	public static final int SUPPORTED_CODECS = CODEC_RAW | CODEC_DELTA;
+
+	// compression for bulk messages, advertised as a bit set in HELLO
+	public static final int COMPRESSION_DEFLATE = 1;
+	public static final int SUPPORTED_COMPRESSION = COMPRESSION_DEFLATE;
+
+	// floats before the points of STROKE_BULK, and before the bytes of STROKE_BULK_DEFLATE
+	public static final int BULK_HEADER_FLOATS = 5;
+	public static final int BULK_DEFLATE_HEADER_FLOATS = 9;
+
+	// largest stroke sent in bulk, in point floats, longer strokes are streamed
+	public static final int MAX_BULK_FLOATS = 4096;
+
+	// PATH_MOVE_DELTA resolution, deltas are in quarter pixels
+	public static final float DELTA_QUANTUM = 4f;
+
+	// simultaneous strokes per device
+	public static final int MAX_STREAMS = 10;
+
+	// strokes sent in the background go on a stream no finger uses, so they can be
+	// chunked between live frames
+	public static final int BULK_STREAM = MAX_STREAMS;
+	public static final int STREAM_LIMIT = BULK_STREAM + 1;
+
+	// outgoing frames are written by priority: the handshake, probes and sync hashes,
+	// then live ink and every edit to the canvas, then strokes on the bulk stream
+	public static final int CHANNEL_CONTROL = 0;
+	public static final int CHANNEL_LIVE = 1;
+	public static final int CHANNEL_BULK = 2;
+	public static final int CHANNEL_COUNT = 3;
+
+	// the stream a message belongs to is carried above the path status in the header
+	public static final int STREAM_SHIFT = 8;
+	public static final int STATUS_MASK = 0xff;
+
+	// header int plus float count int
+	public static final int HEADER_BYTES = 8;
+
+	// largest body accepted from a peer, in 4 byte words, advertised in HELLO
+	public static final int MAX_FRAME_FLOATS = 128;
+
+	// most widths in one PATH_WIDTHS frame, as many as a decoded message holds
+	public static final int MAX_WIDTHS_PER_FRAME = MAX_FRAME_FLOATS * 2;
+
+	// largest body sent before a HELLO arrives, keeps each message within a 128 byte
+	// read (8 byte header + 30 floats) on peers without the handshake
+	public static final int MAX_FLOATS_PER_MESSAGE = 30;
+
+	private ScribbleProtocol() {}
+
+	public static int header(int pathStatus, int stream) {
+		return (stream << STREAM_SHIFT) | pathStatus;
+	}
+
+	public static int status(int header) {
+		return header & STATUS_MASK;
+	}
+
+	public static int stream(int header) {
+		return header >>> STREAM_SHIFT;
+	}
+
+	/**
+	 * channel a message is written on, edits stay on the live channel so they can't
+	 * overtake the strokes they refer to
+	 */
+	public static int channel(int header) {
+		int status = status(header);
+		if (status == HELLO || status == PING || status == PONG || status == SYNC_HASHES || status == SYNC_IDS
+				|| status == SYNC_REQUEST) {
+			return CHANNEL_CONTROL;
+		}
+		return stream(header) == BULK_STREAM ? CHANNEL_BULK : CHANNEL_LIVE;
+	}
+
+	/**
+	 * largest body accepted for a status, in 4 byte words
+	 */
+	public static int maxFrameFloats(int pathStatus) {
+		if (pathStatus == STROKE_BULK || pathStatus == STROKE_BULK_DEFLATE) {
+			return BULK_DEFLATE_HEADER_FLOATS + MAX_BULK_FLOATS;
+		}
+		return MAX_FRAME_FLOATS;
+	}
+
+	/**
+	 * write a PING, the buffer needs HEADER_BYTES + PING_WORDS * 4 bytes left
+	 */
+	public static void putPing(ByteBuffer out, int id, long sent) {
+		out.putInt(header(PING, 0));
+		out.putInt(PING_WORDS);
+		out.putInt(id);
+		out.putLong(sent);
+	}
+
+	/**
+	 * write a PONG, the buffer needs HEADER_BYTES + PONG_WORDS * 4 bytes left
+	 */
+	public static void putPong(ByteBuffer out, int id, long pingSent, long pingReceived, long sent) {
+		out.putInt(header(PONG, 0));
+		out.putInt(PONG_WORDS);
+		out.putInt(id);
+		out.putLong(pingSent);
+		out.putLong(pingReceived);
+		out.putLong(sent);
+	}
+
+	/**
+	 * write one message into a buffer, growing it if needed
+	 * @param out		Buffer to write into, cleared first
+	 * @param header	Path status and stream
+	 * @param points	Message body
+	 * @param count		Number of floats of points to write
+	 * @return			The buffer written to, a new one if out was too small
+	 */
+	public static ByteBuffer encode(ByteBuffer out, int header, float[] points, int count) {
+		if (out == null || out.capacity() < HEADER_BYTES + count * 4) {
+			out = ByteBuffer.allocate(HEADER_BYTES + count * 4);
+		}
+		out.clear();
+		out.putInt(header);
+		out.putInt(count);
+		for (int i = 0; i < count; i++) {
+			out.putFloat(points[i]);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,312 @@
+package hurdad.scribble;
+
+/**
+ * what the two peers agreed on in their HELLO exchange, read by the encoder on
+ * the main thread and the decoder on the connection thread
+ *
+ * until the peer's HELLO arrives everything stays at the legacy format, so a
+ * peer without the handshake keeps working
+ */
+public class ScribbleSession {
+
+	// how local strokes are sent: chosen from the link, as they're drawn, or whole when finished
+	public static final int MODE_AUTO = 0;
+	public static final int MODE_STREAMING = 1;
+	public static final int MODE_BULK = 2;
+
+	// writes blocking this long on average mean the link is backed up, smoothed like TCP's rtt
+	private static final float DEGRADED_WRITE_MILLIS = 40f;
+	private static final float RECOVERED_WRITE_MILLIS = 10f;
+	private static final float SMOOTHING = 0.125f;
+
+	// rate the link drains at, measured only over windows where writes spent a quarter of the time blocked
+	private static final long WINDOW_NANOS = 1000000000L;
+	private static final float DEGRADED_BYTES_PER_SECOND = 4096f;
+	private static final float RECOVERED_BYTES_PER_SECOND = 16384f;
+
+	private volatile int localWidth;
+	private volatile int localHeight;
+	private volatile int peerWidth;
+	private volatile int peerHeight;
+
+	// random tag for this canvas and the peer's, strokes are keyed by author and id when syncing
+	private volatile int localAuthor;
+	private volatile int peerAuthor;
+
+	private volatile int peerVersion;
+	private volatile int codec;
+	private volatile boolean deflate;
+	private volatile float coordinateScale;
+	private volatile int maxFrameFloats;
+
+	private final LatencyMonitor latency = new LatencyMonitor();
+
+	private volatile int mode = MODE_AUTO;
+	private volatile boolean degraded;
+	private volatile float writeMillis;
+	private volatile float bytesPerSecond;
+	private long windowStart;
+	private long windowBytes;
+	private long windowBlockedNanos;
+
+	public ScribbleSession() {
+		reset();
+	}
+
+	/**
+	 * size of the local canvas, sent in HELLO so the peer can scale our coordinates to its own,
+	 * set again whenever the view is resized
+	 */
+	public void setLocalSize(int width, int height) {
+		localWidth = width;
+		localHeight = height;
+		updateScale();
+	}
+
+	/**
+	 * fall back to the legacy format, done for each new connection
+	 */
+	public void reset() {
+		peerVersion = ScribbleProtocol.LEGACY_VERSION;
+		peerAuthor = 0;
+		codec = ScribbleProtocol.CODEC_RAW;
+		deflate = false;
+		peerWidth = 0;
+		peerHeight = 0;
+		coordinateScale = 1f;
+		maxFrameFloats = ScribbleProtocol.MAX_FLOATS_PER_MESSAGE;
+		latency.reset();
+		resetLinkEstimate();
+	}
+
+	private synchronized void resetLinkEstimate() {
+		degraded = false;
+		writeMillis = 0f;
+		bytesPerSecond = 0f;
+		windowStart = 0;
+		windowBytes = 0;
+		windowBlockedNanos = 0;
+	}
+
+	/**
+	 * keep the peer's drawing the same relative size and position on our canvas, again
+	 * whenever either side is resized
+	 */
+	private synchronized void updateScale() {
+		if (peerWidth > 0 && peerHeight > 0 && localWidth > 0 && localHeight > 0) {
+			coordinateScale = Math.min((float) localWidth / peerWidth, (float) localHeight / peerHeight);
+		} else {
+			coordinateScale = 1f;
+		}
+	}
+
+	/**
+	 * tag this canvas's strokes are known by to peers, sent in HELLO
+	 */
+	public void setLocalAuthor(int author) {
+		localAuthor = author;
+	}
+
+	/**
+	 * fill in this device's HELLO body
+	 * @return			Number of floats written
+	 */
+	public int writeHello(float[] out) {
+		out[0] = ScribbleProtocol.HELLO_MAGIC;
+		out[1] = ScribbleProtocol.PROTOCOL_VERSION;
+		out[2] = ScribbleProtocol.SUPPORTED_CODECS;
+		out[3] = ScribbleProtocol.SUPPORTED_COMPRESSION;
+		out[4] = localWidth;
+		out[5] = localHeight;
+		out[6] = ScribbleProtocol.MAX_FRAME_FLOATS;
+		out[ScribbleProtocol.HELLO_AUTHOR] = localAuthor;
+		return ScribbleProtocol.HELLO_FLOATS;
+	}
+
+	/**
+	 * pick the cheapest format both sides support from the peer's HELLO
+	 * @return			False if the HELLO was malformed and ignored
+	 */
+	public boolean onPeerHello(float[] body, int count) {
+		if (count < ScribbleProtocol.HELLO_MIN_FLOATS || (int) body[0] != ScribbleProtocol.HELLO_MAGIC) {
+			return false;
+		}
+		int version = Math.min((int) body[1], ScribbleProtocol.PROTOCOL_VERSION);
+		int codecs = (int) body[2] & ScribbleProtocol.SUPPORTED_CODECS;
+		int compression = (int) body[3] & ScribbleProtocol.SUPPORTED_COMPRESSION;
+		peerWidth = (int) body[4];
+		peerHeight = (int) body[5];
+		int peerMaxFrameFloats = (int) body[6];
+
+		codec = (codecs & ScribbleProtocol.CODEC_DELTA) != 0 ? ScribbleProtocol.CODEC_DELTA : ScribbleProtocol.CODEC_RAW;
+		deflate = (compression & ScribbleProtocol.COMPRESSION_DEFLATE) != 0;
+
+		updateScale();
+
+		// an even count so a PATH_MOVE is never split between an x and its y
+		maxFrameFloats = Math.max(2, Math.min(peerMaxFrameFloats, ScribbleProtocol.MAX_FRAME_FLOATS) & ~1);
+		peerAuthor = count > ScribbleProtocol.HELLO_AUTHOR ? (int) body[ScribbleProtocol.HELLO_AUTHOR] : 0;
+		peerVersion = version;
+		return true;
+	}
+
+	/**
+	 * time a write to the peer took, updates whether the link is degraded
+	 * @param bytes		Number of bytes written
+	 * @param nanos		Time the write blocked
+	 */
+	public synchronized void recordWrite(int bytes, long nanos) {
+		writeMillis += SMOOTHING * (nanos / 1000000f - writeMillis);
+
+		long now = System.nanoTime();
+		if (windowStart == 0) {
+			windowStart = now;
+		}
+		windowBytes += bytes;
+		windowBlockedNanos += nanos;
+		if (now - windowStart >= WINDOW_NANOS) {
+			// a link that isn't kept busy says nothing about its rate
+			if (windowBlockedNanos * 4 >= now - windowStart) {
+				bytesPerSecond = windowBytes * 1000000000f / windowBlockedNanos;
+			} else {
+				bytesPerSecond = 0f;
+			}
+			windowStart = now;
+			windowBytes = 0;
+			windowBlockedNanos = 0;
+		}
+
+		// separate thresholds each way so the mode doesn't flap
+		boolean slowRate = bytesPerSecond > 0f && bytesPerSecond < DEGRADED_BYTES_PER_SECOND;
+		boolean fastRate = bytesPerSecond == 0f || bytesPerSecond > RECOVERED_BYTES_PER_SECOND;
+		if (!degraded && (writeMillis > DEGRADED_WRITE_MILLIS || slowRate)) {
+			degraded = true;
+		} else if (degraded && writeMillis < RECOVERED_WRITE_MILLIS && fastRate) {
+			degraded = false;
+		}
+	}
+
+	/**
+	 * choose how strokes are sent, kept across connections
+	 * @param mode		MODE_AUTO, MODE_STREAMING or MODE_BULK
+	 */
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * whether the next local stroke should be held back and sent whole, only once the peer
+	 * has said it understands bulk strokes
+	 */
+	public boolean isBulk() {
+		if (!isNegotiated()) {
+			return false;
+		}
+		return mode == MODE_BULK || (mode == MODE_AUTO && (degraded || latency.isSlow()));
+	}
+
+	/**
+	 * round trip and clock offset to the current peer
+	 */
+	public LatencyMonitor getLatency() {
+		return latency;
+	}
+
+	public boolean isLinkDegraded() {
+		return degraded;
+	}
+
+	/**
+	 * smoothed time a write blocks, in milliseconds
+	 */
+	public float getWriteMillis() {
+		return writeMillis;
+	}
+
+	/**
+	 * rate the link drained at in the last busy second, 0 if it wasn't busy
+	 */
+	public float getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public boolean isNegotiated() {
+		return peerVersion > ScribbleProtocol.LEGACY_VERSION;
+	}
+
+	/**
+	 * whether strokes can be sent in the background on BULK_STREAM
+	 */
+	public boolean hasBulkStream() {
+		return peerVersion >= ScribbleProtocol.CHANNEL_VERSION;
+	}
+
+	/**
+	 * whether snapped shapes can be sent as SHAPE, older peers and the relay get their outline
+	 */
+	public boolean hasShapes() {
+		return peerVersion >= ScribbleProtocol.SHAPE_VERSION;
+	}
+
+	/**
+	 * whether bucket fills can be sent, older peers and the relay never see them
+	 */
+	public boolean hasFills() {
+		return peerVersion >= ScribbleProtocol.FILL_VERSION;
+	}
+
+	/**
+	 * whether point widths can be sent, older peers and the relay draw at the brush width
+	 */
+	public boolean hasWidths() {
+		return peerVersion >= ScribbleProtocol.WIDTH_VERSION;
+	}
+
+	/**
+	 * whether both sides can reconcile their canvases, the relay and older peers can't
+	 */
+	public boolean canSync() {
+		return peerVersion >= ScribbleProtocol.SYNC_VERSION && peerAuthor != 0 && localAuthor != 0;
+	}
+
+	public int getPeerAuthor() {
+		return peerAuthor;
+	}
+
+	public int getPeerVersion() {
+		return peerVersion;
+	}
+
+	public int getCodec() {
+		return codec;
+	}
+
+	public boolean isDeflateEnabled() {
+		return deflate;
+	}
+
+	/**
+	 * factor applied to the peer's coordinates and sizes
+	 */
+	public float getCoordinateScale() {
+		return coordinateScale;
+	}
+
+	/**
+	 * largest message body to send, in 4 byte words
+	 */
+	public int getMaxFrameFloats() {
+		return maxFrameFloats;
+	}
+
+	@Override
+	public String toString() {
+		return "version=" + peerVersion + " codec=" + codec + " deflate=" + deflate
+				+ " scale=" + coordinateScale + " maxFrameFloats=" + maxFrameFloats
+				+ " mode=" + mode + " degraded=" + degraded + " peerAuthor=" + peerAuthor;
+	}
+}
@@ -1,163 +1,835 @@
 package hurdad.scribble;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Stack;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.DashPathEffect;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
 import android.os.Handler;
+import android.os.Message;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 
 public class ScribbleView extends View {
-	private static final int PATH_START = 0;
-	private static final int PATH_MOVE = 1;
-	private static final int PATH_END = 2;
-	private static final int PATH_CLEAR = 3;
-	private static final int FULL_CLEAR = 4;
-	private static final int BRUSH_CHANGE = 5;
+	private static final String LOG_TAG = "ScribbleView";
 
-	private Handler handler;
+	// touch tools
+	public static final int TOOL_DRAW = 0;
+	public static final int TOOL_ERASE = 1;
+	public static final int TOOL_SELECT = 2;
+	public static final int TOOL_FILL = 3;
 
-	private Paint localPaint;
-	private int localRed = 0;
-	private int localGreen = 0;
-	private int localBlue = 0;
+	private static final float ERASER_RADIUS = 16f;
 
-	private Paint remotePaint;
+	// largest difference on any channel from the tapped color that a fill spreads over
+	public static final int DEFAULT_FILL_TOLERANCE = 32;
 
-	private Stack<Path> localPaths;
-	private Stack<Paint> localPaints;
-	private boolean localPathStarted = false;
+	// canvas layers, drawn in this order, one per author
+	public static final int LAYER_REMOTE = 0;
+	public static final int LAYER_LOCAL = 1;
+	static final int LAYER_COUNT = 2;
 
-	private Stack<Path> remotePaths;
-	private Stack<Paint> remotePaints;
-	private boolean remotePathStarted = false;
-	
-	// represents the drawing order of paths, true is local, false is remote
-	private ArrayList<Boolean> pathOrder;
+	// strokes kept as vectors for undo, erase and select, older ones are flattened into their layer
+	public static final int DEFAULT_UNDO_HORIZON = 200;
 
-	private Path localPath;
-	private Path remotePath;
+	// flatten in batches so the stroke list isn't shifted on every commit
+	private static final int COMPACTION_BATCH = 16;
 
-	private float lastX;
-	private float lastY;
-	private float remoteLastX;
-	private float remoteLastY;
+	// simultaneous strokes tracked per device, one per finger
+	private static final int MAX_STREAMS = 10;
+
+	// TRANSFORM messages lead with the affine part of the matrix
+	private static final int MATRIX_FLOATS = 6;
 
-	private float leftBound;
-	private float rightBound;
-	private float topBound;
-	private float bottomBound;
+	// strokes resent to a peer by sync go on the bulk stream, or the last finger's for older peers
+	private static final int SYNC_STREAM = MAX_STREAMS - 1;
 
-	private float remoteLeftBound;
-	private float remoteRightBound;
-	private float remoteTopBound;
-	private float remoteBottomBound;
+	// messages decoded by the connection thread that haven't been applied yet
+	private static final int INBOUND_QUEUE_CAPACITY = 1024;
+
+	private Handler handler;
+	private ScribbleSession session;
+	private int tool = TOOL_DRAW;
+
+	// the drawing, kept when the view is recreated, and the parts of it used most here
+	private final CanvasModel model;
+	private final Paint localPaint;
+	private final Paint remotePaint;
+	private final ArrayList<Stroke> strokes;
+	private final SparseArray<Stroke> localStrokes;
+	private final SparseArray<Stroke> remoteStrokes;
+	private final StrokeIndex strokeIndex;
+	private final StrokeArena arena;
+	private final StrokeLayer[] layers;
+	private final StrokeHistory history;
+	private final StrokeSync sync;
+	private final int author;
+
+	// how the model reaches this view, installed only while it's attached
+	private final StrokeSync.Listener syncListener;
+	private final StrokeHistory.Listener historyListener;
+
+	// finished local strokes meant as lines, rectangles, ellipses or arrows are snapped to them
+	private boolean snapShapes;
+	private ShapeRecognizer recognizer;
+	private float[] shapePoints;
+
+	// local strokes thinner under a light touch or a fast finger
+	private boolean variableWidth;
+
+	// bucket fills from both authors, worked through in order off the UI thread
+	private FillQueue fillQueue;
+	private int fillTolerance = DEFAULT_FILL_TOLERANCE;
+
+	// step of the history shown in place of the canvas, or -1
+	private int historyPosition = -1;
+
+	// strokes flattened by a compaction and how many of each layer's, reused every time
+	private ArrayList<Stroke> compactedStrokes;
+	private final int[] layerCounts = new int[LAYER_COUNT];
+
+	// in-progress strokes, indexed by the stream number sent on the wire, the peer's
+	// include its bulk stream
+	private StrokeStream[] localStreams;
+	private StrokeStream[] remoteStreams;
+
+	// in-progress strokes on show, rasterized a frame's worth of points at a time
+	private LiveLayer liveLayer;
+	private ArrayList<StrokeStream> liveStreams;
+
+	// outgoing message body, written synchronously so it can be reused for every message
+	private float[] sendBuffer;
+	private float[] bulkBuffer;
+	private RectF dirty;
+
+	// peer messages are applied once per frame, with one repaint for all of them
+	private StrokeOpQueue inboundQueue;
+	private boolean drainScheduled;
+	private Runnable drainRunnable;
+	private Object frameScheduler;
+	private RectF remoteDirty;
+	private boolean remoteDirtyAll;
+
+	// local and peer repaints of the same frame, merged into one invalidate
+	private RectF frameDirty;
+	private boolean frameDirtyAll;
+
+	// canvas clip in onDraw, strokes drawn directly outside it are skipped
+	private Rect clipBounds;
+	private RectF clipArea;
+
+	// eraser and lasso state
+	private ArrayList<Stroke> hitStrokes;
+	private ArrayList<Stroke> selectedStrokes;
+	private RectF selectionBounds;
+	private Path lassoPath;
+	private float[] lassoPoints;
+	private int lassoSize;
+	private Paint selectionPaint;
+
+	// move/scale of the selection, applied live and sent to the peer once on release
+	private boolean transforming;
+	private Matrix gestureMatrix;
+	private Matrix stepMatrix;
+	private float[] matrixValues;
+	private float[] mappedPoint;
+	private float gestureX;
+	private float gestureY;
+	private float gestureSpan;
+
+	// last eraser position
+	private float lastX;
+	private float lastY;
 
 	public ScribbleView(Context context, AttributeSet attrs) {
 		super(context, attrs);
-		
-		pathOrder = new ArrayList<Boolean>();
 
-		localPaths = new Stack<Path>();
-		remotePaths = new Stack<Path>();
+		// picks up the drawing where a view before this one left it
+		model = CanvasModel.get(context);
+		localPaint = model.localPaint;
+		remotePaint = model.remotePaint;
+		strokes = model.strokes;
+		localStrokes = model.localStrokes;
+		remoteStrokes = model.remoteStrokes;
+		strokeIndex = model.strokeIndex;
+		arena = model.arena;
+		layers = model.layers;
+		history = model.history;
+		sync = model.sync;
+		author = model.author;
+
+		recognizer = new ShapeRecognizer();
+		shapePoints = new float[4];
+		syncListener = new StrokeSync.Listener() {
+			public void sendSyncMessage(int status, float[] body, int count) {
+				send(status, 0, body, count);
+			}
 
-		localPaints = new Stack<Paint>();
-		remotePaints = new Stack<Paint>();
+			public boolean sendOwnStroke(int id) {
+				return resendStroke(id);
+			}
 
-		localPaint = new Paint();
-		localPaint.setColor(Color.BLACK);
-		localPaint.setStyle(Paint.Style.STROKE);
-		localPaint.setStrokeWidth(8.0f);
-		localPaint.setAntiAlias(true);
-		localPaint.setStrokeJoin(Paint.Join.ROUND);
+			public void removeStroke(boolean local, int id) {
+				Stroke stroke = local ? localStrokes.get(id) : remoteStrokes.get(id);
+				if (stroke != null) {
+					hitStrokes.add(stroke);
+					removeStrokes(hitStrokes);
+					hitStrokes.clear();
+					remoteDirtyAll = true;
+				}
+			}
+		};
+		compactedStrokes = new ArrayList<Stroke>();
+		fillQueue = new FillQueue(this, new FillQueue.Listener() {
+			public void drawLayers(Canvas canvas) {
+				for (int i = 0; i < LAYER_COUNT; i++) {
+					layers[i].drawContents(canvas);
+				}
+			}
 
-		remotePaint = new Paint(localPaint);
+			public void onFillDone(boolean local, Bitmap fill, Rect area) {
+				layers[local ? LAYER_LOCAL : LAYER_REMOTE].fill(fill, area);
+				history.markChanged();
+			}
+		});
+		historyListener = new StrokeHistory.Listener() {
+			public void drawCanvas(Canvas canvas) {
+				for (int i = 0; i < LAYER_COUNT; i++) {
+					layers[i].drawContents(canvas);
+				}
+
+				// strokes being dragged are where they are on screen
+				if (transforming) {
+					for (int i = 0; i < selectedStrokes.size(); i++) {
+						StrokeLayer.drawStroke(canvas, selectedStrokes.get(i));
+					}
+				}
+			}
+		};
+
+		localStreams = new StrokeStream[MAX_STREAMS];
+		remoteStreams = new StrokeStream[ScribbleProtocol.STREAM_LIMIT];
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			localStreams[i] = new StrokeStream(i);
+		}
+		for (int i = 0; i < remoteStreams.length; i++) {
+			remoteStreams[i] = new StrokeStream(i);
+		}
+		liveLayer = new LiveLayer();
+		liveStreams = new ArrayList<StrokeStream>();
+		sendBuffer = new float[ScribbleProtocol.MAX_FLOATS_PER_MESSAGE];
+		bulkBuffer = new float[256];
+		dirty = new RectF();
+
+		inboundQueue = new StrokeOpQueue(INBOUND_QUEUE_CAPACITY);
+		remoteDirty = new RectF();
+		frameDirty = new RectF();
+		clipBounds = new Rect();
+		clipArea = new RectF();
+		drainRunnable = new Runnable() {
+			public void run() {
+				drainRemote();
+			}
+		};
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			frameScheduler = new FrameScheduler(drainRunnable);
+		}
+
+		hitStrokes = new ArrayList<Stroke>();
+		selectedStrokes = new ArrayList<Stroke>();
+		selectionBounds = new RectF();
+		lassoPath = new Path();
+		lassoPoints = new float[256];
+
+		gestureMatrix = new Matrix();
+		stepMatrix = new Matrix();
+		matrixValues = new float[9];
+		mappedPoint = new float[2];
+
+		selectionPaint = new Paint();
+		selectionPaint.setColor(Color.GRAY);
+		selectionPaint.setStyle(Paint.Style.STROKE);
+		selectionPaint.setStrokeWidth(2.0f);
+		selectionPaint.setPathEffect(new DashPathEffect(new float[] { 10f, 10f }, 0));
 	}
 
 	public void setHandler(Handler handler) {
 		this.handler = handler;
 	}
 
+	/**
+	 * the session decides whether each new stroke is streamed or sent whole
+	 */
+	public void setSession(ScribbleSession session) {
+		this.session = session;
+		session.setLocalAuthor(author);
+		if (getWidth() > 0 && getHeight() > 0) {
+			session.setLocalSize(getWidth(), getHeight());
+		}
+	}
+
+	public void setTool(int tool) {
+		endLocalStreams();
+		if (tool != TOOL_SELECT) {
+			clearSelection();
+		}
+		this.tool = tool;
+	}
+
+	public int getTool() {
+		return tool;
+	}
+
+	/**
+	 * snap finished strokes to the line, rectangle, ellipse or arrow they look like
+	 */
+	public void setSnapShapes(boolean snapShapes) {
+		this.snapShapes = snapShapes;
+	}
+
+	public boolean isSnapShapes() {
+		return snapShapes;
+	}
+
+	public String getShapeStats() {
+		return recognizer.getStats();
+	}
+
+	/**
+	 * vary the width of new strokes with pressure and speed, peers that can't show it see
+	 * them at the brush width
+	 */
+	public void setVariableWidth(boolean variableWidth) {
+		this.variableWidth = variableWidth;
+	}
+
+	public boolean isVariableWidth() {
+		return variableWidth;
+	}
+
+	/**
+	 * how far a fill spreads from the tapped color, also used for the peer's fills
+	 * @param tolerance		Largest difference on any channel, 0 to 255
+	 */
+	public void setFillTolerance(int tolerance) {
+		this.fillTolerance = Math.max(0, Math.min(255, tolerance));
+	}
+
+	public int getFillTolerance() {
+		return fillTolerance;
+	}
+
+	public String getFillStats() {
+		return fillQueue.getStats();
+	}
+
+	// *************************************************************************
+	// HISTORY
+	//
+	// *************************************************************************
+
+	/**
+	 * number of steps in the drawing's history, a change still settling counts as one
+	 */
+	public int getHistorySteps() {
+		history.settle();
+		return history.getStepCount();
+	}
+
+	/**
+	 * show the canvas as it was after a number of steps instead of as it is, touches are
+	 * ignored until hideHistory(), the peer's strokes still arrive meanwhile
+	 * @param position	Steps to show, 0 for the start of the history
+	 */
+	public void showHistory(int position) {
+		if (historyPosition < 0) {
+			endLocalStreams();
+		}
+		historyPosition = position;
+		invalidate();
+	}
+
+	public void hideHistory() {
+		historyPosition = -1;
+		invalidate();
+	}
+
+	public boolean isShowingHistory() {
+		return historyPosition >= 0;
+	}
+
+	/**
+	 * write the history as numbered PNGs in the background
+	 * @param directory		Where the frames go
+	 */
+	public void exportTimelapse(File directory, StrokeHistory.ExportListener listener) {
+		history.exportTimelapse(directory, listener);
+	}
+
+	public boolean isExportingTimelapse() {
+		return history.isExporting();
+	}
+
+	/**
+	 * bytes of strokes the history keeps, bounded however long the drawing
+	 */
+	public int getHistoryBytes() {
+		return history.getBytes();
+	}
+
+	public String getHistoryStats() {
+		return history.getStats();
+	}
+
+	// *************************************************************************
+	// TOUCH HANDLING
+	//
+	// *************************************************************************
+
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
-		float x = event.getX();
-		float y = event.getY();
+		if (historyPosition >= 0) {
+			return false;
+		} else if (tool == TOOL_ERASE) {
+			return onEraseTouchEvent(event);
+		} else if (tool == TOOL_SELECT) {
+			return onSelectTouchEvent(event);
+		} else if (tool == TOOL_FILL) {
+			return onFillTouchEvent(event);
+		}
 
-		switch (event.getAction()) {
+		int action = event.getActionMasked();
+		switch (action) {
 		case MotionEvent.ACTION_DOWN:
+		case MotionEvent.ACTION_POINTER_DOWN:
 
-			if (localPath == null) {
-				localPaint = new Paint(localPaint);
-				localPath = new Path();
-			}
-			localPathStarted = true;
+			// every finger draws its own stroke
+			int index = event.getActionIndex();
+			startLocalStream(event.getPointerId(index), event.getX(index), event.getY(index), event.getPressure(index),
+					event.getEventTime());
+			return true;
 
-			localPath.moveTo(x, y);
-			lastX = x;
-			lastY = y;
-			Float[] point = new Float[2];
-			point[0] = x;
-			point[1] = y;
-			handler.obtainMessage(Scribble.MESSAGE_WRITE, PATH_START, -1, point).sendToTarget();
+		case MotionEvent.ACTION_CANCEL:
 
+			// the gesture was taken away, nothing drawn in it is kept
+			cancelLocalStreams();
 			return true;
 
 		case MotionEvent.ACTION_MOVE:
+		case MotionEvent.ACTION_POINTER_UP:
 		case MotionEvent.ACTION_UP:
 
-			resetInvalidateRect(x, y);
-			ArrayList<Float> pointsBuf = new ArrayList<Float>();
+			dirty.setEmpty();
+			for (int i = 0; i < MAX_STREAMS; i++) {
+				StrokeStream stream = localStreams[i];
+				if (stream.pointerId == -1) {
+					continue;
+				}
+				int pointerIndex = event.findPointerIndex(stream.pointerId);
+				if (pointerIndex >= 0) {
+					moveLocalStream(stream, event, pointerIndex);
+				}
+			}
+
+			// one repaint covering every finger that moved, and the peer's ink this frame
+			if (!dirty.isEmpty()) {
+				invalidateFrame(dirty);
+			}
+
+			if (action == MotionEvent.ACTION_POINTER_UP) {
+				int pointerId = event.getPointerId(event.getActionIndex());
+				for (int i = 0; i < MAX_STREAMS; i++) {
+					if (localStreams[i].pointerId == pointerId) {
+						endLocalStream(localStreams[i]);
+					}
+				}
+			} else if (action == MotionEvent.ACTION_UP) {
+				endLocalStreams();
+			}
+
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	private void startLocalStream(int pointerId, float x, float y, float pressure, long time) {
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			StrokeStream stream = localStreams[i];
+			if (stream.pointerId == -1 && !stream.isActive()) {
+				stream.pointerId = pointerId;
+				Stroke stroke = new Stroke(model.nextLocalId++, true, arena, arena.brushFor(localPaint));
+				int width = 0;
+				if (variableWidth) {
+					width = stream.startWidth(pressure, time);
+					stream.start(stroke, x, y, width);
+				} else {
+					stream.start(stroke, x, y);
+				}
+
+				// on a slow link the stroke is only sent when it's finished
+				stream.bulk = session != null && session.isBulk();
+				if (stream.bulk) {
+					return;
+				}
+
+				// a point's width goes ahead of it
+				if (variableWidth && session != null && session.hasWidths()) {
+					sendBuffer[0] = width;
+					send(ScribbleProtocol.PATH_WIDTHS, stream.stream, 1);
+				}
+				sendBuffer[0] = x;
+				sendBuffer[1] = y;
+				sendBuffer[2] = (float) stream.stroke.id;
+				send(ScribbleProtocol.PATH_START, stream.stream, 3);
+				return;
+			}
+		}
+		// more fingers than streams, the extra ones don't draw
+	}
+
+	private void moveLocalStream(StrokeStream stream, MotionEvent event, int pointerIndex) {
+		float x = event.getX(pointerIndex);
+		float y = event.getY(pointerIndex);
+		stream.resetBounds(x, y);
+
+		boolean widths = stream.stroke.hasWidths();
+		int historySize = event.getHistorySize();
+		for (int i = 0; i < historySize; i++) {
+			float historicalX = event.getHistoricalX(pointerIndex, i);
+			float historicalY = event.getHistoricalY(pointerIndex, i);
+			if (widths) {
+				int width = stream.nextWidth(historicalX, historicalY, event.getHistoricalPressure(pointerIndex, i),
+						event.getHistoricalEventTime(i));
+				stream.lineTo(historicalX, historicalY, width);
+				stream.queueWidth(width);
+			} else {
+				stream.lineTo(historicalX, historicalY);
+			}
+			stream.queue(historicalX, historicalY);
+		}
+
+		// After replaying history, connect the line to the touch point.
+		if (widths) {
+			int width = stream.nextWidth(x, y, event.getPressure(pointerIndex), event.getEventTime());
+			stream.lineTo(x, y, width);
+			stream.queueWidth(width);
+		} else {
+			stream.lineTo(x, y);
+		}
+		stream.queue(x, y);
+
+		// send what was queued, the encoder splits it to the peer's frame size
+		if (!stream.bulk) {
+			if (widths && session != null && session.hasWidths()) {
+				send(ScribbleProtocol.PATH_WIDTHS, stream.stream, stream.widths, stream.widthCount);
+			}
+			send(ScribbleProtocol.PATH_MOVE, stream.stream, stream.pending, stream.pendingSize);
+		}
+		stream.pendingSize = 0;
+		stream.clearWidths();
+
+		unionDirty(dirty, stream);
+	}
+
+	private void endLocalStream(StrokeStream stream) {
+		Stroke stroke = stream.stroke;
+		int shape = snapShapes ? recognizer.recognize(stroke.points, stroke.size, shapePoints) : 0;
+
+		// the peer has the points and can't take a shape in their place, it's told to
+		// delete the stroke and given the shape as a new one
+		if (shape != 0 && !stream.bulk && (session == null || !session.hasShapes())) {
+			send(ScribbleProtocol.PATH_END, stream.stream, 0);
+			commitStroke(stream.finish());
+			hitStrokes.add(stroke);
+			deleteStrokes(hitStrokes);
+			hitStrokes.clear();
+
+			Stroke snapped = new Stroke(model.nextLocalId++, true, arena, stroke.brush);
+			snapped.setShape(shape, shapePoints);
+			sendBulk(stream.stream, snapped);
+			commitStroke(snapped);
+			invalidateFrame(snapped.getPaintBounds());
+			return;
+		}
 
+		// otherwise the shape goes in place of the end, or of the stroke held back
+		if (shape != 0) {
+			dirty.set(stroke.getPaintBounds());
+			stroke.setShape(shape, shapePoints);
+			dirty.union(stroke.getPaintBounds());
+			invalidateFrame(dirty);
+		}
+		if (stream.bulk || shape != 0) {
+			sendBulk(stream.stream, stroke);
+		} else {
+			send(ScribbleProtocol.PATH_END, stream.stream, 0);
+		}
+		commitStroke(stream.finish());
+	}
+
+	/**
+	 * send a shape's two points with the brush it was drawn with
+	 */
+	private void sendShape(int stream, Stroke stroke) {
+		int color = stroke.paint.getColor();
+		sendBuffer[0] = stroke.id;
+		sendBuffer[1] = stroke.getBrushWidth();
+		sendBuffer[2] = Color.red(color);
+		sendBuffer[3] = Color.green(color);
+		sendBuffer[4] = Color.blue(color);
+		sendBuffer[5] = stroke.shape;
+		stroke.getShapePoints(shapePoints);
+		System.arraycopy(shapePoints, 0, sendBuffer, 6, 4);
+		send(ScribbleProtocol.SHAPE, stream, ScribbleProtocol.SHAPE_FLOATS);
+	}
+
+	/**
+	 * send a finished stroke in one message with the brush it was drawn with, a shape
+	 * goes as its outline to peers that don't take SHAPE
+	 */
+	private void sendBulk(int stream, Stroke stroke) {
+		if (stroke.isEmpty()) {
+			return;
+		}
+		if (stroke.shape != 0 && session != null && session.hasShapes()) {
+			sendShape(stream, stroke);
+			return;
+		}
+		int count = ScribbleProtocol.BULK_HEADER_FLOATS + stroke.getPointCount() * 2;
+		if (bulkBuffer.length < count) {
+			bulkBuffer = new float[Math.max(count, bulkBuffer.length * 2)];
+		}
+
+		// every point's width goes ahead of the stroke
+		if (stroke.hasWidths() && stroke.shape == 0 && session != null && session.hasWidths()) {
+			for (int i = 0; i < stroke.getPointCount(); i++) {
+				bulkBuffer[i] = stroke.widths[i] & 0xff;
+			}
+			send(ScribbleProtocol.PATH_WIDTHS, stream, bulkBuffer, stroke.getPointCount());
+		}
+		int color = stroke.paint.getColor();
+		bulkBuffer[0] = stroke.id;
+		bulkBuffer[1] = stroke.getBrushWidth();
+		bulkBuffer[2] = Color.red(color);
+		bulkBuffer[3] = Color.green(color);
+		bulkBuffer[4] = Color.blue(color);
+
+		// sent as drawn, a stroke resent by sync may have been moved since
+		for (int i = 0; i < stroke.getPointCount(); i++) {
+			stroke.getPoint(i, mappedPoint);
+			bulkBuffer[ScribbleProtocol.BULK_HEADER_FLOATS + i * 2] = mappedPoint[0];
+			bulkBuffer[ScribbleProtocol.BULK_HEADER_FLOATS + i * 2 + 1] = mappedPoint[1];
+		}
+		send(ScribbleProtocol.STROKE_BULK, stream, bulkBuffer, count);
+	}
+
+	/**
+	 * send one of our strokes whole to a peer that reconnected without it
+	 * @return			False if it has been flattened into its layer
+	 */
+	private boolean resendStroke(int id) {
+		Stroke stroke = localStrokes.get(id);
+		if (stroke == null) {
+			return false;
+		}
+
+		// in the background, chunked between live strokes
+		if (session != null && session.hasBulkStream()) {
+			sendBulk(ScribbleProtocol.BULK_STREAM, stroke);
+			return true;
+		}
+		sendBulk(SYNC_STREAM, stroke);
+
+		// too long to go whole, it was streamed with the current brush
+		if (stroke.getPointCount() * 2 > ScribbleProtocol.MAX_BULK_FLOATS) {
+			sendPaint();
+		}
+		return true;
+	}
+
+	/**
+	 * end every finger's stroke, used when the brush or tool changes mid-stroke
+	 */
+	private void endLocalStreams() {
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			if (localStreams[i].isActive()) {
+				endLocalStream(localStreams[i]);
+			}
+		}
+	}
+
+	/**
+	 * drop every finger's stroke. one the peer was streamed is ended and deleted, as a stroke
+	 * snapped to a shape is for an older peer, so both sides remember it as deleted
+	 */
+	private void cancelLocalStreams() {
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			StrokeStream stream = localStreams[i];
+			if (!stream.isActive()) {
+				continue;
+			}
+
+			// held back for bulk sending, the peer never saw it
+			if (stream.bulk) {
+				stream.finish();
+				continue;
+			}
+			send(ScribbleProtocol.PATH_END, stream.stream, 0);
+			hitStrokes.add(stream.stroke);
+			commitStroke(stream.finish());
+		}
+		if (!hitStrokes.isEmpty()) {
+			deleteStrokes(hitStrokes);
+			hitStrokes.clear();
+		}
+		invalidate();
+	}
+
+	private void unionDirty(RectF target, StrokeStream stream) {
+		float halfStrokeWidth = stream.stroke.getHalfWidth() + 1;
+		target.union(stream.leftBound - halfStrokeWidth, stream.topBound - halfStrokeWidth,
+				stream.rightBound + halfStrokeWidth, stream.bottomBound + halfStrokeWidth);
+	}
+
+	private boolean onEraseTouchEvent(MotionEvent event) {
+		float x = event.getX();
+		float y = event.getY();
+
+		switch (event.getAction()) {
+		case MotionEvent.ACTION_DOWN:
+			strokeIndex.hitTest(x, y, x, y, ERASER_RADIUS, hitStrokes);
+			break;
+
+		case MotionEvent.ACTION_MOVE:
+		case MotionEvent.ACTION_UP:
+
+			// sweep the eraser along every sample so fast moves don't skip strokes
 			int historySize = event.getHistorySize();
 			for (int i = 0; i < historySize; i++) {
 				float historicalX = event.getHistoricalX(i);
 				float historicalY = event.getHistoricalY(i);
+				strokeIndex.hitTest(lastX, lastY, historicalX, historicalY, ERASER_RADIUS, hitStrokes);
+				lastX = historicalX;
+				lastY = historicalY;
+			}
+			strokeIndex.hitTest(lastX, lastY, x, y, ERASER_RADIUS, hitStrokes);
+			break;
+
+		default:
+			return false;
+		}
 
-				pointsBuf.add(historicalX);
-				pointsBuf.add(historicalY);
+		lastX = x;
+		lastY = y;
 
-				adjustInvalidateRect(historicalX, historicalY);
-				localPath.lineTo(historicalX, historicalY);
+		dropHiddenStrokes(hitStrokes);
+		if (hitStrokes.size() > 0) {
+			deleteStrokes(hitStrokes);
+			hitStrokes.clear();
+		}
+		return true;
+	}
+
+	/**
+	 * fill from where the finger lifts, the peer repeats it from the same seed
+	 */
+	private boolean onFillTouchEvent(MotionEvent event) {
+		switch (event.getActionMasked()) {
+		case MotionEvent.ACTION_DOWN:
+			return true;
+
+		case MotionEvent.ACTION_UP:
+			float x = event.getX();
+			float y = event.getY();
+			int color = localPaint.getColor();
+			fillQueue.add(true, x, y, color, fillTolerance);
+			if (session != null && session.hasFills()) {
+				sendBuffer[0] = x;
+				sendBuffer[1] = y;
+				sendBuffer[2] = Color.red(color);
+				sendBuffer[3] = Color.green(color);
+				sendBuffer[4] = Color.blue(color);
+				sendBuffer[5] = fillTolerance;
+				send(ScribbleProtocol.FILL, 0, ScribbleProtocol.FILL_FLOATS);
 			}
-			pointsBuf.add(x);
-			pointsBuf.add(y);
+			return true;
 
-			Float[] points = pointsBuf.toArray(new Float[pointsBuf.size()]);
-			handler.obtainMessage(Scribble.MESSAGE_WRITE, PATH_MOVE, -1, points).sendToTarget();
+		default:
+			return false;
+		}
+	}
 
-			// After replaying history, connect the line to the touch point.
-			localPath.lineTo(x, y);
+	private boolean onSelectTouchEvent(MotionEvent event) {
+		float x = event.getX();
+		float y = event.getY();
 
-			float halfStrokeWidth = localPaint.getStrokeWidth() / 2;
+		switch (event.getActionMasked()) {
+		case MotionEvent.ACTION_DOWN:
 
-			// schedules a repaint
-			invalidate((int) (leftBound - halfStrokeWidth),
-					(int) (topBound - halfStrokeWidth),
-					(int) (rightBound + halfStrokeWidth),
-					(int) (bottomBound + halfStrokeWidth));
+			// dragging inside the selection moves it, anywhere else starts a new lasso
+			if (selectedStrokes.size() > 0 && selectionBounds.contains(x, y)) {
+				beginTransform(x, y);
+				return true;
+			}
 
-			lastX = x;
-			lastY = y;
+			// a new lasso replaces the current selection
+			clearSelection();
+			lassoPath.reset();
+			lassoPath.moveTo(x, y);
+			lassoSize = 0;
+			appendLassoPoint(x, y);
+			return true;
 
-			if (event.getAction() == MotionEvent.ACTION_UP) {
-				localPaths.push(localPath);
-				localPaints.push(localPaint);
-				pathOrder.add(true);
-					
-				localPath = new Path();
-				localPaint = new Paint(localPaint);
-				localPathStarted = false;
-				
-				handler.obtainMessage(Scribble.MESSAGE_WRITE, PATH_END, -1, new Float[0]).sendToTarget();
+		case MotionEvent.ACTION_POINTER_DOWN:
+		case MotionEvent.ACTION_POINTER_UP:
+
+			// the gesture focus jumps when a finger is added or lifted, restart from here
+			if (transforming) {
+				updateGestureFocus(event, event.getActionMasked() == MotionEvent.ACTION_POINTER_UP ? event.getActionIndex() : -1);
 			}
+			return true;
 
+		case MotionEvent.ACTION_MOVE:
+		case MotionEvent.ACTION_UP:
+
+			if (transforming) {
+				if (event.getActionMasked() == MotionEvent.ACTION_MOVE) {
+					continueTransform(event);
+				} else {
+					endTransform();
+				}
+				return true;
+			}
+
+			int historySize = event.getHistorySize();
+			for (int i = 0; i < historySize; i++) {
+				appendLassoPoint(event.getHistoricalX(i), event.getHistoricalY(i));
+				lassoPath.lineTo(event.getHistoricalX(i), event.getHistoricalY(i));
+			}
+			appendLassoPoint(x, y);
+			lassoPath.lineTo(x, y);
+
+			if (event.getAction() == MotionEvent.ACTION_UP) {
+				selectLasso();
+				lassoPath.reset();
+				lassoSize = 0;
+			}
+			invalidate();
 			return true;
 
 		default:
@@ -165,253 +837,1114 @@ public class ScribbleView extends View {
 		}
 	}
 
-	public void drawRemote(int pathStatus, float[] points) {
-		if (pathStatus == PATH_CLEAR) {
+	// *************************************************************************
+	// REMOTE OPERATIONS
+	//
+	// *************************************************************************
+
+	public StrokeOpQueue getInboundQueue() {
+		return inboundQueue;
+	}
+
+	/**
+	 * apply the queued peer messages with the next frame, called when the connection
+	 * thread has published to an empty queue
+	 */
+	public void scheduleRemoteDrain() {
+		if (drainScheduled) {
+			return;
+		}
+		drainScheduled = true;
+		if (frameScheduler != null) {
+			((FrameScheduler) frameScheduler).post();
+		} else {
+			post(drainRunnable);
+		}
+	}
+
+	private void drainRemote() {
+		drainScheduled = false;
+		inboundQueue.beginDrain();
+
+		remoteDirty.setEmpty();
+		remoteDirtyAll = false;
+
+		StrokeOp op = inboundQueue.peek();
+		while (op != null) {
+			drawRemote(op.header, op.points, op.count);
+			inboundQueue.release();
+			op = inboundQueue.peek();
+		}
+
+		// one repaint for everything the peer drew since the last frame, and local touches
+		// waiting on it
+		frameDirty.union(remoteDirty);
+		frameDirtyAll |= remoteDirtyAll;
+		flushFrame();
+	}
+
+	/**
+	 * repaint an area, merged with the peer's if a drain is due this frame
+	 * @param area		Area to repaint, left unchanged
+	 */
+	private void invalidateFrame(RectF area) {
+		frameDirty.union(area);
+		if (!drainScheduled) {
+			flushFrame();
+		}
+	}
+
+	private void flushFrame() {
+		if (frameDirtyAll) {
+			invalidate();
+		} else if (!frameDirty.isEmpty()) {
+			invalidate((int) frameDirty.left, (int) frameDirty.top,
+					(int) Math.ceil(frameDirty.right), (int) Math.ceil(frameDirty.bottom));
+		}
+		frameDirty.setEmpty();
+		frameDirtyAll = false;
+	}
+
+	/**
+	 * apply a message from the peer, the area to repaint is added to remoteDirty
+	 * @param header	Path status in the low byte, stream number above it
+	 * @param points	The message body, only valid for this call
+	 * @param count		Number of floats in points
+	 */
+	private void drawRemote(int header, float[] points, int count) {
+		int pathStatus = ScribbleProtocol.status(header);
+		int streamNumber = ScribbleProtocol.stream(header);
+		if (streamNumber >= remoteStreams.length) {
+			return;
+		}
+		StrokeStream stream = remoteStreams[streamNumber];
+
+		if (pathStatus == ScribbleProtocol.HELLO) {
+			onPeerHello();
+		} else if (pathStatus == ScribbleProtocol.SYNC_HASHES || pathStatus == ScribbleProtocol.SYNC_IDS
+				|| pathStatus == ScribbleProtocol.SYNC_REQUEST) {
+			sync.onMessage(pathStatus, points, count);
+		} else if (pathStatus == ScribbleProtocol.PATH_CLEAR) {
 			remoteClear();
-		} else if (pathStatus == PATH_START) {
-
-			if (remotePath == null) {
-				remotePaint = new Paint(remotePaint);
-				remotePath = new Path();
-			}
-			remotePathStarted = true;
-
-			float x = points[0];
-			float y = points[1];
-			remotePath.moveTo(x, y);
-			remoteLastX = x;
-			remoteLastY = y;
-		} else if (pathStatus == PATH_MOVE) {
-			if (remotePath != null) {
-				if (remotePath.isEmpty()) {
-					remotePath.moveTo(points[0], points[1]);
-				}
-				float x = points[points.length - 2];
-				float y = points[points.length - 1];
-				resetRemoteInvalidateRect(x, y);
-				for (int i = 0; i < points.length; i++) {
+		} else if (pathStatus == ScribbleProtocol.PATH_START && count >= 2) {
 
-					x = points[i];
-					y = points[i + 1];
+			// a start without an end from the peer, keep what was drawn so far
+			if (stream.isActive()) {
+				commitStroke(stream.finish());
+			}
 
-					adjustRemoteInvalidateRect(x, y);
-					remotePath.lineTo(x, y);
+			// older peers don't send a stroke id, number their strokes in arrival order. the
+			// count of strokes kept shrinks as they're erased, so it could repeat a live id
+			int id = count > 2 ? (int) points[2] : model.nextLegacyRemoteId++;
+
+			// a stroke sent in bulk carries its own brush
+			int brush = arena.brushFor(remotePaint);
+			if (count >= FrameDecoder.BRUSH_START_FLOATS) {
+				Paint paint = new Paint(remotePaint);
+				paint.setARGB(255, (int) points[4], (int) points[5], (int) points[6]);
+				paint.setStrokeWidth(points[3]);
+				brush = arena.brushFor(paint);
+			}
 
-					// increment by two
-					i++;
+			// the peer sends a variable width stroke's first width ahead of it
+			Stroke stroke = new Stroke(id, false, arena, brush);
+			int width = stream.takeWidth();
+			if (width >= 0) {
+				stream.start(stroke, points[0], points[1], width);
+			} else {
+				stream.start(stroke, points[0], points[1]);
+			}
+		} else if (pathStatus == ScribbleProtocol.PATH_WIDTHS) {
+			stream.addWidths(points, count);
+		} else if (pathStatus == ScribbleProtocol.PATH_MOVE) {
+			if (stream.isActive() && count >= 2) {
+				stream.resetBounds(points[0], points[1]);
+				boolean widths = stream.stroke.hasWidths();
+				for (int i = 0; i + 1 < count; i += 2) {
+					if (widths) {
+						int width = stream.takeWidth();
+						stream.lineTo(points[i], points[i + 1], width >= 0 ? width : stream.stroke.getLastWidth());
+					} else {
+						stream.lineTo(points[i], points[i + 1]);
+					}
 				}
-
-				float halfStrokeWidth = remotePaint.getStrokeWidth() / 2;
-
-				// schedules a repaint
-				invalidate((int) (remoteLeftBound - halfStrokeWidth),
-						(int) (remoteTopBound - halfStrokeWidth),
-						(int) (remoteRightBound + halfStrokeWidth),
-						(int) (remoteBottomBound + halfStrokeWidth));
-
-				remoteLastX = x;
-				remoteLastY = y;
-			}
-		} else if (pathStatus == PATH_END) {
-			if (remotePath != null) {
-				if (remotePathStarted) {
-					// end the remote path
-					remotePaths.push(remotePath);
-					remotePaints.push(remotePaint);
-					pathOrder.add(false);
-			
-					remotePath = new Path();
-					remotePaint = new Paint(remotePaint);
-					remotePathStarted = false;
+				unionDirty(remoteDirty, stream);
+			}
+		} else if (pathStatus == ScribbleProtocol.PATH_END) {
+			stream.clearWidths();
+			if (stream.isActive()) {
+				// end the remote path
+				commitStroke(stream.finish());
+			}
+		} else if (pathStatus == ScribbleProtocol.SHAPE && count >= ScribbleProtocol.SHAPE_FLOATS) {
+			int kind = (int) points[5];
+			if (kind <= 0 || kind >= ScribbleProtocol.SHAPE_LIMIT) {
+				return;
+			}
+			int id = (int) points[0];
+
+			// a shape in place of the points streamed for it, or after a stroke left without an end
+			if (stream.isActive()) {
+				Stroke drawn = stream.finish();
+				if (drawn.id == id) {
+					remoteDirty.union(drawn.getPaintBounds());
+				} else {
+					commitStroke(drawn);
 				}
 			}
-		} else if (pathStatus == BRUSH_CHANGE) {
+
+			Paint paint = new Paint(remotePaint);
+			paint.setARGB(255, (int) points[2], (int) points[3], (int) points[4]);
+			paint.setStrokeWidth(points[1]);
+			Stroke stroke = new Stroke(id, false, arena, arena.brushFor(paint));
+			System.arraycopy(points, 6, shapePoints, 0, 4);
+			stroke.setShape(kind, shapePoints);
+			commitStroke(stroke);
+			remoteDirty.union(stroke.getPaintBounds());
+		} else if (pathStatus == ScribbleProtocol.FILL && count >= ScribbleProtocol.FILL_FLOATS) {
+			int color = Color.rgb((int) points[2], (int) points[3], (int) points[4]);
+			fillQueue.add(false, points[0], points[1], color, (int) points[5]);
+		} else if (pathStatus == ScribbleProtocol.BRUSH_CHANGE && count >= 4) {
 			setRemotePaint(points[0], (int) points[1], (int) points[2],
 					(int) points[3]);
+		} else if (pathStatus == ScribbleProtocol.TRANSFORM && count >= MATRIX_FLOATS) {
+			System.arraycopy(points, 0, matrixValues, 0, MATRIX_FLOATS);
+			matrixValues[6] = 0;
+			matrixValues[7] = 0;
+			matrixValues[8] = 1;
+			stepMatrix.setValues(matrixValues);
+			for (int i = MATRIX_FLOATS; i < count; i++) {
+				Stroke stroke = fromWireId((int) points[i]);
+				if (stroke != null) {
+					hitStrokes.add(stroke);
+				}
+			}
+			transformStrokes(hitStrokes, stepMatrix);
+			hitStrokes.clear();
+		} else if (pathStatus == ScribbleProtocol.STROKE_DELETE) {
+			for (int i = 0; i < count; i++) {
+				Stroke stroke = fromWireId((int) points[i]);
+				if (stroke != null) {
+					hitStrokes.add(stroke);
+				}
+			}
+			forgetStrokes(hitStrokes);
+			hitStrokes.clear();
+			remoteDirtyAll = true;
 		}
 	}
 
-	public void remoteClear() {
+	/**
+	 * the peer negotiated: a different canvas than last time gets its own ids, and
+	 * the same one reconciles what each side drew or deleted while apart
+	 */
+	private void onPeerHello() {
+		int tag = session.getPeerAuthor();
+		if (tag != model.peerAuthor) {
+
+			// the old peer's strokes stay drawn but can't be addressed by id anymore
+			remoteStrokes.clear();
+			model.peerAuthor = tag;
+		}
+		if (session.canSync()) {
+			sync.start(model.peerAuthor);
+		}
+	}
 
-		if (remotePathStarted) {
-			remotePath.reset();
-			remotePathStarted = false;
-		} else {
+	private void remoteClear() {
 
-			if (remotePaths.size() > 0) {
+		// undo resets the strokes in progress, or the last finished stroke if there are none
+		if (!resetStreams(remoteStreams)) {
+			Stroke last = lastStroke(false);
+			if (last != null) {
+				hitStrokes.add(last);
+				forgetStrokes(hitStrokes);
+				hitStrokes.clear();
+			}
+		}
 
-				// now can undo the path before the one just removed
-				remotePaths.pop();
-				for (int i = pathOrder.size() -1; i >= 0; i--) {
-					if (!pathOrder.get(i)) {
-						pathOrder.remove(i);
-						break;
-					}
+		// repaint the view
+		remoteDirtyAll = true;
+	}
+
+	public void clear() {
+
+		// strokes still held back for bulk sending were never seen by the peer
+		boolean peerAffected = true;
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			if (localStreams[i].isActive() && localStreams[i].started) {
+				peerAffected = !localStreams[i].bulk;
+				if (peerAffected) {
+					break;
 				}
 			}
-			if (remotePaints.size() > 0) {
+		}
 
-				// discard associated paint with that path
-				remotePaints.pop();
+		// undo resets the strokes in progress, or the last finished stroke if there are none
+		if (!resetStreams(localStreams)) {
+			Stroke last = lastStroke(true);
+			if (last != null) {
+				hitStrokes.add(last);
+				forgetStrokes(hitStrokes);
+				hitStrokes.clear();
 			}
 		}
 
+		if (peerAffected) {
+			send(ScribbleProtocol.PATH_CLEAR, 0, 0);
+		}
+
 		// repaint the view
 		invalidate();
 	}
 
-	public void clear() {
+	/**
+	 * a peer has connected, strokes in progress were started without it so they end where
+	 * they are and reach it through sync, like the rest of what was drawn while apart.
+	 * nothing is deleted or cleared
+	 */
+	public void onConnected() {
+		endLocalStreams();
+		for (int i = 0; i < remoteStreams.length; i++) {
+			if (remoteStreams[i].isActive()) {
+				commitStroke(remoteStreams[i].finish());
+			}
+		}
+		invalidate();
+	}
+
+	/**
+	 * discard the points of every started stroke, drawing continues into the same stroke
+	 * @return			Whether any stroke was reset
+	 */
+	private boolean resetStreams(StrokeStream[] streams) {
+		boolean reset = false;
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			if (streams[i].isActive() && streams[i].started) {
+				streams[i].stroke.reset();
+				streams[i].started = false;
+				streams[i].drawnPoints = -1;
+				reset = true;
+			}
+		}
+		return reset;
+	}
 
-		if (localPathStarted) {
-			localPath.reset();
-			localPathStarted = false;
+	// *************************************************************************
+	// STROKE BOOKKEEPING
+	//
+	// *************************************************************************
+
+	private void commitStroke(Stroke stroke) {
+		stroke.pack();
+		stroke.author = stroke.local ? author : model.peerAuthor;
+		sync.add(stroke.author, stroke.id);
+
+		// a stroke resent by sync can cross the original in flight, keep one copy
+		if (!stroke.local && model.peerAuthor != 0 && remoteStrokes.get(stroke.id) != null) {
+			hitStrokes.add(remoteStrokes.get(stroke.id));
+			removeStrokes(hitStrokes);
+			hitStrokes.clear();
+			remoteDirtyAll = true;
+		}
+		stroke.sequence = model.nextSequence++;
+		strokes.add(stroke);
+		if (stroke.local) {
+			localStrokes.put(stroke.id, stroke);
 		} else {
+			remoteStrokes.put(stroke.id, stroke);
+		}
+		strokeIndex.add(stroke);
+		layerOf(stroke).add(stroke);
 
-			if (localPaths.size() > 0) {
+		// once it's in its layer, a keyframe captured for it has it drawn
+		history.addStroke(stroke);
 
-				// now can undo the path before the one just removed
-				localPaths.pop();
-				for (int i = pathOrder.size() -1; i >= 0; i--) {
-					if (pathOrder.get(i)) {
-						pathOrder.remove(i);
-						break;
-					}
-				}
+		if (strokes.size() >= model.undoHorizon + COMPACTION_BATCH) {
+			compact();
+		}
+	}
+
+	private StrokeLayer layerOf(Stroke stroke) {
+		return layers[stroke.local ? LAYER_LOCAL : LAYER_REMOTE];
+	}
+
+	/**
+	 * flatten the strokes beyond the undo horizon into their layers and release their vectors,
+	 * they can no longer be undone, erased or selected
+	 */
+	private void compact() {
+		// wait for a size to rasterize into, and don't flatten strokes being dragged
+		if (!layers[0].hasSize() || transforming) {
+			return;
+		}
+		int count = strokes.size() - model.undoHorizon;
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			layerCounts[i] = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			Stroke stroke = strokes.get(i);
+			layerCounts[stroke.local ? LAYER_LOCAL : LAYER_REMOTE]++;
+			model.reclaimedVectorBytes += stroke.getVectorBytes();
+			compactedStrokes.add(stroke);
+		}
+
+		// the oldest strokes overall are the oldest of each layer
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			layers[i].flatten(layerCounts[i]);
+		}
+		removeStrokes(compactedStrokes);
+		compactedStrokes.clear();
+
+		Log.d(LOG_TAG, "compact(): flattened " + count + " strokes, " + model.reclaimedVectorBytes + " vector bytes reclaimed");
+	}
+
+	/**
+	 * set how many of the most recent strokes stay as vectors
+	 * @param undoHorizon	Number of strokes that can still be undone, erased or selected
+	 */
+	public void setUndoHorizon(int undoHorizon) {
+		model.undoHorizon = Math.max(1, undoHorizon);
+		if (strokes.size() > model.undoHorizon) {
+			compact();
+			invalidate();
+		}
+	}
+
+	public int getUndoHorizon() {
+		return model.undoHorizon;
+	}
+
+	/**
+	 * estimated bytes of point data released by flattening strokes
+	 */
+	public long getReclaimedVectorBytes() {
+		return model.reclaimedVectorBytes;
+	}
+
+	public String getArenaStats() {
+		return arena.getStats();
+	}
+
+	/**
+	 * hand a message to the activity for sending, dispatched synchronously so the
+	 * body in sendBuffer can be reused as soon as this returns
+	 * @param count		Number of floats of sendBuffer to send
+	 */
+	private void send(int pathStatus, int stream, int count) {
+		send(pathStatus, stream, sendBuffer, count);
+	}
+
+	private void send(int pathStatus, int stream, float[] points, int count) {
+		Message message = handler.obtainMessage(Scribble.MESSAGE_WRITE,
+				ScribbleProtocol.header(pathStatus, stream), count, points);
+		handler.dispatchMessage(message);
+		message.recycle();
+	}
+
+	/**
+	 * the newest stroke by id rather than by arrival, strokes resent in the background
+	 * reach the peer after newer ones and both sides have to undo the same stroke
+	 */
+	private Stroke lastStroke(boolean local) {
+		int tag = local ? author : model.peerAuthor;
+
+		// ids from a peer without a tag are only its arrival order, and can repeat
+		boolean byId = local || model.peerAuthor != 0;
+		Stroke last = null;
+		for (int i = strokes.size() - 1; i >= 0; i--) {
+			Stroke stroke = strokes.get(i);
+			if (stroke.local != local || stroke.author != tag) {
+				continue;
+			}
+			if (!byId) {
+				return stroke;
+			}
+			if (last == null || stroke.id > last.id) {
+				last = stroke;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * remove strokes locally and tell the peer which ones are gone
+	 * @param deleted	Strokes to delete, left unchanged
+	 */
+	private void deleteStrokes(ArrayList<Stroke> deleted) {
+		int count = 0;
+		for (int i = 0; i < deleted.size(); i++) {
+			if (isAddressable(deleted.get(i))) {
+				sendBuffer[count++] = (float) toWireId(deleted.get(i));
 			}
-			if (localPaints.size() > 0) {
 
-				// discard associated paint with that path
-				localPaints.pop();
+			if (count == ScribbleProtocol.MAX_FLOATS_PER_MESSAGE || (i == deleted.size() - 1 && count > 0)) {
+				send(ScribbleProtocol.STROKE_DELETE, 0, count);
+				count = 0;
 			}
 		}
 
-		handler.obtainMessage(Scribble.MESSAGE_WRITE, PATH_CLEAR, -1,
-				new Float[0]).sendToTarget();
+		// only where the strokes were changes, their layers redraw just that
+		dirty.setEmpty();
+		for (int i = 0; i < deleted.size(); i++) {
+			dirty.union(deleted.get(i).getPaintBounds());
+		}
+		forgetStrokes(deleted);
+		invalidateFrame(dirty);
+	}
 
-		// repaint the view
+	/**
+	 * remove strokes that were erased or undone, remembering them so a reconnecting
+	 * peer learns of the deletion rather than sending them back
+	 * @param removed	Strokes to remove, left unchanged
+	 */
+	private void forgetStrokes(ArrayList<Stroke> removed) {
+		for (int i = 0; i < removed.size(); i++) {
+			Stroke stroke = removed.get(i);
+			sync.delete(stroke.author, stroke.id);
+		}
+		removeStrokes(removed);
+	}
+
+	/**
+	 * whether the current peer knows a stroke by its id, strokes from an earlier peer can't be named
+	 */
+	private boolean isAddressable(Stroke stroke) {
+		return stroke.local || stroke.author == model.peerAuthor;
+	}
+
+	/**
+	 * drop strokes from the drawing order, the id lookups, the index and the selection
+	 * @param removed	Strokes to remove, left unchanged
+	 */
+	private void removeStrokes(ArrayList<Stroke> removed) {
+		boolean selectionChanged = false;
+		for (int i = 0; i < removed.size(); i++) {
+			Stroke stroke = removed.get(i);
+			stroke.removed = true;
+			strokeIndex.remove(stroke);
+			stroke.release();
+			if (stroke.local) {
+				localStrokes.remove(stroke.id);
+			} else {
+				remoteStrokes.remove(stroke.id);
+			}
+			selectionChanged |= selectedStrokes.remove(stroke);
+		}
+
+		// compact in one pass rather than searching the list per stroke
+		int kept = 0;
+		for (int i = 0; i < strokes.size(); i++) {
+			Stroke stroke = strokes.get(i);
+			if (!stroke.removed) {
+				strokes.set(kept++, stroke);
+			}
+		}
+		for (int i = strokes.size() - 1; i >= kept; i--) {
+			strokes.remove(i);
+		}
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			layers[i].removeMarked();
+		}
+		if (removed.size() > 0) {
+			history.markChanged();
+		}
+
+		if (selectionChanged) {
+			updateSelectionBounds();
+		}
+	}
+
+	/**
+	 * ids are sent relative to the sender, the low bit is set for the sender's own strokes
+	 */
+	private static int toWireId(Stroke stroke) {
+		return (stroke.id << 1) | (stroke.local ? 1 : 0);
+	}
+
+	private Stroke fromWireId(int wireId) {
+		int id = wireId >> 1;
+		boolean sendersStroke = (wireId & 1) == 1;
+		return sendersStroke ? remoteStrokes.get(id) : localStrokes.get(id);
+	}
+
+	// *************************************************************************
+	// SELECTION
+	//
+	// *************************************************************************
+
+	private void appendLassoPoint(float x, float y) {
+		if (lassoSize + 2 > lassoPoints.length) {
+			float[] grown = new float[lassoPoints.length * 2];
+			System.arraycopy(lassoPoints, 0, grown, 0, lassoSize);
+			lassoPoints = grown;
+		}
+		lassoPoints[lassoSize++] = x;
+		lassoPoints[lassoSize++] = y;
+	}
+
+	private void beginTransform(float x, float y) {
+		transforming = true;
+		gestureMatrix.reset();
+		gestureX = x;
+		gestureY = y;
+		gestureSpan = 0;
+
+		// strokes are re-indexed once the gesture ends rather than on every move, and drawn
+		// live until then so their layers aren't redrawn on every move either
+		for (int i = 0; i < selectedStrokes.size(); i++) {
+			Stroke stroke = selectedStrokes.get(i);
+			strokeIndex.remove(stroke);
+			stroke.lifted = true;
+			stroke.keepPath(true);
+			layerOf(stroke).invalidateCache(stroke.getPaintBounds());
+		}
+	}
+
+	/**
+	 * track the centroid and spread of the pointers still down
+	 * @param skipIndex	Pointer being lifted, or -1
+	 */
+	private void updateGestureFocus(MotionEvent event, int skipIndex) {
+		float sumX = 0;
+		float sumY = 0;
+		int count = 0;
+		for (int i = 0; i < event.getPointerCount(); i++) {
+			if (i != skipIndex) {
+				sumX += event.getX(i);
+				sumY += event.getY(i);
+				count++;
+			}
+		}
+		gestureX = sumX / count;
+		gestureY = sumY / count;
+
+		float span = 0;
+		for (int i = 0; i < event.getPointerCount(); i++) {
+			if (i != skipIndex) {
+				span += Math.abs(event.getX(i) - gestureX) + Math.abs(event.getY(i) - gestureY);
+			}
+		}
+		gestureSpan = count > 1 ? span / count : 0;
+	}
+
+	private void continueTransform(MotionEvent event) {
+		float previousX = gestureX;
+		float previousY = gestureY;
+		float previousSpan = gestureSpan;
+		updateGestureFocus(event, -1);
+
+		// one finger moves the selection, two or more also scale it about their centre
+		stepMatrix.reset();
+		if (previousSpan > 0 && gestureSpan > 0) {
+			float scale = gestureSpan / previousSpan;
+			stepMatrix.postScale(scale, scale, previousX, previousY);
+		}
+		stepMatrix.postTranslate(gestureX - previousX, gestureY - previousY);
+
+		gestureMatrix.postConcat(stepMatrix);
+		for (int i = 0; i < selectedStrokes.size(); i++) {
+			selectedStrokes.get(i).concat(stepMatrix);
+		}
+		updateSelectionBounds();
+	}
+
+	private void endTransform() {
+		transforming = false;
+		for (int i = 0; i < selectedStrokes.size(); i++) {
+			Stroke stroke = selectedStrokes.get(i);
+			strokeIndex.add(stroke);
+			stroke.lifted = false;
+			stroke.keepPath(false);
+			layerOf(stroke).invalidateCache(stroke.getPaintBounds());
+		}
 		invalidate();
+
+		// a tap on the selection moved nothing, there's no step to record or send
+		if (gestureMatrix.isIdentity()) {
+			return;
+		}
+		history.markChanged();
+		sendTransform(selectedStrokes, gestureMatrix);
 	}
 
-	public void resetRemoteInvalidateRect(float x, float y) {
-		remoteLeftBound = Math.min(remoteLastX, x);
-		remoteRightBound = Math.max(remoteLastX, x);
-		remoteTopBound = Math.min(remoteLastY, y);
-		remoteBottomBound = Math.max(remoteLastY, y);
+	/**
+	 * tell the peer to apply a transform to strokes, the points themselves are never resent
+	 */
+	private void sendTransform(ArrayList<Stroke> transformed, Matrix matrix) {
+		matrix.getValues(matrixValues);
+		int count = MATRIX_FLOATS;
+		for (int i = 0; i < transformed.size(); i++) {
+			if (isAddressable(transformed.get(i))) {
+				sendBuffer[count++] = (float) toWireId(transformed.get(i));
+			}
+
+			if (count == ScribbleProtocol.MAX_FLOATS_PER_MESSAGE
+					|| (i == transformed.size() - 1 && count > MATRIX_FLOATS)) {
+				System.arraycopy(matrixValues, 0, sendBuffer, 0, MATRIX_FLOATS);
+				send(ScribbleProtocol.TRANSFORM, 0, count);
+				count = MATRIX_FLOATS;
+			}
+		}
+	}
+
+	private void transformStrokes(ArrayList<Stroke> transformed, Matrix matrix) {
+		boolean selectionChanged = false;
+		for (int i = 0; i < transformed.size(); i++) {
+			Stroke stroke = transformed.get(i);
+			boolean selected = selectedStrokes.contains(stroke);
+
+			// strokes being dragged locally are out of the index until the gesture ends
+			if (transforming && selected) {
+				stroke.concat(matrix);
+			} else {
+				strokeIndex.remove(stroke);
+				layerOf(stroke).invalidateCache(stroke.getPaintBounds());
+				stroke.concat(matrix);
+				strokeIndex.add(stroke);
+				layerOf(stroke).invalidateCache(stroke.getPaintBounds());
+			}
+			selectionChanged |= selected;
+		}
+		if (selectionChanged) {
+			updateSelectionBounds();
+		}
+		history.markChanged();
+		remoteDirtyAll = true;
+	}
+
+	/**
+	 * select every stroke lying entirely inside the lasso
+	 */
+	private void selectLasso() {
+		if (lassoSize < 6) {
+			return;
+		}
+		RectF lassoBounds = new RectF(lassoPoints[0], lassoPoints[1], lassoPoints[0], lassoPoints[1]);
+		for (int i = 2; i < lassoSize; i += 2) {
+			lassoBounds.union(lassoPoints[i], lassoPoints[i + 1]);
+		}
+
+		strokeIndex.query(lassoBounds, hitStrokes);
+		dropHiddenStrokes(hitStrokes);
+		for (int i = 0; i < hitStrokes.size(); i++) {
+			Stroke stroke = hitStrokes.get(i);
+			if (!lassoBounds.contains(stroke.getDrawBounds())) {
+				continue;
+			}
+			boolean inside = true;
+			for (int p = 0; p < stroke.getPointCount() && inside; p++) {
+				stroke.getPoint(p, mappedPoint);
+				inside = insideLasso(mappedPoint[0], mappedPoint[1]);
+			}
+			if (inside) {
+				selectedStrokes.add(stroke);
+			}
+		}
+		hitStrokes.clear();
+		updateSelectionBounds();
+	}
+
+	/**
+	 * even-odd point in polygon test against the closed lasso
+	 */
+	private boolean insideLasso(float x, float y) {
+		boolean inside = false;
+		for (int i = 0, j = lassoSize - 2; i < lassoSize; j = i, i += 2) {
+			float xi = lassoPoints[i];
+			float yi = lassoPoints[i + 1];
+			float xj = lassoPoints[j];
+			float yj = lassoPoints[j + 1];
+			if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * leave out strokes on hidden layers, they can't be erased or selected
+	 */
+	private void dropHiddenStrokes(ArrayList<Stroke> hits) {
+		for (int i = hits.size() - 1; i >= 0; i--) {
+			if (!layerOf(hits.get(i)).isVisible()) {
+				hits.remove(i);
+			}
+		}
+	}
+
+	private void updateSelectionBounds() {
+		selectionBounds.setEmpty();
+		for (int i = 0; i < selectedStrokes.size(); i++) {
+			Stroke stroke = selectedStrokes.get(i);
+			RectF bounds = stroke.getDrawBounds();
+			float halfWidth = stroke.getHalfWidth();
+			selectionBounds.union(bounds.left - halfWidth, bounds.top - halfWidth,
+					bounds.right + halfWidth, bounds.bottom + halfWidth);
+		}
+		invalidate();
 	}
 
-	public void resetInvalidateRect(float x, float y) {
-		leftBound = Math.min(lastX, x);
-		rightBound = Math.max(lastX, x);
-		topBound = Math.min(lastY, y);
-		bottomBound = Math.max(lastY, y);
+	private void clearSelection() {
+		if (transforming) {
+			endTransform();
+		}
+		if (selectedStrokes.size() > 0) {
+			selectedStrokes.clear();
+			selectionBounds.setEmpty();
+			invalidate();
+		}
+	}
+
+	/**
+	 * delete the lasso-selected strokes on both devices
+	 */
+	public void deleteSelection() {
+		if (selectedStrokes.size() > 0) {
+			hitStrokes.addAll(selectedStrokes);
+			deleteStrokes(hitStrokes);
+			hitStrokes.clear();
+
+			// the selection outline goes too
+			invalidate();
+		}
 	}
 
-	public void adjustRemoteInvalidateRect(float x, float y) {
-		remoteLeftBound = Math.min(remoteLeftBound, x);
-		remoteRightBound = Math.max(remoteRightBound, x);
-		remoteTopBound = Math.min(remoteTopBound, y);
-		remoteBottomBound = Math.max(remoteBottomBound, y);
+	public boolean hasSelection() {
+		return selectedStrokes.size() > 0;
 	}
 
-	public void adjustInvalidateRect(float x, float y) {
-		leftBound = Math.min(leftBound, x);
-		rightBound = Math.max(rightBound, x);
-		topBound = Math.min(topBound, y);
-		bottomBound = Math.max(bottomBound, y);
+	/**
+	 * take the model over, sync and history reach the canvas through this view from now on
+	 */
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		sync.setListener(syncListener);
+		history.setListener(historyListener);
+	}
+
+	/**
+	 * end what belongs to this view, the model carries on without it
+	 */
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+
+		// strokes in progress are kept as far as they got, and dragged ones put down
+		endLocalStreams();
+		for (int i = 0; i < remoteStreams.length; i++) {
+			if (remoteStreams[i].isActive()) {
+				commitStroke(remoteStreams[i].finish());
+			}
+		}
+		clearSelection();
+		fillQueue.clear();
+
+		// the model outlives this view, it mustn't keep it and its activity
+		sync.setListener(null);
+		history.setListener(null);
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if (w <= 0 || h <= 0) {
+			return;
+		}
+
+		// the peer scales our strokes to its canvas by our size, it's told again once resized
+		if (session != null) {
+			session.setLocalSize(w, h);
+		}
+		if (handler != null) {
+			handler.obtainMessage(Scribble.MESSAGE_SIZE_CHANGED).sendToTarget();
+		}
+
+		// layers keep whatever was already flattened when the view is resized
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			layers[i].setSize(w, h);
+		}
+		liveLayer.setSize(w, h);
+		fillQueue.setSize(w, h);
+		history.setSize(w, h);
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			localStreams[i].drawnPoints = 0;
+			remoteStreams[i].drawnPoints = 0;
+		}
+
+		if (strokes.size() > model.undoHorizon) {
+			compact();
+		}
 	}
 
 	@Override
 	protected void onDraw(Canvas canvas) {
+
+		// scrubbing through the history, the canvas as it was then in place of everything
+		Bitmap past = historyPosition >= 0 ? history.render(historyPosition) : null;
+		if (past != null) {
+			canvas.drawBitmap(past, 0, 0, null);
+			return;
+		}
+
 		canvas.drawColor(Color.WHITE);
 
-		int localIndex = 0;
-		int remoteIndex = 0;
-		for (int i = 0; i < pathOrder.size(); i++) {
-			if (pathOrder.get(i)) {
-				canvas.drawPath(localPaths.get(localIndex), localPaints.get(localIndex));
-				localIndex++;
-			} else {
-				canvas.drawPath(remotePaths.get(remoteIndex), remotePaints.get(remoteIndex));
-				remoteIndex++;
+		// each layer is one cached bitmap, redrawn only where one of its strokes changed
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			layers[i].draw(canvas);
+		}
+
+		// the fill running, as far as it has reached
+		fillQueue.draw(canvas);
+
+		// strokes being dragged, above everything else, those outside the repainted area skipped
+		if (transforming) {
+			canvas.getClipBounds(clipBounds);
+			clipArea.set(clipBounds);
+			for (int i = 0; i < selectedStrokes.size(); i++) {
+				Stroke stroke = selectedStrokes.get(i);
+				if (layerOf(stroke).isVisible() && RectF.intersects(clipArea, stroke.getPaintBounds())) {
+					StrokeLayer.drawStroke(canvas, stroke);
+				}
+			}
+		}
+
+		// strokes in progress, only the points added since the last frame are stroked
+		liveStreams.clear();
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			if (localStreams[i].isActive() && layers[LAYER_LOCAL].isVisible()) {
+				liveStreams.add(localStreams[i]);
+			}
+			if (remoteStreams[i].isActive() && layers[LAYER_REMOTE].isVisible()) {
+				liveStreams.add(remoteStreams[i]);
 			}
 		}
-		if (localPath != null) {
-			canvas.drawPath(localPath, localPaint);
+		liveLayer.draw(canvas, liveStreams);
+
+		if (lassoSize > 0) {
+			canvas.drawPath(lassoPath, selectionPaint);
 		}
-		if (remotePath != null) {
-			canvas.drawPath(remotePath, remotePaint);
+		if (selectedStrokes.size() > 0) {
+			canvas.drawRect(selectionBounds, selectionPaint);
 		}
 	}
-	
+
 	public void clearAll() {
-		
-		localPaths.clear();
-		localPaints.clear();
-		
-		remotePaths.clear();
-		remotePaints.clear();
-		
-		pathOrder.clear();
-		
+
+		sync.deleteAll();
+		strokes.clear();
+		localStrokes.clear();
+		remoteStrokes.clear();
+		strokeIndex.clear();
+		arena.clear();
+		fillQueue.clear();
+		selectedStrokes.clear();
+		selectionBounds.setEmpty();
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			layers[i].clear();
+		}
+		history.markChanged();
+
 		invalidate();
 	}
 
+	/**
+	 * show or hide a layer, its strokes can't be erased or selected while hidden
+	 * @param layer		LAYER_LOCAL or LAYER_REMOTE
+	 */
+	public void setLayerVisible(int layer, boolean visible) {
+		if (!visible) {
+			for (int i = selectedStrokes.size() - 1; i >= 0; i--) {
+				if (layerOf(selectedStrokes.get(i)) == layers[layer]) {
+					clearSelection();
+					break;
+				}
+			}
+		}
+		layers[layer].setVisible(visible);
+		invalidate();
+	}
+
+	public boolean isLayerVisible(int layer) {
+		return layers[layer].isVisible();
+	}
+
+	// *************************************************************************
+	// SAVED DRAWINGS
+	//
+	// *************************************************************************
+
+	/**
+	 * save the canvas as it's shown, both authors' strokes, with a thumbnail for the gallery
+	 * @param name		Name of the drawing, replacing any saved under it
+	 */
+	public void saveDrawing(DrawingStore store, String name, DrawingStore.Listener listener) {
+		int width = getWidth();
+		int height = getHeight();
+		DrawingStore.Drawing drawing = new DrawingStore.Drawing(width, height, strokes.size());
+
+		// strokes as drawn, moved ones where they are now
+		for (int i = 0; i < strokes.size(); i++) {
+			Stroke stroke = strokes.get(i);
+			drawing.brushWidths[i] = stroke.getBrushWidth();
+			drawing.colors[i] = stroke.paint.getColor();
+			drawing.shapes[i] = stroke.shape;
+			if (stroke.shape != 0) {
+				float[] points = new float[4];
+				stroke.getShapePoints(points);
+				drawing.points[i] = points;
+				continue;
+			}
+			int count = stroke.getPointCount();
+			float[] points = new float[count * 2];
+			for (int j = 0; j < count; j++) {
+				stroke.getPoint(j, mappedPoint);
+				points[j * 2] = mappedPoint[0];
+				points[j * 2 + 1] = mappedPoint[1];
+			}
+			drawing.points[i] = points;
+			if (stroke.hasWidths()) {
+				drawing.widths[i] = new byte[count];
+				System.arraycopy(stroke.widths, 0, drawing.widths[i], 0, count);
+			}
+		}
+
+		// what's flattened is only kept as pixels
+		boolean flattened = false;
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			flattened |= layers[i].hasFlattened();
+		}
+		if (flattened) {
+			drawing.base = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			Canvas canvas = new Canvas(drawing.base);
+			for (int i = 0; i < LAYER_COUNT; i++) {
+				layers[i].drawFlattened(canvas);
+			}
+		}
+
+		// drawn at full size from the layer caches, then scaled down once
+		Bitmap full = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(full);
+		canvas.drawColor(Color.WHITE);
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			layers[i].drawContents(canvas);
+		}
+		Bitmap thumbnail = ThumbnailCache.createThumbnail(full);
+		full.recycle();
+
+		store.save(name, drawing, thumbnail, listener);
+	}
+
+	/**
+	 * replace the canvas with a saved drawing, its strokes become ours. only while not
+	 * connected, the peer would keep its own canvas and have no base under them
+	 */
+	public void openDrawing(DrawingStore.Drawing drawing) {
+		clearSelection();
+		clearAll();
+
+		// a peer connecting later is synced the strokes, not the pixels flattened before saving
+		if (drawing.base != null) {
+			if (layers[LAYER_LOCAL].hasSize()) {
+				Rect area = new Rect(0, 0, Math.min(getWidth(), drawing.base.getWidth()),
+						Math.min(getHeight(), drawing.base.getHeight()));
+				layers[LAYER_LOCAL].fill(drawing.base, area);
+				history.markChanged();
+			}
+			drawing.base.recycle();
+		}
+
+		Paint brush = new Paint(localPaint);
+		for (int i = 0; i < drawing.count; i++) {
+			brush.setColor(drawing.colors[i]);
+			brush.setStrokeWidth(drawing.brushWidths[i]);
+			Stroke stroke = new Stroke(model.nextLocalId++, true, arena, arena.brushFor(brush));
+			float[] points = drawing.points[i];
+			byte[] widths = drawing.widths[i];
+			if (drawing.shapes[i] != 0) {
+				stroke.setShape(drawing.shapes[i], points);
+			} else {
+				for (int j = 0; j < points.length / 2; j++) {
+					if (widths != null) {
+						stroke.lineTo(points[j * 2], points[j * 2 + 1], widths[j] & 0xff);
+					} else {
+						stroke.lineTo(points[j * 2], points[j * 2 + 1]);
+					}
+				}
+			}
+			commitStroke(stroke);
+		}
+		invalidate();
+	}
+
+	// *************************************************************************
+	// PAINT
+	//
+	// *************************************************************************
+
 	public float getPaintStrokeWidth() {
 		return localPaint.getStrokeWidth();
 	}
 
 	public int[] getPaintRGB() {
 		int[] rgb = new int[3];
-		rgb[0] = localRed;
-		rgb[1] = localGreen;
-		rgb[2] = localBlue;
+		int color = localPaint.getColor();
+		rgb[0] = Color.red(color);
+		rgb[1] = Color.green(color);
+		rgb[2] = Color.blue(color);
 		return rgb;
 	}
 
 	public void setLocalPaint(float size, int red, int green, int blue) {
 
-		if (localPathStarted) {
-			localPaths.push(localPath);
-			localPaints.push(localPaint);
-			pathOrder.add(true);
-			
-			localPath = new Path();
-			localPaint = new Paint(localPaint);
-			localPathStarted = false;
-		}
+		endLocalStreams();
 
-		this.localRed = red;
-		this.localGreen = green;
-		this.localBlue = blue;
 		localPaint.setARGB(255, red, green, blue);
 		localPaint.setStrokeWidth(size);
 
-		Float[] paintParams = { size, (float) red, (float) green, (float) blue };
-		handler.obtainMessage(Scribble.MESSAGE_WRITE, BRUSH_CHANGE, -1,
-				paintParams).sendToTarget();
+		sendPaint();
 	}
-	
+
 	public void sendPaint() {
 
-		Float[] paintParams = { localPaint.getStrokeWidth(), (float) localRed, (float) localGreen, (float) localBlue };
-		handler.obtainMessage(Scribble.MESSAGE_WRITE, BRUSH_CHANGE, -1,
-				paintParams).sendToTarget();
-		
+		int color = localPaint.getColor();
+		sendBuffer[0] = localPaint.getStrokeWidth();
+		sendBuffer[1] = Color.red(color);
+		sendBuffer[2] = Color.green(color);
+		sendBuffer[3] = Color.blue(color);
+		send(ScribbleProtocol.BRUSH_CHANGE, 0, 4);
+
 	}
 
 	public void setRemotePaint(float size, int red, int green, int blue) {
 
-		if (remotePathStarted) {
-			remotePaths.push(remotePath);
-			remotePaints.push(remotePaint);
-			pathOrder.add(false);
-	
-			remotePath = new Path();
-			remotePaint = new Paint(remotePaint);
-			remotePathStarted = false;
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			if (remoteStreams[i].isActive()) {
+				commitStroke(remoteStreams[i].finish());
+			}
 		}
 
 		remotePaint.setARGB(255, red, green, blue);
 		remotePaint.setStrokeWidth(size);
 	}
+
+	/**
+	 * kept in its own class so Choreographer is only loaded on API 16 and up
+	 */
+	private static class FrameScheduler implements Choreographer.FrameCallback {
+		private final Runnable runnable;
+
+		FrameScheduler(Runnable runnable) {
+			this.runnable = runnable;
+		}
+
+		void post() {
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		public void doFrame(long frameTimeNanos) {
+			runnable.run();
+		}
+	}
 }
@@ -1,6 +1,6 @@
 package hurdad.scribble;
 
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Set;
 
 import android.app.Activity;
@@ -30,7 +30,9 @@ public class ServerListActivity extends ListActivity {
     private BluetoothAdapter bluetoothAdapter;
 	private static ListView selectServerListView;
 	private static ArrayAdapter<String> serverAdapter;
-	private static ArrayList<String> servers;
+	
+	// addresses already listed, so a device is only added once
+	private static HashSet<String> serverAddresses;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -65,12 +67,17 @@ public class ServerListActivity extends ListActivity {
 			}
         });
         
-        servers = new ArrayList<String>();
+        serverAddresses = new HashSet<String>();
+        
+        // peers from earlier runs first, the likeliest to answer at the top, they need no scan
+        for (PeerCache.Peer peer : PeerCache.get(this).getPeers()) {
+        	addServer(peer.getDisplayName(), peer.address);
+        }
+        
 		Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
 		if (pairedDevices.size() > 0) {
 			for (BluetoothDevice device : pairedDevices) {
-				servers.add(device.getName() + "\n" + device.getAddress());
-				serverAdapter.add(device.getName() + "\n" + device.getAddress());
+				addServer(device.getName(), device.getAddress());
 			}
 		}
 
@@ -84,6 +91,19 @@ public class ServerListActivity extends ListActivity {
         });
 	}
 	
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+
+		// a scan still running reports to the receiver, which stops listing once these are gone,
+		// unless they're already a newer instance's
+		if (selectServerListView == getListView()) {
+			selectServerListView = null;
+			serverAdapter = null;
+			serverAddresses = null;
+		}
+	}
+	
 	private void discoverServers() {
 
         // Indicate scanning in the title
@@ -97,6 +117,18 @@ public class ServerListActivity extends ListActivity {
         // Request discover from BluetoothAdapter
         bluetoothAdapter.startDiscovery();
 	}
+	
+	/**
+	 * list a device unless it's already listed
+	 * @return			Whether it was added
+	 */
+	private static boolean addServer(String name, String address) {
+		if (!serverAddresses.add(address)) {
+			return false;
+		}
+		serverAdapter.add(name != null && !name.equals(address) ? name + "\n" + address : address);
+		return true;
+	}
 
 	public static class DeviceFoundReceiver extends BroadcastReceiver {
 
@@ -104,10 +136,15 @@ public class ServerListActivity extends ListActivity {
 		public void onReceive(Context context, Intent intent) {
 			// get the bluetooth device
 			BluetoothDevice server = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			PeerCache.get(context).recordSeen(server.getAddress(), server.getName());
+			
+			// the list is gone if the scan outlived the activity
+			if (serverAdapter == null) {
+				return;
+			}
 			
-			if (!servers.contains(server)) {
+			if (addServer(server.getName(), server.getAddress())) {
 				// add to the server listView
-				serverAdapter.add(server.getName() + "\n" + server.getAddress());
 				serverAdapter.notifyDataSetChanged();
 				selectServerListView.invalidate();
 			}
@@ -0,0 +1,358 @@
+package hurdad.scribble;
+
+/**
+ * snaps a finished stroke that was meant as a line, rectangle, ellipse or arrow to that
+ * shape, described by two points instead of every point drawn
+ *
+ * long strokes are sampled down to at most MAX_SAMPLES points first, so recognizing takes
+ * the same few microseconds however long the stroke. a stroke still being looked at when
+ * the budget runs out is left as drawn
+ *
+ * kept free of android classes so it can be tried on a plain JVM
+ */
+public class ShapeRecognizer {
+
+	// a stroke is left as drawn rather than hold up the next one
+	public static final long BUDGET_NANOS = 1000000L;
+
+	private static final int MAX_SAMPLES = 128;
+
+	// strokes smaller than this across are dots and letters, not shapes
+	private static final float MIN_SIZE = 24f;
+
+	// furthest a line's points may stray from it, in pixels and as a share of its length
+	private static final float LINE_TOLERANCE = 4f;
+	private static final float LINE_TOLERANCE_SHARE = 0.05f;
+
+	// a closed shape ends within this share of its length from where it started
+	private static final float CLOSED_SHARE = 0.15f;
+
+	// furthest a rectangle's points may stray from its sides, as a share of its shorter side
+	private static final float RECTANGLE_TOLERANCE_SHARE = 0.1f;
+
+	// share of a rectangle's points that must lie along each side
+	private static final float RECTANGLE_SIDE_SHARE = 0.08f;
+
+	// mean and worst distance of an ellipse's points from it, as a share of its radius
+	private static final float ELLIPSE_MEAN_ERROR = 0.1f;
+	private static final float ELLIPSE_MAX_ERROR = 0.3f;
+
+	// share of a full turn an ellipse's points must sweep around its centre
+	private static final float ELLIPSE_SWEEP = 0.85f;
+
+	// furthest an arrow's points may stray from its shaft and barbs, as a share of its size
+	private static final float ARROW_TOLERANCE_SHARE = 0.08f;
+
+	// an arrow's barbs, as a share of its shaft
+	private static final float BARB_MIN_SHARE = 0.08f;
+	private static final float BARB_MAX_SHARE = 0.5f;
+
+	private final float[] xs;
+	private final float[] ys;
+	private int samples;
+
+	// indices of the points kept by simplify()
+	private final int[] kept;
+	private final int[] stack;
+	private final boolean[] keep;
+
+	private long started;
+
+	private int recognized;
+	private int overBudget;
+	private long worstNanos;
+
+	public ShapeRecognizer() {
+		xs = new float[MAX_SAMPLES];
+		ys = new float[MAX_SAMPLES];
+		kept = new int[MAX_SAMPLES];
+		stack = new int[MAX_SAMPLES * 2];
+		keep = new boolean[MAX_SAMPLES];
+	}
+
+	/**
+	 * find the shape a stroke was meant as
+	 * @param points	The stroke's points as x-y pairs
+	 * @param size		Number of point floats
+	 * @param out		Receives the shape's two points, see ScribbleProtocol.SHAPE
+	 * @return			One of ScribbleProtocol's SHAPE_ kinds, or 0 to leave the stroke as drawn
+	 */
+	public int recognize(float[] points, int size, float[] out) {
+		started = System.nanoTime();
+		int shape = classify(points, size, out);
+		long elapsed = System.nanoTime() - started;
+		worstNanos = Math.max(worstNanos, elapsed);
+		if (elapsed > BUDGET_NANOS) {
+			overBudget++;
+			return 0;
+		}
+		if (shape != 0) {
+			recognized++;
+		}
+		return shape;
+	}
+
+	private int classify(float[] points, int size, float[] out) {
+		int count = size / 2;
+		if (count < 3) {
+			return 0;
+		}
+		sample(points, count);
+
+		float left = xs[0];
+		float right = xs[0];
+		float top = ys[0];
+		float bottom = ys[0];
+		float length = 0;
+		for (int i = 1; i < samples; i++) {
+			left = Math.min(left, xs[i]);
+			right = Math.max(right, xs[i]);
+			top = Math.min(top, ys[i]);
+			bottom = Math.max(bottom, ys[i]);
+			length += distance(xs[i - 1], ys[i - 1], xs[i], ys[i]);
+		}
+		float width = right - left;
+		float height = bottom - top;
+		if (Math.max(width, height) < MIN_SIZE) {
+			return 0;
+		}
+
+		int last = samples - 1;
+		float chord = distance(xs[0], ys[0], xs[last], ys[last]);
+		if (isLine(chord)) {
+			setPoints(out, xs[0], ys[0], xs[last], ys[last]);
+			return ScribbleProtocol.SHAPE_LINE;
+		}
+		if (overBudget()) {
+			return 0;
+		}
+
+		if (chord < length * CLOSED_SHARE) {
+			if (isRectangle(left, top, right, bottom)) {
+				setPoints(out, left, top, right, bottom);
+				return ScribbleProtocol.SHAPE_RECTANGLE;
+			}
+			if (isEllipse(left, top, right, bottom)) {
+				setPoints(out, left, top, right, bottom);
+				return ScribbleProtocol.SHAPE_ELLIPSE;
+			}
+			return 0;
+		}
+
+		if (isArrow(Math.max(width, height))) {
+			int tip = kept[1];
+			setPoints(out, xs[0], ys[0], xs[tip], ys[tip]);
+			return ScribbleProtocol.SHAPE_ARROW;
+		}
+		return 0;
+	}
+
+	/**
+	 * copy every point of a short stroke, or evenly spaced ones of a long one, always
+	 * keeping the last
+	 */
+	private void sample(float[] points, int count) {
+		samples = Math.min(count, MAX_SAMPLES);
+		for (int i = 0; i < samples; i++) {
+			int from = samples == count ? i : (int) ((long) i * (count - 1) / (samples - 1));
+			xs[i] = points[from * 2];
+			ys[i] = points[from * 2 + 1];
+		}
+	}
+
+	private boolean isLine(float chord) {
+		if (chord < MIN_SIZE) {
+			return false;
+		}
+		float tolerance = Math.max(LINE_TOLERANCE, chord * LINE_TOLERANCE_SHARE);
+		int last = samples - 1;
+		for (int i = 1; i < last; i++) {
+			if (lineDistance(xs[i], ys[i], xs[0], ys[0], xs[last], ys[last]) > tolerance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * every point near a side of the bounds, and each side drawn along
+	 */
+	private boolean isRectangle(float left, float top, float right, float bottom) {
+		float tolerance = Math.max(LINE_TOLERANCE, Math.min(right - left, bottom - top) * RECTANGLE_TOLERANCE_SHARE);
+		int onLeft = 0;
+		int onTop = 0;
+		int onRight = 0;
+		int onBottom = 0;
+		for (int i = 0; i < samples; i++) {
+			float toLeft = xs[i] - left;
+			float toRight = right - xs[i];
+			float toTop = ys[i] - top;
+			float toBottom = bottom - ys[i];
+			float nearest = Math.min(Math.min(toLeft, toRight), Math.min(toTop, toBottom));
+			if (nearest > tolerance) {
+				return false;
+			}
+			onLeft += toLeft <= tolerance ? 1 : 0;
+			onRight += toRight <= tolerance ? 1 : 0;
+			onTop += toTop <= tolerance ? 1 : 0;
+			onBottom += toBottom <= tolerance ? 1 : 0;
+		}
+		int least = (int) (samples * RECTANGLE_SIDE_SHARE);
+		return onLeft > least && onRight > least && onTop > least && onBottom > least;
+	}
+
+	/**
+	 * points close to the ellipse filling the bounds, going most of the way round it
+	 */
+	private boolean isEllipse(float left, float top, float right, float bottom) {
+		float centreX = (left + right) / 2;
+		float centreY = (top + bottom) / 2;
+		float radiusX = Math.max((right - left) / 2, 1f);
+		float radiusY = Math.max((bottom - top) / 2, 1f);
+
+		float errorSum = 0;
+		float sweep = 0;
+		double lastAngle = 0;
+		for (int i = 0; i < samples; i++) {
+			float dx = (xs[i] - centreX) / radiusX;
+			float dy = (ys[i] - centreY) / radiusY;
+			float error = Math.abs((float) Math.sqrt(dx * dx + dy * dy) - 1f);
+			if (error > ELLIPSE_MAX_ERROR) {
+				return false;
+			}
+			errorSum += error;
+
+			double angle = Math.atan2(dy, dx);
+			if (i > 0) {
+				double step = angle - lastAngle;
+				if (step > Math.PI) {
+					step -= 2 * Math.PI;
+				} else if (step < -Math.PI) {
+					step += 2 * Math.PI;
+				}
+				sweep += step;
+			}
+			lastAngle = angle;
+		}
+		return errorSum / samples <= ELLIPSE_MEAN_ERROR && Math.abs(sweep) >= 2 * Math.PI * ELLIPSE_SWEEP;
+	}
+
+	/**
+	 * a shaft drawn to the tip, out along one barb, back to the tip and out along the other
+	 */
+	private boolean isArrow(float size) {
+		int corners = simplify(Math.max(LINE_TOLERANCE, size * ARROW_TOLERANCE_SHARE));
+		if (corners != 5 || overBudget()) {
+			return false;
+		}
+		float tailX = xs[kept[0]];
+		float tailY = ys[kept[0]];
+		float tipX = xs[kept[1]];
+		float tipY = ys[kept[1]];
+		float shaft = distance(tailX, tailY, tipX, tipY);
+		if (shaft < MIN_SIZE || distance(tipX, tipY, xs[kept[3]], ys[kept[3]]) > shaft * BARB_MAX_SHARE / 2) {
+			return false;
+		}
+
+		// both barbs short, pointing back along the shaft, one either side of it
+		float backX = tailX - tipX;
+		float backY = tailY - tipY;
+		float firstSide = 0;
+		for (int b = 2; b <= 4; b += 2) {
+			float barbX = xs[kept[b]] - tipX;
+			float barbY = ys[kept[b]] - tipY;
+			float barb = (float) Math.sqrt(barbX * barbX + barbY * barbY);
+			if (barb < shaft * BARB_MIN_SHARE || barb > shaft * BARB_MAX_SHARE || barbX * backX + barbY * backY <= 0) {
+				return false;
+			}
+			float side = backX * barbY - backY * barbX;
+			if (b == 2) {
+				firstSide = side;
+			} else if (side * firstSide >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * keep only the corners of the sampled points, dropping those within a tolerance of
+	 * the line between their neighbours
+	 * @return			Number of corners, their indices are in kept
+	 */
+	private int simplify(float tolerance) {
+		for (int i = 0; i < samples; i++) {
+			keep[i] = false;
+		}
+		int last = samples - 1;
+		keep[0] = true;
+		keep[last] = true;
+
+		int depth = 0;
+		stack[depth++] = 0;
+		stack[depth++] = last;
+		while (depth > 0) {
+			int end = stack[--depth];
+			int start = stack[--depth];
+			float furthest = 0;
+			int corner = -1;
+			for (int i = start + 1; i < end; i++) {
+				float d = lineDistance(xs[i], ys[i], xs[start], ys[start], xs[end], ys[end]);
+				if (d > furthest) {
+					furthest = d;
+					corner = i;
+				}
+			}
+			if (corner >= 0 && furthest > tolerance) {
+				keep[corner] = true;
+				stack[depth++] = start;
+				stack[depth++] = corner;
+				stack[depth++] = corner;
+				stack[depth++] = end;
+			}
+		}
+
+		int corners = 0;
+		for (int i = 0; i < samples; i++) {
+			if (keep[i]) {
+				kept[corners++] = i;
+			}
+		}
+		return corners;
+	}
+
+	private boolean overBudget() {
+		return System.nanoTime() - started > BUDGET_NANOS;
+	}
+
+	private static void setPoints(float[] out, float x0, float y0, float x1, float y1) {
+		out[0] = x0;
+		out[1] = y0;
+		out[2] = x1;
+		out[3] = y1;
+	}
+
+	private static float distance(float x0, float y0, float x1, float y1) {
+		float dx = x1 - x0;
+		float dy = y1 - y0;
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * distance of a point from the segment between two others
+	 */
+	private static float lineDistance(float x, float y, float x0, float y0, float x1, float y1) {
+		float dx = x1 - x0;
+		float dy = y1 - y0;
+		float lengthSquared = dx * dx + dy * dy;
+		if (lengthSquared == 0) {
+			return distance(x, y, x0, y0);
+		}
+		float t = Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / lengthSquared));
+		return distance(x, y, x0 + t * dx, y0 + t * dy);
+	}
+
+	public String getStats() {
+		return "recognized=" + recognized + " overBudget=" + overBudget + " worstMicros=" + worstNanos / 1000;
+	}
+}
@@ -0,0 +1,498 @@
+package hurdad.scribble;
+
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+/**
+ * a single stroke on the canvas, kept as its points so it can be drawn, hit tested by
+ * the eraser and lasso, and sent again
+ *
+ * a stroke in progress holds its points as floats. once committed they're packed into
+ * the view's StrokeArena and the stroke keeps only where they are, its bounds and a brush
+ * id. native paths are built from the points when drawn, and only kept while dragged
+ *
+ * a stroke snapped to a shape keeps just the shape's two points. everything reading it
+ * point by point sees the shape's outline instead, so it's erased and selected as drawn
+ *
+ * a variable width stroke also keeps a byte per point for its width, and is drawn as a
+ * StrokeMesh instead of a path
+ */
+public class Stroke {
+	private static final int INITIAL_CAPACITY = 64;
+
+	// the object, its bounds and its index entries, beside the points themselves
+	private static final int OVERHEAD_BYTES = 160;
+
+	// outline of an ellipse, and the head of an arrow as a share of its length at 30 degrees
+	private static final int ELLIPSE_SEGMENTS = 32;
+	private static final float ARROW_HEAD = 0.2f;
+	private static final float ARROW_COS = 0.866f;
+	private static final float ARROW_SIN = 0.5f;
+
+	// shapes are drawn from the UI thread only
+	private static final RectF oval = new RectF();
+	private static final float[] vertex = new float[2];
+
+	// id assigned by the device that drew the stroke, local marks who that was
+	protected final int id;
+	protected final boolean local;
+
+	// tag of the canvas that drew the stroke, set when it's committed
+	protected int author;
+
+	// brush the stroke is drawn with, paint is the arena's shared one for it
+	protected int brush;
+	protected Paint paint;
+	private final StrokeArena arena;
+
+	// points stored as x-y pairs, {x1, y1, x2, y2, x3, ..}, until the stroke is packed
+	protected float[] points;
+	protected int size;
+
+	// one of ScribbleProtocol's SHAPE_ kinds with points holding its two points, or 0
+	protected int shape;
+
+	// width of each point in ScribbleProtocol.WIDTH_UNITs of the brush width, null for a
+	// stroke drawn at the brush width throughout
+	protected byte[] widths;
+	private int widest;
+
+	// where the packed points are in the arena, -1 while they're floats or once released
+	protected int packedOffset = -1;
+	protected int packedBytes;
+
+	// path kept between frames while the stroke is dragged, otherwise built per draw
+	private Path path;
+
+	// untransformed bounds of the points, not including stroke width
+	protected final RectF bounds;
+
+	// move/scale applied at draw time, null until the stroke is first transformed
+	protected Matrix transform;
+	private RectF transformedBounds;
+
+	// drawn bounds including stroke width, recomputed after the stroke changes
+	private final RectF paintBounds;
+	private boolean paintBoundsValid;
+
+	// order the stroke was committed in, its layer draws overlapping strokes in this order
+	protected long sequence;
+
+	// used by StrokeIndex to visit each stroke once per query
+	protected int queryStamp;
+
+	// set once the stroke has been erased or undone
+	protected boolean removed;
+
+	// drawn live above the layers while being dragged, instead of from its layer's cache
+	protected boolean lifted;
+
+	/**
+	 * @param arena		Where the points go once the stroke is committed
+	 * @param brush		One of the arena's brushes
+	 */
+	public Stroke(int id, boolean local, StrokeArena arena, int brush) {
+		this.id = id;
+		this.local = local;
+		this.arena = arena;
+		this.brush = brush;
+		paint = arena.getBrush(brush);
+		points = new float[INITIAL_CAPACITY];
+		bounds = new RectF();
+		paintBounds = new RectF();
+	}
+
+	public void moveTo(float x, float y) {
+		bounds.set(x, y, x, y);
+		append(x, y);
+	}
+
+	public void lineTo(float x, float y) {
+		if (size == 0) {
+			moveTo(x, y);
+			return;
+		}
+		bounds.union(x, y);
+		append(x, y);
+	}
+
+	/**
+	 * start a variable width stroke
+	 * @param width		In ScribbleProtocol.WIDTH_UNITs of the brush width
+	 */
+	public void moveTo(float x, float y, int width) {
+		moveTo(x, y);
+		appendWidth(width);
+	}
+
+	/**
+	 * extend a variable width stroke
+	 * @param width		In ScribbleProtocol.WIDTH_UNITs of the brush width
+	 */
+	public void lineTo(float x, float y, int width) {
+		lineTo(x, y);
+		appendWidth(width);
+	}
+
+	/**
+	 * discard all points, used when an in-progress stroke is undone
+	 */
+	public void reset() {
+		bounds.setEmpty();
+		size = 0;
+		widest = 0;
+		paintBoundsValid = false;
+	}
+
+	public boolean hasWidths() {
+		return widths != null;
+	}
+
+	/**
+	 * width of the last point in ScribbleProtocol.WIDTH_UNITs of the brush width
+	 */
+	public int getLastWidth() {
+		if (widths == null || size == 0) {
+			return ScribbleProtocol.WIDTH_UNIT;
+		}
+		return widths[size / 2 - 1] & 0xff;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * number of points in the stroke, or in a shape's outline
+	 */
+	public int getPointCount() {
+		if (shape == ScribbleProtocol.SHAPE_LINE) {
+			return 2;
+		} else if (shape == ScribbleProtocol.SHAPE_RECTANGLE || shape == ScribbleProtocol.SHAPE_ARROW) {
+			return 5;
+		} else if (shape == ScribbleProtocol.SHAPE_ELLIPSE) {
+			return ELLIPSE_SEGMENTS + 1;
+		}
+		return size / 2;
+	}
+
+	/**
+	 * replace the points drawn with the shape they were meant as
+	 * @param kind			One of ScribbleProtocol's SHAPE_ kinds
+	 * @param shapePoints	The shape's two points, see ScribbleProtocol.SHAPE
+	 */
+	public void setShape(int kind, float[] shapePoints) {
+		shape = kind;
+		points = new float[4];
+		System.arraycopy(shapePoints, 0, points, 0, 4);
+		size = 4;
+		widths = null;
+		widest = 0;
+		path = null;
+
+		bounds.set(points[0], points[1], points[0], points[1]);
+		for (int i = 1; i < getPointCount(); i++) {
+			outlinePoint(points, i, vertex);
+			bounds.union(vertex[0], vertex[1]);
+		}
+		paintBoundsValid = false;
+	}
+
+	/**
+	 * copy a shape's two points as drawn into out[0..3]
+	 */
+	public void getShapePoints(float[] out) {
+		System.arraycopy(readPoints(), 0, out, 0, 4);
+		if (transform != null) {
+			transform.mapPoints(out, 0, out, 0, 2);
+		}
+	}
+
+	/**
+	 * a point of a shape's outline, untransformed
+	 */
+	private void outlinePoint(float[] read, int index, float[] out) {
+		float x0 = read[0];
+		float y0 = read[1];
+		float x1 = read[2];
+		float y1 = read[3];
+		if (shape == ScribbleProtocol.SHAPE_RECTANGLE) {
+			out[0] = index == 1 || index == 2 ? x1 : x0;
+			out[1] = index == 2 || index == 3 ? y1 : y0;
+		} else if (shape == ScribbleProtocol.SHAPE_ELLIPSE) {
+			double angle = 2 * Math.PI * index / ELLIPSE_SEGMENTS;
+			out[0] = (x0 + x1) / 2 + (x1 - x0) / 2 * (float) Math.cos(angle);
+			out[1] = (y0 + y1) / 2 + (y1 - y0) / 2 * (float) Math.sin(angle);
+		} else if (shape == ScribbleProtocol.SHAPE_ARROW && (index == 2 || index == 4)) {
+
+			// barbs either side of the line back from the tip
+			float backX = (x0 - x1) * ARROW_HEAD;
+			float backY = (y0 - y1) * ARROW_HEAD;
+			float side = index == 2 ? ARROW_SIN : -ARROW_SIN;
+			out[0] = x1 + backX * ARROW_COS - backY * side;
+			out[1] = y1 + backY * ARROW_COS + backX * side;
+		} else {
+			// line ends, and an arrow's tail and tip
+			out[0] = index == 0 ? x0 : x1;
+			out[1] = index == 0 ? y0 : y1;
+		}
+	}
+
+	/**
+	 * rough size of the stroke's vector data, its points as floats or packed, and the
+	 * objects around them
+	 */
+	public long getVectorBytes() {
+		return (points != null ? points.length * 4 : packedBytes) + (widths != null ? widths.length : 0)
+				+ OVERHEAD_BYTES;
+	}
+
+	// *************************************************************************
+	// STORAGE
+	//
+	// *************************************************************************
+
+	/**
+	 * move the points into the arena, done once the stroke is committed and can't grow
+	 */
+	public void pack() {
+		if (points != null) {
+			arena.pack(this);
+		}
+	}
+
+	/**
+	 * give the packed points back to the arena once the stroke is gone for good, only its
+	 * bounds can still be read
+	 */
+	public void release() {
+		arena.release(this);
+		path = null;
+	}
+
+	/**
+	 * the points as x-y pairs, the stroke's own array or one shared by recently read
+	 * packed strokes, valid until another stroke is read
+	 */
+	private float[] readPoints() {
+		return points != null ? points : arena.unpack(this);
+	}
+
+	/**
+	 * the stroke as a path, untransformed
+	 * @param scratch	Filled and returned unless the stroke keeps its own path
+	 */
+	public Path getPath(Path scratch) {
+		if (path != null) {
+			return path;
+		}
+		buildPath(scratch);
+		return scratch;
+	}
+
+	/**
+	 * keep the path between draws, for a stroke drawn every frame while it's dragged
+	 * @param keep		False to drop it again
+	 */
+	public void keepPath(boolean keep) {
+		if (!keep) {
+			path = null;
+		} else if (path == null) {
+			path = new Path();
+			buildPath(path);
+		}
+	}
+
+	/**
+	 * a variable width stroke as a triangle strip, untransformed
+	 * @param scratch	Built and returned
+	 */
+	public StrokeMesh getMesh(StrokeMesh scratch) {
+		int count = size / 2;
+		scratch.build(readPoints(), widths, 0, count, count, paint.getStrokeWidth());
+		return scratch;
+	}
+
+	private void buildPath(Path out) {
+		out.rewind();
+		if (size == 0) {
+			return;
+		}
+		float[] read = readPoints();
+		if (shape == ScribbleProtocol.SHAPE_ELLIPSE) {
+			oval.set(Math.min(read[0], read[2]), Math.min(read[1], read[3]), Math.max(read[0], read[2]),
+					Math.max(read[1], read[3]));
+			out.addOval(oval, Path.Direction.CW);
+			return;
+		}
+		if (shape != 0) {
+			out.moveTo(read[0], read[1]);
+			for (int i = 1; i < getPointCount(); i++) {
+				outlinePoint(read, i, vertex);
+				out.lineTo(vertex[0], vertex[1]);
+			}
+			if (shape == ScribbleProtocol.SHAPE_RECTANGLE) {
+				out.close();
+			}
+			return;
+		}
+		out.moveTo(read[0], read[1]);
+		for (int i = 2; i < size; i += 2) {
+			out.lineTo(read[i], read[i + 1]);
+		}
+	}
+
+	/**
+	 * half the width of the widest point as drawn
+	 */
+	public float getHalfWidth() {
+		float half = getBrushWidth() / 2;
+		if (widths != null) {
+			half = half * widest / ScribbleProtocol.WIDTH_UNIT;
+		}
+		return half;
+	}
+
+	/**
+	 * width of the brush as drawn, a variable width stroke's widths are relative to it
+	 */
+	public float getBrushWidth() {
+		if (transform != null) {
+			return transform.mapRadius(paint.getStrokeWidth() / 2) * 2;
+		}
+		return paint.getStrokeWidth();
+	}
+
+	/**
+	 * a packed copy of the stroke as it's drawn now, for a record that mustn't change
+	 * when the stroke is moved or erased later
+	 * @param to		Arena holding the copy's points and brush
+	 */
+	public Stroke copy(StrokeArena to) {
+		Stroke copy = new Stroke(id, local, to, to.brushFor(paint));
+		copy.points = new float[size];
+		System.arraycopy(readPoints(), 0, copy.points, 0, size);
+		copy.size = size;
+		copy.shape = shape;
+		if (widths != null) {
+			copy.widths = new byte[size / 2];
+			System.arraycopy(widths, 0, copy.widths, 0, size / 2);
+			copy.widest = widest;
+		}
+		copy.bounds.set(bounds);
+		if (transform != null) {
+			copy.concat(transform);
+		}
+		copy.pack();
+		return copy;
+	}
+
+	// *************************************************************************
+	// TRANSFORMS
+	//
+	// *************************************************************************
+
+	/**
+	 * apply a further move/scale to the stroke without touching its points
+	 * @param matrix	The transform to apply after any existing one
+	 */
+	public void concat(Matrix matrix) {
+		if (transform == null) {
+			transform = new Matrix(matrix);
+			transformedBounds = new RectF();
+		} else {
+			transform.postConcat(matrix);
+		}
+		transform.mapRect(transformedBounds, bounds);
+		paintBoundsValid = false;
+	}
+
+	/**
+	 * bounds of the stroke as drawn, not including stroke width
+	 */
+	public RectF getDrawBounds() {
+		return transform == null ? bounds : transformedBounds;
+	}
+
+	/**
+	 * bounds of the pixels the stroke covers, stroke width and antialiasing included,
+	 * cached until the stroke changes
+	 */
+	public RectF getPaintBounds() {
+		if (!paintBoundsValid) {
+			float inset = getHalfWidth() + 1;
+			paintBounds.set(getDrawBounds());
+			paintBounds.inset(-inset, -inset);
+			paintBoundsValid = true;
+		}
+		return paintBounds;
+	}
+
+	/**
+	 * copy a point as drawn into out[0], out[1]
+	 */
+	public void getPoint(int index, float[] out) {
+		float[] read = readPoints();
+		if (shape != 0) {
+			outlinePoint(read, index, out);
+		} else {
+			out[0] = read[index * 2];
+			out[1] = read[index * 2 + 1];
+		}
+		if (transform != null) {
+			transform.mapPoints(out, 0, out, 0, 1);
+		}
+	}
+
+	/**
+	 * copy a segment as drawn into out[0..3], a single point stroke has one degenerate segment
+	 */
+	public void getSegment(int segment, float[] out) {
+		float[] read = readPoints();
+		if (shape != 0) {
+			outlinePoint(read, segment, vertex);
+			out[0] = vertex[0];
+			out[1] = vertex[1];
+			outlinePoint(read, segment + 1, vertex);
+			out[2] = vertex[0];
+			out[3] = vertex[1];
+		} else {
+			int i = segment * 2;
+			int j = size > 2 ? i + 2 : i;
+			out[0] = read[i];
+			out[1] = read[i + 1];
+			out[2] = read[j];
+			out[3] = read[j + 1];
+		}
+		if (transform != null) {
+			transform.mapPoints(out, 0, out, 0, 2);
+		}
+	}
+
+	private void appendWidth(int width) {
+		int index = size / 2 - 1;
+		if (widths == null) {
+			widths = new byte[points.length / 2];
+		} else if (index >= widths.length) {
+			byte[] grown = new byte[Math.max(points.length / 2, index + 1)];
+			System.arraycopy(widths, 0, grown, 0, widths.length);
+			widths = grown;
+		}
+		widths[index] = (byte) width;
+		widest = Math.max(widest, width);
+		paintBoundsValid = false;
+	}
+
+	private void append(float x, float y) {
+		if (size + 2 > points.length) {
+			float[] grown = new float[points.length * 2];
+			System.arraycopy(points, 0, grown, 0, size);
+			points = grown;
+		}
+		points[size++] = x;
+		points[size++] = y;
+		paintBoundsValid = false;
+	}
+}
@@ -0,0 +1,259 @@
+package hurdad.scribble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Paint;
+
+/**
+ * storage for committed strokes: their points packed into one shared byte array, and
+ * the brushes they were drawn with, each kept once and named by an id
+ *
+ * points are rounded to a sixteenth of a pixel and stored as zigzag varint deltas from
+ * the previous point, so a typical point takes two to four bytes instead of the eight of
+ * two floats plus what a native Path holds for it. space given back by erased or flattened
+ * strokes is reclaimed by sliding the rest down once it is half the arena
+ */
+public class StrokeArena {
+	private static final float SCALE = 16f;
+	private static final int INITIAL_CAPACITY = 16 * 1024;
+
+	// a varint of a 32 bit value takes at most this many bytes
+	private static final int MAX_VARINT_BYTES = 5;
+
+	// recently unpacked strokes, so walking a stroke point by point decodes it once
+	private static final int UNPACKED_SLOTS = 4;
+
+	private byte[] data;
+	private int size;
+	private int garbage;
+	private int packedStrokes;
+
+	// packed strokes in the order they sit in data, released ones are dropped on compaction
+	private final ArrayList<Stroke> owners;
+
+	private final Stroke[] unpackedStrokes;
+	private final float[][] unpacked;
+	private int nextSlot;
+
+	// shared paints, never changed once made, and their ids by color and width
+	private final ArrayList<Paint> brushes;
+	private final HashMap<Long, Integer> brushIds;
+
+	private int compactions;
+
+	public StrokeArena() {
+		data = new byte[INITIAL_CAPACITY];
+		owners = new ArrayList<Stroke>();
+		unpackedStrokes = new Stroke[UNPACKED_SLOTS];
+		unpacked = new float[UNPACKED_SLOTS][];
+		brushes = new ArrayList<Paint>();
+		brushIds = new HashMap<Long, Integer>();
+	}
+
+	// *************************************************************************
+	// BRUSHES
+	//
+	// *************************************************************************
+
+	/**
+	 * id of the brush matching a paint's color and width, made from a copy of the paint
+	 * the first time it's seen. brushes are never freed, there are only as many as
+	 * color and width pairs used
+	 * @param paint		The paint to match, left unchanged
+	 */
+	public int brushFor(Paint paint) {
+		long key = ((long) paint.getColor() << 32) | (Float.floatToIntBits(paint.getStrokeWidth()) & 0xffffffffL);
+		Integer id = brushIds.get(key);
+		if (id == null) {
+			id = brushes.size();
+			brushes.add(new Paint(paint));
+			brushIds.put(key, id);
+		}
+		return id;
+	}
+
+	/**
+	 * the shared paint of a brush, must not be changed
+	 */
+	public Paint getBrush(int brush) {
+		return brushes.get(brush);
+	}
+
+	// *************************************************************************
+	// POINTS
+	//
+	// *************************************************************************
+
+	/**
+	 * move a stroke's points into the arena, the stroke drops its float array
+	 * @param stroke	A stroke holding its points as floats
+	 */
+	public void pack(Stroke stroke) {
+		if (garbage > size / 2) {
+			compact();
+		}
+		ensureCapacity(size + stroke.size * MAX_VARINT_BYTES);
+
+		int offset = size;
+		int lastX = 0;
+		int lastY = 0;
+		for (int i = 0; i < stroke.size; i += 2) {
+			int x = Math.round(stroke.points[i] * SCALE);
+			int y = Math.round(stroke.points[i + 1] * SCALE);
+			writeVarint(x - lastX);
+			writeVarint(y - lastY);
+			lastX = x;
+			lastY = y;
+		}
+		stroke.packedOffset = offset;
+		stroke.packedBytes = size - offset;
+		stroke.points = null;
+		owners.add(stroke);
+		packedStrokes++;
+		forget(stroke);
+	}
+
+	/**
+	 * give back a packed stroke's space, its points can no longer be read
+	 */
+	public void release(Stroke stroke) {
+		if (stroke.packedOffset < 0) {
+			return;
+		}
+		garbage += stroke.packedBytes;
+		stroke.packedOffset = -1;
+		packedStrokes--;
+		forget(stroke);
+	}
+
+	/**
+	 * a packed stroke's points as x-y pairs, in a buffer shared with other recently read
+	 * strokes that is only valid until the next call
+	 */
+	public float[] unpack(Stroke stroke) {
+		for (int i = 0; i < UNPACKED_SLOTS; i++) {
+			if (unpackedStrokes[i] == stroke) {
+				return unpacked[i];
+			}
+		}
+
+		int slot = nextSlot;
+		nextSlot = (nextSlot + 1) % UNPACKED_SLOTS;
+		if (unpacked[slot] == null || unpacked[slot].length < stroke.size) {
+			unpacked[slot] = new float[Math.max(stroke.size, 256)];
+		}
+		float[] out = unpacked[slot];
+
+		int at = stroke.packedOffset;
+		int x = 0;
+		int y = 0;
+		for (int i = 0; i < stroke.size; i += 2) {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[at++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			x += (value >>> 1) ^ -(value & 1);
+
+			value = 0;
+			shift = 0;
+			do {
+				b = data[at++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			y += (value >>> 1) ^ -(value & 1);
+
+			out[i] = x / SCALE;
+			out[i + 1] = y / SCALE;
+		}
+		unpackedStrokes[slot] = stroke;
+		return out;
+	}
+
+	/**
+	 * drop every stroke's points, the brushes are kept for strokes still in progress
+	 */
+	public void clear() {
+		for (int i = 0; i < owners.size(); i++) {
+			owners.get(i).packedOffset = -1;
+		}
+		owners.clear();
+		packedStrokes = 0;
+		size = 0;
+		garbage = 0;
+		for (int i = 0; i < UNPACKED_SLOTS; i++) {
+			unpackedStrokes[i] = null;
+		}
+	}
+
+	/**
+	 * slide the strokes still packed down over the space released ones left
+	 */
+	private void compact() {
+		int write = 0;
+		int kept = 0;
+		for (int i = 0; i < owners.size(); i++) {
+			Stroke stroke = owners.get(i);
+			if (stroke.packedOffset < 0) {
+				continue;
+			}
+			System.arraycopy(data, stroke.packedOffset, data, write, stroke.packedBytes);
+			stroke.packedOffset = write;
+			write += stroke.packedBytes;
+			owners.set(kept++, stroke);
+		}
+		for (int i = owners.size() - 1; i >= kept; i--) {
+			owners.remove(i);
+		}
+		size = write;
+		garbage = 0;
+		compactions++;
+	}
+
+	private void forget(Stroke stroke) {
+		for (int i = 0; i < UNPACKED_SLOTS; i++) {
+			if (unpackedStrokes[i] == stroke) {
+				unpackedStrokes[i] = null;
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			byte[] grown = new byte[Math.max(capacity, data.length * 2)];
+			System.arraycopy(data, 0, grown, 0, size);
+			data = grown;
+		}
+	}
+
+	private void writeVarint(int delta) {
+		int value = (delta << 1) ^ (delta >> 31);
+		while ((value & ~0x7f) != 0) {
+			data[size++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		data[size++] = (byte) value;
+	}
+
+	// *************************************************************************
+	// STATS
+	//
+	// *************************************************************************
+
+	/**
+	 * bytes of packed points still in use
+	 */
+	public int getLiveBytes() {
+		return size - garbage;
+	}
+
+	public String getStats() {
+		return "strokes=" + packedStrokes + " liveBytes=" + getLiveBytes() + " capacity=" + data.length
+				+ " compactions=" + compactions + " brushes=" + brushes.size();
+	}
+}
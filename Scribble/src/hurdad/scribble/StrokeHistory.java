@@ -0,0 +1,717 @@
+package hurdad.scribble;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * everything drawn on the canvas in order, so any point in the drawing's history can be
+ * shown again, and the whole of it exported as a timelapse
+ *
+ * history is a list of steps. most are a stroke, drawn over the step before it. erasing,
+ * moving, filling and clearing can't be drawn that way, so once the canvas settles after
+ * one of them it's captured as a raster keyframe instead. a keyframe is also captured every
+ * KEYFRAME_INTERVAL strokes, so showing any step draws one keyframe and at most that many
+ * strokes. keyframes are written out as PNGs on a worker thread and read back when needed
+ *
+ * recorded strokes are copies packed into the history's own arena, they don't change when
+ * the canvas's strokes are moved, erased or flattened. past MAX_HISTORY_BYTES of them the
+ * start of the history is dropped a keyframe at a time, it then begins at the oldest
+ * keyframe kept. used from the UI thread only
+ */
+public class StrokeHistory {
+	private static final String LOG_TAG = "StrokeHistory";
+
+	// strokes between keyframes, the most a seek draws over the keyframe before it
+	private static final int KEYFRAME_INTERVAL = 64;
+
+	// an erase or move is keyframed once the canvas has been left alone this long
+	private static final long SETTLE_MILLIS = 500;
+
+	// captures kept for reuse once written, each is a screen's worth of pixels
+	private static final int MAX_SPARE_BITMAPS = 2;
+
+	// a keyframe that can't be written is tried again this often, then kept in memory, up
+	// to this many of them, and dropped past that
+	private static final int MAX_WRITE_ATTEMPTS = 3;
+	private static final int MAX_UNWRITTEN_KEYFRAMES = 4;
+
+	// recorded strokes kept, points and widths, before the oldest are dropped
+	private static final int MAX_HISTORY_BYTES = 1024 * 1024;
+
+	// a longer history is exported every few steps
+	private static final int MAX_TIMELAPSE_FRAMES = 900;
+
+	public interface Listener {
+
+		/**
+		 * draw the canvas as it is now, every layer whether shown or not
+		 */
+		void drawCanvas(Canvas canvas);
+	}
+
+	public interface ExportListener {
+
+		/**
+		 * the timelapse has been written, or stopped at the first frame that couldn't be
+		 * @param frames	Number of frames written
+		 */
+		void onExportDone(File directory, int frames, boolean succeeded);
+	}
+
+	private final File directory;
+	private Listener listener;
+	private final Handler handler;
+
+	// a stroke per step, or null where a keyframe replaced the canvas, from the blank canvas or
+	// the first keyframe once the start has been dropped
+	private final ArrayList<Stroke> steps;
+	private final ArrayList<Keyframe> keyframes;
+	private final StrokeArena arena;
+	private int strokeBytes;
+	private int stepsDropped;
+	private int strokesSinceKeyframe;
+	private int keyframesCaptured;
+	private int keyframesUnwritten;
+
+	// the keyframe last read back, seeking near it again draws it without decoding, and the
+	// next one read goes in its pixels
+	private Keyframe decodedKeyframe;
+	private Bitmap decoded;
+
+	// the canvas changed in a way strokes can't replay and hasn't been captured yet
+	private boolean unsettled;
+	private final Runnable settle;
+
+	private int width;
+	private int height;
+	private final ArrayList<Bitmap> spareBitmaps;
+	private Renderer shown;
+	private Exporter exporter;
+
+	private final Writer writer;
+	private final Thread writerThread;
+
+	private int keyframesWritten;
+	private int keyframeFailures;
+
+	/**
+	 * @param directory	Where keyframes are written, emptied first
+	 */
+	public StrokeHistory(File directory) {
+		this.directory = directory;
+		handler = new Handler();
+		steps = new ArrayList<Stroke>();
+		keyframes = new ArrayList<Keyframe>();
+		arena = new StrokeArena();
+		spareBitmaps = new ArrayList<Bitmap>();
+		settle = new Runnable() {
+			public void run() {
+				settle();
+			}
+		};
+
+		// keyframes of an earlier run are of no use
+		directory.mkdirs();
+		File[] old = directory.listFiles();
+		for (int i = 0; old != null && i < old.length; i++) {
+			old[i].delete();
+		}
+
+		writer = new Writer();
+		writerThread = new Thread(writer, "StrokeHistory");
+		writerThread.setPriority(Thread.MIN_PRIORITY);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * @param listener	Draws the canvas for keyframes, replaced when the view is recreated,
+	 *					null while no view shows it
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * stop recording and end the writer, PNGs still queued aren't written
+	 */
+	public void close() {
+		handler.removeCallbacks(settle);
+		writerThread.interrupt();
+	}
+
+	/**
+	 * size to the view, keyframes already captured keep the size they were
+	 */
+	public void setSize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		for (int i = 0; i < spareBitmaps.size(); i++) {
+			spareBitmaps.get(i).recycle();
+		}
+		spareBitmaps.clear();
+		if (shown != null) {
+			shown.recycle();
+			shown = null;
+		}
+		if (decoded != null) {
+			decoded.recycle();
+			decoded = null;
+			decodedKeyframe = null;
+		}
+	}
+
+	// *************************************************************************
+	// RECORDING
+	//
+	// *************************************************************************
+
+	/**
+	 * record a stroke as it was committed, once it's in its layer as every KEYFRAME_INTERVAL-th
+	 * is captured with the canvas
+	 */
+	public void addStroke(Stroke stroke) {
+		if (unsettled) {
+			settle();
+		}
+		Stroke copy = stroke.copy(arena);
+		steps.add(copy);
+		strokeBytes += bytesOf(copy);
+		if (++strokesSinceKeyframe >= KEYFRAME_INTERVAL) {
+			capture(false);
+		}
+		if (strokeBytes > MAX_HISTORY_BYTES) {
+			trim();
+		}
+	}
+
+	/**
+	 * the canvas changed in a way that can't be replayed as strokes, it's captured as a
+	 * keyframe once it settles or before the next stroke is recorded
+	 */
+	public void markChanged() {
+		unsettled = true;
+		handler.removeCallbacks(settle);
+		handler.postDelayed(settle, SETTLE_MILLIS);
+	}
+
+	/**
+	 * capture a change waiting for the canvas to settle now
+	 */
+	public void settle() {
+		handler.removeCallbacks(settle);
+		if (unsettled) {
+			capture(true);
+		}
+	}
+
+	/**
+	 * capture the canvas as a keyframe
+	 * @param replaces	Whether it's a step of its own, rather than a shortcut to the strokes before it
+	 */
+	private void capture(boolean replaces) {
+
+		// no view to draw the canvas, a change waiting to settle is captured by the next one
+		if (width <= 0 || height <= 0 || listener == null) {
+			return;
+		}
+		Bitmap bitmap = takeBitmap();
+		Canvas canvas = new Canvas(bitmap);
+		canvas.drawColor(Color.WHITE);
+		listener.drawCanvas(canvas);
+
+		if (replaces) {
+			steps.add(null);
+		}
+		Keyframe keyframe = new Keyframe(steps.size(), bitmap, new File(directory, "keyframe-" + keyframesCaptured++
+				+ ".png"));
+		keyframes.add(keyframe);
+		writer.add(keyframe);
+		strokesSinceKeyframe = 0;
+		unsettled = false;
+	}
+
+	private static int bytesOf(Stroke stroke) {
+		return stroke.packedBytes + (stroke.widths != null ? stroke.widths.length : 0);
+	}
+
+	/**
+	 * drop steps from the start, up to the latest written keyframe that brings the strokes
+	 * under MAX_HISTORY_BYTES or the last written one, which becomes position 0. not done
+	 * while exporting, the next stroke after catches up
+	 */
+	private void trim() {
+		if (exporter != null) {
+			return;
+		}
+		int base = -1;
+		int freed = 0;
+		int from = 0;
+		for (int i = 0; i < keyframes.size(); i++) {
+			Keyframe keyframe = keyframes.get(i);
+			if (keyframe.position == 0 || !keyframe.written) {
+				continue;
+			}
+			for (int j = from; j < keyframe.position; j++) {
+				Stroke stroke = steps.get(j);
+				if (stroke != null) {
+					freed += bytesOf(stroke);
+				}
+			}
+			from = keyframe.position;
+			base = i;
+			if (strokeBytes - freed <= MAX_HISTORY_BYTES) {
+				break;
+			}
+		}
+		if (base < 0) {
+			return;
+		}
+
+		int dropped = keyframes.get(base).position;
+		for (int i = 0; i < dropped; i++) {
+			Stroke stroke = steps.get(i);
+			if (stroke != null) {
+				stroke.release();
+			}
+		}
+		steps.subList(0, dropped).clear();
+		strokeBytes -= freed;
+		stepsDropped += dropped;
+
+		for (int i = 0; i < base; i++) {
+			drop(keyframes.get(i));
+		}
+		keyframes.subList(0, base).clear();
+		for (int i = 0; i < keyframes.size(); i++) {
+			keyframes.get(i).position -= dropped;
+		}
+
+		// everything it drew is at another position now
+		if (shown != null) {
+			shown.position = -1;
+		}
+	}
+
+	/**
+	 * forget a keyframe before the start of the history. one still being written is finished
+	 * with by onWritten(), its file is deleted by the writer after any write of it
+	 */
+	private void drop(Keyframe keyframe) {
+		keyframe.dropped = true;
+		if (keyframe == decodedKeyframe) {
+			decodedKeyframe = null;
+		}
+		if (keyframe.bitmap != null && keyframe.attempts >= MAX_WRITE_ATTEMPTS) {
+			keyframesUnwritten--;
+			keyframe.bitmap.recycle();
+			keyframe.bitmap = null;
+		}
+		writer.add(keyframe.file);
+	}
+
+	/**
+	 * a keyframe has been written, or couldn't be and is tried again. one that never can be
+	 * keeps its pixels in memory while there are few such, past that it's dropped and seeks
+	 * start from the keyframe before
+	 */
+	private void onWritten(Keyframe keyframe, boolean succeeded) {
+		if (keyframe.dropped) {
+			giveBitmap(keyframe.bitmap);
+			keyframe.bitmap = null;
+			return;
+		}
+		if (!succeeded) {
+			keyframeFailures++;
+			if (++keyframe.attempts < MAX_WRITE_ATTEMPTS) {
+				writer.add(keyframe);
+			} else if (keyframesUnwritten < MAX_UNWRITTEN_KEYFRAMES) {
+				keyframesUnwritten++;
+			} else {
+				keyframes.remove(keyframe);
+				keyframe.bitmap.recycle();
+				keyframe.bitmap = null;
+			}
+			return;
+		}
+		keyframesWritten++;
+		keyframe.written = true;
+		Bitmap bitmap = keyframe.bitmap;
+		keyframe.bitmap = null;
+		giveBitmap(bitmap);
+	}
+
+	private Bitmap takeBitmap() {
+		if (!spareBitmaps.isEmpty()) {
+			return spareBitmaps.remove(spareBitmaps.size() - 1);
+		}
+		return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	private void giveBitmap(Bitmap bitmap) {
+		if (spareBitmaps.size() < MAX_SPARE_BITMAPS && bitmap.getWidth() == width && bitmap.getHeight() == height) {
+			spareBitmaps.add(bitmap);
+		} else {
+			bitmap.recycle();
+		}
+	}
+
+	// *************************************************************************
+	// SEEKING
+	//
+	// *************************************************************************
+
+	/**
+	 * number of steps, the positions run from 0 for the blank canvas, or the oldest keyframe
+	 * kept, to this
+	 */
+	public int getStepCount() {
+		return steps.size();
+	}
+
+	/**
+	 * the canvas after a number of steps, in a bitmap that's only valid until the next call
+	 * @param position	Steps to show, 0 for the start of the history
+	 * @return			The canvas, or null if the view isn't sized yet
+	 */
+	public Bitmap render(int position) {
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+		if (shown == null) {
+			shown = new Renderer();
+		}
+		return shown.render(position);
+	}
+
+	/**
+	 * index of the last keyframe at or before a position, or -1 if there's none
+	 */
+	private int keyframeBefore(int position) {
+		int low = 0;
+		int high = keyframes.size() - 1;
+		int found = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (keyframes.get(middle).position <= position) {
+				found = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * draws the canvas at any position, moving forward from where it last was by drawing
+	 * just the strokes in between, or from the keyframe before the position otherwise
+	 */
+	private class Renderer {
+		private final Bitmap bitmap;
+		private final Canvas canvas;
+		private int position = -1;
+
+		Renderer() {
+			bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			canvas = new Canvas(bitmap);
+		}
+
+		Bitmap render(int target) {
+			target = Math.max(0, Math.min(target, steps.size()));
+			int keyframe = keyframeBefore(target);
+			int from = keyframe < 0 ? 0 : keyframes.get(keyframe).position;
+
+			// no keyframe between here and the target, carry on from here
+			if (position < from || position > target) {
+				canvas.drawColor(Color.WHITE);
+				if (keyframe >= 0) {
+					drawKeyframe(canvas, keyframes.get(keyframe));
+				}
+				position = from;
+			}
+			for (; position < target; position++) {
+				Stroke stroke = steps.get(position);
+				if (stroke != null) {
+					StrokeLayer.drawStroke(canvas, stroke);
+				}
+			}
+			return bitmap;
+		}
+
+		void recycle() {
+			bitmap.recycle();
+		}
+	}
+
+	private void drawKeyframe(Canvas canvas, Keyframe keyframe) {
+		if (keyframe.bitmap != null) {
+			canvas.drawBitmap(keyframe.bitmap, 0, 0, null);
+			return;
+		}
+		if (keyframe != decodedKeyframe && !decode(keyframe)) {
+			Log.w(LOG_TAG, "couldn't read " + keyframe.file);
+			return;
+		}
+		canvas.drawBitmap(decoded, 0, 0, null);
+	}
+
+	/**
+	 * read a keyframe back into decoded, reusing its pixels where the platform can
+	 */
+	private boolean decode(Keyframe keyframe) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		Bitmap read = null;
+
+		// its pixels are about to be overwritten, whichever keyframe they showed
+		decodedKeyframe = null;
+		if (decoded != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			options.inMutable = true;
+			options.inSampleSize = 1;
+			options.inBitmap = decoded;
+			try {
+				read = BitmapFactory.decodeFile(keyframe.file.getPath(), options);
+			} catch (IllegalArgumentException e) {
+
+				// a keyframe of another size, read it into a bitmap of its own
+				options.inBitmap = null;
+			}
+		}
+		if (read == null) {
+			read = BitmapFactory.decodeFile(keyframe.file.getPath(), options);
+		}
+		if (read == null) {
+			return false;
+		}
+		if (decoded != null && decoded != read) {
+			decoded.recycle();
+		}
+		decoded = read;
+		decodedKeyframe = keyframe;
+		return true;
+	}
+
+	// *************************************************************************
+	// TIMELAPSE
+	//
+	// *************************************************************************
+
+	/**
+	 * write the history as numbered PNGs, a frame per step or per few steps of a long one.
+	 * frames are drawn on the UI thread a stroke or two at a time and written on the worker,
+	 * at most two at once
+	 * @param out		Directory for the frames, made if needed
+	 */
+	public void exportTimelapse(File out, ExportListener exportListener) {
+		if (exporter != null || width <= 0 || height <= 0) {
+			exportListener.onExportDone(out, 0, false);
+			return;
+		}
+		settle();
+		out.mkdirs();
+		exporter = new Exporter(out, exportListener);
+		exporter.next();
+	}
+
+	public boolean isExporting() {
+		return exporter != null;
+	}
+
+	private class Exporter {
+		private final File out;
+		private final ExportListener exportListener;
+		private final Renderer renderer;
+
+		// steps when the export began, later ones aren't part of it
+		private final int end;
+		private final int stride;
+		private int position;
+		private int frames;
+		private int written;
+		private int writing;
+		private boolean failed;
+
+		// buffers for frames being written, the renderer carries on meanwhile
+		private final ArrayList<Bitmap> free;
+
+		Exporter(File out, ExportListener exportListener) {
+			this.out = out;
+			this.exportListener = exportListener;
+			renderer = new Renderer();
+			end = steps.size();
+			stride = Math.max(1, (end + MAX_TIMELAPSE_FRAMES - 1) / MAX_TIMELAPSE_FRAMES);
+			free = new ArrayList<Bitmap>();
+			free.add(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+			free.add(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+		}
+
+		/**
+		 * draw and queue frames until both buffers are being written
+		 */
+		void next() {
+			while (!failed && position <= end && !free.isEmpty()) {
+				Bitmap frame = free.remove(free.size() - 1);
+				new Canvas(frame).drawBitmap(renderer.render(position), 0, 0, null);
+				writer.add(new Frame(this, frame, new File(out, String.format(Locale.US, "frame-%05d.png", frames))));
+				writing++;
+				frames++;
+				position = position == end ? end + 1 : Math.min(position + stride, end);
+			}
+			if (writing == 0) {
+				finish();
+			}
+		}
+
+		void onWritten(Bitmap frame, boolean succeeded) {
+			writing--;
+			free.add(frame);
+			if (succeeded) {
+				written++;
+			} else {
+				failed = true;
+			}
+			next();
+		}
+
+		private void finish() {
+			for (int i = 0; i < free.size(); i++) {
+				free.get(i).recycle();
+			}
+			renderer.recycle();
+			exporter = null;
+			exportListener.onExportDone(out, written, !failed);
+		}
+	}
+
+	// *************************************************************************
+	// WRITING
+	//
+	// *************************************************************************
+
+	/**
+	 * a captured canvas, in memory until it has been written
+	 */
+	private static class Keyframe {
+
+		// steps the keyframe shows, less as the start of the history is dropped
+		int position;
+		final File file;
+		Bitmap bitmap;
+		int attempts;
+		boolean written;
+		boolean dropped;
+
+		Keyframe(int position, Bitmap bitmap, File file) {
+			this.position = position;
+			this.bitmap = bitmap;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * a timelapse frame on its way to the writer
+	 */
+	private static class Frame {
+		final Exporter exporter;
+		final Bitmap bitmap;
+		final File file;
+
+		Frame(Exporter exporter, Bitmap bitmap, File file) {
+			this.exporter = exporter;
+			this.bitmap = bitmap;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * writes keyframes and timelapse frames as PNGs in the order they were queued, and
+	 * reports each back on the UI thread. a File queued is a dropped keyframe's, deleted
+	 */
+	private class Writer implements Runnable {
+		private final ArrayList<Object> queue = new ArrayList<Object>();
+
+		synchronized void add(Object item) {
+			queue.add(item);
+			notifyAll();
+		}
+
+		private synchronized Object take() throws InterruptedException {
+			while (queue.isEmpty()) {
+				wait();
+			}
+			return queue.remove(0);
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Object item = take();
+					if (item instanceof Keyframe) {
+						final Keyframe keyframe = (Keyframe) item;
+						final boolean succeeded = write(keyframe.bitmap, keyframe.file);
+						handler.post(new Runnable() {
+							public void run() {
+								onWritten(keyframe, succeeded);
+							}
+						});
+					} else if (item instanceof File) {
+						((File) item).delete();
+					} else {
+						final Frame frame = (Frame) item;
+						final boolean succeeded = write(frame.bitmap, frame.file);
+						handler.post(new Runnable() {
+							public void run() {
+								frame.exporter.onWritten(frame.bitmap, succeeded);
+							}
+						});
+					}
+				}
+			} catch (InterruptedException e) {
+				// the history has been closed
+			}
+		}
+
+		private boolean write(Bitmap bitmap, File file) {
+			FileOutputStream stream = null;
+			try {
+				stream = new FileOutputStream(file);
+				return bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "couldn't write " + file + ": " + e.getMessage());
+				return false;
+			} finally {
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException e) {
+						// already written or already failed
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * bytes of recorded strokes, points and widths, at most about MAX_HISTORY_BYTES
+	 */
+	public int getBytes() {
+		return strokeBytes;
+	}
+
+	public String getStats() {
+		return "steps=" + steps.size() + " keyframes=" + keyframes.size() + " written=" + keyframesWritten
+				+ " failed=" + keyframeFailures + " unwritten=" + keyframesUnwritten + " dropped=" + stepsDropped
+				+ " strokeBytes=" + strokeBytes + " arena " + arena.getStats();
+	}
+}
@@ -0,0 +1,274 @@
+package hurdad.scribble;
+
+import java.util.ArrayList;
+
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+/**
+ * uniform grid over the segments of committed strokes, so the eraser and lasso
+ * only have to look at the strokes near the touch instead of every stroke
+ */
+public class StrokeIndex {
+	private static final float CELL_SIZE = 64f;
+	private static final int INITIAL_CELL_CAPACITY = 8;
+
+	// cells keyed by packed (column, row), only cells with segments are created
+	private final SparseArray<Cell> cells;
+
+	// widest stroke indexed, queries are inflated by this so thick strokes are still hit
+	private float maxHalfWidth;
+
+	// incremented per query so each stroke is visited at most once
+	private int queryStamp;
+
+	// segment as drawn, reused to avoid allocating per segment
+	private final float[] segment;
+
+	public StrokeIndex() {
+		cells = new SparseArray<Cell>();
+		segment = new float[4];
+	}
+
+	// *************************************************************************
+	// MAINTENANCE
+	//
+	// *************************************************************************
+
+	/**
+	 * index every segment of a committed stroke
+	 * @param stroke	The stroke to add
+	 */
+	public void add(Stroke stroke) {
+		int count = stroke.getPointCount();
+		if (count == 0) {
+			return;
+		}
+		maxHalfWidth = Math.max(maxHalfWidth, stroke.getHalfWidth());
+
+		// a single point stroke is indexed as one degenerate segment
+		int segments = Math.max(1, count - 1);
+		for (int s = 0; s < segments; s++) {
+			stroke.getSegment(s, segment);
+
+			int left = cell(Math.min(segment[0], segment[2]));
+			int right = cell(Math.max(segment[0], segment[2]));
+			int top = cell(Math.min(segment[1], segment[3]));
+			int bottom = cell(Math.max(segment[1], segment[3]));
+
+			for (int column = left; column <= right; column++) {
+				for (int row = top; row <= bottom; row++) {
+					int key = key(column, row);
+					Cell cell = cells.get(key);
+					if (cell == null) {
+						cell = new Cell();
+						cells.put(key, cell);
+					}
+					cell.add(stroke, s);
+				}
+			}
+		}
+	}
+
+	/**
+	 * remove every segment of a stroke from the index, must be called before the
+	 * stroke is transformed so its old cells are found
+	 * @param stroke	The stroke to remove
+	 */
+	public void remove(Stroke stroke) {
+		if (stroke.isEmpty()) {
+			return;
+		}
+		RectF bounds = stroke.getDrawBounds();
+		int left = cell(bounds.left);
+		int right = cell(bounds.right);
+		int top = cell(bounds.top);
+		int bottom = cell(bounds.bottom);
+
+		for (int column = left; column <= right; column++) {
+			for (int row = top; row <= bottom; row++) {
+				int key = key(column, row);
+				Cell cell = cells.get(key);
+				if (cell != null) {
+					cell.remove(stroke);
+					if (cell.size == 0) {
+						cells.remove(key);
+					}
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		cells.clear();
+		maxHalfWidth = 0;
+	}
+
+	// *************************************************************************
+	// QUERIES
+	//
+	// *************************************************************************
+
+	/**
+	 * find the strokes touched by a round tool swept from (x0, y0) to (x1, y1)
+	 * @param radius	Radius of the tool, the stroke width is added per stroke
+	 * @param out		Receives each hit stroke once
+	 */
+	public void hitTest(float x0, float y0, float x1, float y1, float radius, ArrayList<Stroke> out) {
+		float reach = radius + maxHalfWidth;
+		int left = cell(Math.min(x0, x1) - reach);
+		int right = cell(Math.max(x0, x1) + reach);
+		int top = cell(Math.min(y0, y1) - reach);
+		int bottom = cell(Math.max(y0, y1) + reach);
+
+		int stamp = ++queryStamp;
+		for (int column = left; column <= right; column++) {
+			for (int row = top; row <= bottom; row++) {
+				Cell cell = cells.get(key(column, row));
+				if (cell == null) {
+					continue;
+				}
+				for (int e = 0; e < cell.size; e++) {
+					Stroke stroke = cell.strokes[e];
+					if (stroke.queryStamp == stamp) {
+						continue;
+					}
+					stroke.getSegment(cell.segments[e], segment);
+					float hit = radius + stroke.getHalfWidth();
+					if (segmentDistanceSq(x0, y0, x1, y1, segment[0], segment[1], segment[2], segment[3]) <= hit * hit) {
+						stroke.queryStamp = stamp;
+						out.add(stroke);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * find the strokes with at least one segment in the cells overlapping a rectangle,
+	 * callers refine the result with an exact test
+	 * @param rect		The area to search
+	 * @param out		Receives each candidate stroke once
+	 */
+	public void query(RectF rect, ArrayList<Stroke> out) {
+		int left = cell(rect.left - maxHalfWidth);
+		int right = cell(rect.right + maxHalfWidth);
+		int top = cell(rect.top - maxHalfWidth);
+		int bottom = cell(rect.bottom + maxHalfWidth);
+
+		int stamp = ++queryStamp;
+		for (int column = left; column <= right; column++) {
+			for (int row = top; row <= bottom; row++) {
+				Cell cell = cells.get(key(column, row));
+				if (cell == null) {
+					continue;
+				}
+				for (int e = 0; e < cell.size; e++) {
+					Stroke stroke = cell.strokes[e];
+					if (stroke.queryStamp != stamp) {
+						stroke.queryStamp = stamp;
+						out.add(stroke);
+					}
+				}
+			}
+		}
+	}
+
+	// *************************************************************************
+	// GEOMETRY HELPERS
+	//
+	// *************************************************************************
+
+	private static int cell(float coordinate) {
+		return (int) Math.floor(coordinate / CELL_SIZE);
+	}
+
+	private static int key(int column, int row) {
+		return (column << 16) | (row & 0xffff);
+	}
+
+	/**
+	 * squared distance between segment a-b and segment c-d
+	 */
+	protected static float segmentDistanceSq(float ax, float ay, float bx, float by,
+			float cx, float cy, float dx, float dy) {
+		if (segmentsIntersect(ax, ay, bx, by, cx, cy, dx, dy)) {
+			return 0;
+		}
+		float distance = pointSegmentDistanceSq(ax, ay, cx, cy, dx, dy);
+		distance = Math.min(distance, pointSegmentDistanceSq(bx, by, cx, cy, dx, dy));
+		distance = Math.min(distance, pointSegmentDistanceSq(cx, cy, ax, ay, bx, by));
+		return Math.min(distance, pointSegmentDistanceSq(dx, dy, ax, ay, bx, by));
+	}
+
+	/**
+	 * squared distance between point p and segment a-b
+	 */
+	protected static float pointSegmentDistanceSq(float px, float py, float ax, float ay, float bx, float by) {
+		float abx = bx - ax;
+		float aby = by - ay;
+		float lengthSq = abx * abx + aby * aby;
+		float t = 0;
+		if (lengthSq > 0) {
+			t = ((px - ax) * abx + (py - ay) * aby) / lengthSq;
+			t = Math.max(0, Math.min(1, t));
+		}
+		float dx = ax + t * abx - px;
+		float dy = ay + t * aby - py;
+		return dx * dx + dy * dy;
+	}
+
+	private static boolean segmentsIntersect(float ax, float ay, float bx, float by,
+			float cx, float cy, float dx, float dy) {
+		float d1 = cross(cx, cy, dx, dy, ax, ay);
+		float d2 = cross(cx, cy, dx, dy, bx, by);
+		float d3 = cross(ax, ay, bx, by, cx, cy);
+		float d4 = cross(ax, ay, bx, by, dx, dy);
+		return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0))
+				&& ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+	}
+
+	private static float cross(float ax, float ay, float bx, float by, float px, float py) {
+		return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+	}
+
+	// *************************************************************************
+	// CELL
+	//
+	// *************************************************************************
+
+	/**
+	 * parallel arrays of (stroke, segment) entries for one grid cell
+	 */
+	private static class Cell {
+		Stroke[] strokes = new Stroke[INITIAL_CELL_CAPACITY];
+		int[] segments = new int[INITIAL_CELL_CAPACITY];
+		int size;
+
+		void add(Stroke stroke, int segment) {
+			if (size == strokes.length) {
+				Stroke[] grownStrokes = new Stroke[size * 2];
+				int[] grownSegments = new int[size * 2];
+				System.arraycopy(strokes, 0, grownStrokes, 0, size);
+				System.arraycopy(segments, 0, grownSegments, 0, size);
+				strokes = grownStrokes;
+				segments = grownSegments;
+			}
+			strokes[size] = stroke;
+			segments[size] = segment;
+			size++;
+		}
+
+		void remove(Stroke stroke) {
+			// order within a cell doesn't matter, fill holes from the end
+			for (int e = size - 1; e >= 0; e--) {
+				if (strokes[e] == stroke) {
+					size--;
+					strokes[e] = strokes[size];
+					segments[e] = segments[size];
+					strokes[size] = null;
+				}
+			}
+		}
+	}
+}
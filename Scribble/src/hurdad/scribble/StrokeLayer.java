@@ -0,0 +1,326 @@
+package hurdad.scribble;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * one layer of the canvas, the committed strokes of a single author
+ *
+ * the layer keeps two rasters: the strokes flattened beyond the undo horizon, and a
+ * cache of those plus its vector strokes. new strokes are drawn straight into the cache,
+ * only removing or moving a stroke makes the layer redraw, and only this layer, and only
+ * where the stroke was. the strokes there are found through the view's StrokeIndex
+ */
+public class StrokeLayer {
+	// a stale area bigger than this share of the layer is redrawn whole, without the index
+	private static final float PARTIAL_REDRAW_LIMIT = 0.5f;
+
+	protected final ArrayList<Stroke> strokes;
+
+	// committed strokes of both layers, this layer's are those whose local flag matches
+	private final StrokeIndex index;
+	private final boolean local;
+
+	private Bitmap flattened;
+	private Canvas flattenedCanvas;
+	private boolean hasFlattened;
+	private Bitmap cache;
+	private Canvas cacheCanvas;
+
+	// where the cache no longer matches the strokes, redrawn before it's next shown
+	private boolean stale;
+	private final RectF staleArea;
+	private boolean visible = true;
+	private int redraws;
+	private int partialRedraws;
+
+	// strokes found in a stale area, and the clip they're drawn under
+	private final ArrayList<Stroke> found;
+	private final RectF foundBounds;
+	private final Rect clip;
+
+	// committed strokes don't keep a native path or mesh, theirs is built here to draw
+	private static final Path scratchPath = new Path();
+	private static final StrokeMesh scratchMesh = new StrokeMesh();
+
+	private static final Comparator<Stroke> COMMIT_ORDER = new Comparator<Stroke>() {
+		public int compare(Stroke a, Stroke b) {
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	/**
+	 * @param index		Index of every committed stroke that isn't lifted, shared with the other layer
+	 * @param local		Whether this layer holds the local strokes
+	 */
+	public StrokeLayer(StrokeIndex index, boolean local) {
+		this.index = index;
+		this.local = local;
+		strokes = new ArrayList<Stroke>();
+		staleArea = new RectF();
+		found = new ArrayList<Stroke>();
+		foundBounds = new RectF();
+		clip = new Rect();
+	}
+
+	/**
+	 * size the rasters to the view, keeping what was already flattened
+	 *
+	 * they're square, as long as the view's longer side, so the view turning between
+	 * portrait and landscape neither crops the flattened strokes, whose vectors are gone,
+	 * nor redraws the cache. they only grow
+	 */
+	public void setSize(int width, int height) {
+		int side = Math.max(width, height);
+
+		// a recreated or rotated view shows the cache as it is
+		if (flattened != null && flattened.getWidth() >= side && flattened.getHeight() >= side) {
+			return;
+		}
+		Bitmap oldFlattened = flattened;
+		flattened = Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
+		flattenedCanvas = new Canvas(flattened);
+		if (oldFlattened != null) {
+			flattenedCanvas.drawBitmap(oldFlattened, 0, 0, null);
+			oldFlattened.recycle();
+		}
+
+		if (cache != null) {
+			cache.recycle();
+		}
+		cache = Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
+		cacheCanvas = new Canvas(cache);
+		stale = true;
+	}
+
+	public boolean hasSize() {
+		return flattened != null;
+	}
+
+	public void add(Stroke stroke) {
+		strokes.add(stroke);
+
+		// drawn on top now, a stale area it falls in is repainted in commit order later
+		if (!stale && cacheCanvas != null && !stroke.lifted) {
+			drawStroke(cacheCanvas, stroke);
+		}
+	}
+
+	/**
+	 * drop the strokes marked as removed, only where they were is redrawn
+	 */
+	public void removeMarked() {
+		int kept = 0;
+		for (int i = 0; i < strokes.size(); i++) {
+			Stroke stroke = strokes.get(i);
+			if (!stroke.removed) {
+				strokes.set(kept++, stroke);
+			} else {
+				staleArea.union(stroke.getPaintBounds());
+			}
+		}
+		for (int i = strokes.size() - 1; i >= kept; i--) {
+			strokes.remove(i);
+		}
+	}
+
+	/**
+	 * rasterize the oldest strokes into the flattened layer and drop their vectors, the
+	 * cache already shows them so it stays as it is
+	 * @param count		Number of strokes from the start of the layer
+	 */
+	public void flatten(int count) {
+		for (int i = 0; i < count; i++) {
+			drawStroke(flattenedCanvas, strokes.get(i));
+		}
+		strokes.subList(0, count).clear();
+		hasFlattened |= count > 0;
+	}
+
+	/**
+	 * rasterize a bucket fill into the flattened layer, under every vector stroke, it
+	 * can't be undone or erased
+	 * @param fill		Holds the fill's pixels inside area and nothing outside
+	 * @param area		Pixels the fill reached
+	 */
+	public void fill(Bitmap fill, Rect area) {
+		if (flattenedCanvas == null) {
+			return;
+		}
+		flattenedCanvas.drawBitmap(fill, area, area, null);
+		hasFlattened = true;
+		invalidateCache(new RectF(area));
+	}
+
+	/**
+	 * redraw the cache before it's next shown
+	 */
+	public void invalidateCache() {
+		stale = true;
+	}
+
+	/**
+	 * redraw part of the cache before it's next shown, after a stroke there has changed
+	 * @param area		Pixels to redraw, a stroke's paint bounds before or after it moved
+	 */
+	public void invalidateCache(RectF area) {
+		staleArea.union(area);
+	}
+
+	public void clear() {
+		strokes.clear();
+		if (flattened != null) {
+			flattened.eraseColor(Color.TRANSPARENT);
+		}
+		hasFlattened = false;
+		stale = true;
+	}
+
+	/**
+	 * whether any stroke or fill has been flattened since the layer was last cleared
+	 */
+	public boolean hasFlattened() {
+		return hasFlattened;
+	}
+
+	/**
+	 * draw only the flattened raster, what a saved drawing can't keep as vectors
+	 */
+	public void drawFlattened(Canvas canvas) {
+		if (hasFlattened) {
+			canvas.drawBitmap(flattened, 0, 0, null);
+		}
+	}
+
+	public void setVisible(boolean visible) {
+		this.visible = visible;
+	}
+
+	public boolean isVisible() {
+		return visible;
+	}
+
+	/**
+	 * number of times the cache has been redrawn from scratch
+	 */
+	public int getRedraws() {
+		return redraws;
+	}
+
+	/**
+	 * number of times part of the cache has been redrawn
+	 */
+	public int getPartialRedraws() {
+		return partialRedraws;
+	}
+
+	public void draw(Canvas canvas) {
+		if (visible) {
+			drawContents(canvas);
+		}
+	}
+
+	/**
+	 * draw the layer whether it's shown or not, a fill looks for edges in every layer
+	 */
+	public void drawContents(Canvas canvas) {
+
+		// not sized yet, draw the vectors directly, skipping those outside the clip
+		if (cache == null) {
+			canvas.getClipBounds(clip);
+			foundBounds.set(clip);
+			for (int i = 0; i < strokes.size(); i++) {
+				Stroke stroke = strokes.get(i);
+				if (!stroke.lifted && RectF.intersects(foundBounds, stroke.getPaintBounds())) {
+					drawStroke(canvas, stroke);
+				}
+			}
+			return;
+		}
+
+		if (!stale && !staleArea.isEmpty()) {
+			staleArea.roundOut(clip);
+			if (!clip.intersect(0, 0, cache.getWidth(), cache.getHeight())) {
+				staleArea.setEmpty();
+			} else if (clip.width() * clip.height() > cache.getWidth() * cache.getHeight() * PARTIAL_REDRAW_LIMIT) {
+				stale = true;
+			} else {
+				redraw(clip);
+			}
+		}
+		if (stale) {
+			redraw();
+		}
+		canvas.drawBitmap(cache, 0, 0, null);
+	}
+
+	private void redraw() {
+		cache.eraseColor(Color.TRANSPARENT);
+		cacheCanvas.drawBitmap(flattened, 0, 0, null);
+		for (int i = 0; i < strokes.size(); i++) {
+			if (!strokes.get(i).lifted) {
+				drawStroke(cacheCanvas, strokes.get(i));
+			}
+		}
+		stale = false;
+		staleArea.setEmpty();
+		redraws++;
+	}
+
+	/**
+	 * redraw the cache inside a rectangle from the flattened raster and the strokes the index
+	 * finds there, in the order they were committed
+	 */
+	private void redraw(Rect area) {
+		foundBounds.set(area);
+		index.query(foundBounds, found);
+		for (int i = found.size() - 1; i >= 0; i--) {
+			Stroke stroke = found.get(i);
+			if (stroke.local != local || stroke.lifted || !RectF.intersects(foundBounds, stroke.getPaintBounds())) {
+				found.remove(i);
+			}
+		}
+		Collections.sort(found, COMMIT_ORDER);
+
+		cacheCanvas.save();
+		cacheCanvas.clipRect(area);
+		cacheCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+		cacheCanvas.drawBitmap(flattened, 0, 0, null);
+		for (int i = 0; i < found.size(); i++) {
+			drawStroke(cacheCanvas, found.get(i));
+		}
+		cacheCanvas.restore();
+
+		found.clear();
+		staleArea.setEmpty();
+		partialRedraws++;
+	}
+
+	/**
+	 * draw a stroke with its transform, its path or mesh is built in a shared scratch one
+	 * unless it keeps its own path, so only called from the UI thread
+	 */
+	public static void drawStroke(Canvas canvas, Stroke stroke) {
+		if (stroke.transform != null) {
+			canvas.save();
+			canvas.concat(stroke.transform);
+		}
+		if (stroke.hasWidths()) {
+			stroke.getMesh(scratchMesh).draw(canvas, stroke.paint);
+		} else {
+			canvas.drawPath(stroke.getPath(scratchPath), stroke.paint);
+		}
+		if (stroke.transform != null) {
+			canvas.restore();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package hurdad.scribble;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.Build;
+
+/**
+ * a variable width stroke as a triangle strip, a vertex either side of each point at
+ * that point's width, drawn with one drawVertices call however many points there are
+ *
+ * each point's side is square to the line between its neighbours, so a mesh built for the
+ * points added since the last frame overlaps the last one by a point and the seam is
+ * covered. hardware canvases can't draw vertices, there the strip's outline is filled
+ */
+public class StrokeMesh {
+	private float[] vertices;
+	private int vertexFloats;
+
+	// brush paint filled rather than stroked, and the outline for hardware canvases
+	private final Paint fill;
+	private final Path outline;
+
+	public StrokeMesh() {
+		vertices = new float[256];
+		fill = new Paint();
+		outline = new Path();
+	}
+
+	/**
+	 * tessellate some of a stroke's points
+	 * @param points		The stroke's points as x-y pairs
+	 * @param widths		Width of each point in ScribbleProtocol.WIDTH_UNITs of the brush width
+	 * @param from			First point to tessellate
+	 * @param to			Point after the last to tessellate
+	 * @param count			Number of points in the stroke, those past to still set the direction
+	 * @param brushWidth	Width of the brush
+	 */
+	public void build(float[] points, byte[] widths, int from, int to, int count, float brushWidth) {
+		vertexFloats = 0;
+		if (vertices.length < (to - from) * 4) {
+			vertices = new float[Math.max((to - from) * 4, vertices.length * 2)];
+		}
+		float scale = brushWidth / 2 / ScribbleProtocol.WIDTH_UNIT;
+		for (int i = from; i < to; i++) {
+			int previous = Math.max(i - 1, 0);
+			int next = Math.min(i + 1, count - 1);
+			float dx = points[next * 2] - points[previous * 2];
+			float dy = points[next * 2 + 1] - points[previous * 2 + 1];
+			float length = (float) Math.sqrt(dx * dx + dy * dy);
+			float half = (widths[i] & 0xff) * scale;
+			float nx = 0;
+			float ny = half;
+			if (length > 0) {
+				nx = -dy / length * half;
+				ny = dx / length * half;
+			}
+			float x = points[i * 2];
+			float y = points[i * 2 + 1];
+			vertices[vertexFloats++] = x + nx;
+			vertices[vertexFloats++] = y + ny;
+			vertices[vertexFloats++] = x - nx;
+			vertices[vertexFloats++] = y - ny;
+		}
+	}
+
+	/**
+	 * draw the mesh last built, nothing for a single point
+	 * @param paint		The stroke's brush, its color is used
+	 */
+	public void draw(Canvas canvas, Paint paint) {
+		if (vertexFloats < 8) {
+			return;
+		}
+		fill.set(paint);
+		fill.setStyle(Paint.Style.FILL);
+		if (isHardwareAccelerated(canvas)) {
+			drawOutline(canvas);
+		} else {
+			canvas.drawVertices(Canvas.VertexMode.TRIANGLE_STRIP, vertexFloats, vertices, 0, null, 0, null, 0, null,
+					0, 0, fill);
+		}
+	}
+
+	/**
+	 * fill the strip's outline, one side forward and the other back
+	 */
+	private void drawOutline(Canvas canvas) {
+		outline.rewind();
+		outline.moveTo(vertices[0], vertices[1]);
+		for (int i = 4; i < vertexFloats; i += 4) {
+			outline.lineTo(vertices[i], vertices[i + 1]);
+		}
+		for (int i = vertexFloats - 2; i > 0; i -= 4) {
+			outline.lineTo(vertices[i], vertices[i + 1]);
+		}
+		outline.close();
+		canvas.drawPath(outline, fill);
+	}
+
+	private static boolean isHardwareAccelerated(Canvas canvas) {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && canvas.isHardwareAccelerated();
+	}
+}
@@ -0,0 +1,27 @@
+package hurdad.scribble;
+
+/**
+ * one decoded message from the peer, slots are owned by a StrokeOpQueue and reused
+ */
+public class StrokeOp {
+	protected int header;
+	protected final float[] points;
+	protected int count;
+
+	public StrokeOp() {
+		// a PATH_MOVE_DELTA word unpacks into two floats
+		points = new float[ScribbleProtocol.MAX_FRAME_FLOATS * 2];
+	}
+
+	public int getHeader() {
+		return header;
+	}
+
+	public float[] getPoints() {
+		return points;
+	}
+
+	public int getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,169 @@
+package hurdad.scribble;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * lock-free single producer, single consumer ring of preallocated StrokeOps
+ *
+ * the ring is also the pool of receive buffers: the connection thread claims a
+ * slot, fills it and publishes it, after which it belongs to the UI thread until
+ * peeked, applied and released. a slot is never written while the consumer owns
+ * it, and nothing is allocated once the ring exists
+ */
+public class StrokeOpQueue {
+	private final StrokeOp[] slots;
+	private final int mask;
+
+	// next slot to publish, written only by the producer
+	private final AtomicLong tail;
+
+	// next slot to release, written only by the consumer
+	private final AtomicLong head;
+
+	// set while the consumer has been asked to drain and hasn't started yet
+	private final AtomicBoolean wakeupPending;
+
+	// slots before this are skipped by the consumer, moved only between producers
+	private volatile long discardTo;
+
+	// pool metrics, written only by the producer
+	private volatile long claims;
+	private volatile long exhaustions;
+	private volatile int highWaterMark;
+
+	// the last claim found the ring full, retries until a claim succeeds aren't counted
+	private boolean exhausted;
+
+	/**
+	 * @param capacity	Number of slots, rounded up to a power of two
+	 */
+	public StrokeOpQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		slots = new StrokeOp[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new StrokeOp();
+		}
+		mask = size - 1;
+		tail = new AtomicLong();
+		head = new AtomicLong();
+		wakeupPending = new AtomicBoolean();
+	}
+
+	// *************************************************************************
+	// PRODUCER
+	//
+	// *************************************************************************
+
+	/**
+	 * get the next free slot to fill, or null if the consumer has fallen a full ring behind
+	 */
+	public StrokeOp claim() {
+		long t = tail.get();
+		if (t - head.get() > mask) {
+			if (!exhausted) {
+				exhausted = true;
+				exhaustions++;
+			}
+			return null;
+		}
+		exhausted = false;
+		claims++;
+		return slots[(int) t & mask];
+	}
+
+	/**
+	 * make the claimed slot visible to the consumer
+	 * @return			Whether the consumer needs to be woken to drain
+	 */
+	public boolean publish() {
+		long t = tail.get() + 1;
+		int used = (int) (t - head.get());
+		if (used > highWaterMark) {
+			highWaterMark = used;
+		}
+		tail.lazySet(t);
+		return wakeupPending.compareAndSet(false, true);
+	}
+
+	/**
+	 * have the consumer skip everything published so far, called once one producer has
+	 * stopped and before the next starts, so a new peer never sees the last one's ops
+	 */
+	public void discardPublished() {
+		discardTo = tail.get();
+	}
+
+	// *************************************************************************
+	// CONSUMER
+	//
+	// *************************************************************************
+
+	/**
+	 * called by the consumer before draining, publishes after this will wake it again
+	 */
+	public void beginDrain() {
+		wakeupPending.set(false);
+	}
+
+	/**
+	 * get the oldest published slot without removing it, or null if empty
+	 */
+	public StrokeOp peek() {
+		long h = head.get();
+		long discard = discardTo;
+		if (h < discard) {
+			h = discard;
+			head.lazySet(h);
+		}
+		if (h == tail.get()) {
+			return null;
+		}
+		return slots[(int) h & mask];
+	}
+
+	/**
+	 * hand the peeked slot back to the producer
+	 */
+	public void release() {
+		head.lazySet(head.get() + 1);
+	}
+
+	public boolean isEmpty() {
+		return Math.max(head.get(), discardTo) == tail.get();
+	}
+
+	public void clear() {
+		head.set(tail.get());
+	}
+
+	// *************************************************************************
+	// METRICS
+	//
+	// *************************************************************************
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * slots claimed by the producer since the queue was created
+	 */
+	public long getClaims() {
+		return claims;
+	}
+
+	/**
+	 * times the ring ran full and the producer had to wait, however long each wait was
+	 */
+	public long getExhaustions() {
+		return exhaustions;
+	}
+
+	/**
+	 * most slots the consumer has been behind by
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+}
@@ -0,0 +1,231 @@
+package hurdad.scribble;
+
+/**
+ * one in-progress stroke, either a finger on this device or a stream from the
+ * peer, reused for every stroke drawn on that slot
+ */
+public class StrokeStream {
+	private static final int INITIAL_CAPACITY = 64;
+
+	// a variable width stroke is as wide as the brush at full pressure, thinner under a
+	// lighter touch and as the finger speeds up, in pixels per millisecond
+	private static final float MIN_PRESSURE = 0.25f;
+	private static final float SPEED_THINNING = 0.35f;
+	private static final float MIN_SPEED_SHARE = 0.35f;
+
+	// share of the way each point's width moves towards the target, so it doesn't jitter
+	private static final float WIDTH_SMOOTHING = 0.3f;
+
+	// stream number sent on the wire, also the slot index
+	protected final int stream;
+
+	// MotionEvent pointer id driving a local stream, -1 when the slot is free
+	protected int pointerId = -1;
+
+	protected Stroke stroke;
+
+	// false once the in-progress stroke has been undone, the next undo removes a committed stroke
+	protected boolean started;
+
+	// a local stroke held back and sent whole when it's finished, the peer hasn't seen it yet
+	protected boolean bulk;
+
+	// points of the stroke already in the live layer, -1 once it has been reset
+	protected int drawnPoints;
+
+	// points gathered from one MotionEvent, waiting to be sent
+	protected float[] pending;
+	protected int pendingSize;
+
+	protected float lastX;
+	protected float lastY;
+
+	// widths of a local stroke waiting to be sent, or of the peer's next points
+	protected float[] widths;
+	protected int widthCount;
+	private int widthsTaken;
+
+	// a local variable width stroke's width as a share of the brush, and when it was last set
+	private float width;
+	private long lastTime;
+
+	// area touched since the last invalidate, not including stroke width
+	protected float leftBound;
+	protected float rightBound;
+	protected float topBound;
+	protected float bottomBound;
+
+	public StrokeStream(int stream) {
+		this.stream = stream;
+		pending = new float[INITIAL_CAPACITY];
+		widths = new float[INITIAL_CAPACITY];
+	}
+
+	public void start(Stroke stroke, float x, float y) {
+		begin(stroke, x, y);
+		stroke.moveTo(x, y);
+	}
+
+	/**
+	 * start a variable width stroke
+	 * @param width		In ScribbleProtocol.WIDTH_UNITs of the brush width
+	 */
+	public void start(Stroke stroke, float x, float y, int width) {
+		begin(stroke, x, y);
+		stroke.moveTo(x, y, width);
+	}
+
+	private void begin(Stroke stroke, float x, float y) {
+		this.stroke = stroke;
+		started = true;
+		pendingSize = 0;
+		drawnPoints = 0;
+
+		lastX = x;
+		lastY = y;
+		resetBounds(x, y);
+	}
+
+	/**
+	 * extend the stroke, growing the dirty bounds
+	 */
+	public void lineTo(float x, float y) {
+		stroke.lineTo(x, y);
+		adjustBounds(x, y);
+		lastX = x;
+		lastY = y;
+	}
+
+	/**
+	 * extend a variable width stroke, growing the dirty bounds
+	 * @param width		In ScribbleProtocol.WIDTH_UNITs of the brush width
+	 */
+	public void lineTo(float x, float y, int width) {
+		stroke.lineTo(x, y, width);
+		adjustBounds(x, y);
+		lastX = x;
+		lastY = y;
+	}
+
+	// *************************************************************************
+	// WIDTHS
+	//
+	// *************************************************************************
+
+	/**
+	 * width of the first point of a local variable width stroke, from how hard it's pressed
+	 * @return			In ScribbleProtocol.WIDTH_UNITs of the brush width
+	 */
+	public int startWidth(float pressure, long time) {
+		width = Math.max(MIN_PRESSURE, Math.min(1f, pressure));
+		lastTime = time;
+		return quantize(width);
+	}
+
+	/**
+	 * width of the next point of a local variable width stroke, from how hard and how fast
+	 * it's drawn, called before the point is added
+	 * @param time		MotionEvent time of the point, in milliseconds
+	 * @return			In ScribbleProtocol.WIDTH_UNITs of the brush width
+	 */
+	public int nextWidth(float x, float y, float pressure, long time) {
+		float dx = x - lastX;
+		float dy = y - lastY;
+		float speed = (float) Math.sqrt(dx * dx + dy * dy) / Math.max(1, time - lastTime);
+		float target = Math.max(MIN_PRESSURE, Math.min(1f, pressure))
+				* Math.max(MIN_SPEED_SHARE, 1f / (1f + speed * SPEED_THINNING));
+		width += (target - width) * WIDTH_SMOOTHING;
+		lastTime = time;
+		return quantize(width);
+	}
+
+	private static int quantize(float share) {
+		return Math.max(1, Math.min(ScribbleProtocol.MAX_WIDTH, Math.round(share * ScribbleProtocol.WIDTH_UNIT)));
+	}
+
+	/**
+	 * queue a point's width to be sent, or one of the peer's to be used
+	 */
+	public void queueWidth(float width) {
+		if (widthCount + 1 > widths.length) {
+			float[] grown = new float[widths.length * 2];
+			System.arraycopy(widths, 0, grown, 0, widthCount);
+			widths = grown;
+		}
+		widths[widthCount++] = width;
+	}
+
+	/**
+	 * queue widths the peer sent ahead of its next points
+	 */
+	public void addWidths(float[] received, int count) {
+		for (int i = 0; i < count; i++) {
+			queueWidth(received[i]);
+		}
+	}
+
+	/**
+	 * the next of the peer's widths
+	 * @return			In ScribbleProtocol.WIDTH_UNITs of the brush width, -1 if none are queued
+	 */
+	public int takeWidth() {
+		if (widthsTaken == widthCount) {
+			clearWidths();
+			return -1;
+		}
+		return (int) widths[widthsTaken++];
+	}
+
+	public void clearWidths() {
+		widthCount = 0;
+		widthsTaken = 0;
+	}
+
+	/**
+	 * queue a point drawn on this device to be sent to the peer
+	 */
+	public void queue(float x, float y) {
+		if (pendingSize + 2 > pending.length) {
+			float[] grown = new float[pending.length * 2];
+			System.arraycopy(pending, 0, grown, 0, pendingSize);
+			pending = grown;
+		}
+		pending[pendingSize++] = x;
+		pending[pendingSize++] = y;
+	}
+
+	/**
+	 * hand back the finished stroke and free the slot
+	 */
+	public Stroke finish() {
+		Stroke finished = stroke;
+		stroke = null;
+		started = false;
+		bulk = false;
+		pointerId = -1;
+		pendingSize = 0;
+		drawnPoints = 0;
+		return finished;
+	}
+
+	public boolean isActive() {
+		return stroke != null;
+	}
+
+	/**
+	 * start a new dirty area at the segment from the last point
+	 */
+	public void resetBounds(float x, float y) {
+		leftBound = Math.min(lastX, x);
+		rightBound = Math.max(lastX, x);
+		topBound = Math.min(lastY, y);
+		bottomBound = Math.max(lastY, y);
+	}
+
+	public void adjustBounds(float x, float y) {
+		leftBound = Math.min(leftBound, x);
+		rightBound = Math.max(rightBound, x);
+		topBound = Math.min(topBound, y);
+		bottomBound = Math.max(bottomBound, y);
+	}
+}
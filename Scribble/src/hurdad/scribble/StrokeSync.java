@@ -0,0 +1,436 @@
+package hurdad.scribble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * reconciles two canvases after a reconnect, sending only the strokes one side is missing
+ *
+ * every stroke either side has seen is keyed by its author and the id the author gave it,
+ * and deleted strokes are kept as tombstones so a deletion made offline wins. ids are
+ * handed out in drawing order, so id ranges are time buckets both sides agree on without
+ * sharing a clock: leaves of 16 ids, each node above them covering 16 of the level below,
+ * up to one root per author. a node's hash is the xor of its strokes' hashes.
+ *
+ * one side sends its two roots, and from then on each side answers the nodes that differ
+ * with its hashes one level down, until differing leaves are swapped as id lists. it takes
+ * a round trip per level, and the bytes sent follow the number of differing strokes rather
+ * than the size of the canvas
+ *
+ * kept free of android classes, the canvas is reached through a Listener
+ */
+public class StrokeSync {
+
+	public interface Listener {
+		/**
+		 * send a sync or STROKE_DELETE message, the body is only valid for the call
+		 */
+		void sendSyncMessage(int status, float[] body, int count);
+
+		/**
+		 * send one of our strokes whole
+		 * @return			False if it has been flattened and can't be sent
+		 */
+		boolean sendOwnStroke(int id);
+
+		/**
+		 * remove a stroke the peer deleted while apart, without telling the peer
+		 */
+		void removeStroke(boolean local, int id);
+	}
+
+	// ids per leaf and children per node, as shifts
+	private static final int LEAF_SHIFT = 4;
+	private static final int FANOUT_SHIFT = 4;
+
+	// ids at or above this are left out, their wire form wouldn't be exact in a float
+	public static final int MAX_ID = 1 << 22;
+
+	// level of the single node covering every id of an author
+	private static final int ROOT_LEVEL = 5;
+
+	// hashes are sent as two floats of 24 bits
+	private static final int HASH_HALF_BITS = 24;
+	private static final long HASH_HALF_MASK = (1L << HASH_HALF_BITS) - 1;
+
+	private static final long DELETED_SALT = 0x632BE59BD9B4E019L;
+
+	private Listener listener;
+
+	// stroke key, author above id, to whether the stroke was deleted
+	private final HashMap<Long, Boolean> strokes;
+
+	private int localAuthor;
+	private int peerAuthor;
+
+	// hashes of one level for both authors, by node key, rebuilt for each message
+	private final HashMap<Long, Long> levelHashes;
+	private final HashMap<Integer, Boolean> peerIds;
+	private final float[] body;
+	private final float[] deletes;
+	private final float[] requests;
+	private int deleteCount;
+	private int requestCount;
+
+	private long messagesSent;
+	private long strokesSent;
+	private long strokesRequested;
+	private long strokesRemoved;
+
+	public StrokeSync(int localAuthor) {
+		this.localAuthor = localAuthor;
+		strokes = new HashMap<Long, Boolean>();
+		levelHashes = new HashMap<Long, Long>();
+		peerIds = new HashMap<Integer, Boolean>();
+		body = new float[2 + (3 << FANOUT_SHIFT)];
+		deletes = new float[ScribbleProtocol.MAX_FLOATS_PER_MESSAGE];
+		requests = new float[ScribbleProtocol.MAX_FLOATS_PER_MESSAGE];
+	}
+
+	/**
+	 * the canvas to reach, replaced when the view showing it is recreated
+	 * @param listener	Null while no view shows it, sync then waits for the next one
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// *************************************************************************
+	// STROKE SET
+	//
+	// *************************************************************************
+
+	public void add(int author, int id) {
+		if (id >= 0 && id < MAX_ID) {
+			strokes.put(Long.valueOf(key(author, id)), Boolean.FALSE);
+		}
+	}
+
+	public void delete(int author, int id) {
+		if (id >= 0 && id < MAX_ID) {
+			strokes.put(Long.valueOf(key(author, id)), Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * mark everything deleted, the canvas was cleared
+	 */
+	public void deleteAll() {
+		for (Map.Entry<Long, Boolean> entry : strokes.entrySet()) {
+			entry.setValue(Boolean.TRUE);
+		}
+	}
+
+	private static long key(int author, int id) {
+		return ((long) author << 32) | id;
+	}
+
+	private static int authorOf(long key) {
+		return (int) (key >>> 32);
+	}
+
+	private static int idOf(long key) {
+		return (int) key;
+	}
+
+	private static long hash(long key, boolean deleted) {
+		long z = key + (deleted ? DELETED_SALT : 0) + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return (z ^ (z >>> 31)) & ((1L << (HASH_HALF_BITS * 2)) - 1);
+	}
+
+	// *************************************************************************
+	// PROTOCOL
+	//
+	// *************************************************************************
+
+	/**
+	 * start reconciling with a newly connected peer, only one side opens so the
+	 * differences aren't resolved twice
+	 */
+	public void start(int peerAuthor) {
+		this.peerAuthor = peerAuthor;
+		if (localAuthor <= peerAuthor) {
+			return;
+		}
+		hashLevel(ROOT_LEVEL);
+		int count = 0;
+		body[count++] = ROOT_LEVEL;
+		body[count++] = -1;
+		count = putNode(count, true, 0);
+		count = putNode(count, false, 0);
+		send(ScribbleProtocol.SYNC_HASHES, body, count);
+	}
+
+	/**
+	 * take in a sync message from the peer
+	 */
+	public void onMessage(int status, float[] points, int count) {
+		if (peerAuthor == 0 || listener == null) {
+			return;
+		}
+		if (status == ScribbleProtocol.SYNC_HASHES && count >= 2) {
+			onHashes(points, count);
+		} else if (status == ScribbleProtocol.SYNC_IDS && count >= 1) {
+			onIds(points, count);
+		} else if (status == ScribbleProtocol.SYNC_REQUEST) {
+			for (int i = 0; i < count; i++) {
+				int wireId = (int) points[i];
+				if ((wireId & 1) == 0 && listener.sendOwnStroke(wireId >> 1)) {
+					strokesSent++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * compare the peer's hashes of one level against ours, and go a level down where they differ
+	 */
+	private void onHashes(float[] points, int count) {
+		int level = (int) points[0];
+		int parentWire = (int) points[1];
+		if (level < 0 || level > ROOT_LEVEL) {
+			return;
+		}
+		hashLevel(level);
+
+		// the peer's children of the parent, ours are looked up in levelHashes
+		HashMap<Long, Long> theirs = new HashMap<Long, Long>();
+		for (int i = 2; i + 2 < count; i += 3) {
+			int nodeWire = (int) points[i];
+			long hash = ((long) points[i + 1] << HASH_HALF_BITS) | (long) points[i + 2];
+			theirs.put(Long.valueOf(nodeKey(!isPeers(nodeWire), nodeWire >> 1)), Long.valueOf(hash));
+		}
+
+		ArrayList<Long> candidates = new ArrayList<Long>();
+		if (parentWire < 0) {
+			candidates.add(Long.valueOf(nodeKey(true, 0)));
+			candidates.add(Long.valueOf(nodeKey(false, 0)));
+		} else {
+			boolean local = !isPeers(parentWire);
+			int parent = parentWire >> 1;
+			candidates.addAll(theirs.keySet());
+			for (Long node : levelHashes.keySet()) {
+				if (nodeIsLocal(node.longValue()) == local && (nodeOf(node.longValue()) >> FANOUT_SHIFT) == parent
+						&& !theirs.containsKey(node)) {
+					candidates.add(node);
+				}
+			}
+		}
+
+		for (int i = 0; i < candidates.size(); i++) {
+			Long node = candidates.get(i);
+			Long ours = levelHashes.get(node);
+			Long their = theirs.get(node);
+			long ourHash = ours != null ? ours.longValue() : 0;
+			long theirHash = their != null ? their.longValue() : 0;
+			if (ourHash == theirHash) {
+				continue;
+			}
+			boolean local = nodeIsLocal(node.longValue());
+			int index = nodeOf(node.longValue());
+			if (level == 0) {
+				sendIds(local, index);
+			} else {
+				sendChildren(level - 1, local, index);
+			}
+		}
+	}
+
+	/**
+	 * our hashes for the children of a node that differs
+	 */
+	private void sendChildren(int level, boolean local, int parent) {
+		hashLevel(level);
+		int count = 0;
+		body[count++] = level;
+		body[count++] = wireKey(local, parent);
+		for (int child = parent << FANOUT_SHIFT; child < (parent + 1) << FANOUT_SHIFT; child++) {
+			if (levelHashes.containsKey(Long.valueOf(nodeKey(local, child)))) {
+				count = putNode(count, local, child);
+			}
+		}
+		send(ScribbleProtocol.SYNC_HASHES, body, count);
+	}
+
+	/**
+	 * our ids in a leaf that differs, deleted ones included
+	 */
+	private void sendIds(boolean local, int leaf) {
+		int author = local ? localAuthor : peerAuthor;
+		int count = 0;
+		body[count++] = wireKey(local, leaf);
+		for (Map.Entry<Long, Boolean> entry : strokes.entrySet()) {
+			long key = entry.getKey().longValue();
+			if (authorOf(key) == author && (idOf(key) >> LEAF_SHIFT) == leaf) {
+				body[count++] = entry.getValue().booleanValue() ? -(idOf(key) + 1) : idOf(key);
+			}
+		}
+		send(ScribbleProtocol.SYNC_IDS, body, count);
+	}
+
+	/**
+	 * settle a leaf from the peer's ids: send what it lacks, ask for what we lack, and
+	 * apply deletions either way
+	 */
+	private void onIds(float[] points, int count) {
+		int leafWire = (int) points[0];
+		boolean local = !isPeers(leafWire);
+		int leaf = leafWire >> 1;
+		int author = local ? localAuthor : peerAuthor;
+
+		peerIds.clear();
+		for (int i = 1; i < count; i++) {
+			int value = (int) points[i];
+			boolean deleted = value < 0;
+			int id = deleted ? -value - 1 : value;
+			if ((id >> LEAF_SHIFT) == leaf) {
+				peerIds.put(Integer.valueOf(id), Boolean.valueOf(deleted));
+			}
+		}
+
+		// ours the peer has never seen, only the author can send a stroke
+		ArrayList<Integer> missing = new ArrayList<Integer>();
+		for (Map.Entry<Long, Boolean> entry : strokes.entrySet()) {
+			long key = entry.getKey().longValue();
+			if (authorOf(key) == author && (idOf(key) >> LEAF_SHIFT) == leaf && !entry.getValue().booleanValue()
+					&& !peerIds.containsKey(Integer.valueOf(idOf(key)))) {
+				missing.add(Integer.valueOf(idOf(key)));
+			}
+		}
+		if (local) {
+			for (int i = 0; i < missing.size(); i++) {
+				if (listener.sendOwnStroke(missing.get(i).intValue())) {
+					strokesSent++;
+				}
+			}
+		}
+
+		deleteCount = 0;
+		requestCount = 0;
+		for (Map.Entry<Integer, Boolean> entry : peerIds.entrySet()) {
+			int id = entry.getKey().intValue();
+			boolean theirsDeleted = entry.getValue().booleanValue();
+			Long key = Long.valueOf(key(author, id));
+			Boolean ours = strokes.get(key);
+
+			if (ours == null) {
+				if (theirsDeleted) {
+					strokes.put(key, Boolean.TRUE);
+				} else if (!local) {
+					putRequest(id);
+				}
+			} else if (theirsDeleted && !ours.booleanValue()) {
+				strokes.put(key, Boolean.TRUE);
+				listener.removeStroke(local, id);
+				strokesRemoved++;
+			} else if (!theirsDeleted && ours.booleanValue()) {
+				putDelete(local, id);
+			}
+		}
+		if (deleteCount > 0) {
+			send(ScribbleProtocol.STROKE_DELETE, deletes, deleteCount);
+		}
+		if (requestCount > 0) {
+			send(ScribbleProtocol.SYNC_REQUEST, requests, requestCount);
+		}
+	}
+
+	private void putRequest(int id) {
+		requests[requestCount++] = id << 1;
+		strokesRequested++;
+		if (requestCount == requests.length) {
+			send(ScribbleProtocol.SYNC_REQUEST, requests, requestCount);
+			requestCount = 0;
+		}
+	}
+
+	/**
+	 * a deletion the peer missed, sent as an ordinary STROKE_DELETE
+	 */
+	private void putDelete(boolean local, int id) {
+		deletes[deleteCount++] = wireKey(local, id);
+		if (deleteCount == deletes.length) {
+			send(ScribbleProtocol.STROKE_DELETE, deletes, deleteCount);
+			deleteCount = 0;
+		}
+	}
+
+	private void send(int status, float[] message, int count) {
+		if (listener == null) {
+			return;
+		}
+		listener.sendSyncMessage(status, message, count);
+		messagesSent++;
+	}
+
+	// *************************************************************************
+	// NODES
+	//
+	// *************************************************************************
+
+	/**
+	 * fill levelHashes with the non-empty nodes of a level, for both authors
+	 */
+	private void hashLevel(int level) {
+		levelHashes.clear();
+		int shift = LEAF_SHIFT + level * FANOUT_SHIFT;
+		Iterator<Map.Entry<Long, Boolean>> entries = strokes.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Long, Boolean> entry = entries.next();
+			long key = entry.getKey().longValue();
+			int author = authorOf(key);
+			if (author != localAuthor && author != peerAuthor) {
+				continue;
+			}
+			Long node = Long.valueOf(nodeKey(author == localAuthor, idOf(key) >>> shift));
+			Long hash = levelHashes.get(node);
+			long value = hash(key, entry.getValue().booleanValue());
+			levelHashes.put(node, Long.valueOf(hash != null ? hash.longValue() ^ value : value));
+		}
+	}
+
+	private int putNode(int count, boolean local, int node) {
+		Long hash = levelHashes.get(Long.valueOf(nodeKey(local, node)));
+		long value = hash != null ? hash.longValue() : 0;
+		body[count++] = wireKey(local, node);
+		body[count++] = value >>> HASH_HALF_BITS;
+		body[count++] = value & HASH_HALF_MASK;
+		return count;
+	}
+
+	private static long nodeKey(boolean local, int node) {
+		return ((local ? 1L : 0L) << 32) | node;
+	}
+
+	private static boolean nodeIsLocal(long nodeKey) {
+		return (nodeKey >>> 32) != 0;
+	}
+
+	private static int nodeOf(long nodeKey) {
+		return (int) nodeKey;
+	}
+
+	/**
+	 * node or id as sent, the low bit is set for the sender's own strokes
+	 */
+	private static int wireKey(boolean local, int value) {
+		return (value << 1) | (local ? 1 : 0);
+	}
+
+	/**
+	 * whether a received key is for the peer's strokes, it set the low bit for its own
+	 */
+	private static boolean isPeers(int wireKey) {
+		return (wireKey & 1) == 1;
+	}
+
+	@Override
+	public String toString() {
+		return "strokes=" + strokes.size() + " messagesSent=" + messagesSent + " strokesSent=" + strokesSent
+				+ " strokesRequested=" + strokesRequested + " strokesRemoved=" + strokesRemoved;
+	}
+}
@@ -0,0 +1,239 @@
+package hurdad.scribble;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * drawing thumbnails for the gallery, from memory, from their own files in the cache
+ * directory, or as a last resort from the start of the drawing's file
+ *
+ * the memory cache is an LRU sized to a share of the heap class. the rest are decoded on a
+ * small pool of low priority threads, one request per ImageView: binding a view to another
+ * drawing, as a list does when it scrolls, cancels the request it had, so a fling only
+ * decodes what it stops on. one instance per process, used from the UI thread
+ */
+public class ThumbnailCache {
+	private static final String LOG_TAG = "ThumbnailCache";
+
+	// longest side of a thumbnail, in pixels
+	public static final int THUMBNAIL_SIZE = 192;
+
+	// share of the heap class the memory cache may use
+	private static final int HEAP_SHARE = 8;
+
+	private static final int DECODE_THREADS = 2;
+
+	private static ThumbnailCache instance;
+
+	private final File directory;
+	private final File drawings;
+	private final LruCache<String, Bitmap> memory;
+	private final ExecutorService pool;
+	private final Handler handler;
+
+	private int hits;
+	private int decodes;
+	private int rebuilds;
+	private int cancels;
+
+	public static synchronized ThumbnailCache get(Context context) {
+		if (instance == null) {
+			instance = new ThumbnailCache(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private ThumbnailCache(Context context) {
+		directory = new File(context.getCacheDir(), "thumbnails");
+		directory.mkdirs();
+		drawings = new File(context.getFilesDir(), "drawings");
+
+		int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+		memory = new LruCache<String, Bitmap>(memoryClass * 1024 * 1024 / HEAP_SHARE) {
+			@Override
+			protected int sizeOf(String name, Bitmap thumbnail) {
+				return thumbnail.getRowBytes() * thumbnail.getHeight();
+			}
+		};
+		pool = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ThumbnailCache");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		handler = new Handler();
+	}
+
+	/**
+	 * scale a canvas down to a thumbnail, keeping its shape
+	 */
+	public static Bitmap createThumbnail(Bitmap canvas) {
+		float scale = (float) THUMBNAIL_SIZE / Math.max(canvas.getWidth(), canvas.getHeight());
+		int width = Math.max(1, Math.round(canvas.getWidth() * scale));
+		int height = Math.max(1, Math.round(canvas.getHeight() * scale));
+		return Bitmap.createScaledBitmap(canvas, width, height, true);
+	}
+
+	/**
+	 * cache a new drawing's thumbnail in memory, before its file is written
+	 */
+	public void put(String name, Bitmap thumbnail) {
+		memory.put(name, thumbnail);
+	}
+
+	/**
+	 * forget a thumbnail, for a drawing that couldn't be written
+	 */
+	public void remove(String name) {
+		memory.remove(name);
+		new File(directory, name + ".png").delete();
+	}
+
+	/**
+	 * keep a thumbnail on disk, called off the UI thread once its drawing is written
+	 */
+	void writeToDisk(String name, Bitmap thumbnail) {
+		File file = new File(directory, name + ".png");
+		FileOutputStream stream = null;
+		try {
+			stream = new FileOutputStream(file);
+			thumbnail.compress(Bitmap.CompressFormat.PNG, 100, stream);
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "couldn't write " + file + ": " + e.getMessage());
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// already written or already failed
+				}
+			}
+		}
+	}
+
+	/**
+	 * show a drawing's thumbnail, at once if it's in memory, otherwise once it's decoded,
+	 * cancelling whatever the view was waiting for before
+	 */
+	public void load(String name, ImageView view) {
+		Request previous = (Request) view.getTag();
+		if (previous != null) {
+			if (previous.name.equals(name)) {
+				return;
+			}
+			previous.cancel();
+		}
+
+		Bitmap thumbnail = memory.get(name);
+		if (thumbnail != null) {
+			hits++;
+			view.setTag(null);
+			view.setImageBitmap(thumbnail);
+			return;
+		}
+		view.setImageDrawable(null);
+		Request request = new Request(name, view);
+		view.setTag(request);
+		request.future = pool.submit(request);
+	}
+
+	/**
+	 * stop waiting for a view's thumbnail, for a view scrolled out of its list
+	 */
+	public void cancel(ImageView view) {
+		Request request = (Request) view.getTag();
+		if (request != null) {
+			request.cancel();
+			view.setTag(null);
+		}
+	}
+
+	private void onDecoded(Request request, Bitmap thumbnail) {
+
+		// nothing to show, the view is free to ask again
+		if (thumbnail == null) {
+			if (request.view.getTag() == request) {
+				request.view.setTag(null);
+			}
+			return;
+		}
+		memory.put(request.name, thumbnail);
+		if (!request.cancelled && request.view.getTag() == request) {
+			request.view.setTag(null);
+			request.view.setImageBitmap(thumbnail);
+		}
+	}
+
+	public String getStats() {
+		return "hits=" + hits + " decodes=" + decodes + " rebuilds=" + rebuilds + " cancels=" + cancels
+				+ " memoryBytes=" + memory.size() + "/" + memory.maxSize();
+	}
+
+	/**
+	 * one view's thumbnail, decoded on the pool
+	 */
+	private class Request implements Runnable {
+		private final String name;
+		private final ImageView view;
+		private Future<?> future;
+		private volatile boolean cancelled;
+
+		Request(String name, ImageView view) {
+			this.name = name;
+			this.view = view;
+		}
+
+		void cancel() {
+			cancelled = true;
+			cancels++;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			File file = new File(directory, name + ".png");
+			Bitmap thumbnail = BitmapFactory.decodeFile(file.getPath());
+
+			// the cache directory was cleared, the drawing's file starts with its thumbnail
+			final boolean rebuild = thumbnail == null;
+			if (rebuild && !cancelled) {
+				thumbnail = DrawingStore.readThumbnail(new File(drawings, name + DrawingStore.EXTENSION));
+				if (thumbnail != null) {
+					writeToDisk(name, thumbnail);
+				}
+			}
+
+			final Bitmap result = thumbnail;
+			handler.post(new Runnable() {
+				public void run() {
+					if (rebuild) {
+						rebuilds++;
+					} else {
+						decodes++;
+					}
+					onDecoded(Request.this, result);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,16 @@
+#!/bin/sh
+# builds the relay and the load generator into out/, run with
+#   java -cp out hurdad.scribble.relay.ScribbleRelay [-port 5150] [-queue 262144]
+#   java -cp out hurdad.scribble.load.LoadGenerator [-relay host:port] [-peers 2] ...
+cd "$(dirname "$0")"
+APP=../Scribble/src/hurdad/scribble
+mkdir -p out
+javac -d out $(find src -name '*.java') \
+	$APP/ScribbleProtocol.java \
+	$APP/LatencyMonitor.java \
+	$APP/ScribbleSession.java \
+	$APP/ChannelWriter.java \
+	$APP/FrameEncoder.java \
+	$APP/FrameDecoder.java \
+	$APP/StrokeOp.java \
+	$APP/StrokeOpQueue.java
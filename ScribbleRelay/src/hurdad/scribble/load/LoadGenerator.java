@@ -0,0 +1,208 @@
+package hurdad.scribble.load;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * stress a session without anyone scribbling: synthetic peers draw through the app's
+ * encoder and decode through its decoder and queue, either in pairs over loopback as
+ * tablets would over bluetooth, or all connected to a relay
+ *
+ * reports frames and bytes per second both ways, how long a stroke took from its first
+ * frame being written to the receiver draining it, and what went missing: strokes sent
+ * but never started at a receiver, frames for a stroke that hadn't started, and bytes
+ * the decoder had to throw away
+ */
+public class LoadGenerator {
+
+	// time after the peers stop drawing for strokes in flight to arrive
+	private static final long SETTLE_MILLIS = 2000;
+
+	private final LoadOptions options;
+	private final SyntheticPeer[] peers;
+	private final ConcurrentHashMap<Long, Long> strokeStarts;
+
+	public LoadGenerator(LoadOptions options) {
+		this.options = options;
+		peers = new SyntheticPeer[options.peers];
+		strokeStarts = new ConcurrentHashMap<Long, Long>();
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadOptions options = LoadOptions.parse(args);
+		if (options == null) {
+			System.err.println(LoadOptions.USAGE);
+			System.exit(1);
+		}
+		System.out.println(options);
+		new LoadGenerator(options).run();
+	}
+
+	public void run() throws IOException, InterruptedException {
+		connect();
+		for (int i = 0; i < peers.length; i++) {
+			peers[i].start();
+		}
+		for (int i = 0; i < peers.length; i++) {
+			if (!peers[i].awaitNegotiated()) {
+				System.out.println("peer " + i + " got no HELLO, drawing with the legacy format");
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < peers.length; i++) {
+			peers[i].startDrawing();
+		}
+
+		long end = start + options.seconds * 1000L;
+		long lastReport = start;
+		long[] last = new long[4];
+		while (System.currentTimeMillis() < end) {
+			Thread.sleep(Math.min(options.reportSeconds * 1000L, Math.max(1, end - System.currentTimeMillis())));
+			long now = System.currentTimeMillis();
+			report(now - start, now - lastReport, last);
+			lastReport = now;
+		}
+
+		for (int i = 0; i < peers.length; i++) {
+			peers[i].stopDrawing();
+		}
+		Thread.sleep(SETTLE_MILLIS);
+		for (int i = 0; i < peers.length; i++) {
+			peers[i].close();
+		}
+		summarize(end - start);
+	}
+
+	private void connect() throws IOException {
+		if (options.host != null) {
+			for (int i = 0; i < peers.length; i++) {
+				peers[i] = new SyntheticPeer(i, options, new Socket(options.host, options.port), strokeStarts);
+			}
+			return;
+		}
+
+		ServerSocket server = new ServerSocket(0, peers.length, InetAddress.getByName("127.0.0.1"));
+		try {
+			for (int i = 0; i < peers.length; i += 2) {
+				Socket client = new Socket("127.0.0.1", server.getLocalPort());
+				Socket accepted = server.accept();
+				peers[i] = new SyntheticPeer(i, options, accepted, strokeStarts);
+				peers[i + 1] = new SyntheticPeer(i + 1, options, client, strokeStarts);
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * a progress line with the rates since the last one
+	 * @param last		Totals at the last report, updated: frames sent, bytes sent, frames and bytes received
+	 */
+	private void report(long elapsedMillis, long intervalMillis, long[] last) {
+		long[] totals = new long[4];
+		for (int i = 0; i < peers.length; i++) {
+			totals[0] += peers[i].getFramesSent();
+			totals[1] += peers[i].getBytesSent();
+			totals[2] += peers[i].getFramesReceived();
+			totals[3] += peers[i].getBytesReceived();
+		}
+		long interval = Math.max(1, intervalMillis);
+		System.out.println((elapsedMillis / 1000) + "s"
+				+ " sent frames/s=" + (totals[0] - last[0]) * 1000 / interval
+				+ " bytes/s=" + (totals[1] - last[1]) * 1000 / interval
+				+ " received frames/s=" + (totals[2] - last[2]) * 1000 / interval
+				+ " bytes/s=" + (totals[3] - last[3]) * 1000 / interval
+				+ " " + latencySummary());
+		System.arraycopy(totals, 0, last, 0, 4);
+	}
+
+	private void summarize(long elapsedMillis) {
+		System.out.println();
+		long framesSent = 0;
+		long bytesSent = 0;
+		long framesReceived = 0;
+		long bytesReceived = 0;
+		long strokesSent = 0;
+		long strokesReceived = 0;
+		long strokesExpected = 0;
+		long backgroundSent = 0;
+		long backgroundReceived = 0;
+		long orphans = 0;
+		long discarded = 0;
+		for (int i = 0; i < peers.length; i++) {
+			SyntheticPeer peer = peers[i];
+			System.out.println(peer);
+			framesSent += peer.getFramesSent();
+			bytesSent += peer.getBytesSent();
+			framesReceived += peer.getFramesReceived();
+			bytesReceived += peer.getBytesReceived();
+			strokesSent += peer.getStrokesSent();
+			strokesReceived += peer.getStrokesReceived();
+			strokesExpected += expectedStrokes(i);
+			backgroundSent += peer.getBackgroundSent();
+			backgroundReceived += peer.getBackgroundReceived();
+			orphans += peer.getOrphanFrames();
+			discarded += peer.getBytesDiscarded();
+		}
+
+		long millis = Math.max(1, elapsedMillis);
+		System.out.println();
+		System.out.println("sent frames/s=" + framesSent * 1000 / millis + " bytes/s=" + bytesSent * 1000 / millis
+				+ " strokes=" + strokesSent);
+		System.out.println("received frames/s=" + framesReceived * 1000 / millis
+				+ " bytes/s=" + bytesReceived * 1000 / millis + " strokes=" + strokesReceived + "/" + strokesExpected);
+		System.out.println("stroke start " + latencySummary());
+		if (options.backgroundRate > 0) {
+			System.out.println("background strokes sent=" + backgroundSent + " received=" + backgroundReceived);
+		}
+		System.out.println("dropped strokes=" + Math.max(0, strokesExpected - strokesReceived)
+				+ " orphanFrames=" + orphans + " discardedBytes=" + discarded);
+	}
+
+	/**
+	 * strokes a peer should have been sent: its partner's over loopback, everyone else's through a relay
+	 */
+	private long expectedStrokes(int peer) {
+		if (options.host == null) {
+			return peers[peer ^ 1].getStrokesSent();
+		}
+		long expected = 0;
+		for (int i = 0; i < peers.length; i++) {
+			if (i != peer) {
+				expected += peers[i].getStrokesSent();
+			}
+		}
+		return expected;
+	}
+
+	private String latencySummary() {
+		int count = 0;
+		for (int i = 0; i < peers.length; i++) {
+			count += peers[i].getLatencyCount();
+		}
+		long[] latencies = new long[count];
+		int copied = 0;
+		for (int i = 0; i < peers.length; i++) {
+			copied += peers[i].copyLatencies(latencies, copied);
+		}
+		if (copied == 0) {
+			return "latency n=0";
+		}
+		Arrays.sort(latencies, 0, copied);
+		return "latency n=" + copied
+				+ " p50=" + percentileMillis(latencies, copied, 50)
+				+ "ms p95=" + percentileMillis(latencies, copied, 95)
+				+ "ms p99=" + percentileMillis(latencies, copied, 99)
+				+ "ms max=" + latencies[copied - 1] / 1000f + "ms";
+	}
+
+	private static float percentileMillis(long[] sorted, int count, int percent) {
+		int index = Math.min(count - 1, Math.max(0, (count * percent + 99) / 100 - 1));
+		return sorted[index] / 1000f;
+	}
+}
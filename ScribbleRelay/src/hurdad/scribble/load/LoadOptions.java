@@ -0,0 +1,146 @@
+package hurdad.scribble.load;
+
+import hurdad.scribble.ScribbleSession;
+
+/**
+ * what the synthetic peers draw and where they send it, from the command line
+ */
+public class LoadOptions {
+	// relay to connect every peer to, null to pair the peers up over loopback instead
+	protected String host;
+	protected int port = 5150;
+
+	protected int peers = 2;
+	protected int seconds = 30;
+
+	// strokes each peer starts per second, on average
+	protected float strokeRate = 1f;
+
+	// points per stroke, and touch events per second they're drawn at
+	protected int strokePoints = 60;
+	protected int touchRate = 60;
+
+	// points per touch event, more than one is the event's history
+	protected int pointsPerEvent = 2;
+
+	// distance between points in px, lower is denser
+	protected float spacing = 6f;
+
+	// chance a stroke is preceded by a brush change, and followed by an undo
+	protected float brushChance = 0.2f;
+	protected float undoChance = 0.05f;
+
+	protected int mode = ScribbleSession.MODE_AUTO;
+
+	// large strokes each peer sends per second on the bulk stream, as sync resends would,
+	// and their length in points. loopback pairs only, the relay has no bulk stream
+	protected float backgroundRate = 0f;
+	protected int backgroundPoints = 2000;
+
+	// bytes per second each peer's link carries, 0 for as fast as the socket goes
+	protected int linkRate = 0;
+
+	// write by channel priority, off writes every frame in order as before channels
+	protected boolean channels = true;
+
+	// seconds between progress lines
+	protected int reportSeconds = 5;
+
+	protected long seed = 1;
+
+	public static final String USAGE = "usage: LoadGenerator [-relay host:port] [-peers 2] [-seconds 30]"
+			+ " [-rate 1] [-points 60] [-touch 60] [-batch 2] [-spacing 6] [-brush 0.2] [-undo 0.05]"
+			+ " [-mode auto|live|bulk] [-background 0] [-bgpoints 2000] [-link 0] [-channels on|off]"
+			+ " [-report 5] [-seed 1]\n-background only works between loopback pairs, not with -relay";
+
+	/**
+	 * @return			Null if an argument isn't understood
+	 */
+	public static LoadOptions parse(String[] args) {
+		LoadOptions options = new LoadOptions();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String name = args[i];
+			String value = args[i + 1];
+			if (name.equals("-relay")) {
+				int colon = value.lastIndexOf(':');
+				if (colon < 0) {
+					options.host = value;
+				} else {
+					options.host = value.substring(0, colon);
+					options.port = Integer.parseInt(value.substring(colon + 1));
+				}
+			} else if (name.equals("-peers")) {
+				options.peers = Integer.parseInt(value);
+			} else if (name.equals("-seconds")) {
+				options.seconds = Integer.parseInt(value);
+			} else if (name.equals("-rate")) {
+				options.strokeRate = Float.parseFloat(value);
+			} else if (name.equals("-points")) {
+				options.strokePoints = Integer.parseInt(value);
+			} else if (name.equals("-touch")) {
+				options.touchRate = Integer.parseInt(value);
+			} else if (name.equals("-batch")) {
+				options.pointsPerEvent = Integer.parseInt(value);
+			} else if (name.equals("-spacing")) {
+				options.spacing = Float.parseFloat(value);
+			} else if (name.equals("-brush")) {
+				options.brushChance = Float.parseFloat(value);
+			} else if (name.equals("-undo")) {
+				options.undoChance = Float.parseFloat(value);
+			} else if (name.equals("-mode")) {
+				if (value.equals("live")) {
+					options.mode = ScribbleSession.MODE_STREAMING;
+				} else if (value.equals("bulk")) {
+					options.mode = ScribbleSession.MODE_BULK;
+				} else if (value.equals("auto")) {
+					options.mode = ScribbleSession.MODE_AUTO;
+				} else {
+					return null;
+				}
+			} else if (name.equals("-background")) {
+				options.backgroundRate = Float.parseFloat(value);
+			} else if (name.equals("-bgpoints")) {
+				options.backgroundPoints = Integer.parseInt(value);
+			} else if (name.equals("-link")) {
+				options.linkRate = Integer.parseInt(value);
+			} else if (name.equals("-channels")) {
+				if (value.equals("on") || value.equals("off")) {
+					options.channels = value.equals("on");
+				} else {
+					return null;
+				}
+			} else if (name.equals("-report")) {
+				options.reportSeconds = Integer.parseInt(value);
+			} else if (name.equals("-seed")) {
+				options.seed = Long.parseLong(value);
+			} else {
+				return null;
+			}
+		}
+		if (args.length % 2 != 0 || options.peers < 2 || options.strokePoints < 1 || options.pointsPerEvent < 1
+				|| options.touchRate < 1 || options.strokeRate <= 0 || options.backgroundRate < 0
+				|| options.backgroundPoints < 1 || options.linkRate < 0) {
+			return null;
+		}
+
+		// without a relay the peers talk in pairs, as two tablets would
+		if (options.host == null && options.peers % 2 != 0) {
+			return null;
+		}
+
+		// the relay negotiates a version without the bulk stream, background strokes would never be sent
+		if (options.host != null && options.backgroundRate > 0) {
+			return null;
+		}
+		return options;
+	}
+
+	@Override
+	public String toString() {
+		return (host == null ? "loopback pairs" : "relay " + host + ":" + port) + " peers=" + peers
+				+ " seconds=" + seconds + " rate=" + strokeRate + " points=" + strokePoints + " touch=" + touchRate
+				+ " batch=" + pointsPerEvent + " spacing=" + spacing + " brush=" + brushChance
+				+ " undo=" + undoChance + " mode=" + mode + " background=" + backgroundRate + "x" + backgroundPoints
+				+ " link=" + (linkRate > 0 ? linkRate + "B/s" : "unlimited") + " channels=" + (channels ? "on" : "off");
+	}
+}
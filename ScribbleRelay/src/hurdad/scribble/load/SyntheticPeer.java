@@ -0,0 +1,572 @@
+package hurdad.scribble.load;
+
+import hurdad.scribble.ChannelWriter;
+import hurdad.scribble.FrameDecoder;
+import hurdad.scribble.FrameEncoder;
+import hurdad.scribble.ScribbleProtocol;
+import hurdad.scribble.ScribbleSession;
+import hurdad.scribble.StrokeOp;
+import hurdad.scribble.StrokeOpQueue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * one emulated tablet: draws synthetic strokes through the app's encoder, and takes
+ * what it's sent through the app's decoder and queue
+ *
+ * threads stand in for the app's: the drawer for touch events on the main thread,
+ * the reader for the connection's read loop, the consumer for the view draining the queue, which
+ * here only checks and counts what it would have drawn, and the app's ChannelWriter.
+ * a background thread can send large strokes on the bulk stream, as sync resends do
+ */
+public class SyntheticPeer {
+	private static final int CANVAS_WIDTH = 1280;
+	private static final int CANVAS_HEIGHT = 800;
+
+	// as ScribbleView and ScribbleConnectionManager
+	private static final int QUEUE_CAPACITY = 1024;
+	private static final int BUFFER_SIZE = 1024;
+
+	// the peer waits this long for the other side's HELLO before drawing anyway
+	private static final long NEGOTIATE_TIMEOUT_MILLIS = 5000;
+
+	protected final int number;
+	private final LoadOptions options;
+	private final Socket socket;
+	private final InputStream inStream;
+	private final ChannelWriter writer;
+
+	private final ScribbleSession session;
+	private final FrameEncoder encoder;
+	private final FrameEncoder backgroundEncoder;
+	private final FrameDecoder decoder;
+	private final StrokeOpQueue queue;
+	private final Random random;
+
+	// when each stroke's first frame was written, by its start point, shared by all peers
+	private final ConcurrentHashMap<Long, Long> strokeStarts;
+
+	private Thread drawer;
+	private Thread reader;
+	private Thread consumer;
+	private Thread background;
+	private Thread writerThread;
+	private volatile boolean running;
+	private volatile boolean stopped;
+	private final Object drainLock = new Object();
+	private boolean drainPending;
+
+	private float[] message;
+	private int nextStrokeId;
+	private final float[] brush = { 8f, 0, 0, 0 };
+
+	// drawing side, written by the drawer
+	private volatile long framesSent;
+	private volatile long bytesSent;
+	protected volatile long strokesSent;
+	private long brushChanges;
+	private long undos;
+	private volatile long backgroundSent;
+
+	// receiving side, written by the reader and consumer
+	private volatile long bytesReceived;
+	private volatile long strokesReceived;
+	private volatile long pointsReceived;
+	private volatile long orphanFrames;
+	private volatile long backgroundReceived;
+	private volatile String failure;
+
+	// stroke start latencies in micros
+	private long[] latencies;
+	private int latencyCount;
+
+	// streams the peer has started a stroke on and not yet ended
+	private final boolean[] active;
+
+	public SyntheticPeer(int number, LoadOptions options, Socket socket, ConcurrentHashMap<Long, Long> strokeStarts)
+			throws IOException {
+		this.number = number;
+		this.options = options;
+		this.socket = socket;
+		this.strokeStarts = strokeStarts;
+		socket.setTcpNoDelay(true);
+		inStream = socket.getInputStream();
+		OutputStream outStream = socket.getOutputStream();
+		if (options.linkRate > 0) {
+			outStream = new ThrottledOutputStream(outStream, options.linkRate);
+		}
+
+		session = new ScribbleSession();
+		session.setLocalSize(CANVAS_WIDTH, CANVAS_HEIGHT);
+		session.setMode(options.mode);
+		writer = new ChannelWriter(outStream, session);
+		encoder = new FrameEncoder(session);
+		backgroundEncoder = new FrameEncoder(session);
+		queue = new StrokeOpQueue(QUEUE_CAPACITY);
+		decoder = new FrameDecoder(queue, session);
+		random = new Random(options.seed * 31 + number);
+
+		message = new float[ScribbleProtocol.BULK_HEADER_FLOATS + options.strokePoints * 2];
+		latencies = new long[1024];
+		active = new boolean[ScribbleProtocol.STREAM_LIMIT];
+	}
+
+	public void start() {
+		running = true;
+		reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "reader-" + number);
+		consumer = new Thread(new Runnable() {
+			public void run() {
+				consume();
+			}
+		}, "consumer-" + number);
+		drawer = new Thread(new Runnable() {
+			public void run() {
+				draw();
+			}
+		}, "drawer-" + number);
+		background = new Thread(new Runnable() {
+			public void run() {
+				sendBackground();
+			}
+		}, "background-" + number);
+		writerThread = new Thread(writer, "writer-" + number);
+		writerThread.start();
+		reader.start();
+		consumer.start();
+
+		float[] hello = new float[ScribbleProtocol.HELLO_FLOATS];
+		int helloCount = session.writeHello(hello);
+		write(ScribbleProtocol.CHANNEL_CONTROL, ScribbleProtocol.encode(null, ScribbleProtocol.HELLO, hello, helloCount));
+	}
+
+	/**
+	 * start drawing once the handshake is done, or has had long enough
+	 */
+	public void startDrawing() {
+		drawer.start();
+		if (options.backgroundRate > 0 && session.hasBulkStream()) {
+			background.start();
+		}
+	}
+
+	public boolean awaitNegotiated() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + NEGOTIATE_TIMEOUT_MILLIS;
+		while (!session.isNegotiated() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return session.isNegotiated();
+	}
+
+	/**
+	 * stop drawing, the connection stays up so strokes in flight still arrive
+	 */
+	public void stopDrawing() throws InterruptedException {
+		running = false;
+		stopped = true;
+		drawer.interrupt();
+		drawer.join();
+		background.interrupt();
+		if (background.isAlive()) {
+			background.join();
+		}
+	}
+
+	public void close() throws InterruptedException {
+		decoder.cancel();
+		writer.close();
+		writerThread.join();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed by the other side
+		}
+		reader.join();
+		consumer.interrupt();
+		consumer.join();
+	}
+
+	// *************************************************************************
+	// DRAWER
+	//
+	// *************************************************************************
+
+	private void draw() {
+		long touchNanos = 1000000000L / options.touchRate;
+		long next = System.nanoTime();
+		try {
+			while (running) {
+				// strokes start at random, the finger can't start one before the last is done
+				next += (long) (-Math.log(1 - random.nextDouble()) / options.strokeRate * 1000000000L);
+				sleepUntil(next);
+
+				if (random.nextFloat() < options.brushChance) {
+					changeBrush();
+				}
+				drawStroke(touchNanos);
+				if (random.nextFloat() < options.undoChance) {
+					send(ScribbleProtocol.PATH_CLEAR, 0, 0);
+					undos++;
+				}
+				next = Math.max(next, System.nanoTime());
+
+				// as the app's idle check, in case nothing drawn carried one
+				ByteBuffer probe = encoder.encodeProbe();
+				if (probe != null) {
+					write(ScribbleProtocol.CHANNEL_CONTROL, probe);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void changeBrush() {
+		brush[0] = 2 + random.nextInt(30);
+		brush[1] = random.nextInt(256);
+		brush[2] = random.nextInt(256);
+		brush[3] = random.nextInt(256);
+		System.arraycopy(brush, 0, message, 0, 4);
+		send(ScribbleProtocol.BRUSH_CHANGE, 0, 4);
+		brushChanges++;
+	}
+
+	private void drawStroke(long touchNanos) throws InterruptedException {
+		int id = nextStrokeId++;
+		boolean bulk = session.isBulk();
+
+		// the start point identifies the stroke to whoever receives it
+		float x;
+		float y;
+		Long key;
+		do {
+			x = random.nextInt(CANVAS_WIDTH) + random.nextInt(4096) / 4096f;
+			y = random.nextInt(CANVAS_HEIGHT) + random.nextInt(4096) / 4096f;
+			key = Long.valueOf(startKey(x, y));
+		} while (strokeStarts.containsKey(key));
+
+		// a wandering line, turning a little each point
+		float angle = random.nextFloat() * 6.2832f;
+		int offset = bulk ? ScribbleProtocol.BULK_HEADER_FLOATS : 0;
+		int count = offset;
+		float[] stroke = message;
+		stroke[count++] = x;
+		stroke[count++] = y;
+
+		if (!bulk) {
+			strokeStarts.put(key, Long.valueOf(System.nanoTime()));
+			stroke[2] = id;
+			send(ScribbleProtocol.PATH_START, 0, 3);
+			strokesSent++;
+			count = 0;
+		}
+
+		long next = System.nanoTime();
+		int drawn = 1;
+		while (drawn < options.strokePoints) {
+			next += touchNanos;
+			sleepUntil(next);
+			int start = count;
+			for (int i = 0; i < options.pointsPerEvent && drawn < options.strokePoints; i++) {
+				angle += (random.nextFloat() - 0.5f) * 0.6f;
+				x = Math.max(0, Math.min(CANVAS_WIDTH, x + (float) Math.cos(angle) * options.spacing));
+				y = Math.max(0, Math.min(CANVAS_HEIGHT, y + (float) Math.sin(angle) * options.spacing));
+				stroke[count++] = x;
+				stroke[count++] = y;
+				drawn++;
+			}
+			if (!bulk) {
+				send(ScribbleProtocol.PATH_MOVE, 0, count - start);
+				count = 0;
+			}
+		}
+
+		if (bulk) {
+			stroke[0] = id;
+			System.arraycopy(brush, 0, stroke, 1, 4);
+			strokeStarts.put(key, Long.valueOf(System.nanoTime()));
+			send(ScribbleProtocol.STROKE_BULK, 0, count);
+			strokesSent++;
+		} else {
+			send(ScribbleProtocol.PATH_END, 0, 0);
+		}
+	}
+
+	private static long startKey(float x, float y) {
+		return ((long) Float.floatToIntBits(x) << 32) | (Float.floatToIntBits(y) & 0xffffffffL);
+	}
+
+	private static void sleepUntil(long nanos) throws InterruptedException {
+		long wait = nanos - System.nanoTime();
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		}
+	}
+
+	private void send(int status, int stream, int count) {
+		int header = ScribbleProtocol.header(status, stream);
+		write(ScribbleProtocol.channel(header), encoder.encode(header, message, count));
+	}
+
+	/**
+	 * as Connection.write, the writer thread times each write for the session's link estimate,
+	 * not synchronized so a background stroke waiting for room doesn't hold up the drawer
+	 */
+	private void write(int channel, ByteBuffer frames) {
+		int length = frames.position();
+		if (!writer.write(options.channels ? channel : ScribbleProtocol.CHANNEL_LIVE, frames.array(), 0, length)) {
+			fail("write failed: " + writer.getFailure());
+			return;
+		}
+		int count = 0;
+		for (int i = 0; i + ScribbleProtocol.HEADER_BYTES <= length; i += ScribbleProtocol.HEADER_BYTES
+				+ frames.getInt(i + 4) * 4) {
+			count++;
+		}
+		synchronized (this) {
+			framesSent += count;
+			bytesSent += length;
+		}
+	}
+
+	/**
+	 * large finished strokes on the bulk stream, at random, until drawing stops
+	 */
+	private void sendBackground() {
+		float[] stroke = new float[ScribbleProtocol.BULK_HEADER_FLOATS + options.backgroundPoints * 2];
+		try {
+			while (running) {
+				sleepUntil(System.nanoTime()
+						+ (long) (-Math.log(1 - random.nextDouble()) / options.backgroundRate * 1000000000L));
+				int count = 0;
+				stroke[count++] = backgroundSent;
+				System.arraycopy(brush, 0, stroke, count, 4);
+				count += 4;
+				float x = CANVAS_WIDTH / 2;
+				float y = CANVAS_HEIGHT / 2;
+				float angle = 0;
+				for (int i = 0; i < options.backgroundPoints; i++) {
+					angle += (random.nextFloat() - 0.5f) * 0.6f;
+					x = Math.max(0, Math.min(CANVAS_WIDTH, x + (float) Math.cos(angle) * options.spacing));
+					y = Math.max(0, Math.min(CANVAS_HEIGHT, y + (float) Math.sin(angle) * options.spacing));
+					stroke[count++] = x;
+					stroke[count++] = y;
+				}
+				int header = ScribbleProtocol.header(ScribbleProtocol.STROKE_BULK, ScribbleProtocol.BULK_STREAM);
+				write(ScribbleProtocol.CHANNEL_BULK, backgroundEncoder.encode(header, stroke, count));
+				backgroundSent++;
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void fail(String reason) {
+		if (failure == null) {
+			failure = reason;
+		}
+		running = false;
+	}
+
+	// *************************************************************************
+	// READER AND CONSUMER
+	//
+	// *************************************************************************
+
+	private void read() {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try {
+			while (true) {
+				int bytes = inStream.read(buffer);
+				if (bytes < 0) {
+					throw new IOException("end of stream");
+				}
+				bytesReceived += bytes;
+				if (decoder.decode(buffer, 0, bytes)) {
+					synchronized (drainLock) {
+						drainPending = true;
+						drainLock.notify();
+					}
+				}
+				ByteBuffer replies = decoder.takeReplies();
+				if (replies != null) {
+					write(ScribbleProtocol.CHANNEL_CONTROL, replies);
+				}
+			}
+		} catch (InterruptedException e) {
+			// cancelled
+		} catch (IOException e) {
+			// the other side hanging up once drawing has stopped is the end of the run
+			if (!stopped) {
+				fail("read failed: " + e.getMessage());
+			}
+		}
+	}
+
+	private void consume() {
+		try {
+			while (true) {
+				synchronized (drainLock) {
+					while (!drainPending) {
+						drainLock.wait();
+					}
+					drainPending = false;
+				}
+				drain();
+			}
+		} catch (InterruptedException e) {
+			// closing, take whatever is left
+			drain();
+		}
+	}
+
+	/**
+	 * as ScribbleView.drainRemote, with drawRemote reduced to checks and counts
+	 */
+	private void drain() {
+		queue.beginDrain();
+		StrokeOp op = queue.peek();
+		while (op != null) {
+			apply(op.getHeader(), op.getPoints(), op.getCount());
+			queue.release();
+			op = queue.peek();
+		}
+	}
+
+	private void apply(int header, float[] points, int count) {
+		int status = ScribbleProtocol.status(header);
+		int stream = ScribbleProtocol.stream(header);
+		if (stream >= ScribbleProtocol.STREAM_LIMIT) {
+			orphanFrames++;
+			return;
+		}
+
+		// background strokes are counted apart, their latency isn't the drawing's
+		if (stream == ScribbleProtocol.BULK_STREAM) {
+			if (status == ScribbleProtocol.PATH_START) {
+				active[stream] = true;
+			} else if (!active[stream]) {
+				orphanFrames++;
+			} else if (status == ScribbleProtocol.PATH_END) {
+				active[stream] = false;
+				backgroundReceived++;
+			}
+			return;
+		}
+
+		if (status == ScribbleProtocol.PATH_START && count >= 2) {
+			active[stream] = true;
+			strokesReceived++;
+			pointsReceived++;
+			Long sent = strokeStarts.get(Long.valueOf(startKey(points[0], points[1])));
+			if (sent != null) {
+				addLatency((System.nanoTime() - sent.longValue()) / 1000);
+			}
+		} else if (status == ScribbleProtocol.PATH_MOVE) {
+			if (!active[stream]) {
+				orphanFrames++;
+			}
+			pointsReceived += count / 2;
+		} else if (status == ScribbleProtocol.PATH_END) {
+			if (!active[stream]) {
+				orphanFrames++;
+			}
+			active[stream] = false;
+		}
+	}
+
+	private synchronized void addLatency(long micros) {
+		if (latencyCount == latencies.length) {
+			long[] grown = new long[latencies.length * 2];
+			System.arraycopy(latencies, 0, grown, 0, latencyCount);
+			latencies = grown;
+		}
+		latencies[latencyCount++] = micros;
+	}
+
+	// *************************************************************************
+	// STATS
+	//
+	// *************************************************************************
+
+	public long getFramesSent() {
+		return framesSent;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getFramesReceived() {
+		return decoder.getFramesDecoded();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public long getStrokesSent() {
+		return strokesSent;
+	}
+
+	public long getStrokesReceived() {
+		return strokesReceived;
+	}
+
+	public long getPointsReceived() {
+		return pointsReceived;
+	}
+
+	public long getBackgroundSent() {
+		return backgroundSent;
+	}
+
+	public long getBackgroundReceived() {
+		return backgroundReceived;
+	}
+
+	public long getOrphanFrames() {
+		return orphanFrames;
+	}
+
+	public long getBytesDiscarded() {
+		return decoder.getBytesDiscarded();
+	}
+
+	public String getFailure() {
+		return failure;
+	}
+
+	/**
+	 * copy the stroke start latencies recorded so far into out, from index start
+	 * @return			Number copied, no more than fit
+	 */
+	public synchronized int copyLatencies(long[] out, int start) {
+		int count = Math.min(latencyCount, out.length - start);
+		System.arraycopy(latencies, 0, out, start, count);
+		return count;
+	}
+
+	public synchronized int getLatencyCount() {
+		return latencyCount;
+	}
+
+	@Override
+	public String toString() {
+		return "peer " + number + " sent strokes=" + strokesSent + " frames=" + framesSent + " bytes=" + bytesSent
+				+ " brushes=" + brushChanges + " undos=" + undos + " background=" + backgroundSent
+				+ " | received strokes=" + strokesReceived + " points=" + pointsReceived + " bytes=" + bytesReceived
+				+ " background=" + backgroundReceived + " orphans=" + orphanFrames
+				+ " | " + session + " | " + decoder.getStats() + " | " + writer.getStats() + " | " + session.getLatency()
+				+ (failure != null ? " | " + failure : "");
+	}
+}
@@ -0,0 +1,63 @@
+package hurdad.scribble.load;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * holds writes to a fixed rate, standing in for a bluetooth link on loopback
+ *
+ * bytes go out in small pieces, each one waiting until the link would have carried
+ * the last, so a large write blocks the writer for as long as the real link would
+ */
+public class ThrottledOutputStream extends OutputStream {
+	private static final int PIECE_BYTES = 256;
+
+	private final OutputStream outStream;
+	private final int bytesPerSecond;
+
+	// when the link has carried everything written so far
+	private long freeNanos;
+
+	public ThrottledOutputStream(OutputStream outStream, int bytesPerSecond) {
+		this.outStream = outStream;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			int piece = Math.min(length, PIECE_BYTES);
+			long now = System.nanoTime();
+			if (freeNanos > now) {
+				long wait = freeNanos - now;
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted");
+				}
+			} else {
+				freeNanos = now;
+			}
+			outStream.write(bytes, offset, piece);
+			freeNanos += piece * 1000000000L / bytesPerSecond;
+			offset += piece;
+			length -= piece;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		outStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		outStream.close();
+	}
+}
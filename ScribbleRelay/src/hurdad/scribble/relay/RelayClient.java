@@ -0,0 +1,135 @@
+package hurdad.scribble.relay;
+
+import hurdad.scribble.ScribbleProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * one connected tablet: its socket buffers, the brush it last chose, and the
+ * strokes it has drawn, by the ids it gave them
+ */
+public class RelayClient {
+	protected final int number;
+	protected final SocketChannel channel;
+	protected SelectionKey key;
+
+	// bytes read but not yet a complete frame
+	protected final ByteBuffer in;
+
+	// frames waiting for the socket, bounded so one slow tablet can't hold up the rest
+	private ByteBuffer out;
+	private final int queueLimit;
+
+	// nothing is relayed to the client until its HELLO arrives, then it's sent the log first
+	protected boolean joined;
+	protected int maxFrameFloats = ScribbleProtocol.MAX_FLOATS_PER_MESSAGE;
+
+	// size, red, green, blue from the last BRUSH_CHANGE
+	protected final float[] brush = { 8f, 0, 0, 0 };
+
+	// in-progress strokes by the client's stream number
+	protected final RelayStroke[] streams;
+
+	// strokes by the id the client gave them, and in the order it drew them
+	protected final HashMap<Integer, RelayStroke> strokesById;
+	protected final ArrayList<RelayStroke> strokes;
+	protected int legacyIds;
+
+	protected long framesIn;
+	protected long bytesIn;
+	protected long bytesOut;
+	protected int maxQueued;
+
+	public RelayClient(int number, SocketChannel channel, int queueLimit) {
+		this.number = number;
+		this.channel = channel;
+		in = ByteBuffer.allocate(ScribbleProtocol.HEADER_BYTES
+				+ ScribbleProtocol.maxFrameFloats(ScribbleProtocol.STROKE_BULK) * 4);
+		this.queueLimit = queueLimit;
+		out = ByteBuffer.allocate(queueLimit);
+		streams = new RelayStroke[ScribbleProtocol.MAX_STREAMS];
+		strokesById = new HashMap<Integer, RelayStroke>();
+		strokes = new ArrayList<RelayStroke>();
+	}
+
+	/**
+	 * queue frames for this client
+	 * @param frames	Frames from 0 to the buffer's position
+	 * @return			False if the queue is full, the client has fallen too far behind
+	 */
+	public boolean enqueue(ByteBuffer frames) {
+		int length = frames.position();
+		if (out.remaining() < length) {
+			return false;
+		}
+		out.put(frames.array(), 0, length);
+		maxQueued = Math.max(maxQueued, out.position());
+		return true;
+	}
+
+	/**
+	 * queue the log for a client that has just joined, on top of the usual limit
+	 * @param frames	Frames from 0 to the buffer's position
+	 */
+	public void replay(ByteBuffer frames) {
+		ByteBuffer grown = ByteBuffer.allocate(out.position() + frames.position() + queueLimit);
+		out.flip();
+		grown.put(out);
+		grown.put(frames.array(), 0, frames.position());
+		out = grown;
+		maxQueued = Math.max(maxQueued, out.position());
+	}
+
+	public boolean hasQueued() {
+		return out.position() > 0;
+	}
+
+	/**
+	 * write as much of the queue as the socket takes
+	 * @return			Whether anything is still queued
+	 */
+	public boolean flush() throws IOException {
+		out.flip();
+		bytesOut += channel.write(out);
+		out.compact();
+
+		// back to the usual limit once the log has mostly gone out
+		if (out.capacity() > queueLimit && out.position() < queueLimit / 2) {
+			ByteBuffer shrunk = ByteBuffer.allocate(queueLimit);
+			out.flip();
+			shrunk.put(out);
+			out = shrunk;
+		}
+		return out.position() > 0;
+	}
+
+	/**
+	 * the stroke the client means by a wire id, its own strokes have the low bit set
+	 */
+	public RelayStroke findOwn(int id) {
+		return strokesById.get(id);
+	}
+
+	/**
+	 * the client's most recent stroke not yet deleted, for undo
+	 */
+	public RelayStroke lastStroke() {
+		for (int i = strokes.size() - 1; i >= 0; i--) {
+			if (!strokes.get(i).deleted) {
+				return strokes.get(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "client " + number + " framesIn=" + framesIn + " bytesIn=" + bytesIn + " bytesOut=" + bytesOut
+				+ " maxQueued=" + maxQueued;
+	}
+}
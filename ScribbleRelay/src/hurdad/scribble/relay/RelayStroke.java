@@ -0,0 +1,112 @@
+package hurdad.scribble.relay;
+
+/**
+ * one stroke in the relay's log, kept so late joiners can be sent the canvas as it is
+ */
+public class RelayStroke {
+	private static final int INITIAL_CAPACITY = 64;
+
+	// id the relay gave the stroke, the one every client but its author knows it by
+	protected final int id;
+
+	// the client that drew it and the id it gave the stroke itself
+	protected final RelayClient owner;
+	protected int ownerId;
+
+	protected final float size;
+	protected final int red;
+	protected final int green;
+	protected final int blue;
+
+	// points stored as x-y pairs, {x1, y1, x2, y2, x3, ..}
+	protected float[] points;
+	protected int pointCount;
+
+	// affine part of the transforms applied so far, as sent in TRANSFORM, null if none
+	protected float[] transform;
+
+	protected boolean finished;
+	protected boolean deleted;
+
+	// stream the stroke is being relayed live on, -1 if it's sent whole when finished
+	protected int slot = -1;
+
+	public RelayStroke(int id, RelayClient owner, int ownerId, float[] brush) {
+		this.id = id;
+		this.owner = owner;
+		this.ownerId = ownerId;
+		size = brush[0];
+		red = (int) brush[1];
+		green = (int) brush[2];
+		blue = (int) brush[3];
+		points = new float[INITIAL_CAPACITY];
+	}
+
+	public void append(float[] source, int offset, int count) {
+		if (pointCount + count > points.length) {
+			float[] grown = new float[Math.max(points.length * 2, pointCount + count)];
+			System.arraycopy(points, 0, grown, 0, pointCount);
+			points = grown;
+		}
+		System.arraycopy(source, offset, points, pointCount, count);
+		pointCount += count;
+	}
+
+	/**
+	 * apply a further transform after any existing one
+	 * @param matrix	Scale x, skew x, translate x, skew y, scale y, translate y
+	 */
+	public void concat(float[] matrix, int offset) {
+		if (transform == null) {
+			transform = new float[6];
+			System.arraycopy(matrix, offset, transform, 0, 6);
+			return;
+		}
+		float[] t = transform;
+		float a = matrix[offset];
+		float b = matrix[offset + 1];
+		float c = matrix[offset + 2];
+		float d = matrix[offset + 3];
+		float e = matrix[offset + 4];
+		float f = matrix[offset + 5];
+		float t0 = a * t[0] + b * t[3];
+		float t1 = a * t[1] + b * t[4];
+		float t2 = a * t[2] + b * t[5] + c;
+		float t3 = d * t[0] + e * t[3];
+		float t4 = d * t[1] + e * t[4];
+		float t5 = d * t[2] + e * t[5] + f;
+		t[0] = t0;
+		t[1] = t1;
+		t[2] = t2;
+		t[3] = t3;
+		t[4] = t4;
+		t[5] = t5;
+	}
+
+	/**
+	 * copy the points with the transform applied, for sending to a late joiner
+	 */
+	public void getTransformedPoints(float[] out) {
+		if (transform == null) {
+			System.arraycopy(points, 0, out, 0, pointCount);
+			return;
+		}
+		float[] t = transform;
+		for (int i = 0; i + 1 < pointCount; i += 2) {
+			float x = points[i];
+			float y = points[i + 1];
+			out[i] = t[0] * x + t[1] * y + t[2];
+			out[i + 1] = t[3] * x + t[4] * y + t[5];
+		}
+	}
+
+	/**
+	 * brush size as drawn, the transform's scale included
+	 */
+	public float getTransformedSize() {
+		if (transform == null) {
+			return size;
+		}
+		return size * (float) Math.sqrt(Math.abs(transform[0] * transform[4] - transform[1] * transform[3]));
+	}
+}
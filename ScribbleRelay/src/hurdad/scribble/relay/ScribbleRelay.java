@@ -0,0 +1,730 @@
+package hurdad.scribble.relay;
+
+import hurdad.scribble.LatencyMonitor;
+import hurdad.scribble.ScribbleProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * headless relay for many tablets on one canvas, speaking the same wire format as
+ * the bluetooth connection over TCP
+ *
+ * every client sees the relay as its one peer: strokes from everyone else arrive as
+ * the relay's strokes, with ids the relay gives them and on streams the relay
+ * shares out, starting with the brush they were drawn with. the relay keeps every
+ * stroke so a tablet joining late is sent the canvas as it stands.
+ *
+ * one thread, one selector: reads are parsed and fanned out to the other clients'
+ * queues as they arrive, and a client whose queue fills up is dropped rather than
+ * holding everyone else back, it can rejoin and be sent the log again
+ */
+public class ScribbleRelay {
+	public static final int DEFAULT_PORT = 5150;
+	private static final int DEFAULT_QUEUE_LIMIT = 256 * 1024;
+	private static final long STATS_INTERVAL_MILLIS = 10000;
+
+	// TRANSFORM messages lead with the affine part of the matrix
+	private static final int MATRIX_FLOATS = 6;
+
+	// the relay keeps no canvas of its own to reconcile, so it stops short of SYNC_VERSION
+	private static final int RELAY_VERSION = 2;
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final int queueLimit;
+
+	private final ArrayList<RelayClient> clients;
+	private final ArrayList<RelayClient> dropped;
+	private int nextClientNumber;
+
+	// the authoritative canvas, in the order strokes were started
+	private final ArrayList<RelayStroke> log;
+	private final HashMap<Integer, RelayStroke> logById;
+	private int nextStrokeId;
+
+	// strokes being relayed live, by the stream every receiver sees them on
+	private final RelayStroke[] slots;
+
+	// finished strokes that had no free stream, sent whole once one frees up
+	private final ArrayList<RelayStroke> waiting;
+
+	// outgoing frames being built, and a frame body read from a client
+	private ByteBuffer frame;
+	private final float[] body;
+	private float[] points;
+	private final ArrayList<RelayStroke> targets;
+
+	private long framesIn;
+	private long bytesIn;
+	private long clientsDropped;
+
+	public ScribbleRelay(int port, int queueLimit) throws IOException {
+		this.queueLimit = queueLimit;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port));
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		clients = new ArrayList<RelayClient>();
+		dropped = new ArrayList<RelayClient>();
+		log = new ArrayList<RelayStroke>();
+		logById = new HashMap<Integer, RelayStroke>();
+		slots = new RelayStroke[ScribbleProtocol.MAX_STREAMS];
+		waiting = new ArrayList<RelayStroke>();
+		frame = ByteBuffer.allocate(64 * 1024);
+		body = new float[ScribbleProtocol.maxFrameFloats(ScribbleProtocol.STROKE_BULK)];
+		points = new float[1024];
+		targets = new ArrayList<RelayStroke>();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		int queueLimit = DEFAULT_QUEUE_LIMIT;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-queue")) {
+				queueLimit = Integer.parseInt(args[i + 1]);
+			} else {
+				System.err.println("usage: ScribbleRelay [-port " + DEFAULT_PORT + "] [-queue " + DEFAULT_QUEUE_LIMIT + "]");
+				System.exit(1);
+			}
+		}
+		ScribbleRelay relay = new ScribbleRelay(port, queueLimit);
+		System.out.println("relay listening on " + port + ", queue limit " + queueLimit + " bytes");
+		relay.run();
+	}
+
+	// *************************************************************************
+	// EVENT LOOP
+	//
+	// *************************************************************************
+
+	public void run() throws IOException {
+		long lastStats = System.currentTimeMillis();
+		while (true) {
+			selector.select(STATS_INTERVAL_MILLIS);
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				RelayClient client = (RelayClient) key.attachment();
+				try {
+					if (key.isReadable()) {
+						read(client);
+					}
+					if (key.isValid() && key.isWritable()) {
+						write(client);
+					}
+				} catch (IOException e) {
+					drop(client, e.getMessage());
+				}
+				closeDropped();
+			}
+
+			// ask to be told when a socket can take more, only for clients with something queued
+			for (int i = 0; i < clients.size(); i++) {
+				RelayClient client = clients.get(i);
+				int ops = client.hasQueued() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+				if (client.key.isValid() && client.key.interestOps() != ops) {
+					client.key.interestOps(ops);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastStats >= STATS_INTERVAL_MILLIS) {
+				printStats(now - lastStats);
+				lastStats = now;
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		RelayClient client = new RelayClient(nextClientNumber++, channel, queueLimit);
+		client.key = channel.register(selector, SelectionKey.OP_READ, client);
+		clients.add(client);
+
+		// the relay's HELLO: raw points only and no compression, so frames can be relayed as they are
+		frame.clear();
+		frame.putInt(ScribbleProtocol.header(ScribbleProtocol.HELLO, 0));
+		frame.putInt(ScribbleProtocol.HELLO_MIN_FLOATS);
+		frame.putFloat(ScribbleProtocol.HELLO_MAGIC);
+		frame.putFloat(RELAY_VERSION);
+		frame.putFloat(ScribbleProtocol.CODEC_RAW);
+		frame.putFloat(0);
+		frame.putFloat(0);
+		frame.putFloat(0);
+		frame.putFloat(ScribbleProtocol.MAX_FRAME_FLOATS);
+		client.enqueue(frame);
+
+		System.out.println("client " + client.number + " connected from " + channel.socket().getRemoteSocketAddress());
+	}
+
+	private void read(RelayClient client) throws IOException {
+		int bytes = client.channel.read(client.in);
+		if (bytes < 0) {
+			throw new IOException("end of stream");
+		}
+		client.bytesIn += bytes;
+		bytesIn += bytes;
+
+		ByteBuffer in = client.in;
+		in.flip();
+		while (in.remaining() >= ScribbleProtocol.HEADER_BYTES) {
+			int start = in.position();
+			int header = in.getInt(start);
+			int count = in.getInt(start + 4);
+			int status = ScribbleProtocol.status(header);
+			if (status >= ScribbleProtocol.STATUS_LIMIT || ScribbleProtocol.stream(header) >= ScribbleProtocol.MAX_STREAMS
+					|| count < 0 || count > ScribbleProtocol.maxFrameFloats(status)) {
+				throw new IOException("bad frame header " + Integer.toHexString(header) + " count " + count);
+			}
+			int frameBytes = ScribbleProtocol.HEADER_BYTES + count * 4;
+			if (in.remaining() < frameBytes) {
+				break;
+			}
+
+			int bodyStart = start + ScribbleProtocol.HEADER_BYTES;
+			if (status == ScribbleProtocol.PING) {
+				answerPing(client, bodyStart, count);
+			} else if (status != ScribbleProtocol.PONG) {
+				for (int i = 0; i < count; i++) {
+					body[i] = in.getFloat(bodyStart + i * 4);
+				}
+				handle(client, header, count);
+			}
+			in.position(start + frameBytes);
+			client.framesIn++;
+			framesIn++;
+		}
+		in.compact();
+	}
+
+	private void write(RelayClient client) throws IOException {
+		client.flush();
+	}
+
+	private void drop(RelayClient client, String reason) {
+		if (!dropped.contains(client)) {
+			System.out.println("dropping " + client + ": " + reason);
+			dropped.add(client);
+		}
+	}
+
+	/**
+	 * close dropped clients once the frame that dropped them has been handled
+	 */
+	private void closeDropped() {
+		for (int i = 0; i < dropped.size(); i++) {
+			RelayClient client = dropped.get(i);
+			clients.remove(client);
+			client.key.cancel();
+			try {
+				client.channel.close();
+			} catch (IOException e) {
+				System.out.println("close failed for client " + client.number + ": " + e.getMessage());
+			}
+
+			// its unfinished strokes end where they are
+			for (int stream = 0; stream < ScribbleProtocol.MAX_STREAMS; stream++) {
+				if (client.streams[stream] != null) {
+					endStroke(client, stream);
+				}
+			}
+			clientsDropped++;
+		}
+		dropped.clear();
+	}
+
+	private void printStats(long elapsedMillis) {
+		int live = 0;
+		for (int i = 0; i < log.size(); i++) {
+			if (!log.get(i).deleted) {
+				live++;
+			}
+		}
+		System.out.println("clients=" + clients.size() + " strokes=" + live + "/" + log.size()
+				+ " waiting=" + waiting.size()
+				+ " framesIn/s=" + framesIn * 1000 / elapsedMillis
+				+ " bytesIn/s=" + bytesIn * 1000 / elapsedMillis
+				+ " dropped=" + clientsDropped);
+		framesIn = 0;
+		bytesIn = 0;
+	}
+
+	// *************************************************************************
+	// MESSAGE HANDLING
+	//
+	// *************************************************************************
+
+	private void handle(RelayClient client, int header, int count) {
+		int status = ScribbleProtocol.status(header);
+		int stream = ScribbleProtocol.stream(header);
+
+		if (status == ScribbleProtocol.HELLO) {
+			if (count >= ScribbleProtocol.HELLO_MIN_FLOATS && (int) body[0] == ScribbleProtocol.HELLO_MAGIC) {
+				client.maxFrameFloats = Math.max(2, Math.min((int) body[6], ScribbleProtocol.MAX_FRAME_FLOATS) & ~1);
+				if (!client.joined) {
+					join(client);
+				}
+			}
+		} else if (status == ScribbleProtocol.BRUSH_CHANGE && count >= 4) {
+			// not relayed, each stroke is started with its brush instead
+			System.arraycopy(body, 0, client.brush, 0, 4);
+		} else if (status == ScribbleProtocol.PATH_START && count >= 2) {
+			int id = count > 2 ? (int) body[2] : client.legacyIds++;
+			startStroke(client, stream, id, client.brush, body, 0, 2);
+		} else if (status == ScribbleProtocol.PATH_MOVE) {
+			moveStroke(client, stream, count & ~1);
+		} else if (status == ScribbleProtocol.PATH_END) {
+			if (client.streams[stream] != null) {
+				endStroke(client, stream);
+			}
+		} else if (status == ScribbleProtocol.STROKE_BULK) {
+			bulkStroke(client, stream, count);
+		} else if (status == ScribbleProtocol.PATH_CLEAR) {
+			undo(client);
+		} else if (status == ScribbleProtocol.STROKE_DELETE) {
+			delete(client, count);
+		} else if (status == ScribbleProtocol.TRANSFORM && count >= MATRIX_FLOATS) {
+			transform(client, count);
+		} else if (status == ScribbleProtocol.FULL_CLEAR) {
+			fullClear(client);
+		}
+		// PATH_MOVE_DELTA and STROKE_BULK_DEFLATE aren't offered in the relay's HELLO
+	}
+
+	private void answerPing(RelayClient client, int bodyStart, int count) {
+		if (count != ScribbleProtocol.PING_WORDS) {
+			return;
+		}
+		long received = LatencyMonitor.clockMicros();
+		frame.clear();
+		ScribbleProtocol.putPong(frame, client.in.getInt(bodyStart), client.in.getLong(bodyStart + 4), received,
+				LatencyMonitor.clockMicros());
+		sendTo(client);
+	}
+
+	/**
+	 * start relaying to a client once it has said hello, with the canvas as it stands
+	 */
+	private void join(RelayClient client) {
+		client.joined = true;
+
+		ByteBuffer replay = ByteBuffer.allocate(64 * 1024);
+		for (int i = 0; i < log.size(); i++) {
+			RelayStroke stroke = log.get(i);
+			if (stroke.finished && !stroke.deleted && !waiting.contains(stroke)) {
+				frame.clear();
+				putWhole(stroke, 0, client.maxFrameFloats);
+				replay = append(replay, frame);
+			}
+		}
+
+		// strokes in progress carry on after what they've drawn so far
+		for (int slot = 0; slot < slots.length; slot++) {
+			RelayStroke stroke = slots[slot];
+			if (stroke != null) {
+				frame.clear();
+				putStart(stroke, slot);
+				if (stroke.pointCount > 2) {
+					putFrames(ScribbleProtocol.header(ScribbleProtocol.PATH_MOVE, slot), stroke.points, 2,
+							stroke.pointCount - 2, client.maxFrameFloats);
+				}
+				replay = append(replay, frame);
+			}
+		}
+
+		client.replay(replay);
+		System.out.println("client " + client.number + " joined, sent " + replay.position() + " bytes of log");
+	}
+
+	private static ByteBuffer append(ByteBuffer to, ByteBuffer frames) {
+		if (to.remaining() < frames.position()) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(to.capacity() * 2, to.position() + frames.position()));
+			to.flip();
+			grown.put(to);
+			to = grown;
+		}
+		to.put(frames.array(), 0, frames.position());
+		return to;
+	}
+
+	private void startStroke(RelayClient client, int stream, int ownerId, float[] brush, float[] source, int offset, int count) {
+		// a start without an end, keep what was drawn so far
+		if (client.streams[stream] != null) {
+			endStroke(client, stream);
+		}
+
+		RelayStroke stroke = new RelayStroke(nextStrokeId++, client, ownerId, brush);
+		stroke.append(source, offset, count);
+		log.add(stroke);
+		logById.put(stroke.id, stroke);
+		client.strokesById.put(ownerId, stroke);
+		client.strokes.add(stroke);
+		client.streams[stream] = stroke;
+
+		// relay it live if a stream is free, otherwise it's sent whole when finished
+		int slot = freeSlot();
+		if (slot >= 0) {
+			slots[slot] = stroke;
+			stroke.slot = slot;
+			frame.clear();
+			putStart(stroke, slot);
+			sendToOthers(client);
+		}
+	}
+
+	private void moveStroke(RelayClient client, int stream, int count) {
+		RelayStroke stroke = client.streams[stream];
+		if (stroke == null || count == 0) {
+			return;
+		}
+		stroke.append(body, 0, count);
+		if (stroke.slot >= 0) {
+			frame.clear();
+			putFrames(ScribbleProtocol.header(ScribbleProtocol.PATH_MOVE, stroke.slot), body, 0, count, minFrameFloats());
+			sendToOthers(client);
+		}
+	}
+
+	private void endStroke(RelayClient client, int stream) {
+		RelayStroke stroke = client.streams[stream];
+		client.streams[stream] = null;
+		stroke.finished = true;
+		if (stroke.slot >= 0) {
+			frame.clear();
+			frame.putInt(ScribbleProtocol.header(ScribbleProtocol.PATH_END, stroke.slot));
+			frame.putInt(0);
+			sendToOthers(client);
+			slots[stroke.slot] = null;
+			stroke.slot = -1;
+		} else {
+			waiting.add(stroke);
+		}
+		sendWaiting();
+	}
+
+	private void bulkStroke(RelayClient client, int stream, int count) {
+		int pointFloats = (count - ScribbleProtocol.BULK_HEADER_FLOATS) & ~1;
+		if (pointFloats < 2) {
+			return;
+		}
+		float[] brush = { body[1], body[2], body[3], body[4] };
+		RelayStroke stroke = new RelayStroke(nextStrokeId++, client, (int) body[0], brush);
+		stroke.append(body, ScribbleProtocol.BULK_HEADER_FLOATS, pointFloats);
+		stroke.finished = true;
+		log.add(stroke);
+		logById.put(stroke.id, stroke);
+		client.strokesById.put(stroke.ownerId, stroke);
+		client.strokes.add(stroke);
+
+		waiting.add(stroke);
+		sendWaiting();
+	}
+
+	/**
+	 * send finished strokes whole, each start to end in one go, so any free stream will do
+	 */
+	private void sendWaiting() {
+		int slot = freeSlot();
+		while (slot >= 0 && waiting.size() > 0) {
+			RelayStroke stroke = waiting.remove(0);
+			if (!stroke.deleted) {
+				frame.clear();
+				putWhole(stroke, slot, minFrameFloats());
+				sendToOthers(stroke.owner);
+			}
+		}
+	}
+
+	/**
+	 * a client's undo: its strokes in progress start over, or its last stroke goes
+	 */
+	private void undo(RelayClient client) {
+		boolean reset = false;
+		for (int stream = 0; stream < ScribbleProtocol.MAX_STREAMS; stream++) {
+			RelayStroke stroke = client.streams[stream];
+			if (stroke == null) {
+				continue;
+			}
+			reset = true;
+
+			// the others can't drop part of a stroke, so it's deleted and drawing carries on in a new one
+			float[] brush = { stroke.size, stroke.red, stroke.green, stroke.blue };
+			int lastPoint = stroke.pointCount - 2;
+			int slot = stroke.slot;
+			if (slot >= 0) {
+				frame.clear();
+				frame.putInt(ScribbleProtocol.header(ScribbleProtocol.PATH_END, slot));
+				frame.putInt(0);
+				sendToOthers(client);
+				slots[slot] = null;
+			}
+			stroke.finished = true;
+			stroke.deleted = true;
+			client.streams[stream] = null;
+			if (slot >= 0) {
+				targets.add(stroke);
+				sendDelete(client);
+				targets.clear();
+			}
+			startStroke(client, stream, stroke.ownerId, brush, stroke.points, lastPoint, 2);
+		}
+
+		if (!reset) {
+			RelayStroke last = client.lastStroke();
+			if (last != null && last.finished) {
+				last.deleted = true;
+				targets.add(last);
+				sendDelete(client);
+				targets.clear();
+			}
+		}
+	}
+
+	private void delete(RelayClient client, int count) {
+		for (int i = 0; i < count; i++) {
+			RelayStroke stroke = resolve(client, (int) body[i]);
+			if (stroke != null) {
+				stroke.deleted = true;
+				targets.add(stroke);
+			}
+		}
+		sendDelete(client);
+		targets.clear();
+	}
+
+	private void transform(RelayClient client, int count) {
+		for (int i = MATRIX_FLOATS; i < count; i++) {
+			RelayStroke stroke = resolve(client, (int) body[i]);
+			if (stroke != null) {
+				stroke.concat(body, 0);
+				targets.add(stroke);
+			}
+		}
+
+		// ids are different for every receiver, so each gets its own messages
+		int idsPerMessage = ScribbleProtocol.MAX_FLOATS_PER_MESSAGE - MATRIX_FLOATS;
+		for (int c = 0; c < clients.size(); c++) {
+			RelayClient receiver = clients.get(c);
+			if (receiver == client || !receiver.joined) {
+				continue;
+			}
+			frame.clear();
+			for (int start = 0; start < targets.size(); start += idsPerMessage) {
+				int ids = Math.min(targets.size() - start, idsPerMessage);
+				frame.putInt(ScribbleProtocol.header(ScribbleProtocol.TRANSFORM, 0));
+				frame.putInt(MATRIX_FLOATS + ids);
+				for (int i = 0; i < MATRIX_FLOATS; i++) {
+					frame.putFloat(body[i]);
+				}
+				for (int i = 0; i < ids; i++) {
+					frame.putFloat(wireId(targets.get(start + i), receiver));
+				}
+			}
+			sendTo(receiver);
+		}
+		targets.clear();
+	}
+
+	private void fullClear(RelayClient client) {
+		log.clear();
+		logById.clear();
+		waiting.clear();
+		for (int i = 0; i < clients.size(); i++) {
+			clients.get(i).strokesById.clear();
+			clients.get(i).strokes.clear();
+		}
+		frame.clear();
+		frame.putInt(ScribbleProtocol.header(ScribbleProtocol.FULL_CLEAR, 0));
+		frame.putInt(0);
+		sendToOthers(client);
+	}
+
+	/**
+	 * the finished stroke a client means by a wire id: its own with the low bit set, else one of the relay's
+	 */
+	private RelayStroke resolve(RelayClient client, int wireId) {
+		int id = wireId >> 1;
+		RelayStroke stroke = (wireId & 1) == 1 ? client.findOwn(id) : logById.get(id);
+		if (stroke == null || stroke.deleted || !stroke.finished) {
+			return null;
+		}
+		return stroke;
+	}
+
+	/**
+	 * the id a receiver knows a stroke by: its own id for its own strokes, else the relay's
+	 */
+	private static float wireId(RelayStroke stroke, RelayClient receiver) {
+		if (stroke.owner == receiver) {
+			return stroke.ownerId << 1;
+		}
+		return (stroke.id << 1) | 1;
+	}
+
+	/**
+	 * tell every other client the strokes in targets are gone
+	 */
+	private void sendDelete(RelayClient client) {
+		if (targets.size() == 0) {
+			return;
+		}
+		int idsPerMessage = ScribbleProtocol.MAX_FLOATS_PER_MESSAGE;
+		for (int c = 0; c < clients.size(); c++) {
+			RelayClient receiver = clients.get(c);
+			if (receiver == client || !receiver.joined) {
+				continue;
+			}
+			frame.clear();
+			for (int start = 0; start < targets.size(); start += idsPerMessage) {
+				int ids = Math.min(targets.size() - start, idsPerMessage);
+				frame.putInt(ScribbleProtocol.header(ScribbleProtocol.STROKE_DELETE, 0));
+				frame.putInt(ids);
+				for (int i = 0; i < ids; i++) {
+					frame.putFloat(wireId(targets.get(start + i), receiver));
+				}
+			}
+			sendTo(receiver);
+		}
+	}
+
+	// *************************************************************************
+	// FRAMES
+	//
+	// *************************************************************************
+
+	private int freeSlot() {
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i] == null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * largest body every joined client accepts
+	 */
+	private int minFrameFloats() {
+		int min = ScribbleProtocol.MAX_FRAME_FLOATS;
+		for (int i = 0; i < clients.size(); i++) {
+			if (clients.get(i).joined) {
+				min = Math.min(min, clients.get(i).maxFrameFloats);
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * PATH_START carrying the stroke's id and brush: x, y, id, size, red, green, blue
+	 */
+	private void putStart(RelayStroke stroke, int slot) {
+		ensureFrame(ScribbleProtocol.HEADER_BYTES + 7 * 4);
+		frame.putInt(ScribbleProtocol.header(ScribbleProtocol.PATH_START, slot));
+		frame.putInt(7);
+		frame.putFloat(stroke.points[0]);
+		frame.putFloat(stroke.points[1]);
+		frame.putFloat(stroke.id);
+		frame.putFloat(stroke.getTransformedSize());
+		frame.putFloat(stroke.red);
+		frame.putFloat(stroke.green);
+		frame.putFloat(stroke.blue);
+	}
+
+	/**
+	 * a finished stroke from start to end, with any transform applied to its points
+	 */
+	private void putWhole(RelayStroke stroke, int slot, int maxFrameFloats) {
+		if (points.length < stroke.pointCount) {
+			points = new float[Math.max(points.length * 2, stroke.pointCount)];
+		}
+		stroke.getTransformedPoints(points);
+
+		ensureFrame(ScribbleProtocol.HEADER_BYTES + 7 * 4);
+		frame.putInt(ScribbleProtocol.header(ScribbleProtocol.PATH_START, slot));
+		frame.putInt(7);
+		frame.putFloat(points[0]);
+		frame.putFloat(points[1]);
+		frame.putFloat(stroke.id);
+		frame.putFloat(stroke.getTransformedSize());
+		frame.putFloat(stroke.red);
+		frame.putFloat(stroke.green);
+		frame.putFloat(stroke.blue);
+
+		if (stroke.pointCount > 2) {
+			putFrames(ScribbleProtocol.header(ScribbleProtocol.PATH_MOVE, slot), points, 2, stroke.pointCount - 2,
+					maxFrameFloats);
+		}
+
+		ensureFrame(ScribbleProtocol.HEADER_BYTES);
+		frame.putInt(ScribbleProtocol.header(ScribbleProtocol.PATH_END, slot));
+		frame.putInt(0);
+	}
+
+	/**
+	 * raw frames of at most maxFrameFloats each
+	 */
+	private void putFrames(int header, float[] source, int offset, int count, int maxFrameFloats) {
+		for (int start = offset; start < offset + count; start += maxFrameFloats) {
+			int chunk = Math.min(offset + count - start, maxFrameFloats);
+			ensureFrame(ScribbleProtocol.HEADER_BYTES + chunk * 4);
+			frame.putInt(header);
+			frame.putInt(chunk);
+			for (int i = start; i < start + chunk; i++) {
+				frame.putFloat(source[i]);
+			}
+		}
+	}
+
+	private void ensureFrame(int bytes) {
+		if (frame.remaining() < bytes) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(frame.capacity() * 2, frame.position() + bytes));
+			frame.flip();
+			grown.put(frame);
+			frame = grown;
+		}
+	}
+
+	private void sendToOthers(RelayClient sender) {
+		for (int i = 0; i < clients.size(); i++) {
+			RelayClient receiver = clients.get(i);
+			if (receiver != sender && receiver.joined) {
+				sendTo(receiver);
+			}
+		}
+	}
+
+	private void sendTo(RelayClient receiver) {
+		if (!receiver.enqueue(frame)) {
+			drop(receiver, "outbound queue full");
+		}
+	}
+}